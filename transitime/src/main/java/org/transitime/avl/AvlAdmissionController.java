@@ -0,0 +1,290 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.avl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AvlConfig;
+import org.transitime.utils.Time;
+
+/**
+ * Decides whether an AVL report for a vehicle should be fully processed by
+ * AvlProcessor.processAvlReport() or whether only the location of the vehicle
+ * should be updated using AvlProcessor.cacheAvlReportWithoutProcessing(),
+ * which is far cheaper. A report is fully processed if at least
+ * getMinTimeBetweenFullyProcessedReportsMsec() has elapsed since the
+ * previous fully processed report for the vehicle.
+ * <p>
+ * Normally that time is simply transitime.avl.minTimeBetweenAvlReportsSecs.
+ * But if transitime.avl.adaptiveAdmission is set and the AvlExecutor queues
+ * indicate that AVL processing is falling behind, such as when a feed
+ * provides 1Hz data for thousands of vehicles, then the time is increased so
+ * that more of the reports are handled with the cheap location-only path.
+ * The time is never increased beyond
+ * transitime.avl.maxTimeBetweenFullyProcessedReportsSecs so that every
+ * vehicle is still fully processed regularly. Once the queues have caught up
+ * the time is gradually reduced back to the minimum.
+ * <p>
+ * Also keeps track of how many reports were fully processed, only cached,
+ * and dropped, for monitoring.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class AvlAdmissionController {
+
+	// The current min time between fully processed reports for a vehicle.
+	// Negative until first used so that it can be initialized from the
+	// config.
+	private volatile long minTimeBetweenFullyProcessedMsec = -1;
+
+	// When the time between fully processed reports was last adjusted
+	private final AtomicLong lastAdjustmentTime = new AtomicLong();
+
+	// Counters, for monitoring
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong cachedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private static final AvlAdmissionController singleton =
+			new AvlAdmissionController();
+
+	// How frequently the load is looked at to adjust the time between fully
+	// processed reports
+	private static final long ADJUSTMENT_PERIOD_MSEC = 1 * Time.MS_PER_SEC;
+
+	/********************* Configurable parameters *************************/
+
+	private static BooleanConfigValue adaptiveAdmission =
+			new BooleanConfigValue("transitime.avl.adaptiveAdmission", true,
+					"If true then the minimum time between fully processed "
+					+ "AVL reports for a vehicle is automatically increased "
+					+ "when the AvlExecutor queues indicate that AVL "
+					+ "processing is falling behind. The other reports then "
+					+ "only update the location of the vehicle, which is "
+					+ "cheap. Only applicable when not using JMS.");
+
+	private static IntegerConfigValue maxTimeBetweenFullyProcessedReportsSecs =
+			new IntegerConfigValue(
+					"transitime.avl.maxTimeBetweenFullyProcessedReportsSecs",
+					30,
+					"When transitime.avl.adaptiveAdmission is set this is the "
+					+ "longest that the time between fully processed AVL "
+					+ "reports for a vehicle can be increased to when AVL "
+					+ "processing is falling behind. Ensures that every "
+					+ "vehicle is still matched and predicted for regularly "
+					+ "even when overloaded.");
+
+	private static IntegerConfigValue admissionTargetQueueLatencyMsec =
+			new IntegerConfigValue(
+					"transitime.avl.admissionTargetQueueLatencyMsec",
+					2000,
+					"When transitime.avl.adaptiveAdmission is set and AVL "
+					+ "reports wait longer than this in the AvlExecutor "
+					+ "queues, or the queues are more than half full, then "
+					+ "the time between fully processed AVL reports for a "
+					+ "vehicle is increased. Once the latency is below half "
+					+ "of this value and the queues are mostly empty the "
+					+ "time is reduced again.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlAdmissionController.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor declared private because singleton class
+	 */
+	private AvlAdmissionController() {
+	}
+
+	/**
+	 * @return the singleton AvlAdmissionController
+	 */
+	public static AvlAdmissionController getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * The configured minimum time between fully processed reports.
+	 *
+	 * @return time in msec
+	 */
+	private static long configuredMinMsec() {
+		return AvlConfig.getMinTimeBetweenAvlReportsSecs() * Time.MS_PER_SEC;
+	}
+
+	/**
+	 * Returns the current minimum time between fully processed AVL reports
+	 * for a vehicle. Adjusts the time according to the load of the AvlExecutor
+	 * queues if it hasn't been adjusted recently.
+	 *
+	 * @return time in msec
+	 */
+	public long getMinTimeBetweenFullyProcessedReportsMsec() {
+		adjustIfNeeded();
+		return minTimeBetweenFullyProcessedMsec;
+	}
+
+	/**
+	 * Determines whether the AVL report should be fully processed.
+	 *
+	 * @param avlReportTime
+	 *            time of the new AVL report
+	 * @param previousFullyProcessedTime
+	 *            time of the previous fully processed AVL report for the
+	 *            vehicle, or 0 if there wasn't one
+	 * @return true if should be fully processed, false if should only update
+	 *         the location of the vehicle
+	 */
+	public boolean shouldFullyProcess(long avlReportTime,
+			long previousFullyProcessedTime) {
+		if (previousFullyProcessedTime == 0)
+			return true;
+		return avlReportTime - previousFullyProcessedTime
+				>= getMinTimeBetweenFullyProcessedReportsMsec();
+	}
+
+	/**
+	 * If haven't done so recently then looks at the load of the AvlExecutor
+	 * queues and increases or decreases the time between fully processed
+	 * reports accordingly. Only one thread does the adjustment.
+	 */
+	private void adjustIfNeeded() {
+		long minMsec = configuredMinMsec();
+		if (minTimeBetweenFullyProcessedMsec < 0)
+			minTimeBetweenFullyProcessedMsec = minMsec;
+
+		long now = System.currentTimeMillis();
+		long lastAdjustment = lastAdjustmentTime.get();
+		if (now - lastAdjustment < ADJUSTMENT_PERIOD_MSEC
+				|| !lastAdjustmentTime.compareAndSet(lastAdjustment, now))
+			return;
+
+		// If not adapting to load then simply use the configured value
+		if (!adaptiveAdmission.getValue() || AvlConfig.shouldUseJms()) {
+			minTimeBetweenFullyProcessedMsec = minMsec;
+			return;
+		}
+
+		// Determine the load from the AvlExecutor queues. For an empty
+		// queue the latency of the last report taken is no longer relevant.
+		// Doesn't create the AvlExecutor since if it hasn't been created
+		// there is no load.
+		AvlExecutor avlExecutor = AvlExecutor.getExistingInstance();
+		if (avlExecutor == null)
+			return;
+		long worstLatencyMsec = 0;
+		double worstUtilization = 0.0;
+		for (AvlQueue queue : avlExecutor.getQueues()) {
+			int size = queue.size();
+			if (size == 0)
+				continue;
+			worstLatencyMsec =
+					Math.max(worstLatencyMsec, queue.getLastQueueLatencyMsec());
+			worstUtilization = Math.max(worstUtilization,
+					(double) size / (size + queue.remainingCapacity()));
+		}
+
+		long maxMsec = Math.max(minMsec,
+				maxTimeBetweenFullyProcessedReportsSecs.getValue()
+						* Time.MS_PER_SEC);
+		long targetLatencyMsec = admissionTargetQueueLatencyMsec.getValue();
+		long current = Math.max(minMsec, minTimeBetweenFullyProcessedMsec);
+		long adjusted = current;
+		if (worstLatencyMsec > targetLatencyMsec || worstUtilization > 0.5) {
+			// Falling behind so fully process fewer reports
+			adjusted = Math.min(maxMsec,
+					Math.max(current * 3 / 2, current + Time.MS_PER_SEC));
+		} else if (worstLatencyMsec < targetLatencyMsec / 2
+				&& worstUtilization < 0.25) {
+			// Keeping up so gradually go back towards the configured minimum
+			adjusted = Math.max(minMsec, current * 3 / 4);
+		}
+		adjusted = Math.min(maxMsec, adjusted);
+
+		if (adjusted != minTimeBetweenFullyProcessedMsec) {
+			logger.info("Changing min time between fully processed AVL "
+					+ "reports for a vehicle from {} msec to {} msec. "
+					+ "worstQueueLatencyMsec={} worstQueueUtilization={}",
+					minTimeBetweenFullyProcessedMsec, adjusted,
+					worstLatencyMsec,
+					String.format("%.2f", worstUtilization));
+			minTimeBetweenFullyProcessedMsec = adjusted;
+		}
+	}
+
+	/**
+	 * Records that an AVL report was fully processed
+	 */
+	public void recordProcessed() {
+		processedCount.incrementAndGet();
+	}
+
+	/**
+	 * Records that an AVL report was only used to update the location of the
+	 * vehicle
+	 */
+	public void recordCached() {
+		cachedCount.incrementAndGet();
+	}
+
+	/**
+	 * Records that an AVL report was dropped, such as because the queue was
+	 * full or the report was invalid or out of date
+	 */
+	public void recordDropped() {
+		droppedCount.incrementAndGet();
+	}
+
+	/**
+	 * @return number of AVL reports fully processed
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return number of AVL reports only used to update the vehicle location
+	 */
+	public long getCachedCount() {
+		return cachedCount.get();
+	}
+
+	/**
+	 * @return number of AVL reports dropped
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "AvlAdmissionController ["
+				+ "minTimeBetweenFullyProcessedMsec="
+					+ minTimeBetweenFullyProcessedMsec
+				+ ", processed=" + getProcessedCount()
+				+ ", cached=" + getCachedCount()
+				+ ", dropped=" + getDroppedCount()
+				+ "]";
+	}
+}
@@ -84,6 +84,7 @@ public class AvlClient implements Runnable {
 			if (errorMsg != null) {
 				logger.error("Throwing away avlReport {} because {}",
 						avlReport, errorMsg);
+				AvlAdmissionController.getInstance().recordDropped();
 				return;
 			}
 
@@ -102,6 +103,7 @@ public class AvlClient implements Runnable {
 							+ "vehicle. New AVL report is {}. Previous valid AVL "
 							+ "report is {}", avlReport,
 							previousReportForVehicle);
+					AvlAdmissionController.getInstance().recordDropped();
 					return;
 				}
 
@@ -109,13 +111,17 @@ public class AvlClient implements Runnable {
 				// process it. This is important for when get AVL data for a
 				// vehicle
 				// more frequently than is worthwhile, like every couple of
-				// seconds.
+				// seconds. The AvlAdmissionController determines what is too
+				// recent, which is increased if AVL processing falls behind.
 				if (previousReportForVehicle != null) {
-					long timeBetweenReportsSecs =
-							(avlReport.getTime() - previousReportForVehicle
-									.getTime()) / Time.MS_PER_SEC;
-					if (timeBetweenReportsSecs < AvlConfig
-							.getMinTimeBetweenAvlReportsSecs()) {
+					AvlAdmissionController admissionController =
+							AvlAdmissionController.getInstance();
+					if (!admissionController.shouldFullyProcess(
+							avlReport.getTime(),
+							previousReportForVehicle.getTime())) {
+						long timeBetweenReportsSecs =
+								(avlReport.getTime() - previousReportForVehicle
+										.getTime()) / Time.MS_PER_SEC;
 						// Log this but. Since this can happen very frequently
 						// (VTA has hundreds of vehicles reporting every
 						// second!)
@@ -134,9 +140,12 @@ public class AvlClient implements Runnable {
 								+ "report is too close in time to the previous AVL "
 								+ "report for the vehicle. "
 								+ "transitime.avl.minTimeBetweenAvlReportsSecs={} "
-								+ "secs. New AVL report is {}. Previous valid AVL "
-								+ "report is {}",
+								+ "secs and current min time between fully "
+								+ "processed reports is {} msec. New AVL report "
+								+ "is {}. Previous valid AVL report is {}",
 								AvlConfig.getMinTimeBetweenAvlReportsSecs(),
+								admissionController
+									.getMinTimeBetweenFullyProcessedReportsMsec(),
 								avlReport, previousReportForVehicle);
 
 						// But still want to update the vehicle cache with the
@@ -144,6 +153,7 @@ public class AvlClient implements Runnable {
 						// vehicles to move on map smoothly
 						AvlProcessor.getInstance()
 								.cacheAvlReportWithoutProcessing(avlReport);
+						admissionController.recordCached();
 
 						// Done here since not processing this AVL report
 						return;
@@ -160,6 +170,7 @@ public class AvlClient implements Runnable {
 			logger.info("Thread={} AvlClient processing AVL data {}", 
 					Thread.currentThread().getName(), avlReport);
 			AvlProcessor.getInstance().processAvlReport(avlReport);
+			AvlAdmissionController.getInstance().recordProcessed();
 		} catch (Exception e) {
 			// Catch unexpected exceptions so that can continue to use the same
 			// AVL thread even if there is an unexpected problem. Only let
@@ -16,6 +16,9 @@
  */
 package org.transitime.avl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -23,11 +26,13 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.logging.Markers;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
 import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
@@ -37,6 +42,12 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitime.avl.numThreads .
  * The queue size is set using the Java property transitime.avl.queueSize .
  * <p>
+ * If transitime.avl.useShardedLanes is set then instead of a single
+ * ThreadPoolExecutor the AVL reports are routed to a fixed set of AvlLanes,
+ * one thread per lane, by hashing the vehicle ID. This way reports for a
+ * vehicle are always processed in order by the same thread and the threads
+ * don't block each other when a vehicle reports in bursts.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -45,11 +56,18 @@ import org.transitime.utils.threading.NamedThreadFactory;
  */
 public class AvlExecutor {
 	
-	// The actual executor
+	// The actual executor. Null if using sharded lanes.
 	ThreadPoolExecutor avlClientExecutor = null;
 	
-	// Singleton class
-	private static AvlExecutor singleton;
+	// The work queue for the executor, so can access its counters
+	private AvlQueue avlQueue = null;
+	
+	// The lanes, if using sharded lanes instead of the executor
+	private List<AvlLane> avlLanes = null;
+	
+	// Singleton class. Volatile so that getExistingInstance() sees it from
+	// other threads.
+	private static volatile AvlExecutor singleton;
 	
 	/********************* Configurable parameters *************************/
 	
@@ -59,12 +77,13 @@ public class AvlExecutor {
 	
 	private static IntegerConfigValue avlQueueSize = 
 			new IntegerConfigValue("transitime.avl.queueSize", 2000,
-					"How many items to go into the blocking AVL queue "
-					+ "before need to wait for queue to have space. Should "
-					+ "be approximately 50% more than the number of reports "
-					+ "that will be read during a single AVL polling cycle. "
-					+ "If too big then wasteful. If too small then not all the "
-					+ "data will be rejected by the ThreadPoolExecutor. ");
+					"How many vehicles can have a pending report in the AVL "
+					+ "queue (or in each lane if using sharded lanes) before "
+					+ "the queue is full. Since the queue only keeps the "
+					+ "latest report for each vehicle this should be "
+					+ "somewhat larger than the number of vehicles in the "
+					+ "fleet. If too small then reports will be rejected by "
+					+ "the ThreadPoolExecutor.");
 
 	private static IntegerConfigValue numAvlThreads = 
 			new IntegerConfigValue("transitime.avl.numThreads", 1,
@@ -76,6 +95,17 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue useShardedLanes =
+			new BooleanConfigValue("transitime.avl.useShardedLanes", false,
+					"If true then instead of using a single thread pool for "
+					+ "processing AVL reports the reports are routed to "
+					+ "transitime.avl.numThreads lanes by hashing the "
+					+ "vehicle ID. Each lane has its own thread and only keeps "
+					+ "the latest report for each vehicle. This guarantees "
+					+ "that reports for a vehicle are processed in order and "
+					+ "prevents threads from blocking each other. Useful for "
+					+ "large fleets.");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -103,6 +133,21 @@ public class AvlExecutor {
 			numberThreads = MAX_THREADS;
 		}
 
+		// If using sharded lanes then start up a thread for each lane 
+		// instead of creating the ThreadPoolExecutor
+		if (useShardedLanes.getValue()) {
+			logger.info("Starting AvlExecutor for directly handling AVL "
+					+ "reports using {} sharded lanes.", numberThreads);
+			List<AvlLane> lanes = new ArrayList<AvlLane>(numberThreads);
+			for (int i = 0; i < numberThreads; ++i) {
+				AvlLane lane = new AvlLane(i, maxAVLQueueSize);
+				lanes.add(lane);
+				new NamedThread(lane, "avlLane").start();
+			}
+			avlLanes = Collections.unmodifiableList(lanes);
+			return;
+		}
+		
 		logger.info("Starting AvlExecutor for directly handling AVL reports " +
 				"via a queue instead of JMS. maxAVLQueueSize={} and "
 				+ "numberThreads={}", 
@@ -112,27 +157,15 @@ public class AvlExecutor {
 		int corePoolSize = 1;
 		int maximumPoolSize = numberThreads;
 		long keepAliveTime = 1; /* 1 hour */
-		BlockingQueue<Runnable> workQueue = new AvlQueue(maxAVLQueueSize);
+		avlQueue = new AvlQueue(maxAVLQueueSize);
+		BlockingQueue<Runnable> workQueue = avlQueue;
 		NamedThreadFactory avlClientThreadFactory =
 				new NamedThreadFactory("avlClient");
 		// Called when queue fills up
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
-				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
-						+ AgencyConfig.getAgencyId() + ". The work "
-						+ "queue with capacity " + maxAVLQueueSize 
-						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
-				// If first one then send out an e-mail message since this can 
-				// be a serious issue indicating that system is locked up. This
-				// actually happened once when couldn't read from db due to a
-				// strange locking condition.
-				if (!emailSentDueToQueueFull) {
-					emailSentDueToQueueFull = true;
-					logger.error(Markers.email(), message);
-				} else {
-					logger.error(message);
-				}
+				rejected((AvlClient) arg0);
 			}};
 		
 		avlClientExecutor =
@@ -142,6 +175,31 @@ public class AvlExecutor {
 						rejectedHandler);
 	}
 	
+	/**
+	 * Called when the queue for the AVL report is full. Logs the problem.
+	 * 
+	 * @param avlClient
+	 *            the AvlClient that was rejected
+	 */
+	private void rejected(AvlClient avlClient) {
+		AvlAdmissionController.getInstance().recordDropped();
+		
+		String message = "Rejected AVL report in AvlExecutor for agencyId=" 
+				+ AgencyConfig.getAgencyId() + ". The work "
+				+ "queue with capacity " + avlQueueSize.getValue() 
+				+ " must be full. " + avlClient.getAvlReport();
+		// If first one then send out an e-mail message since this can 
+		// be a serious issue indicating that system is locked up. This
+		// actually happened once when couldn't read from db due to a
+		// strange locking condition.
+		if (!emailSentDueToQueueFull) {
+			emailSentDueToQueueFull = true;
+			logger.error(Markers.email(), message);
+		} else {
+			logger.error(message);
+		}
+	}
+	
 	/**
 	 * Returns singleton instance. Not synchronized since it is OK if an
 	 * executor is replaced by a new one.
@@ -156,6 +214,17 @@ public class AvlExecutor {
 		return singleton;
 	}
 	
+	/**
+	 * Returns the singleton instance if it has already been created. Unlike
+	 * getInstance() doesn't create and start the executor, so is for when
+	 * only want to look at the state of the queues, such as for monitoring.
+	 * 
+	 * @return the singleton AvlExecutor, or null if not yet created
+	 */
+	public static AvlExecutor getExistingInstance() {
+		return singleton;
+	}
+	
 	/**
 	 * Instead of writing AVL report to JMS topic this method directly processes
 	 * it. By doing this one can bypass the need for a JMS server. Uses a thread
@@ -165,9 +234,9 @@ public class AvlExecutor {
 	 * the AVL data getting then pushed to the core system in batches.
 	 * <p>
 	 * Uses a queue so that if system gets behind in processing AVL data then
-	 * AVL data is written to a queue that keeps track of the latest AVL report
-	 * per vehicle. If another AVL report is to be added to the queue then the
-	 * previous one is removed since there is no point processing an old AVL
+	 * AVL data is written to a queue that keeps only the latest AVL report
+	 * per vehicle. If another AVL report is to be added to the queue then it
+	 * overwrites the pending one since there is no point processing an old AVL
 	 * report for a vehicle when new data is available.
 	 * <p>
 	 * Causes AvlClient.run() to be called on each AvlReport, unless using test
@@ -182,12 +251,59 @@ public class AvlExecutor {
 	public void processAvlReport(AvlReport newAvlReport,
 			boolean... useTestExecutor) {
 		boolean testing = useTestExecutor.length > 0 && useTestExecutor[0];
-		Runnable avlClient = !testing ? 
+		AvlClient avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
+		// If using sharded lanes then route report to the lane for the vehicle
+		if (avlLanes != null) {
+			AvlLane lane = avlLanes.get(AvlLane.laneIndex(
+					newAvlReport.getVehicleId(), avlLanes.size()));
+			if (!lane.add(avlClient))
+				rejected(avlClient);
+			return;
+		}
+		
 		avlClientExecutor.execute(avlClient);		
 	}
 
+	/**
+	 * Returns the lanes being used if transitime.avl.useShardedLanes is set.
+	 * Useful for monitoring depth and latency of each lane.
+	 * 
+	 * @return List of AvlLanes, or empty list if not using sharded lanes
+	 */
+	public List<AvlLane> getLanes() {
+		if (avlLanes == null)
+			return Collections.emptyList();
+		return avlLanes;
+	}
+	
+	/**
+	 * Returns the queues being used, one per lane if using sharded lanes or
+	 * else the single work queue of the ThreadPoolExecutor. Useful for
+	 * monitoring the coalesced, dropped, and processed counts.
+	 * 
+	 * @return List of AvlQueues
+	 */
+	public List<AvlQueue> getQueues() {
+		if (avlLanes == null)
+			return Collections.singletonList(avlQueue);
+		
+		List<AvlQueue> queues = new ArrayList<AvlQueue>(avlLanes.size());
+		for (AvlLane lane : avlLanes)
+			queues.add(lane.getQueue());
+		return queues;
+	}
+	
+	/**
+	 * Returns true if the executor was configured to use sharded lanes.
+	 * 
+	 * @return true if using sharded lanes
+	 */
+	public static boolean usingShardedLanes() {
+		return useShardedLanes.getValue();
+	}
+
 	/**
 	 * Separate executor, just for testing. The run method simply sleeps for a
 	 * while so can verify that the queuing works when system getting behind in
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.logging.Markers;
+import org.transitime.utils.Time;
+
+/**
+ * A single lane of the sharded AvlExecutor. Each vehicle is always routed to
+ * the same lane, and each lane is processed by exactly one thread. This means
+ * that the AVL reports for a vehicle are always processed in order, and two
+ * threads never end up contending for the same VehicleState.
+ * <p>
+ * Each lane has its own AvlQueue, which only keeps the latest pending report
+ * for each vehicle. Therefore the size of the lane is bounded by the number of
+ * vehicles routed to it instead of by the AVL reporting rate.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class AvlLane implements Runnable {
+
+	// Identifies the lane, for logging and monitoring
+	private final int laneNumber;
+
+	// The pending AvlClients for the lane, at most one per vehicle
+	private final AvlQueue avlQueue;
+
+	// For determining how long processing takes, for monitoring
+	private final AtomicLong totalProcessingMsec = new AtomicLong();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlLane.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. The thread needs to be started separately.
+	 *
+	 * @param laneNumber
+	 *            identifies the lane
+	 * @param queueSize
+	 *            how many vehicles can have a pending report in the lane
+	 */
+	public AvlLane(int laneNumber, int queueSize) {
+		this.laneNumber = laneNumber;
+		this.avlQueue = new AvlQueue(queueSize);
+	}
+
+	/**
+	 * Determines which lane AVL reports for the vehicle should be handled by.
+	 * Always returns the same lane for a vehicle.
+	 *
+	 * @param vehicleId
+	 * @param numberOfLanes
+	 * @return index of the lane, 0 to numberOfLanes-1
+	 */
+	public static int laneIndex(String vehicleId, int numberOfLanes) {
+		return (vehicleId.hashCode() & Integer.MAX_VALUE) % numberOfLanes;
+	}
+
+	/**
+	 * Adds the AvlClient to the lane. If there is already a pending AvlClient
+	 * for the vehicle then it is replaced by the new one.
+	 *
+	 * @param avlClient
+	 *            the AvlClient (or test client) to run for the report
+	 * @return true if added, false if lane was full
+	 */
+	public boolean add(AvlClient avlClient) {
+		return avlQueue.offer(avlClient);
+	}
+
+	/**
+	 * Processes AvlClients for the lane forever.
+	 *
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Runnable avlClient = avlQueue.take();
+
+				long startNanoTime = System.nanoTime();
+				avlClient.run();
+				totalProcessingMsec.addAndGet((System.nanoTime() - startNanoTime)
+						/ Time.NSEC_PER_MSEC);
+			} catch (InterruptedException e) {
+				logger.error("AvlLane {} was interrupted so exiting.",
+						laneNumber);
+				return;
+			} catch (Exception e) {
+				// AvlClient already catches exceptions, but still don't want
+				// lane thread to die if something unexpected happens
+				logger.error(Markers.email(),
+						"For agencyId={} unexpected exception in AvlLane {}",
+						AgencyConfig.getAgencyId(), laneNumber, e);
+			}
+		}
+	}
+
+	public int getLaneNumber() {
+		return laneNumber;
+	}
+
+	/**
+	 * @return the queue for the lane, so can access its counters
+	 */
+	public AvlQueue getQueue() {
+		return avlQueue;
+	}
+
+	/**
+	 * @return number of vehicles that currently have a pending AVL report
+	 */
+	public int getDepth() {
+		return avlQueue.size();
+	}
+
+	/**
+	 * @return how long the most recently processed report waited in the lane
+	 */
+	public long getLastQueueLatencyMsec() {
+		return avlQueue.getLastQueueLatencyMsec();
+	}
+
+	/**
+	 * @return average time it took to process a report once taken from lane
+	 */
+	public double getAverageProcessingMsec() {
+		long count = avlQueue.getProcessedCount();
+		return count == 0 ? 0.0 : (double) totalProcessingMsec.get() / count;
+	}
+
+	@Override
+	public String toString() {
+		return "AvlLane ["
+				+ "laneNumber=" + laneNumber
+				+ ", queue=" + avlQueue
+				+ ", avgProcessingMsec="
+					+ String.format("%.1f", getAverageProcessingMsec())
+				+ "]";
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -16,205 +16,418 @@
  */
 package org.transitime.avl;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.transitime.db.structs.AvlReport;
+import org.transitime.utils.Time;
 
 /**
- * A queue of AvlClient runnables that can be used with a ThreadPoolExecutor.
- * Implements by subclassing a ArrayBlockingQueue<Runnable> where the Runnable
- * is an AvlClient. Also keeps track of the last AVL report per vehicle. When
- * getting data from queue, if the data is obsolete (a new AVL report has been
- * received for the vehicle) then that element from the queue is thrown out and
- * the next item is retrieved until a non-obsolete one is found.
+ * A queue of AvlClient runnables that can be used with a ThreadPoolExecutor
+ * or by an AvlLane. The queue holds at most one pending slot per vehicle. If
+ * a new AVL report is added for a vehicle that already has a pending report
+ * then the pending slot is simply overwritten with the newer report since
+ * there is no point processing an obsolete report. This means that obsolete
+ * reports never take up capacity in the queue, and the capacity of the queue
+ * is bounded by the number of vehicles instead of by the AVL reporting rate.
+ * <p>
+ * Implemented using a FIFO of vehicle IDs and a ConcurrentHashMap of the
+ * pending slot for each vehicle. A vehicle ID is only put into the FIFO when
+ * the vehicle did not already have a pending slot. Replacing a pending slot
+ * is a single atomic put() into the map, so no additional locking is needed.
  * <p>
- * Extended ArrayBlockingQueue class so that don't have to create a blocking
- * queue from scratch.
+ * Keeps counters of how many reports were coalesced (replaced by a newer
+ * report before being processed), dropped (queue full), and processed (taken
+ * from the queue), as well as how long reports waited in the queue.
  * <p>
- * Note: wanted to extend from ArrayBlockingQueue<AvlClient> but that didn't
- * work for the ThreadPoolExecutor which expects a BlockingQueue<Runnable>. So
+ * Note: wanted to implement BlockingQueue<AvlClient> but that doesn't work
+ * for the ThreadPoolExecutor which expects a BlockingQueue<Runnable>. So
  * had to resort to doing ugly casts.
- * 
+ *
  * @author SkiBu Smith
  *
  */
-public class AvlQueue extends ArrayBlockingQueue<Runnable> {
+public class AvlQueue extends AbstractQueue<Runnable> implements
+		BlockingQueue<Runnable> {
 
-	// For keeping track of the last AVL report for each vehicle. Used to
-	// determine if AVL report from queue is obsolete.
-	ConcurrentMap<String, AvlReport> avlDataPerVehicleMap =
-			new ConcurrentHashMap<String, AvlReport>();
+	// The pending slot for each vehicle. Keyed on vehicle ID.
+	private final ConcurrentMap<String, Slot> slotPerVehicleMap =
+			new ConcurrentHashMap<String, Slot>();
 
-	private static final long serialVersionUID = 6587642826604552096L;
+	// The vehicles that have a pending slot, in the order they were queued.
+	// Bounded by the capacity of the queue.
+	private final LinkedBlockingQueue<String> vehicleIdQueue;
+
+	// Counters, for monitoring
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong totalQueueLatencyMsec = new AtomicLong();
+	private volatile long lastQueueLatencyMsec = 0;
+	private volatile long maxQueueLatencyMsec = 0;
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(AvlQueue.class);
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * A pending AvlClient along with when it was queued so that the latency of
+	 * the queue can be determined.
+	 */
+	private static class Slot {
+		private final Runnable runnable;
+		private final long queuedNanoTime;
+
+		private Slot(Runnable runnable) {
+			this.runnable = runnable;
+			this.queuedNanoTime = System.nanoTime();
+		}
+	}
+
 	/**
 	 * Constructs the queue to have specified size.
-	 * 
+	 *
 	 * @param queueSize
-	 *            How many AVL elements can be put into the queue before it
-	 *            blocks.
+	 *            How many vehicles can have a pending AVL report in the queue
+	 *            before it is considered full.
 	 */
 	public AvlQueue(int queueSize) {
-		super(queueSize);
+		vehicleIdQueue = new LinkedBlockingQueue<String>(queueSize);
 	}
 
 	/**
-	 * Adds the AVL report to the map of last AVL report for each vehicle
-	 * 
-	 * @param runnable the AvlClient
+	 * Returns the vehicle ID for the AvlClient so that it can be used as the
+	 * key for the pending slot.
+	 *
+	 * @param runnable
+	 *            the AvlClient
+	 * @return vehicle ID of the AVL report
 	 */
-	private void addToAvlDataPerVehicleMap(Runnable runnable) {
+	private static String vehicleId(Runnable runnable) {
 		if (!(runnable instanceof AvlClient))
 			throw new IllegalArgumentException("Runnable must be AvlClient.");
-		
-		AvlReport avlReport = ((AvlClient) runnable).getAvlReport();
-		avlDataPerVehicleMap.put(avlReport.getVehicleId(), avlReport);
+
+		return ((AvlClient) runnable).getAvlReport().getVehicleId();
 	}
 
 	/**
-	 * Returns true if the AVL report is older than the latest one for the
-	 * vehicle and is therefore obsolete and doesn't need to be processed.
-	 * 
-	 * @param avlReportFromQueue
-	 *            AvlClient from the queue containing an AvlReport
-	 * @return true of obsolete
+	 * Puts the slot into the pending slot for its vehicle. If there was
+	 * already a pending slot for the vehicle then it is overwritten and true
+	 * is returned, meaning that the vehicle ID is already in the FIFO.
+	 *
+	 * @param vehicleId
+	 * @param slot
+	 * @return true if replaced an existing pending slot
 	 */
-	private boolean isObsolete(Runnable runnableFromQueue) {
-		if (!(runnableFromQueue instanceof AvlClient))
-			throw new IllegalArgumentException("Runnable must be AvlClient.");
+	private boolean replacePendingSlot(String vehicleId, Slot slot) {
+		Slot previous = slotPerVehicleMap.put(vehicleId, slot);
+		if (previous == null)
+			return false;
 
-		AvlReport avlReportFromQueue =
-				((AvlClient) runnableFromQueue).getAvlReport();
-		
-		AvlReport lastAvlReportForVehicle =
-				avlDataPerVehicleMap.get(avlReportFromQueue.getVehicleId());
-		boolean obsolete =
-				lastAvlReportForVehicle != null
-						&& avlReportFromQueue.getTime() < lastAvlReportForVehicle
-								.getTime();
-		if (obsolete) {
-			logger.debug("AVL report from queue is obsolete (there is a newer "
-					+ "one for the vehicle). Therefore ignoring this report so "
-					+ "can move on to next valid report for another vehicle. "
-					+ "From queue {}. Last AVL report in map {}. Size of queue "
-					+ "is {}",	
-					avlReportFromQueue, lastAvlReportForVehicle, size());
-		}
-		return obsolete;
+		coalescedCount.incrementAndGet();
+		logger.debug("Replaced obsolete AVL report in queue with newer one. "
+				+ "Obsolete report {}. New report {}. Size of queue is {}",
+				((AvlClient) previous.runnable).getAvlReport(),
+				((AvlClient) slot.runnable).getAvlReport(), size());
+		return true;
 	}
-	
+
 	/**
-	 * Calls superclass add() method but also updates the AVL data per vehicle
-	 * map. Doesn't seem to be used by ThreadPoolExecutor but still included
-	 * for completeness.
+	 * For when the vehicle ID could not be added to the FIFO because the queue
+	 * is full. Removes the pending slot so it doesn't linger, but only if it
+	 * is still the slot that was inserted by the caller.
+	 * <p>
+	 * Between the failed offer to the FIFO and the removal another producer
+	 * can replace the slot with a newer report for the same vehicle. That
+	 * producer was told its report was queued, so the newer slot must not
+	 * simply be deleted. Instead another attempt is made to put the vehicle
+	 * ID into the FIFO for it. Only if the FIFO is still full is the newer
+	 * slot dropped, and then it is counted as dropped.
+	 *
+	 * @param vehicleId
+	 * @param slot
+	 *            the slot that the caller put into the map
+	 * @return true if the vehicle ID ended up in the FIFO for a newer slot,
+	 *         false if a slot was dropped
 	 */
-	@Override
-	public boolean add(Runnable runnable) {
-		addToAvlDataPerVehicleMap(runnable);
-		return super.add(runnable);
+	private boolean dropPendingSlot(String vehicleId, Slot slot) {
+		Slot current = slot;
+		while (!slotPerVehicleMap.remove(vehicleId, current)) {
+			current = slotPerVehicleMap.get(vehicleId);
+			if (current == null)
+				return true;
+
+			if (vehicleIdQueue.offer(vehicleId))
+				return true;
+		}
+		droppedCount.incrementAndGet();
+		return false;
 	}
 
 	/**
-	 * Calls superclass put() method but also updates the AVL data per vehicle
-	 * map. Doesn't seem to be used by ThreadPoolExecutor but still included
-	 * for completeness.
+	 * Gets the pending slot for the vehicle ID taken from the FIFO and updates
+	 * the statistics. Returns null if the slot was removed in the mean time.
+	 *
+	 * @param vehicleId
+	 * @return the runnable, or null
 	 */
-	@Override
-	public void put(Runnable runnable) throws InterruptedException {
-		super.put(runnable);
-		addToAvlDataPerVehicleMap(runnable);
+	private Runnable dequeued(String vehicleId) {
+		Slot slot = slotPerVehicleMap.remove(vehicleId);
+		if (slot == null)
+			return null;
+
+		long latencyMsec =
+				(System.nanoTime() - slot.queuedNanoTime) / Time.NSEC_PER_MSEC;
+		lastQueueLatencyMsec = latencyMsec;
+		if (latencyMsec > maxQueueLatencyMsec)
+			maxQueueLatencyMsec = latencyMsec;
+		totalQueueLatencyMsec.addAndGet(latencyMsec);
+		processedCount.incrementAndGet();
+
+		return slot.runnable;
 	}
 
 	/**
-	 * Calls superclass offer() method but also updates the AVL data per vehicle
-	 * map. Used by ThreadPoolExecutor.
+	 * Adds runnable to the queue, overwriting any pending slot for the
+	 * vehicle. Used by ThreadPoolExecutor.
 	 */
 	@Override
 	public boolean offer(Runnable runnable) {
-		AvlReport avlReport = ((AvlClient)runnable).getAvlReport();
-		logger.debug("offer() remainingCapacity={} {}", 
-				remainingCapacity(), avlReport);
+		String vehicleId = vehicleId(runnable);
+		Slot slot = new Slot(runnable);
+		if (replacePendingSlot(vehicleId, slot))
+			return true;
+
+		if (vehicleIdQueue.offer(vehicleId))
+			return true;
 
-		boolean successful = super.offer(runnable);
-		if (successful)
-			addToAvlDataPerVehicleMap(runnable);
-		
-		logger.debug("offer() returned {} for {}", 
-				successful, avlReport);
-		return successful;
+		if (dropPendingSlot(vehicleId, slot))
+			return true;
+		logger.debug("offer() could not add {} because queue full",
+				((AvlClient) runnable).getAvlReport());
+		return false;
 	}
 
 	/**
-	 * Calls superclass offer(timeout, unit) method but also updates the AVL
-	 * data per vehicle map. Doesn't seem to be used by ThreadPoolExecutor but
-	 * still included for completeness.
+	 * Adds runnable to the queue, overwriting any pending slot for the
+	 * vehicle. Waits up to the specified time for space to become available.
+	 * Doesn't seem to be used by ThreadPoolExecutor but still included for
+	 * completeness.
 	 */
 	@Override
 	public boolean offer(Runnable runnable, long timeout, TimeUnit unit)
 			throws InterruptedException {
-		boolean successful = super.offer(runnable, timeout, unit);
-		if (successful)
-			addToAvlDataPerVehicleMap(runnable);
-		
-		return successful; 
+		String vehicleId = vehicleId(runnable);
+		Slot slot = new Slot(runnable);
+		if (replacePendingSlot(vehicleId, slot))
+			return true;
+
+		if (vehicleIdQueue.offer(vehicleId, timeout, unit))
+			return true;
+
+		return dropPendingSlot(vehicleId, slot);
 	}
 
 	/**
-	 * Calls superclass poll() method until it gets AVL data that is not
-	 * obsolete. Doesn't seem to be used by ThreadPoolExecutor but still
-	 * included for completeness.
+	 * Adds runnable to the queue, overwriting any pending slot for the
+	 * vehicle. Waits for space to become available if needed. Doesn't seem to
+	 * be used by ThreadPoolExecutor but still included for completeness.
+	 */
+	@Override
+	public void put(Runnable runnable) throws InterruptedException {
+		String vehicleId = vehicleId(runnable);
+		if (!replacePendingSlot(vehicleId, new Slot(runnable)))
+			vehicleIdQueue.put(vehicleId);
+	}
+
+	/**
+	 * Returns the next pending runnable, or null if queue is empty. Doesn't
+	 * seem to be used by ThreadPoolExecutor but still included for
+	 * completeness.
 	 */
 	@Override
 	public Runnable poll() {
-		Runnable runnable;
-		do {
-			runnable = super.poll();
-		} while (isObsolete(runnable));
-		return runnable;
+		String vehicleId;
+		while ((vehicleId = vehicleIdQueue.poll()) != null) {
+			Runnable runnable = dequeued(vehicleId);
+			if (runnable != null)
+				return runnable;
+		}
+		return null;
 	}
 
 	/**
-	 * Calls superclass poll(timeout, unit) method until it gets AVL data that
-	 * is not obsolete. Used by ThreadPoolExecutor.
+	 * Returns the next pending runnable, waiting up to the specified time if
+	 * queue is empty. Used by ThreadPoolExecutor.
 	 */
 	@Override
 	public Runnable poll(long timeout, TimeUnit unit)
 			throws InterruptedException {
-		logger.debug("In poll(t,u) timeout={} units={}", timeout, unit);
+		long deadlineNanoTime = System.nanoTime() + unit.toNanos(timeout);
+		long remainingNanos = unit.toNanos(timeout);
+		while (true) {
+			String vehicleId =
+					vehicleIdQueue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+			if (vehicleId == null)
+				return null;
 
-		Runnable runnable;
-		do {
-			runnable = super.poll(timeout, unit);
-		} while (runnable != null && isObsolete(runnable));
+			Runnable runnable = dequeued(vehicleId);
+			if (runnable != null) {
+				logger.debug("poll(t,u) in AvlQueue returned {}",
+						((AvlClient) runnable).getAvlReport());
+				return runnable;
+			}
 
-		if (runnable != null) {
-			logger.debug("poll(t,u) in AvlQueue returned {}",
-					((AvlClient) runnable).getAvlReport());
+			remainingNanos = deadlineNanoTime - System.nanoTime();
 		}
-		return runnable;
 	}
 
 	/**
-	 * Calls superclass take() method until it gets AVL data that is not
-	 * obsolete. Doesn't seem to be used by ThreadPoolExecutor but
-	 * still included for completeness.
+	 * Returns the next pending runnable, waiting if queue is empty. Used by
+	 * ThreadPoolExecutor for core threads and by AvlLane.
 	 */
 	@Override
 	public Runnable take() throws InterruptedException {
+		while (true) {
+			Runnable runnable = dequeued(vehicleIdQueue.take());
+			if (runnable != null)
+				return runnable;
+		}
+	}
+
+	/**
+	 * Returns the next pending runnable without removing it, or null if queue
+	 * is empty.
+	 */
+	@Override
+	public Runnable peek() {
+		String vehicleId = vehicleIdQueue.peek();
+		if (vehicleId == null)
+			return null;
+		Slot slot = slotPerVehicleMap.get(vehicleId);
+		return slot != null ? slot.runnable : null;
+	}
+
+	/**
+	 * Returns number of vehicles with a pending AVL report
+	 */
+	@Override
+	public int size() {
+		return vehicleIdQueue.size();
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return vehicleIdQueue.remainingCapacity();
+	}
+
+	/**
+	 * Weakly consistent iterator over the pending runnables. Not in queue
+	 * order. Supports remove(), which is used by ThreadPoolExecutor.remove().
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final Iterator<Map.Entry<String, Slot>> entryIterator =
+				slotPerVehicleMap.entrySet().iterator();
+		return new Iterator<Runnable>() {
+			@Override
+			public boolean hasNext() {
+				return entryIterator.hasNext();
+			}
+
+			@Override
+			public Runnable next() {
+				return entryIterator.next().getValue().runnable;
+			}
+
+			@Override
+			public void remove() {
+				// The vehicle ID stays in the FIFO but is ignored when
+				// dequeued since there is no longer a pending slot for it
+				entryIterator.remove();
+			}
+		};
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		int count = 0;
 		Runnable runnable;
-		do {
-			runnable = super.take();
-		} while (isObsolete(runnable));
-		return runnable;
+		while (count < maxElements && (runnable = poll()) != null) {
+			c.add(runnable);
+			++count;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of AVL reports that were overwritten by a newer report
+	 *         for the same vehicle before they could be processed
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return number of AVL reports rejected because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return number of AVL reports taken from the queue for processing
+	 */
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	/**
+	 * @return how long the most recently taken report waited in the queue
+	 */
+	public long getLastQueueLatencyMsec() {
+		return lastQueueLatencyMsec;
+	}
+
+	/**
+	 * @return the longest any report has waited in the queue
+	 */
+	public long getMaxQueueLatencyMsec() {
+		return maxQueueLatencyMsec;
+	}
+
+	/**
+	 * @return average time reports waited in the queue before being taken
+	 */
+	public double getAverageQueueLatencyMsec() {
+		long count = processedCount.get();
+		return count == 0 ? 0.0 : (double) totalQueueLatencyMsec.get() / count;
+	}
+
+	@Override
+	public String toString() {
+		return "AvlQueue ["
+				+ "size=" + size()
+				+ ", coalesced=" + getCoalescedCount()
+				+ ", dropped=" + getDroppedCount()
+				+ ", processed=" + getProcessedCount()
+				+ ", lastQueueLatencyMsec=" + getLastQueueLatencyMsec()
+				+ ", maxQueueLatencyMsec=" + getMaxQueueLatencyMsec()
+				+ "]";
 	}
 }
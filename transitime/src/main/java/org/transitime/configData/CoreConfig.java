@@ -172,6 +172,47 @@ public class CoreConfig {
 					+ "maxDistanceFromSegmentForAutoAssigning should be less"
 					+ "than or equal to maxDistanceFromSegment.");
 	
+	/**
+	 * Whether the spatial index of stop path segments should be used so that
+	 * only the segments near an AVL report need to be examined when
+	 * spatially matching to a trip.
+	 * 
+	 * @return
+	 */
+	public static boolean useSpatialIndex() {
+		return useSpatialIndex.getValue();
+	}
+	private static BooleanConfigValue useSpatialIndex =
+			new BooleanConfigValue("transitime.core.useSpatialIndex", 
+					true,
+					"When true the spatial index of stop path segments that is "
+					+ "built when the config data is read in is used for "
+					+ "spatial matching so that only the segments near an AVL "
+					+ "report need to be examined instead of every segment of "
+					+ "every trip pattern. Set to false to look at every "
+					+ "segment, as was done originally.");
+	
+	/**
+	 * Whether spatial matching should use the kernel that works on the flat
+	 * primitive arrays of the segment coordinates of the trip patterns
+	 * instead of the StopPath and VectorWithHeading objects.
+	 * 
+	 * @return
+	 */
+	public static boolean useSpatialMatchKernel() {
+		return useSpatialMatchKernel.getValue();
+	}
+	private static BooleanConfigValue useSpatialMatchKernel =
+			new BooleanConfigValue("transitime.core.useSpatialMatchKernel", 
+					true,
+					"When true spatial matching examines the segments using "
+					+ "flat arrays of the segment coordinates of the trip "
+					+ "patterns and only creates SpatialMatch objects for the "
+					+ "resulting matches. This greatly reduces the number of "
+					+ "objects created for each AVL report. The matches are "
+					+ "the same either way. Set to false to use the original "
+					+ "way of examining the segments.");
+	
 	/**
 	 * How many bad spatial/temporal matches a predictable vehicle can have in a
 	 * row before the vehicle is made unpredictable.
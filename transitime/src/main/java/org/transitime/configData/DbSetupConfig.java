@@ -17,6 +17,7 @@
 
 package org.transitime.configData;
 
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
 
@@ -88,10 +89,28 @@ public class DbSetupConfig {
 					+ "Useful for when a session dies during a request, such as "
 					+ "for when a db is rebooted. Set to 0 to have no timeout.");
 	
+	/**
+	 * If true then the JDBC driver is told to rewrite batches of inserts into
+	 * multi-row INSERT ... VALUES statements, which greatly reduces the number
+	 * of round trips when logging lots of data.
+	 * @return true if batched inserts should be rewritten
+	 */
+	public static boolean shouldRewriteBatchedInserts() {
+		return rewriteBatchedInserts.getValue();
+	}
+	private static BooleanConfigValue rewriteBatchedInserts =
+			new BooleanConfigValue("transitime.db.rewriteBatchedInserts",
+					false,
+					"If true then the JDBC driver is told to rewrite batched "
+					+ "inserts into multi-row INSERT ... VALUES statements. "
+					+ "Uses rewriteBatchedStatements for mysql and "
+					+ "reWriteBatchedInserts for postgresql. Greatly speeds "
+					+ "up the DataDbLogger when the database is remote.");
+	
 	/**
 	 * So that have flexibility with where the hibernate config file is.
 	 * This way can easily access it within Eclipse.
-	 * @return
+	 * @return name of the hibernate config file
 	 */
 	public static String getHibernateConfigFileName() {
 		return hibernateConfigFileName.getValue();
@@ -24,6 +24,7 @@ import org.transitime.applications.Core;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.CoreConfig;
+import org.transitime.core.dataCache.HeadwayDataCache;
 import org.transitime.core.predAccuracy.PredictionAccuracyModule;
 import org.transitime.db.structs.Arrival;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -369,6 +370,12 @@ public class ArrivalDepartureGeneratorDefaultImpl
 		
 		// Generate prediction accuracy info as appropriate
 		PredictionAccuracyModule.handleArrivalDeparture(arrivalDeparture);
+		
+		// Update the headways for the stop
+		HeadwayDataCache.getInstance().handleArrivalDeparture(arrivalDeparture);
+		
+		// Learn the travel and stop times
+		TravelTimesLearner.getInstance().handleArrivalDeparture(arrivalDeparture);
 	}
 	
 	/**
@@ -1072,6 +1072,15 @@ public class AvlProcessor {
 			return false;
 		}
 		
+		// If the AutoBlockAssignerModule is assigning vehicles in batches 
+		// then it will handle this vehicle in its next pass
+		if (AutoBlockAssigner.batchModeActive()) {
+			logger.debug("Not automatically assigning vehicleId={} now since "
+					+ "it will be handled by the next batch pass of the "
+					+ "AutoBlockAssignerModule.", vehicleState.getVehicleId());
+			return false;
+		}
+		
 		logger.info("Trying to automatically assign vehicleId={}", 
 				vehicleState.getVehicleId());
 		
@@ -1325,81 +1334,162 @@ public class AvlProcessor {
 				handleProblemAssignment(vehicleState);
 			}
 
-			// If the last match is actually valid then generate associated
-			// data like predictions and arrival/departure times.
-			if (vehicleState.isPredictable() 
-					&& vehicleState.lastMatchIsValid()) {
-				// Reset the counter
-				vehicleState.setBadAssignmentsInARow(0);
+			// Generate the results of the match, such as predictions, and 
+			// update the VehicleDataCache
+			processResultsOfMatch(vehicleState, avlReport, recursiveCall);
+		} // End of synchronizing on vehicleState }
+	}
 
-				// If vehicle is delayed as indicated by not making forward 
-				// progress then store that in the vehicle state
-				handlePossibleVehicleDelay(vehicleState);
-				
-				// Determine and store the schedule adherence. 
-				determineAndSetRealTimeSchAdh(vehicleState);
-				
-				// Only continue processing if vehicle is still predictable
-				// since calling checkScheduleAdherence() can make it
-				// unpredictable if schedule adherence is really bad.
-				if (vehicleState.isPredictable()) {
-					// Generates the corresponding data for the vehicle such as
-					// predictions and arrival times
-					MatchProcessor.getInstance().generateResultsOfMatch(
-							vehicleState);
-
-					// If finished block assignment then should remove
-					// assignment
-					boolean endOfBlockReached = 
-							handlePossibleEndOfBlock(vehicleState);
-
-					// If just reached the end of the block and took the block
-					// assignment away and made the vehicle unpredictable then
-					// should see if the AVL report could be used to assign
-					// vehicle to the next assignment. This is needed for
-					// agencies like Zhengzhou which is frequency based and
-					// where each block assignment is only a single trip and
-					// when vehicle finishes one trip/block it can go into the
-					// next block right away.
-					if (endOfBlockReached) {
-						if (recursiveCall) {
-							// This method was already called recursively which
-							// means unassigned vehicle at end of block but then
-							// it got assigned to end of block again. This
-							// indicates a bug since vehicles at end of block
-							// shouldn't be reassigned to the end of the block
-							// again. Therefore log problem and don't try to
-							// assign vehicle again.
-							logger.error(
-									"AvlProcessor.lowLevelProcessAvlReport() "
-									+ "called recursively, which is wrong. {}",
-									vehicleState);
-						} else {
-							// Actually process AVL report again to see if can
-							// assign to new assignment.
-							lowLevelProcessAvlReport(avlReport, true);
-						}
-					} // End of if end of block reached
-				}
+	/**
+	 * Called once a vehicle has been matched. If the last match is actually
+	 * valid then generates associated data like predictions and
+	 * arrival/departure times. Then updates the VehicleDataCache and logs
+	 * the vehicle state to the db. Should be called while vehicleState is
+	 * synchronized.
+	 * 
+	 * @param vehicleState
+	 * @param avlReport
+	 *            The AVL report being processed
+	 * @param recursiveCall
+	 *            Set to true if lowLevelProcessAvlReport() is calling itself
+	 */
+	private void processResultsOfMatch(VehicleState vehicleState,
+			AvlReport avlReport, boolean recursiveCall) {
+		// If the last match is actually valid then generate associated
+		// data like predictions and arrival/departure times.
+		if (vehicleState.isPredictable() 
+				&& vehicleState.lastMatchIsValid()) {
+			// Reset the counter
+			vehicleState.setBadAssignmentsInARow(0);
+
+			// If vehicle is delayed as indicated by not making forward 
+			// progress then store that in the vehicle state
+			handlePossibleVehicleDelay(vehicleState);
+			
+			// Determine and store the schedule adherence. 
+			determineAndSetRealTimeSchAdh(vehicleState);
+			
+			// Only continue processing if vehicle is still predictable
+			// since calling checkScheduleAdherence() can make it
+			// unpredictable if schedule adherence is really bad.
+			if (vehicleState.isPredictable()) {
+				// Generates the corresponding data for the vehicle such as
+				// predictions and arrival times
+				MatchProcessor.getInstance().generateResultsOfMatch(
+						vehicleState);
+
+				// If finished block assignment then should remove
+				// assignment
+				boolean endOfBlockReached = 
+						handlePossibleEndOfBlock(vehicleState);
+
+				// If just reached the end of the block and took the block
+				// assignment away and made the vehicle unpredictable then
+				// should see if the AVL report could be used to assign
+				// vehicle to the next assignment. This is needed for
+				// agencies like Zhengzhou which is frequency based and
+				// where each block assignment is only a single trip and
+				// when vehicle finishes one trip/block it can go into the
+				// next block right away.
+				if (endOfBlockReached) {
+					if (recursiveCall) {
+						// This method was already called recursively which
+						// means unassigned vehicle at end of block but then
+						// it got assigned to end of block again. This
+						// indicates a bug since vehicles at end of block
+						// shouldn't be reassigned to the end of the block
+						// again. Therefore log problem and don't try to
+						// assign vehicle again.
+						logger.error(
+								"AvlProcessor.lowLevelProcessAvlReport() "
+								+ "called recursively, which is wrong. {}",
+								vehicleState);
+					} else {
+						// Actually process AVL report again to see if can
+						// assign to new assignment.
+						lowLevelProcessAvlReport(avlReport, true);
+					}
+				} // End of if end of block reached
 			}
+		}
 
-			// If called recursively (because end of block reached) but
-			// didn't match to new assignment then don't want to store the
-			// vehicle state since already did that. 
-			if (recursiveCall && !vehicleState.isPredictable())
-				return;
+		// If called recursively (because end of block reached) but
+		// didn't match to new assignment then don't want to store the
+		// vehicle state since already did that. 
+		if (recursiveCall && !vehicleState.isPredictable())
+			return;
+		
+		// Now that VehicleState has been updated need to update the
+		// VehicleDataCache so that when data queried for API the proper
+		// info is provided.
+		VehicleDataCache.getInstance().updateVehicle(vehicleState);
+		
+		// Write out current vehicle state to db so can join it with AVL
+		// data from db and get historical context of AVL report.
+		org.transitime.db.structs.VehicleState dbVehicleState =
+				new org.transitime.db.structs.VehicleState(vehicleState);
+		Core.getInstance().getDbLogger().add(dbVehicleState);
+	}
+
+	/**
+	 * For when the AutoBlockAssignerModule has determined in a batch pass
+	 * that a vehicle should be assigned to a block. Applies the assignment
+	 * and generates the results of the match, such as predictions. Since the
+	 * batch pass is done without the vehicle state being synchronized the
+	 * assignment is only applied if the vehicle is still not predictable,
+	 * the match was for the vehicle's current AVL report, and, if block
+	 * assignments are exclusive, no other vehicle has been assigned to the
+	 * block since. Also not applied if the vehicle was auto assigned too
+	 * recently.
+	 * 
+	 * @param vehicleState
+	 *            The vehicle to be assigned
+	 * @param match
+	 *            The match determined by the auto assigner
+	 * @return true if the assignment was applied
+	 */
+	public boolean applyAutoAssignment(VehicleState vehicleState,
+			TemporalMatch match) {
+		synchronized (vehicleState) {
+			AvlReport avlReport = vehicleState.getAvlReport();
+			if (vehicleState.isPredictable() || avlReport == null
+					|| avlReport.getTime() != match.getAvlTime()) {
+				logger.info("Not applying auto assignment for vehicleId={} "
+						+ "because the vehicle was changed while the batch "
+						+ "pass was being done. {}", 
+						vehicleState.getVehicleId(), match);
+				return false;
+			}
 			
-			// Now that VehicleState has been updated need to update the
-			// VehicleDataCache so that when data queried for API the proper
-			// info is provided.
-			VehicleDataCache.getInstance().updateVehicle(vehicleState);
+			// Another vehicle might have been assigned to the block while
+			// the batch pass was being done
+			String blockId = match.getBlock().getId();
+			if (!AutoBlockAssigner.isBlockStillAvailable(blockId,
+					vehicleState.getVehicleId())) {
+				logger.info("Not applying auto assignment for vehicleId={} "
+						+ "because blockId={} is exclusive and another "
+						+ "vehicle was assigned to it while the batch pass "
+						+ "was being done. {}", vehicleState.getVehicleId(),
+						blockId, match);
+				return false;
+			}
 			
-			// Write out current vehicle state to db so can join it with AVL
-			// data from db and get historical context of AVL report.
-			org.transitime.db.structs.VehicleState dbVehicleState =
-					new org.transitime.db.structs.VehicleState(vehicleState);
-			Core.getInstance().getDbLogger().add(dbVehicleState);
-		} // End of synchronizing on vehicleState }
+			// Limit how frequently the vehicle is auto assigned, same as
+			// when auto assigning for each AVL report
+			if (AutoBlockAssigner.tooRecent(avlReport))
+				return false;
+			
+			logger.info("Auto matched vehicleId={} to a block assignment. {}",
+					vehicleState.getVehicleId(), match);
+
+			// Update the state of the vehicle
+			updateVehicleStateFromAssignment(match, vehicleState,
+					BlockAssignmentMethod.AUTO_ASSIGNER, blockId, "block");
+			
+			// Generate the results of the match, such as predictions
+			processResultsOfMatch(vehicleState, avlReport, false);
+			return true;
+		}
 	}
 
 	/**
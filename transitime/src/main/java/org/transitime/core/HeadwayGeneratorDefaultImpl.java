@@ -16,10 +16,22 @@
  */
 package org.transitime.core;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.core.dataCache.HeadwayDataCache;
+import org.transitime.ipc.data.IpcHeadway;
+import org.transitime.ipc.data.IpcPrediction;
 
 /**
+ * Determines the headway of a vehicle using the HeadwayDataCache. The
+ * HeadwayDataCache itself is kept up to date by the ArrivalDepartureGenerator,
+ * which adds the vehicles that passed a stop, and by the PredictionDataCache,
+ * which updates the predicted arrivals. Therefore all that needs to be done
+ * here is to look up the headway for the next stop of the vehicle, which is
+ * what matters for whether the vehicle is bunched or gapped, and store it in
+ * the VehicleState.
  *
  * @author SkiBu Smith
  *
@@ -35,9 +47,19 @@ public class HeadwayGeneratorDefaultImpl implements HeadwayGenerator {
 	 * @see org.transitime.core.HeadwayGenerator#generate(org.transitime.core.VehicleState)
 	 */
 	@Override
-	public void generate(VehicleState vehicleState) {		
-		// FIXME Still needs to be implemented!!
-		logger.debug("HeadwayGeneratorDefaultImpl.generate() still needs to " +
-				"be implemented");
+	public void generate(VehicleState vehicleState) {
+		List<IpcPrediction> predictions = vehicleState.getPredictions();
+		if (predictions == null || predictions.isEmpty()) {
+			vehicleState.setHeadway(null);
+			return;
+		}
+
+		IpcPrediction nextPrediction = predictions.get(0);
+		IpcHeadway headway = HeadwayDataCache.getInstance()
+				.getPredictedHeadway(nextPrediction);
+		vehicleState.setHeadway(headway);
+		logger.debug("For vehicleId={} predicted headway at stopId={} is {}",
+				vehicleState.getVehicleId(), nextPrediction.getStopId(),
+				headway);
 	}
 }
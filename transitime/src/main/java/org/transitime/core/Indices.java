@@ -464,7 +464,7 @@ class Indices {
 	 * @return
 	 */
 	public int getStopTimeForPath() {
-		return getBlock().getPathStopTime(tripIndex, stopPathIndex);
+		return TravelTimes.getInstance().expectedStopTimeForStopPath(this);
 	}
 
 	/**
@@ -474,7 +474,7 @@ class Indices {
 	 * @return
 	 */
 	public int getTravelTimeForPath() {
-		return getBlock().getStopPathTravelTime(tripIndex, stopPathIndex);
+		return TravelTimes.getInstance().expectedTravelTimeForStopPath(this);
 	}
 
 	@Override
@@ -16,7 +16,9 @@
  */
 package org.transitime.core;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +28,7 @@ import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Prediction;
 import org.transitime.db.structs.Match;
 import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
 
 /**
@@ -75,9 +78,28 @@ public class MatchProcessor {
 		List<IpcPrediction> newPredictions = 
 				PredictionGeneratorFactory.getInstance().generate(vehicleState);
 
+		// The old predictions for the vehicle. If the vehicle is progressing
+		// as expected the prediction generator can keep the prediction
+		// times of some of them, only updating the AVL time. Keyed by
+		// trip ID and stop sequence.
+		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
+		Map<MapKey, IpcPrediction> oldPredictionsMap = 
+				new HashMap<MapKey, IpcPrediction>();
+		if (oldPredictions != null) {
+			for (IpcPrediction oldPrediction : oldPredictions)
+				oldPredictionsMap.put(MapKey.create(oldPrediction.getTripId(),
+						oldPrediction.getGtfsStopSeq()), oldPrediction);
+		}
+		
 		// Store the predictions in database if so configured
 		if (CoreConfig.getMaxPredictionsTimeForDbSecs() > 0) {
 			for (IpcPrediction prediction : newPredictions) {
+				// Predictions that were kept have already been stored
+				if (prediction.isSamePredictionAs(oldPredictionsMap.get(
+						MapKey.create(prediction.getTripId(),
+								prediction.getGtfsStopSeq()))))
+					continue;
+				
 				// If prediction not too far into the future then ...
 				if (prediction.getPredictionTime() - prediction.getAvlTime() < CoreConfig
 						.getMaxPredictionsTimeForDbSecs() * Time.MS_PER_SEC) {
@@ -90,7 +112,6 @@ public class MatchProcessor {
 
 		// Update the predictions cache to use the new predictions for the
 		// vehicle
-		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
 		PredictionDataCache.getInstance().updatePredictions(oldPredictions,
 				newPredictions);
 
@@ -18,6 +18,7 @@ package org.transitime.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +26,7 @@ import org.transitime.applications.Core;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Block;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.ipc.data.IpcPrediction;
@@ -96,9 +98,136 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 					+ "time will be used. If false then the schedule time plus "
 					+ "the wait stop time will be used.");
 	
+	private static BooleanConfigValue incrementalPredictions =
+			new BooleanConfigValue("transitime.core.incrementalPredictions", 
+					true,
+					"If true then the chain of predictions generated for a "
+					+ "vehicle is kept so that when the next AVL report "
+					+ "matches the same stop path the predictions up to the "
+					+ "first wait stop are simply shifted in time instead of "
+					+ "being regenerated from the travel times. Only the "
+					+ "remaining predictions are regenerated.");
+	
+	private static IntegerConfigValue incrementalPredictionsMaxAgeSecs =
+			new IntegerConfigValue(
+					"transitime.core.incrementalPredictionsMaxAgeSecs", 
+					2 * Time.SEC_PER_MIN,
+					"When transitime.core.incrementalPredictions is true this "
+					+ "is the maximum time the predictions in a chain can "
+					+ "be reused by shifting them before they are fully "
+					+ "regenerated. This way changes to travel times are "
+					+ "picked up.");
+	
+	private static IntegerConfigValue incrementalPredictionsMinShiftMsec =
+			new IntegerConfigValue(
+					"transitime.core.incrementalPredictionsMinShiftMsec", 
+					1000,
+					"When transitime.core.incrementalPredictions is true and "
+					+ "the predictions for a vehicle would be shifted by less "
+					+ "than this amount then the prediction times of the "
+					+ "previous predictions are kept as is and only their AVL "
+					+ "and creation times are updated. This way predictions "
+					+ "don't change slightly with every AVL report and don't "
+					+ "need to be stored in the database again. The "
+					+ "prediction times can therefore be off by up to this "
+					+ "amount.");
+	
+	// The previous chain of predictions for each vehicle, keyed by vehicleId.
+	// Static so that it can be cleared by removePredictionChain() when the
+	// predictions for a vehicle are removed.
+	private static final ConcurrentHashMap<String, PredictionChain> chains =
+			new ConcurrentHashMap<String, PredictionChain>();
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionGeneratorDefaultImpl.class);
 
+	/**
+	 * The predictions generated for a vehicle for the stops before the first
+	 * wait stop. Before the first wait stop each prediction is simply the
+	 * time of the first stop plus travel and stop times that don't depend on
+	 * when the vehicle is there. Therefore if the next match is for the same
+	 * stop path the predictions can be shifted by the change in the
+	 * prediction for the first stop instead of being regenerated.
+	 */
+	private static class PredictionChain {
+		// For determining if the chain can be reused for a new match
+		private final Block block;
+		private final int tripIndex;
+		private final int stopPathIndex;
+		private final boolean isDelayed;
+		private final boolean lateSoMarkSubsequentTripsAsUncertain;
+		private final boolean useArrivalPreds;
+		
+		// The time entries were first generated using the travel times.
+		// Reused entries keep the original time so that they are
+		// regenerated after incrementalPredictionsMaxAgeSecs.
+		private final long timeGenerated;
+		
+		// The prediction time for the first stop that the entries are
+		// relative to
+		private final long firstPredictionTime;
+		
+		private final List<ChainEntry> entries = new ArrayList<ChainEntry>();
+		
+		private PredictionChain(Indices indices, boolean isDelayed,
+				boolean lateSoMarkSubsequentTripsAsUncertain,
+				boolean useArrivalPreds, long timeGenerated,
+				long firstPredictionTime) {
+			this.block = indices.getBlock();
+			this.tripIndex = indices.getTripIndex();
+			this.stopPathIndex = indices.getStopPathIndex();
+			this.isDelayed = isDelayed;
+			this.lateSoMarkSubsequentTripsAsUncertain =
+					lateSoMarkSubsequentTripsAsUncertain;
+			this.useArrivalPreds = useArrivalPreds;
+			this.timeGenerated = timeGenerated;
+			this.firstPredictionTime = firstPredictionTime;
+		}
+		
+		/**
+		 * Returns true if the chain was generated for a match to the same
+		 * stop path with the same inputs and is not too old.
+		 */
+		private boolean canBeReusedFor(Indices indices, boolean isDelayed,
+				boolean lateSoMarkSubsequentTripsAsUncertain,
+				boolean useArrivalPreds, long avlTime) {
+			return block == indices.getBlock()
+					&& tripIndex == indices.getTripIndex()
+					&& stopPathIndex == indices.getStopPathIndex()
+					&& this.isDelayed == isDelayed
+					&& this.lateSoMarkSubsequentTripsAsUncertain == 
+						lateSoMarkSubsequentTripsAsUncertain
+					&& this.useArrivalPreds == useArrivalPreds
+					&& avlTime - timeGenerated < 
+						incrementalPredictionsMaxAgeSecs.getValue() 
+							* Time.MS_PER_SEC;
+		}
+	}
+	
+	/**
+	 * A prediction in a PredictionChain along with the prediction time that
+	 * was used for the next stop.
+	 */
+	private static class ChainEntry {
+		private final int tripIndex;
+		private final int stopPathIndex;
+		private final IpcPrediction prediction;
+		private final long nextPredictionTime;
+		
+		private ChainEntry(int tripIndex, int stopPathIndex,
+				IpcPrediction prediction, long nextPredictionTime) {
+			this.tripIndex = tripIndex;
+			this.stopPathIndex = stopPathIndex;
+			this.prediction = prediction;
+			this.nextPredictionTime = nextPredictionTime;
+		}
+		
+		private boolean isFor(Indices indices) {
+			return tripIndex == indices.getTripIndex()
+					&& stopPathIndex == indices.getStopPathIndex();
+		}
+	}
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -282,6 +411,46 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 		}			
 	}
 		
+	/**
+	 * Forgets the chain of predictions for the vehicle. To be called when the
+	 * predictions for the vehicle are removed, such as when it is made
+	 * unpredictable, so that chains are not kept for vehicles that are no
+	 * longer being predicted.
+	 * 
+	 * @param vehicleId
+	 */
+	public static void removePredictionChain(String vehicleId) {
+		chains.remove(vehicleId);
+	}
+	
+	/**
+	 * Creates a copy of a previously generated prediction but for the new AVL
+	 * report and with the times shifted. A copy is made even if the shift is
+	 * 0 so that the AVL and creation times of the prediction are current,
+	 * since they are for example used as the timestamp of GTFS-realtime trip
+	 * updates.
+	 * 
+	 * @param prediction
+	 *            The previously generated prediction
+	 * @param avlReport
+	 *            The new AVL report
+	 * @param timeShiftMsec
+	 *            How much to shift the prediction times
+	 * @param isDelayed
+	 * @return The shifted prediction
+	 */
+	private static IpcPrediction shiftPrediction(IpcPrediction prediction,
+			AvlReport avlReport, long timeShiftMsec, boolean isDelayed) {
+		return new IpcPrediction(avlReport, prediction.getStopId(),
+				prediction.getGtfsStopSeq(), prediction.getTrip(),
+				prediction.getPredictionTime() + timeShiftMsec,
+				prediction.getActualPredictionTime() + timeShiftMsec,
+				prediction.isAtEndOfTrip(), prediction.isAffectedByWaitStop(),
+				isDelayed, prediction.isLateAndSubsequentTripSoMarkAsUncertain(),
+				prediction.isArrival() ? 
+						ArrivalOrDeparture.ARRIVAL : ArrivalOrDeparture.DEPARTURE);
+	}
+	
 	/**
 	 * Generates the predictions for the vehicle. 
 	 * 
@@ -337,6 +506,44 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 		// happen for schedule based predictions
 		long now = Core.getInstance().getSystemTime();
 		
+		// Determine if the previous chain of predictions for the vehicle can
+		// be reused. Not done for schedule based predictions or no schedule
+		// blocks since for those the predictions depend on the time of day.
+		String vehicleId = vehicleState.getVehicleId();
+		boolean incremental = incrementalPredictions.getValue()
+				&& !schedBasedPreds && !indices.getBlock().isNoSchedule();
+		PredictionChain previousChain = incremental ? 
+				chains.get(vehicleId) : null;
+		boolean reusing = previousChain != null
+				&& previousChain.canBeReusedFor(indices, 
+						vehicleState.isDelayed(),
+						lateSoMarkSubsequentTripsAsUncertain, useArrivalPreds,
+						avlTime);
+		long timeShiftMsec = 0;
+		if (reusing) {
+			timeShiftMsec = predictionTime - previousChain.firstPredictionTime;
+			// If shift is small then keep the previous prediction times so
+			// that the predictions don't change with every AVL report
+			if (Math.abs(timeShiftMsec) < 
+					incrementalPredictionsMinShiftMsec.getValue())
+				timeShiftMsec = 0;
+		}
+		
+		// For recording the new chain of predictions
+		PredictionChain newChain = null;
+		if (incremental) {
+			newChain = reusing ? 
+					new PredictionChain(indices, vehicleState.isDelayed(),
+							lateSoMarkSubsequentTripsAsUncertain,
+							useArrivalPreds, previousChain.timeGenerated,
+							previousChain.firstPredictionTime + timeShiftMsec)
+					: new PredictionChain(indices, vehicleState.isDelayed(),
+							lateSoMarkSubsequentTripsAsUncertain,
+							useArrivalPreds, avlTime, predictionTime);
+		}
+		int entryIndex = 0;
+		int numReused = 0;
+		
 		// Continue through block until end of block or limit on how far
 		// into the future should generate predictions reached.
 		while (schedBasedPreds
@@ -353,11 +560,31 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 					lateSoMarkSubsequentTripsAsUncertain
 							&& indices.getTripIndex() > currentTripIndex;
 			
+			// If can reuse the corresponding entry of the previous chain
+			// then determine it. Once an entry cannot be reused the
+			// remaining predictions are all regenerated.
+			ChainEntry previousEntry = null;
+			if (reusing && !affectedByWaitStop
+					&& entryIndex < previousChain.entries.size()
+					&& previousChain.entries.get(entryIndex).isFor(indices))
+				previousEntry = previousChain.entries.get(entryIndex);
+			else
+				reusing = false;
+			int tripIndex = indices.getTripIndex();
+			int stopPathIndex = indices.getStopPathIndex();
+			
 			// Determine the new prediction
-			IpcPrediction predictionForStop = generatePredictionForStop(avlReport,
-					indices, predictionTime,
-					useArrivalPreds, affectedByWaitStop, 
-					vehicleState.isDelayed(), lateSoMarkAsUncertain);
+			IpcPrediction predictionForStop;
+			if (previousEntry != null) {
+				predictionForStop = shiftPrediction(previousEntry.prediction,
+						avlReport, timeShiftMsec, vehicleState.isDelayed());
+				++numReused;
+			} else {
+				predictionForStop = generatePredictionForStop(avlReport,
+						indices, predictionTime,
+						useArrivalPreds, affectedByWaitStop, 
+						vehicleState.isDelayed(), lateSoMarkAsUncertain);
+			}
 			logger.debug("For vehicleId={} generated prediction {}",
 					vehicleState.getVehicleId(), predictionForStop);
 			
@@ -395,9 +622,15 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 			// getActualPredictionTime() instead of getPredictionTime() to
 			// handle situations where want to display to the user for wait 
 			// stops schedule times instead of the calculated prediction time.
-			predictionTime = predictionForStop.getActualPredictionTime();
-			if (predictionForStop.isArrival())
-				predictionTime += indices.getStopTimeForPath();
+			// If reusing an entry then already know the result.
+			if (previousEntry != null) {
+				predictionTime = previousEntry.nextPredictionTime 
+						+ timeShiftMsec;
+			} else {
+				predictionTime = predictionForStop.getActualPredictionTime();
+				if (predictionForStop.isArrival())
+					predictionTime += indices.getStopTimeForPath();
+			}
 			
 			// Increment indices so can generate predictions for next path
 			indices.incrementStopPath(predictionTime);
@@ -412,9 +645,26 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator {
 			
 			// Add in travel time for the next path to get to predicted 
 			// arrival time of this stop
-			predictionTime += indices.getTravelTimeForPath();
+			if (previousEntry == null)
+				predictionTime += indices.getTravelTimeForPath();
+			
+			// Record the prediction in the new chain so it can be reused.
+			// Only can do so up to the first wait stop.
+			if (newChain != null && !affectedByWaitStop)
+				newChain.entries.add(new ChainEntry(tripIndex, stopPathIndex,
+						predictionForStop, predictionTime));
+			++entryIndex;
 		}
 
+		// Keep the chain for the next time predictions are generated
+		if (newChain != null)
+			chains.put(vehicleId, newChain);
+		else
+			chains.remove(vehicleId);
+		logger.debug("For vehicleId={} reused {} predictions shifted by {} "
+				+ "msec and generated {} predictions.", vehicleId, numReused, 
+				timeShiftMsec, entryIndex - numReused);
+		
 		// Return the results
 		return newPredictions;
 	}
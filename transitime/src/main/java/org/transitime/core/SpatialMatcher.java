@@ -17,6 +17,7 @@
 package org.transitime.core;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -24,6 +25,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
 import org.transitime.configData.AvlConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.db.structs.AvlReport;
@@ -31,9 +33,14 @@ import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Extent;
 import org.transitime.db.structs.Location;
 import org.transitime.db.structs.Route;
+import org.transitime.db.structs.SegmentCoordinates;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.gtfs.StopPathSegmentIndex;
+import org.transitime.gtfs.StopPathSegmentIndex.NearbySegments;
+import org.transitime.gtfs.StopPathSegmentIndex.TripPatternSegments;
 import org.transitime.utils.Geo;
 import org.transitime.utils.Time;
 
@@ -54,21 +61,98 @@ public class SpatialMatcher {
 	// For keeping track of whether getting closer or further away
 	private double previousDistanceToSegment = Double.MAX_VALUE;
 
-	// For keeping track of potential matches where heading and
-	// distance to segment are acceptable.
-	private SpatialMatch previousPotentialSpatialMatch = null;
-
-	// For keeping track of match with best distance. This is useful for
-	// logging in case something goes wrong. It lets one determine if
-	// need to make the system more lenient.
-	private SpatialMatch smallestDistanceSpatialMatch = null;
-
+	// Whether the segments are examined using the kernel that works on the
+	// flat arrays of SegmentCoordinates instead of the Indices, StopPath,
+	// VectorWithHeading, and SpatialMatch objects
+	private final boolean useKernel;
+	
+	// Scratch state for the kernel. A SpatialMatcher is only used by a
+	// single thread for a single AVL report so the state is simply reused
+	// for every segment examined instead of creating objects.
+	private AvlReport kernelAvlReport = null;
+	private double avlLatRadians;
+	private double avlLonRadians;
+	private float maxHeadingOffset;
+	
+	// The trip currently being examined by the kernel
+	private Block kernelBlock = null;
+	private int kernelTripIndex = -1;
+	private SegmentCoordinates kernelCoordinates = null;
+	private double kernelMaxAllowableDistance;
+	
+	// The end of the previously examined segment and its distance from the
+	// AVL report. The next segment nearly always starts at the same location
+	// so this way its distance doesn't need to be determined again. NaN
+	// never equals anything so initially there is no match.
+	private double previousEndLatRadians = Double.NaN;
+	private double previousEndLonRadians = Double.NaN;
+	private double distanceToPreviousEnd;
+	
+	// The results of measureSegment()
+	private double measuredDistanceToSegment;
+	private double measuredDistanceAlongSegment;
+	
+	// For keeping track of potential matches where heading and distance to
+	// segment are acceptable, and of the match with the best distance. The
+	// latter is useful for logging in case something goes wrong. It lets
+	// one determine if need to make the system more lenient. A
+	// SpatialMatch is only created from them once it is actually needed.
+	private final CandidateMatch potentialCandidate = new CandidateMatch();
+	private final CandidateMatch smallestDistanceCandidate =
+			new CandidateMatch();
+	
 	// For keeping track of what kind of spatial matching being done
 	public enum MatchingType {STANDARD_MATCHING, AUTO_ASSIGNING_MATCHING};
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(SpatialMatcher.class);
 
+	/**
+	 * A possible spatial match. Mutable so that the same object can be used
+	 * for every segment examined. A SpatialMatch is only created from it when
+	 * it is added to the list of spatial matches.
+	 */
+	private static class CandidateMatch {
+		private boolean valid = false;
+		private Block block;
+		private int tripIndex;
+		private int stopPathIndex;
+		private int segmentIndex;
+		private double distanceToSegment;
+		private double distanceAlongSegment;
+		
+		private void set(Block block, int tripIndex, int stopPathIndex,
+				int segmentIndex, double distanceToSegment,
+				double distanceAlongSegment) {
+			this.valid = true;
+			this.block = block;
+			this.tripIndex = tripIndex;
+			this.stopPathIndex = stopPathIndex;
+			this.segmentIndex = segmentIndex;
+			this.distanceToSegment = distanceToSegment;
+			this.distanceAlongSegment = distanceAlongSegment;
+		}
+		
+		private SpatialMatch toSpatialMatch(long avlTime) {
+			return new SpatialMatch(avlTime, block, tripIndex, stopPathIndex,
+					segmentIndex, distanceToSegment, distanceAlongSegment);
+		}
+
+		@Override
+		public String toString() {
+			return "CandidateMatch [" 
+					+ "blockId=" + block.getId()
+					+ ", tripIndex=" + tripIndex
+					+ ", stopPathIndex=" + stopPathIndex
+					+ ", segmentIndex=" + segmentIndex
+					+ ", distanceToSegment=" 
+						+ Geo.distanceFormat(distanceToSegment)
+					+ ", distanceAlongSegment=" 
+						+ Geo.distanceFormat(distanceAlongSegment)
+					+ "]";
+		}
+	}
+	
 	/********************** Member Functions **************************/
 
 	/**
@@ -78,6 +162,16 @@ public class SpatialMatcher {
 	 * requirement.
 	 */
 	private SpatialMatcher() {
+		this(CoreConfig.useSpatialMatchKernel());
+	}
+	
+	/**
+	 * @param useKernel
+	 *            whether to examine the segments using the kernel that works
+	 *            on the flat arrays of SegmentCoordinates
+	 */
+	private SpatialMatcher(boolean useKernel) {
+		this.useKernel = useKernel;
 	}
 
 	/**
@@ -94,6 +188,79 @@ public class SpatialMatcher {
 		this.startSearchSpatialMatch = startSearchSpatialMatch;
 	}
 
+	/**
+	 * Queries the spatial index of stop path segments for the segments that
+	 * are closer than maxDistance to the AVL report.
+	 * 
+	 * @param avlReport
+	 * @param maxDistance
+	 * @return The nearby segments, or null if the spatial index is not
+	 *         available or not to be used
+	 */
+	public static NearbySegments getNearbySegments(AvlReport avlReport,
+			double maxDistance) {
+		if (!CoreConfig.useSpatialIndex() || !Core.isCoreApplication())
+			return null;
+		
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		if (dbConfig == null)
+			return null;
+		StopPathSegmentIndex index = dbConfig.getStopPathSegmentIndex();
+		if (index == null)
+			return null;
+		
+		return index.query(avlReport.getLocation(), maxDistance);
+	}
+	
+	/**
+	 * Called when the spatial index indicates that one or more segments can
+	 * be skipped because they are further away than the allowable distance.
+	 * Such segments can't be a potential match and if a potential match was
+	 * being tracked the distance would have gotten worse, meaning that the
+	 * potential match was a local minimum. So handle the skipped segments
+	 * the same way as would if they had been processed individually.
+	 * 
+	 * @param avlReport
+	 * @param spatialMatches
+	 *            list to add the pending potential match to
+	 */
+	private void skipFarAwaySegments(AvlReport avlReport,
+			List<SpatialMatch> spatialMatches) {
+		addPotentialMatch(avlReport, spatialMatches);
+		previousDistanceToSegment = Double.MAX_VALUE;
+	}
+	
+	/**
+	 * If there is a pending potential match then adds it to the list of
+	 * spatial matches.
+	 * 
+	 * @param avlReport
+	 * @param spatialMatches
+	 *            list to add the pending potential match to
+	 */
+	private void addPotentialMatch(AvlReport avlReport,
+			List<SpatialMatch> spatialMatches) {
+		if (potentialCandidate.valid) {
+			spatialMatches.add(
+					potentialCandidate.toSpatialMatch(avlReport.getTime()));
+			potentialCandidate.valid = false;
+		}
+	}
+	
+	/**
+	 * Returns the match with the smallest distance to the segment, for
+	 * logging.
+	 * 
+	 * @param avlReport
+	 * @return the match with the smallest distance, or null if no segments
+	 *         were examined
+	 */
+	private SpatialMatch getSmallestDistanceSpatialMatch(AvlReport avlReport) {
+		if (smallestDistanceCandidate.valid)
+			return smallestDistanceCandidate.toSpatialMatch(avlReport.getTime());
+		return null;
+	}
+	
 	/**
 	 * Goes through entire TripPattern for specified Trip and determines spatial
 	 * matches. Matches must be within getMaxAllowableDistanceFromSegment()
@@ -101,16 +268,25 @@ public class SpatialMatcher {
 	 * from the route path during layovers. First checks to see if the avlReport
 	 * location is near the extent of the trip pattern. If it is not then can
 	 * save processing power and return immediately.
+	 * <p>
+	 * If the spatial index is available then only the segments near the AVL
+	 * report plus the layover segments are examined. The results are the same
+	 * as if every segment were examined.
 	 * 
 	 * @param avlReport
 	 * @param trip
 	 * @param matchingType
 	 *            for keeping track of what kind of spatial matching being done
+	 * @param nearbySegments
+	 *            Results from querying the spatial index for the AVL report.
+	 *            If null or not for a large enough distance then the index is
+	 *            queried here.
 	 * @return List of potential SpatialMatches. Can be empty but will not be
 	 *         null.
 	 */
 	private List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport,
-			Trip trip, MatchingType matchingType) {
+			Trip trip, MatchingType matchingType, 
+			NearbySegments nearbySegments) {
 		Block block = trip.getBlock();
 		
 		// The matches to be returned
@@ -126,36 +302,112 @@ public class SpatialMatcher {
 				allowableDistance))
 			return spatialMatches;
 		
-		// Start looking for matches at the beginning of the trip.
-		Indices indices = new Indices(block, block.getTripIndex(trip), 
-				0, // stopPathIndex
-				0); // segmentIndex
-
-		// Loop through stopPaths and segments until reach end of trip and
-		// add them to spatialMatches member
-		do {
-			processPossiblePotentialMatch(avlReport, indices, spatialMatches,
-					matchingType);
-
-			// For next iteration through while loop
-			indices.increment(avlReport.getTime());
-		} while (!indices.atBeginningOfTrip());
+		// Determine from the spatial index which segments actually need to
+		// be looked at
+		if (nearbySegments == null
+				|| !nearbySegments.covers(avlReport.getLocation(),
+						allowableDistance))
+			nearbySegments = getNearbySegments(avlReport, allowableDistance);
+		String tripPatternId = trip.getTripPattern().getId();
+		BitSet segmentsToExamine = nearbySegments == null ? null :
+				nearbySegments.getSegmentsToExamine(tripPatternId,
+						allowableDistance);
+		
+		if (segmentsToExamine != null) {
+			// Only look at the segments that are near the AVL report plus
+			// the layovers. Whenever segments are skipped handle them as
+			// segments that are too far away.
+			TripPatternSegments tripPatternSegments =
+					nearbySegments.getTripPatternSegments(tripPatternId);
+			int tripIndex = block.getTripIndex(trip);
+			int previousOrdinal = -1;
+			for (int ordinal = segmentsToExamine.nextSetBit(0); 
+					ordinal >= 0; 
+					ordinal = segmentsToExamine.nextSetBit(ordinal + 1)) {
+				if (ordinal != previousOrdinal + 1)
+					skipFarAwaySegments(avlReport, spatialMatches);
+				
+				int stopPathIndex =
+						tripPatternSegments.getStopPathIndex(ordinal);
+				int segmentIndex = tripPatternSegments.getSegmentIndex(ordinal);
+				if (useKernel) {
+					processPossiblePotentialMatch(avlReport, block, tripIndex,
+							stopPathIndex, segmentIndex, spatialMatches,
+							matchingType);
+				} else {
+					Indices indices = new Indices(block, tripIndex,
+							stopPathIndex, segmentIndex);
+					processPossiblePotentialMatch(avlReport, indices,
+							spatialMatches, matchingType);
+				}
+				previousOrdinal = ordinal;
+			}
+		} else if (useKernel) {
+			// No spatial index so look at every segment of the trip, from
+			// the beginning of the trip
+			int tripIndex = block.getTripIndex(trip);
+			SegmentCoordinates coordinates = 
+					trip.getTripPattern().getSegmentCoordinates();
+			int numberStopPaths = trip.getNumberStopPaths();
+			for (int stopPathIndex = 0; 
+					stopPathIndex < numberStopPaths; 
+					++stopPathIndex) {
+				int numberSegments = 
+						coordinates.getNumberSegments(stopPathIndex);
+				for (int segmentIndex = 0; 
+						segmentIndex < numberSegments; 
+						++segmentIndex) {
+					processPossiblePotentialMatch(avlReport, block, tripIndex,
+							stopPathIndex, segmentIndex, spatialMatches,
+							matchingType);
+				}
+			}
+		} else {
+			// No spatial index so start looking for matches at the beginning
+			// of the trip.
+			Indices indices = new Indices(block, block.getTripIndex(trip), 
+					0, // stopPathIndex
+					0); // segmentIndex
+	
+			// Loop through stopPaths and segments until reach end of trip and
+			// add them to spatialMatches member
+			do {
+				processPossiblePotentialMatch(avlReport, indices,
+						spatialMatches, matchingType);
+	
+				// For next iteration through while loop
+				indices.increment(avlReport.getTime());
+			} while (!indices.atBeginningOfTrip());
+		}
 
 		// Need to handle boundary condition. Done looking ahead but
 		// the end match might be a potential one even if was continuing
 		// to improve the match. Therefore if there was a potential
 		// match then should store it.
-		if (previousPotentialSpatialMatch != null) {
-			// There was a potential match and now things are getting
-			// worse so that was a local minimum. Therefore this is
-			// one of the spatial matches to be returned.
-			spatialMatches.add(previousPotentialSpatialMatch);
-		}
+		addPotentialMatch(avlReport, spatialMatches);
 
 		// Return the list of local matches
 		return spatialMatches;
 	}
 
+	/**
+	 * Determines the spatial matches for the trip using either the original
+	 * way of examining the segments or the kernel. For comparing the two,
+	 * such as with SpatialMatcherBenchmark.
+	 * 
+	 * @param avlReport
+	 * @param trip
+	 * @param matchingType
+	 * @param useKernel
+	 * @return List of potential SpatialMatches. Can be empty but will not be
+	 *         null.
+	 */
+	static List<SpatialMatch> getSpatialMatchesForTrip(AvlReport avlReport,
+			Trip trip, MatchingType matchingType, boolean useKernel) {
+		return (new SpatialMatcher(useKernel)).getSpatialMatchesForTrip(
+				avlReport, trip, matchingType, null);
+	}
+
 	/**
 	 * For list of spatial matches passed in returns the first non-layover
 	 * one. This is needed because for a trip always get a layover match
@@ -234,7 +486,7 @@ public class SpatialMatcher {
 		// Determine matches for the previous AvlReport
 		List<SpatialMatch> spatialMatchesForPreviousReport =
 				(new SpatialMatcher()).getSpatialMatchesForTrip(
-						previousAvlReport, trip, matchingType);
+						previousAvlReport, trip, matchingType, null);
 
 		// There can be multiple matches, but only look at first 
 		// non-layover ones for the previous report
@@ -286,6 +538,34 @@ public class SpatialMatcher {
 			AvlReport avlReport,
 			Block block, List<Trip> tripsToInvestigate,
 			MatchingType matchingType) {
+		return getSpatialMatches(avlReport, block, tripsToInvestigate,
+				matchingType, null);
+	}
+	
+	/**
+	 * Same as getSpatialMatches(AvlReport, Block, List, MatchingType) but can
+	 * be passed results of querying the spatial index for the AVL report.
+	 * This way when looking at many blocks for the same AVL report, such as
+	 * when auto assigning, the index only needs to be queried once.
+	 * 
+	 * @param avlReport
+	 *            The AVL report to match to the block
+	 * @param block
+	 *            The block being investigated
+	 * @param tripsToInvestigate
+	 *            List of trips that should bother investigating
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 * @param nearbySegments
+	 *            Results of querying spatial index for the AVL report. If
+	 *            null then the index is queried here.
+	 * @return non-null possibly empty list of spatial matches
+	 */
+	public static List<SpatialMatch> getSpatialMatches(
+			AvlReport avlReport,
+			Block block, List<Trip> tripsToInvestigate,
+			MatchingType matchingType,
+			NearbySegments nearbySegments) {
 		List<SpatialMatch> spatialMatchesForAllTrips = 
 				new ArrayList<SpatialMatch>();
 
@@ -293,6 +573,18 @@ public class SpatialMatcher {
 		if (tripsToInvestigate == null || tripsToInvestigate.isEmpty())
 			return spatialMatchesForAllTrips;
 
+		// Query the spatial index once for all of the trips, using the
+		// largest allowable distance of the trips
+		if (nearbySegments == null) {
+			double maxAllowableDistance = 0.0;
+			for (Trip trip : tripsToInvestigate) {
+				maxAllowableDistance = Math.max(maxAllowableDistance,
+						getMaxAllowableDistanceFromSegment(trip.getRoute(),
+								matchingType));
+			}
+			nearbySegments = getNearbySegments(avlReport, maxAllowableDistance);
+		}
+
 		// So can reuse spatial matches if looking at same trip pattern
 		Set<String> tripPatternIdsCovered = new HashSet<String>();
 
@@ -335,7 +627,7 @@ public class SpatialMatcher {
 				// matches so do so now.
 				List<SpatialMatch> spatialMatchesForTrip =
 						(new SpatialMatcher()).getSpatialMatchesForTrip(
-								avlReport, trip, matchingType);
+								avlReport, trip, matchingType, nearbySegments);
 				
 				// Use these spatial matches for the trip
 				spatialMatchesForAllTrips.addAll(spatialMatchesForTrip);
@@ -400,10 +692,34 @@ public class SpatialMatcher {
 	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
 			AvlReport avlReport, Block block,
 			List<Trip> tripsToInvestigate) {
+		return getSpatialMatchesForAutoAssigning(avlReport, block,
+				tripsToInvestigate, null);
+	}
+	
+	/**
+	 * Same as getSpatialMatchesForAutoAssigning(AvlReport, Block, List) but
+	 * can be passed the results of querying the spatial index for the AVL
+	 * report so that the index doesn't need to be queried for every block.
+	 * 
+	 * @param avlReport
+	 *            The AVL report to match to the block
+	 * @param block
+	 *            The block to investigate
+	 * @param tripsToInvestigate
+	 *            List of trips that should bother investigating
+	 * @param nearbySegments
+	 *            Results of querying spatial index for the AVL report using
+	 *            CoreConfig.getMaxDistanceFromSegmentForAutoAssigning(). Can
+	 *            be null.
+	 * @return non-null possibly empty list of spatial matches
+	 */
+	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
+			AvlReport avlReport, Block block,
+			List<Trip> tripsToInvestigate, NearbySegments nearbySegments) {
 		// Get all the spatial matches
 		List<SpatialMatch> allSpatialMatches =
 				getSpatialMatches(avlReport, block, tripsToInvestigate,
-						MatchingType.AUTO_ASSIGNING_MATCHING);
+						MatchingType.AUTO_ASSIGNING_MATCHING, nearbySegments);
 
 		// Filter out the ones that are layovers
 		List<SpatialMatch> spatialMatchesWithoutLayovers = 
@@ -427,7 +743,7 @@ public class SpatialMatcher {
 	 *            for keeping track of what kind of spatial matching being done
 	 * @return max distance that AVL report is allowed to be from segment
 	 */
-	private double getMaxAllowableDistanceFromSegment(Route route,
+	private static double getMaxAllowableDistanceFromSegment(Route route,
 			MatchingType matchingType) {
 		if (matchingType == MatchingType.AUTO_ASSIGNING_MATCHING) {
 			return CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
@@ -548,136 +864,317 @@ public class SpatialMatcher {
 			Indices potentialMatchIndices,
 			List<SpatialMatch> spatialMatches,
 			MatchingType matchingType) {
+		setKernelAvlReport(avlReport);
+		
 		// Convenience variables
 		VectorWithHeading segmentVector = potentialMatchIndices.getSegment();
 		double distanceToSegment = 
 				segmentVector.distance(avlReport.getLocation());
 		double distanceAlongSegment = 
 				segmentVector.matchDistanceAlongVector(avlReport.getLocation());
-		boolean atLayover = potentialMatchIndices.isLayover();
+		
+		processMeasuredMatch(avlReport, potentialMatchIndices.getBlock(),
+				potentialMatchIndices.getTripIndex(),
+				potentialMatchIndices.getStopPathIndex(),
+				potentialMatchIndices.getSegmentIndex(), distanceToSegment,
+				distanceAlongSegment, segmentVector.length(),
+				segmentVector.getHeading(), potentialMatchIndices.isLayover(),
+				getMaxAllowableDistanceFromSegment(potentialMatchIndices,
+						matchingType), spatialMatches);
+	}
+	
+	/**
+	 * Sets up the kernel for the AVL report. Only does something the first
+	 * time called for the AVL report.
+	 * 
+	 * @param avlReport
+	 */
+	private void setKernelAvlReport(AvlReport avlReport) {
+		if (avlReport == kernelAvlReport)
+			return;
+		
+		kernelAvlReport = avlReport;
+		avlLatRadians = Math.toRadians(avlReport.getLat());
+		avlLonRadians = Math.toRadians(avlReport.getLon());
+		maxHeadingOffset = CoreConfig.getMaxHeadingOffsetFromSegment();
+		previousEndLatRadians = Double.NaN;
+		previousEndLonRadians = Double.NaN;
+	}
+	
+	/**
+	 * Sets up the kernel for the trip of the block. Only does something when
+	 * the trip changes.
+	 * 
+	 * @param block
+	 * @param tripIndex
+	 * @param matchingType
+	 */
+	private void setKernelTrip(Block block, int tripIndex,
+			MatchingType matchingType) {
+		if (block == kernelBlock && tripIndex == kernelTripIndex)
+			return;
+		
+		Trip trip = block.getTrip(tripIndex);
+		kernelBlock = block;
+		kernelTripIndex = tripIndex;
+		kernelCoordinates = trip.getTripPattern().getSegmentCoordinates();
+		kernelMaxAllowableDistance =
+				getMaxAllowableDistanceFromSegment(trip.getRoute(), 
+						matchingType);
+	}
+	
+	/**
+	 * Determines the distance of the AVL report to the segment and how far
+	 * along the segment the match is. Does exactly the same calculations as
+	 * Geo.distance(Location, Vector) and Geo.matchDistanceAlongVector() but
+	 * on the flat arrays, and the distance to the beginning of the segment is
+	 * reused from the previous segment when possible. The results are put
+	 * into measuredDistanceToSegment and measuredDistanceAlongSegment so that
+	 * no objects are created.
+	 * 
+	 * @param coordinates
+	 * @param ordinal
+	 *            of the segment
+	 */
+	private void measureSegment(SegmentCoordinates coordinates, int ordinal) {
+		double lat1 = coordinates.getLat1(ordinal);
+		double lon1 = coordinates.getLon1(ordinal);
+		double lat2 = coordinates.getLat2(ordinal);
+		double lon2 = coordinates.getLon2(ordinal);
+		
+		// d1 is distance from the AVL report to the beginning of the segment
+		double d1;
+		if (lat1 == previousEndLatRadians && lon1 == previousEndLonRadians)
+			d1 = distanceToPreviousEnd;
+		else
+			d1 = Geo.distanceRadians(avlLatRadians, avlLonRadians, lat1, lon1);
+		// d2 is distance from the AVL report to the end of the segment
+		double d2 = Geo.distanceRadians(avlLatRadians, avlLonRadians, 
+				lat2, lon2);
+		previousEndLatRadians = lat2;
+		previousEndLonRadians = lon2;
+		distanceToPreviousEnd = d2;
+		// v is the length of the segment
+		double v = coordinates.getLength(ordinal);
 
+		// See Geo.distance(Location, Vector) for explanation
+		if (v == 0.0) {
+			measuredDistanceToSegment = d1;
+			measuredDistanceAlongSegment = 0.0;
+			return;
+		}
+		double v1 = (v*v + d1*d1 - d2*d2) / (2 * v);
+		if (v1 <= 0.0) {
+			measuredDistanceToSegment = d1;
+			measuredDistanceAlongSegment = 0.0;
+		} else if (v1 > v) {
+			measuredDistanceToSegment = d2;
+			measuredDistanceAlongSegment = v;
+		} else {
+			double dSquared = d1*d1 - v1*v1;
+			if (dSquared < 0.0)
+				dSquared = 0.0;
+			measuredDistanceToSegment = Math.sqrt(dSquared);
+			measuredDistanceAlongSegment = v1;
+		}
+	}
+	
+	/**
+	 * Same as processPossiblePotentialMatch(AvlReport, Indices, List,
+	 * MatchingType) but measures the segment using the SegmentCoordinates of
+	 * the trip pattern instead of the Indices, StopPath, and
+	 * VectorWithHeading objects. No objects are created for the segment
+	 * unless it is actually added to the list of spatial matches. Since the
+	 * calculations are the same the resulting spatial matches are the same.
+	 * 
+	 * @param avlReport
+	 *            The new AVL report
+	 * @param block
+	 * @param tripIndex
+	 * @param stopPathIndex
+	 * @param segmentIndex
+	 * @param spatialMatches
+	 *            The list of spatial matches that should add any additional
+	 *            matches to
+	 * @param matchingType
+	 *            for keeping track of what kind of spatial matching being done
+	 */
+	private void processPossiblePotentialMatch(AvlReport avlReport,
+			Block block, int tripIndex, int stopPathIndex, int segmentIndex,
+			List<SpatialMatch> spatialMatches,
+			MatchingType matchingType) {
+		setKernelAvlReport(avlReport);
+		setKernelTrip(block, tripIndex, matchingType);
+		
+		// Convenience variables
+		SegmentCoordinates coordinates = kernelCoordinates;
+		int ordinal = coordinates.getOrdinal(stopPathIndex, segmentIndex);
+		measureSegment(coordinates, ordinal);
+		double distanceToSegment = measuredDistanceToSegment;
+		double distanceAlongSegment = measuredDistanceAlongSegment;
+		boolean atLayover = coordinates.isLayoverStopPath(stopPathIndex)
+				&& segmentIndex == 
+					coordinates.getNumberSegments(stopPathIndex) - 1;
+		
+		processMeasuredMatch(avlReport, block, tripIndex, stopPathIndex,
+				segmentIndex, distanceToSegment, distanceAlongSegment,
+				coordinates.getLength(ordinal), coordinates.getHeading(ordinal),
+				atLayover, kernelMaxAllowableDistance, spatialMatches);
+	}
+	
+	/**
+	 * Determines whether the segment, for which the distance of the AVL
+	 * report to the segment and along the segment have already been
+	 * measured, is a possible spatial match. This is the part of
+	 * processPossiblePotentialMatch() that is the same no matter how the
+	 * segment was measured. Keeps track of the potential match and adds it
+	 * to the list of spatial matches once the distance to the segments
+	 * starts to get worse again, meaning that it was a local minimum.
+	 * 
+	 * @param avlReport
+	 *            The new AVL report
+	 * @param block
+	 * @param tripIndex
+	 * @param stopPathIndex
+	 * @param segmentIndex
+	 * @param distanceToSegment
+	 *            Distance of the AVL report to the segment
+	 * @param distanceAlongSegment
+	 *            How far along the segment the match is
+	 * @param segmentLength
+	 * @param segmentHeading
+	 * @param atLayover
+	 *            whether the segment is the last one of a layover stop path
+	 * @param maxAllowableDistance
+	 *            how far the AVL report can be from the segment
+	 * @param spatialMatches
+	 *            The list of spatial matches that should add any additional
+	 *            matches to
+	 */
+	private void processMeasuredMatch(AvlReport avlReport, Block block,
+			int tripIndex, int stopPathIndex, int segmentIndex,
+			double distanceToSegment, double distanceAlongSegment,
+			double segmentLength, float segmentHeading, boolean atLayover,
+			double maxAllowableDistance, List<SpatialMatch> spatialMatches) {
+		boolean debug = logger.isDebugEnabled();
+		
 		// Make sure only searching starting from previous spatial match. 
 		// Otherwise would screw up determination of arrivals/departures etc.
 		// But only do this for blocks that have a schedule since no-schedule
 		// blocks are loops where we don't really have the concept of 
 		// before/after for indices.
-		if (startSearchSpatialMatch != null 
-				&& potentialMatchIndices.getBlock().hasSchedule()) {
-			// If looking at previous index then something is really wrong.
-			// Don't need to see if this is a match.
-			if (potentialMatchIndices.lessThan(startSearchSpatialMatch.getIndices())) {
+		if (startSearchSpatialMatch != null && block.hasSchedule()) {
+			SpatialMatch start = startSearchSpatialMatch;
+			boolean lessThan;
+			if (tripIndex != start.getTripIndex())
+				lessThan = tripIndex < start.getTripIndex();
+			else if (stopPathIndex != start.getStopPathIndex())
+				lessThan = stopPathIndex < start.getStopPathIndex();
+			else
+				lessThan = segmentIndex < start.getSegmentIndex();
+			
+			if (lessThan) {
 				logger.error("For vehicleId={} looking at segment that is " +
 						"before the segment of the previous match, which " +
-						"should not happen. potentialMatchIndices={} " +
-						"startSearchSpatialMatch={}",
-						avlReport.getVehicleId(), 
-						potentialMatchIndices, startSearchSpatialMatch);
+						"should not happen. tripIndex={} stopPathIndex={} " +
+						"segmentIndex={} startSearchSpatialMatch={}",
+						avlReport.getVehicleId(), tripIndex, stopPathIndex,
+						segmentIndex, startSearchSpatialMatch);
 				return;
-			} else
-			// If match is for before the previous one then need to adjust
-			// it so that it is the same as the previous one. That way
-			// can't end up with a match before the previous one, which
-			// would screw up determination of arrivals/departures.
-			if (potentialMatchIndices.equals(startSearchSpatialMatch.getIndices())
+			} else if (tripIndex == start.getTripIndex()
+					&& stopPathIndex == start.getStopPathIndex()
+					&& segmentIndex == start.getSegmentIndex()
+					&& block.equals(start.getBlock())
 					&& distanceAlongSegment < 
-						startSearchSpatialMatch.getDistanceAlongSegment()) {
+						start.getDistanceAlongSegment()) {
 				// The current match would be before the starting point so
 				// adjust it.
-				logger.debug("For vehicleId={} the spatial match was before " +
-						"the starting previous match so will use the previous " +
-						"match. original distanceAlongSegment={} and " +
-						"startSearchSpatialMatch={}",
-						avlReport.getVehicleId(), 
-						Geo.distanceFormat(distanceAlongSegment), 
-						startSearchSpatialMatch);
-				distanceAlongSegment = 
-						startSearchSpatialMatch.getDistanceAlongSegment();
-				distanceToSegment = 
-						startSearchSpatialMatch.getDistanceToSegment();
+				if (debug)
+					logger.debug("For vehicleId={} the spatial match was " +
+							"before the starting previous match so will use " +
+							"the previous match. original " +
+							"distanceAlongSegment={} and " +
+							"startSearchSpatialMatch={}",
+							avlReport.getVehicleId(), 
+							Geo.distanceFormat(distanceAlongSegment), 
+							startSearchSpatialMatch);
+				distanceAlongSegment = start.getDistanceAlongSegment();
+				distanceToSegment = start.getDistanceToSegment();
 			}
 		}
 		
 		// If layover then need to set distanceAlongSegment to the length of 
 		// the path so that the match is with the actual stop.
 		if (atLayover) {
-			distanceAlongSegment = potentialMatchIndices.getSegment().length();
+			distanceAlongSegment = segmentLength;
 		}
 		
-		// Create the SpatialMatch object for the specified indices
-		SpatialMatch spatialMatch = new SpatialMatch(
-				avlReport.getTime(),
-				potentialMatchIndices.getBlock(),
-				potentialMatchIndices.getTripIndex(),
-				potentialMatchIndices.getStopPathIndex(),
-				potentialMatchIndices.getSegmentIndex(), 
-				distanceToSegment,
-				distanceAlongSegment);
-		logger.debug("For vehicleId={} examining match to see if it should " +
-				"be included in list of spatial matches. {}", 
-				avlReport.getVehicleId(), spatialMatch);
+		if (debug)
+			logger.debug("For vehicleId={} examining match to see if it " +
+					"should be included in list of spatial matches. " +
+					"blockId={} tripIndex={} stopPathIndex={} " +
+					"segmentIndex={} distanceToSegment={} " +
+					"distanceAlongSegment={}", 
+					avlReport.getVehicleId(), block.getId(), tripIndex,
+					stopPathIndex, segmentIndex, 
+					Geo.distanceFormat(distanceToSegment),
+					Geo.distanceFormat(distanceAlongSegment));
 		
 		// If the match is better than the previous one then it trending 
 		// towards a minimum so keep track of it if heading and distance are OK. 
 		if (distanceToSegment <= previousDistanceToSegment) {
-			boolean headingOK = segmentVector.headingOK(avlReport.getHeading(),
-					CoreConfig.getMaxHeadingOffsetFromSegment());
-			boolean distanceOK =
-					distanceToSegment < getMaxAllowableDistanceFromSegment(
-							potentialMatchIndices, matchingType);
+			boolean headingOK = Geo.headingOK(avlReport.getHeading(), 
+					segmentHeading, maxHeadingOffset);
+			boolean distanceOK = distanceToSegment < maxAllowableDistance;
 			if (headingOK && distanceOK) {
 				// Heading and distance OK so store this as a potential match
-				previousPotentialSpatialMatch = spatialMatch;
+				potentialCandidate.set(block, tripIndex, stopPathIndex,
+						segmentIndex, distanceToSegment, distanceAlongSegment);
 				
-				logger.debug("For vehicleId={} distanceToSegment={} is better " +
-						"and because heading and distance are " +
-						"OK keeping track of this spatial match as a potential " +
-						"best spatial match", 
-						avlReport.getVehicleId(), 
-						Geo.distanceFormat(distanceToSegment));				
+				if (debug)
+					logger.debug("For vehicleId={} distanceToSegment={} is " +
+							"better and because heading and distance are " +
+							"OK keeping track of this spatial match as a " +
+							"potential best spatial match", 
+							avlReport.getVehicleId(), 
+							Geo.distanceFormat(distanceToSegment));				
 			} else {
-				// Heading or distance not OK so don't store as potential match.
-				// Simply log what is happening.
-				logger.debug("For vehicleId={} distanceToSegment={} is better " +
-						"than previousDistanceToSegment={} but headingOK={} " +
-						"distanceOK={} so not keeping track of this match " +
-						"as a potential best spatial match", 
-						avlReport.getVehicleId(), 
-						Geo.distanceFormat(distanceToSegment), 
-						Geo.distanceFormat(previousDistanceToSegment), 
-						headingOK, distanceOK);
+				if (debug)
+					logger.debug("For vehicleId={} distanceToSegment={} is " +
+							"better than previousDistanceToSegment={} but " +
+							"headingOK={} distanceOK={} so not keeping track " +
+							"of this match as a potential best spatial match", 
+							avlReport.getVehicleId(), 
+							Geo.distanceFormat(distanceToSegment), 
+							Geo.distanceFormat(previousDistanceToSegment), 
+							headingOK, distanceOK);
 			}
 		} else {
 			// This match is not as good as previous one which means that 
 			// moving away from a minimum. If have a previous potential
 			// match then add it to the list of spatial matches.
-			if (previousPotentialSpatialMatch != null) {
-				// Match is further away than for previous potential match then
-				// have passed by a minimum so store the previous spatial match.
-				spatialMatches.add(previousPotentialSpatialMatch);
-
-				logger.debug("For vehicleId={} since there was a previous " +
-						"good spatial match and distanceToSegment={} is " +
-						"further away than previousDistanceToSegment={}, " +
-						"adding the previous spatial match to the list. {}",
-						avlReport.getVehicleId(), 
-						Geo.distanceFormat(distanceToSegment), 
-						Geo.distanceFormat(previousDistanceToSegment), 
-						previousPotentialSpatialMatch);
-
-				// Set previousPotentialSpatialMatch to null to indicate 
-				// that have already added this match to list
-				previousPotentialSpatialMatch = null;
+			if (potentialCandidate.valid) {
+				if (debug)
+					logger.debug("For vehicleId={} since there was a " +
+							"previous good spatial match and " +
+							"distanceToSegment={} is further away than " +
+							"previousDistanceToSegment={}, adding the " +
+							"previous spatial match to the list. {}",
+							avlReport.getVehicleId(), 
+							Geo.distanceFormat(distanceToSegment), 
+							Geo.distanceFormat(previousDistanceToSegment), 
+							potentialCandidate);
+				addPotentialMatch(avlReport, spatialMatches);
 			} else {
-				// Moving away from minimum but if there was a valid minimum it
-				// was already stored. Therefore simply log what is happening.
-				logger.debug("For vehicleId={} distanceToSegment={} is worse " +
-						"than previousDistanceToSegment={} but there was no " +
-						"previousPotentialSpatialMatch meaning didn't just go " +
-						"past a minimum. Therefore no previous match to add " +
-						"to list of spatial matches",
-						avlReport.getVehicleId(), 
-						Geo.distanceFormat(distanceToSegment), 
-						Geo.distanceFormat(previousDistanceToSegment));
+				if (debug)
+					logger.debug("For vehicleId={} distanceToSegment={} is " +
+							"worse than previousDistanceToSegment={} but " +
+							"there was no previous potential match meaning " +
+							"didn't just go past a minimum. Therefore no " +
+							"previous match to add to list of spatial matches",
+							avlReport.getVehicleId(), 
+							Geo.distanceFormat(distanceToSegment), 
+							Geo.distanceFormat(previousDistanceToSegment));
 			}
 		}
 		
@@ -685,27 +1182,29 @@ public class SpatialMatcher {
 		// next indices for spatial match.
 		previousDistanceToSegment = distanceToSegment;
 		
-		// A layover is always a spatial match since the vehicle is allowed to
-		// be off of the route there. So always add layovers to the list of
-		// spatial matches.
+		// A layover is always a spatial match if within allowable distance of
+		// the layover. Layovers are rare so simply use Indices to determine
+		// this.
 		if (atLayover
 				&& withinAllowableDistanceOfLayover(avlReport.getVehicleId(),
-						avlReport.getLocation(), potentialMatchIndices)) {
+						avlReport.getLocation(), new Indices(block, tripIndex,
+								stopPathIndex, segmentIndex))) {
+			SpatialMatch layoverMatch = new SpatialMatch(avlReport.getTime(),
+					block, tripIndex, stopPathIndex, segmentIndex,
+					distanceToSegment, distanceAlongSegment);
 			logger.debug("For vehicleId={} segment is at a layover so adding " +
 					"it to list of spatial matches. {}",
-					avlReport.getVehicleId(), spatialMatch);
-			spatialMatches.add(spatialMatch);
+					avlReport.getVehicleId(), layoverMatch);
+			spatialMatches.add(layoverMatch);
 		}
 
 		// Keep track of best spatial match even if the distance from vehicle
-		// to the match is greater than the allowable distance. This is
-		// handy in case there is a problem since can log the best match
-		// and see if there is a heading problem or need need make the
-		// allowable distance more lenient.
-		if (smallestDistanceSpatialMatch == null 
+		// to the match is greater than the allowable distance, for logging.
+		if (!smallestDistanceCandidate.valid 
 				|| distanceToSegment < 
-					smallestDistanceSpatialMatch.getDistanceToSegment()) {
-			smallestDistanceSpatialMatch = spatialMatch;
+					smallestDistanceCandidate.distanceToSegment) {
+			smallestDistanceCandidate.set(block, tripIndex, stopPathIndex,
+					segmentIndex, distanceToSegment, distanceAlongSegment);
 		}
 	}
 	
@@ -750,11 +1249,25 @@ public class SpatialMatcher {
 		spatialMatcher.setStartOfSearch(previousMatch);
 		while (!indices.pastEndOfBlock(vehicleState.getAvlReport().getTime())
 				&& distanceSearched < distanceAlongPathToSearch) {
-			spatialMatcher.processPossiblePotentialMatch(
-					vehicleState.getAvlReport(), indices, spatialMatches,
-					MatchingType.STANDARD_MATCHING);
+			if (spatialMatcher.useKernel) {
+				spatialMatcher.processPossiblePotentialMatch(
+						vehicleState.getAvlReport(), indices.getBlock(),
+						indices.getTripIndex(), indices.getStopPathIndex(),
+						indices.getSegmentIndex(), spatialMatches,
+						MatchingType.STANDARD_MATCHING);
+				
+				SegmentCoordinates coordinates = 
+						spatialMatcher.kernelCoordinates;
+				distanceSearched += coordinates.getLength(
+						coordinates.getOrdinal(indices.getStopPathIndex(),
+								indices.getSegmentIndex()));
+			} else {
+				spatialMatcher.processPossiblePotentialMatch(
+						vehicleState.getAvlReport(), indices, spatialMatches,
+						MatchingType.STANDARD_MATCHING);
 
-			distanceSearched += indices.getSegment().length();
+				distanceSearched += indices.getSegment().length();
+			}
 
 			// For next iteration through while loop
 			indices.increment(vehicleState.getAvlReport().getTime());
@@ -764,27 +1277,28 @@ public class SpatialMatcher {
 		// the end match might be a potential one even if was continuing
 		// to improve the match. Therefore if there was a potential
 		// match then should store it.
-		if (spatialMatcher.previousPotentialSpatialMatch != null) {
-			// There was a potential match and now things are getting
-			// worse so that was a local minimum. Therefore this is
-			// one of the spatial matches to be returned.
-			spatialMatches.add(spatialMatcher.previousPotentialSpatialMatch);
-		}
+		spatialMatcher.addPotentialMatch(vehicleState.getAvlReport(), 
+				spatialMatches);
 
 		if (spatialMatches.size() > 0) {
-			logger.debug("For vehicleId={} the match with the best " +
-					"distance was {}",
-					vehicleState.getVehicleId(),
-					spatialMatcher.smallestDistanceSpatialMatch);
+			if (logger.isDebugEnabled())
+				logger.debug("For vehicleId={} the match with the best " +
+						"distance was {}",
+						vehicleState.getVehicleId(),
+						spatialMatcher.getSmallestDistanceSpatialMatch(
+								vehicleState.getAvlReport()));
 		} else {
 			// There were no spatial matches so log this problem
+			SpatialMatch smallestDistanceSpatialMatch = spatialMatcher
+					.getSmallestDistanceSpatialMatch(vehicleState
+							.getAvlReport());
 			logger.warn("For vehicleId={} found no spatial matches within " +
 					"allowable distance of segments. Best spatial match " +
 					"distance was {} for spatial match {}",
 					vehicleState.getVehicleId(),
-					Geo.distanceFormat(spatialMatcher.
-							smallestDistanceSpatialMatch.getDistanceToSegment()),
-					spatialMatcher.smallestDistanceSpatialMatch);
+					Geo.distanceFormat(smallestDistanceSpatialMatch
+							.getDistanceToSegment()),
+					smallestDistanceSpatialMatch);
 		}
 		
 		// Need to look at possibility that could match to end of the block if
@@ -25,12 +25,16 @@ import org.transitime.configData.CoreConfig;
 import org.transitime.db.structs.Location;
 import org.transitime.db.structs.ScheduleTime;
 import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.Trip;
 import org.transitime.utils.Time;
 
 /**
  * Singleton class that contains methods for determining how long a vehicle is
  * expected to take to get from one point to another on the assignment. Heavily
  * used both for doing temporal matching and for generating predictions.
+ * <p>
+ * The travel times from the database are blended with the travel times
+ * learned from the recent arrivals/departures by TravelTimesLearner.
  * 
  * @author SkiBu Smith
  */
@@ -140,7 +144,7 @@ public class TravelTimes {
 	 * @param indices
 	 * @return
 	 */
-	private static int adjustTravelTimeForWaitStop(int timeOfDaySecs, 
+	static int adjustTravelTimeForWaitStop(int timeOfDaySecs, 
 			int travelTimeMsec, Indices indices) {
 		ScheduleTime scheduleTime = indices.getScheduleTime();
 		if (scheduleTime != null) {
@@ -268,6 +272,30 @@ public class TravelTimes {
 		return timeTravelInfo;
 	}
 	
+	/**
+	 * The travel times for the travel time segments of a stop path are
+	 * from the database. If a different travel time has been learned for
+	 * the stop path then scales the travel time for part of the stop path
+	 * accordingly.
+	 * 
+	 * @param trip
+	 * @param stopPathIndex
+	 * @param travelTimesForStopPath
+	 * @param travelTimeMsec
+	 *            Travel time for part of the stop path determined from the
+	 *            travel time segments
+	 * @return The adjusted travel time in msec
+	 */
+	private static int adjustForLearnedTravelTime(Trip trip, int stopPathIndex,
+			TravelTimesForStopPath travelTimesForStopPath, int travelTimeMsec) {
+		int historicMsec = travelTimesForStopPath.getStopPathTravelTimeMsec();
+		int learnedMsec = TravelTimesLearner.getInstance()
+				.getStopPathTravelTimeMsec(trip, stopPathIndex, historicMsec);
+		if (learnedMsec == historicMsec || historicMsec <= 0)
+			return travelTimeMsec;
+		return (int) ((long) travelTimeMsec * learnedMsec / historicMsec);
+	}
+	
 	/**
 	 * Returns the time vehicle is expected to take to travel from the
 	 * spatialMatch to the stop at the end of the current stop path. Does not
@@ -300,7 +328,9 @@ public class TravelTimes {
 				++i) {
 			travelTimeMsec += travelTimesForStopPath.getTravelTimeSegmentMsec(i);
 		}
-		return travelTimeMsec; 
+		return adjustForLearnedTravelTime(match.getTrip(),
+				match.getStopPathIndex(), travelTimesForStopPath,
+				travelTimeMsec); 
 	}
 	
 	/**
@@ -336,7 +366,9 @@ public class TravelTimes {
 				timeTravelInfo.fractionCompleted);
 
 		travelTimeMsec += travelTimeInPartialSegmentToMatch;		
-		return travelTimeMsec;
+		return adjustForLearnedTravelTime(match.getTrip(),
+				match.getStopPathIndex(), travelTimesForStopPath,
+				travelTimeMsec);
 	}
 	
 	/**
@@ -348,9 +380,12 @@ public class TravelTimes {
 	 * @return Expected travel time in msec
 	 */
 	public int expectedTravelTimeForStopPath(Indices indices) {
+		Trip trip = indices.getTrip();
 		TravelTimesForStopPath travelTimesForPath = 
-				indices.getTrip().getTravelTimesForStopPath(indices.getStopPathIndex());
-		return travelTimesForPath.getStopPathTravelTimeMsec();
+				trip.getTravelTimesForStopPath(indices.getStopPathIndex());
+		return TravelTimesLearner.getInstance().getStopPathTravelTimeMsec(
+				trip, indices.getStopPathIndex(),
+				travelTimesForPath.getStopPathTravelTimeMsec());
 	}
 
 	/**
@@ -362,9 +397,11 @@ public class TravelTimes {
 	 * @return Stop time in msec
 	 */
 	public int expectedStopTimeForStopPath(Indices indices) {
+		Trip trip = indices.getTrip();
 		TravelTimesForStopPath travelTimesForPath = 
-				indices.getTrip().getTravelTimesForStopPath(indices.getStopPathIndex());
-		return travelTimesForPath.getStopTimeMsec();
+				trip.getTravelTimesForStopPath(indices.getStopPathIndex());
+		return TravelTimesLearner.getInstance().getStopTimeMsec(trip,
+				indices.getStopPathIndex(), travelTimesForPath.getStopTimeMsec());
 	}
 	
 	/**
@@ -465,8 +502,34 @@ public class TravelTimes {
 			// get all the travel times for intermediate paths. 
 			indices.incrementStopPath(timeOfDaySecs);
 		
+			// If the intermediate stop paths are all for the same trip then
+			// can use the cumulative travel times of the trip, which include
+			// the learned travel times, to get the total for them without
+			// iterating. This isn't possible if there is a wait stop since
+			// then the schedule matters. For such cases fall through to the
+			// loop.
+			boolean intermediateStopPathsDone = false;
+			if (!indices.getBlock().isNoSchedule()
+					&& indices.getTripIndex() == endIndices.getTripIndex()) {
+				Trip trip = indices.getTrip();
+				int intermediateTimeMsec = TravelTimesLearner.getInstance()
+						.getTravelAndStopTimesMsec(trip,
+								indices.getStopPathIndex(),
+								endIndices.getStopPathIndex());
+				if (intermediateTimeMsec >= 0) {
+					travelTimeMsec += intermediateTimeMsec;
+					logger.debug("For vehicleId={} added cumulative time={} "
+							+ "msec for intermediate stop paths so travel "
+							+ "time now is {} msec", vehicleId,
+							intermediateTimeMsec, travelTimeMsec);
+					
+					intermediateStopPathsDone = true;
+				}
+			}
+			
 			// For all stop paths between the begin and end ones...
-			while (indices.isEarlierStopPathThan(endIndices)) {
+			while (!intermediateStopPathsDone
+					&& indices.isEarlierStopPathThan(endIndices)) {
 				// Add the travel time
 				int stopPathTravelTime = expectedTravelTimeForStopPath(indices);
 				travelTimeMsec += stopPathTravelTime;
@@ -0,0 +1,1004 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringConfigValue;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TravelTimesForStopPath;
+import org.transitime.db.structs.TravelTimesForTrip;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+import org.transitime.utils.Timer;
+
+/**
+ * Learns travel times and stop times from the arrivals/departures as they
+ * are generated so that the travel times used for predictions reflect
+ * current conditions instead of only the historic data that was processed
+ * the last time UpdateTravelTimes was run.
+ * <p>
+ * For each trip pattern, stop path, and time of day an exponentially decayed
+ * mean of the travel time and of the stop time is kept. The time of day is
+ * the start time of the trip so that the same trip always uses the same
+ * statistics, just like the historic travel times are per trip. The
+ * statistics are kept in primitive arrays per trip pattern so that they use
+ * little memory. The learned values are blended with the historic travel
+ * times of the trip, with the historic value counting as
+ * transitime.travelTimes.onlineLearningPriorWeight samples. Therefore the
+ * learned values only take over once there is enough recent data.
+ * <p>
+ * Since the travel times are looked up very frequently when generating
+ * predictions the blended values are not determined for each lookup.
+ * Instead the statistics are periodically published as an immutable copy.
+ * Only the trip patterns that have new samples since the last publish are
+ * copied, plus ones whose copy is old enough that the decay of the weights
+ * matters.
+ * The first lookup for a trip after a publish blends the travel and stop
+ * times of the trip and determines their cumulative values, just like
+ * TravelTimesForTrip does for the historic ones. Lookups therefore don't
+ * need to synchronize and the time between stop paths can be determined
+ * in constant time.
+ * <p>
+ * If transitime.travelTimes.onlineLearningSnapshotDirectory is set then the
+ * statistics are periodically written to a file there and read back in at
+ * startup so that a restart doesn't lose what was learned.
+ * <p>
+ * Online learning is disabled by default and is enabled by setting
+ * transitime.travelTimes.onlineLearning to true.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TravelTimesLearner {
+
+	// The statistics, keyed by trip pattern ID
+	private final ConcurrentHashMap<String, PatternStats> statsMap =
+			new ConcurrentHashMap<String, PatternStats>();
+
+	// The previous arrival/departure for each vehicle, keyed by vehicle ID,
+	// so that can determine the travel and stop times. Old ones are removed
+	// when publishing so that vehicles that are no longer in service don't
+	// accumulate.
+	private final ConcurrentHashMap<String, ArrivalDeparture> previousArrDeps =
+			new ConcurrentHashMap<String, ArrivalDeparture>();
+
+	// For identifying snapshot files
+	private static final int MAGIC_NUMBER = 0x54544c53; // "TTLS"
+
+	// Should be incremented if the layout of the snapshot file changes
+	private static final int FORMAT_VERSION = 1;
+
+	// Samples are not considered outliers if they are within this limit of
+	// the expected value. Needed since the expected stop time is frequently 0.
+	private static final int MIN_OUTLIER_LIMIT_MSEC = 60 * Time.MS_PER_SEC;
+
+	// Trip patterns without new samples are still republished after this
+	// long so that the published weights reflect the decay
+	private static final int REPUBLISH_UNCHANGED_MINS = 60;
+	
+	// Previous arrivals/departures older than this are removed since the
+	// travel or stop time would be rejected as an outlier anyways
+	private static final long MAX_PREVIOUS_ARR_DEP_AGE_MSEC = 
+			3 * Time.MS_PER_HOUR;
+
+	/********************* Configurable parameters *************************/
+
+	private static BooleanConfigValue onlineLearning =
+			new BooleanConfigValue("transitime.travelTimes.onlineLearning",
+					false,
+					"If true then travel times and stop times are learned "
+					+ "from the arrivals/departures as they are generated "
+					+ "and are blended with the historic travel times when "
+					+ "generating predictions.");
+
+	private static IntegerConfigValue onlineLearningTimeBucketMins =
+			new IntegerConfigValue(
+					"transitime.travelTimes.onlineLearningTimeBucketMins",
+					60,
+					"The learned travel times are kept separately for trips "
+					+ "that start in different time of day buckets of this "
+					+ "many minutes.");
+
+	private static DoubleConfigValue onlineLearningHalfLifeHours =
+			new DoubleConfigValue(
+					"transitime.travelTimes.onlineLearningHalfLifeHours",
+					72.0,
+					"The weight of a learned travel time sample is halved "
+					+ "after this many hours so that the learned values "
+					+ "follow changing conditions.");
+
+	private static DoubleConfigValue onlineLearningPriorWeight =
+			new DoubleConfigValue(
+					"transitime.travelTimes.onlineLearningPriorWeight",
+					5.0,
+					"When blending the learned travel times with the "
+					+ "historic ones the historic value counts as this many "
+					+ "samples. The larger the value the more recent samples "
+					+ "are needed before the learned values take over.");
+
+	private static DoubleConfigValue onlineLearningOutlierFactor =
+			new DoubleConfigValue(
+					"transitime.travelTimes.onlineLearningOutlierFactor",
+					3.0,
+					"Learned travel and stop time samples that are more than "
+					+ "this factor greater or smaller than the currently "
+					+ "expected value are ignored since they likely indicate "
+					+ "a problem with the data.");
+
+	private static IntegerConfigValue onlineLearningPublishIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.travelTimes.onlineLearningPublishIntervalSecs",
+					60,
+					"How frequently the learned travel times are made "
+					+ "available for generating predictions. Lookups use "
+					+ "the values as of the last publish so that they don't "
+					+ "need to synchronize with the learning.");
+
+	private static StringConfigValue onlineLearningSnapshotDirectory =
+			new StringConfigValue(
+					"transitime.travelTimes.onlineLearningSnapshotDirectory",
+					null,
+					"If set then the learned travel times are periodically "
+					+ "written to a file in this directory and read back in "
+					+ "at startup so that they are not lost when the core is "
+					+ "restarted.");
+
+	private static IntegerConfigValue onlineLearningSnapshotIntervalMins =
+			new IntegerConfigValue(
+					"transitime.travelTimes.onlineLearningSnapshotIntervalMins",
+					10,
+					"How frequently the learned travel times are written to "
+					+ "the snapshot file.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TravelTimesLearner.class);
+
+	// Declared after the config values and the logger since the constructor
+	// uses them
+	private static final TravelTimesLearner singleton =
+			new TravelTimesLearner();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Exponentially decayed means for each stop path and time of day bucket
+	 * of a trip pattern. Element stopPathIndex * numberBuckets + bucket of
+	 * the arrays is for the stop path and bucket. Not synchronized. The
+	 * PatternStats that contains it takes care of that.
+	 */
+	static class DecayedStats {
+		private final float[] means;
+		private final float[] weights;
+		// When each element was last updated, in epoch minutes
+		private final int[] updateTimeMins;
+
+		DecayedStats(int size) {
+			means = new float[size];
+			weights = new float[size];
+			updateTimeMins = new int[size];
+		}
+
+		/**
+		 * Copy constructor where the weights are decayed to the specified
+		 * time so that the copy can be used for blending at that time.
+		 */
+		private DecayedStats(DecayedStats other, long timeMins,
+				double halfLifeMins) {
+			means = other.means.clone();
+			weights = new float[other.weights.length];
+			updateTimeMins = new int[other.updateTimeMins.length];
+			for (int i = 0; i < weights.length; ++i) {
+				weights[i] =
+						(float) other.getWeight(i, timeMins, halfLifeMins);
+				updateTimeMins[i] = (int) timeMins;
+			}
+		}
+
+		/**
+		 * Blends the learned value with the historic one, which counts as
+		 * priorWeight samples.
+		 *
+		 * @return the blended value in msec
+		 */
+		int blend(int index, int historicMsec, double priorWeight) {
+			double weight = weights[index];
+			if (weight <= 0.0)
+				return historicMsec;
+			return (int) Math.round((means[index] * weight
+					+ historicMsec * priorWeight) / (weight + priorWeight));
+		}
+
+		/**
+		 * @return the weight of the element decayed to the specified time
+		 */
+		double getWeight(int index, long timeMins, double halfLifeMins) {
+			double weight = weights[index];
+			if (weight <= 0.0)
+				return 0.0;
+			long ageMins = timeMins - updateTimeMins[index];
+			if (ageMins <= 0)
+				return weight;
+			return weight * Math.pow(0.5, ageMins / halfLifeMins);
+		}
+
+		/**
+		 * Adds a sample to the element. The previous samples are first
+		 * decayed according to how long ago the element was updated.
+		 */
+		void add(int index, int valueMsec, long timeMins,
+				double halfLifeMins) {
+			double weight = getWeight(index, timeMins, halfLifeMins) + 1.0;
+			means[index] += (valueMsec - means[index]) / weight;
+			weights[index] = (float) weight;
+			updateTimeMins[index] =
+					(int) Math.max(timeMins, updateTimeMins[index]);
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			for (int i = 0; i < means.length; ++i) {
+				out.writeFloat(means[i]);
+				out.writeFloat(weights[i]);
+				out.writeInt(updateTimeMins[i]);
+			}
+		}
+
+		private void read(DataInputStream in) throws IOException {
+			for (int i = 0; i < means.length; ++i) {
+				means[i] = in.readFloat();
+				weights[i] = in.readFloat();
+				updateTimeMins[i] = in.readInt();
+			}
+		}
+	}
+
+	/**
+	 * The travel and stop times of a trip with the learned values blended
+	 * in. Immutable so that can be used without synchronization.
+	 */
+	static class LearnedTripTimes {
+		// The historic travel times that were blended with the learned ones
+		private final TravelTimesForTrip historicTravelTimes;
+		
+		private final int[] travelTimesMsec;
+		private final int[] stopTimesMsec;
+		
+		// Element i is the sum of the travel and stop times of stop paths
+		// 0 through i-1. Length is number of stop paths + 1.
+		private final int[] cumulativeTimesMsec;
+
+		/**
+		 * @param historicTravelTimes
+		 *            the historic travel times of the trip, for determining
+		 *            whether they have changed since
+		 * @param historicTravelTimesMsec
+		 *            the historic travel time of each stop path. Not
+		 *            modified.
+		 * @param historicStopTimesMsec
+		 *            the historic stop time of each stop path. Not modified.
+		 * @param published
+		 *            the learned values to blend in
+		 * @param bucket
+		 *            time of day bucket of the trip
+		 * @param priorWeight
+		 *            how many samples the historic values count as
+		 */
+		LearnedTripTimes(TravelTimesForTrip historicTravelTimes,
+				int[] historicTravelTimesMsec, int[] historicStopTimesMsec,
+				PublishedStats published, int bucket, double priorWeight) {
+			this.historicTravelTimes = historicTravelTimes;
+			int numStopPaths = historicTravelTimesMsec.length;
+			travelTimesMsec = historicTravelTimesMsec.clone();
+			stopTimesMsec = historicStopTimesMsec.clone();
+			cumulativeTimesMsec = new int[numStopPaths + 1];
+			for (int i = 0; i < numStopPaths; ++i) {
+				if (i < published.numberStopPaths) {
+					int index = i * published.numberBuckets + bucket;
+					travelTimesMsec[i] = published.travelTimes.blend(index,
+							travelTimesMsec[i], priorWeight);
+					stopTimesMsec[i] = published.stopTimes.blend(index,
+							stopTimesMsec[i], priorWeight);
+				}
+				cumulativeTimesMsec[i + 1] = cumulativeTimesMsec[i]
+						+ travelTimesMsec[i] + stopTimesMsec[i];
+			}
+		}
+		
+		/**
+		 * Creates the blended times from the historic ones of the trip.
+		 */
+		private static LearnedTripTimes create(
+				TravelTimesForTrip historicTravelTimes,
+				PublishedStats published, int bucket, double priorWeight) {
+			List<TravelTimesForStopPath> travelTimesForStopPaths =
+					historicTravelTimes.getTravelTimesForStopPaths();
+			int numStopPaths = travelTimesForStopPaths.size();
+			int[] travelTimesMsec = new int[numStopPaths];
+			int[] stopTimesMsec = new int[numStopPaths];
+			for (int i = 0; i < numStopPaths; ++i) {
+				TravelTimesForStopPath travelTimesForPath =
+						travelTimesForStopPaths.get(i);
+				travelTimesMsec[i] = 
+						travelTimesForPath.getStopPathTravelTimeMsec();
+				stopTimesMsec[i] = travelTimesForPath.getStopTimeMsec();
+			}
+			return new LearnedTripTimes(historicTravelTimes, travelTimesMsec,
+					stopTimesMsec, published, bucket, priorWeight);
+		}
+		
+		int getNumberStopPaths() {
+			return travelTimesMsec.length;
+		}
+		
+		int getTravelTimeMsec(int stopPathIndex) {
+			return travelTimesMsec[stopPathIndex];
+		}
+		
+		int getStopTimeMsec(int stopPathIndex) {
+			return stopTimesMsec[stopPathIndex];
+		}
+		
+		/**
+		 * @return sum of the travel and stop times of stop paths
+		 *         fromStopPathIndex up to but not including toStopPathIndex
+		 */
+		int getTravelAndStopTimesMsec(int fromStopPathIndex,
+				int toStopPathIndex) {
+			return cumulativeTimesMsec[toStopPathIndex]
+					- cumulativeTimesMsec[fromStopPathIndex];
+		}
+	}
+	
+	/**
+	 * Copy of the learned statistics of a trip pattern as of when they were
+	 * last published. The statistics are not modified so they can be used
+	 * without synchronization. The blended times for the trips of the trip
+	 * pattern are determined when first needed.
+	 */
+	static class PublishedStats {
+		private final int numberStopPaths;
+		private final int numberBuckets;
+		private final DecayedStats travelTimes;
+		private final DecayedStats stopTimes;
+		
+		// When published, in epoch minutes
+		private final long timeMins;
+		
+		// Keyed by trip ID
+		private final ConcurrentHashMap<String, LearnedTripTimes> tripTimesMap =
+				new ConcurrentHashMap<String, LearnedTripTimes>();
+		
+		private PublishedStats(PatternStats stats, long timeMins,
+				double halfLifeMins) {
+			numberStopPaths = stats.numberStopPaths;
+			numberBuckets = stats.numberBuckets;
+			this.timeMins = timeMins;
+			travelTimes = 
+					new DecayedStats(stats.travelTimes, timeMins, halfLifeMins);
+			stopTimes =
+					new DecayedStats(stats.stopTimes, timeMins, halfLifeMins);
+		}
+	}
+	
+	/**
+	 * The learned travel times and stop times for a trip pattern. Access is
+	 * synchronized. Since there is a separate object per trip pattern there
+	 * is very little contention. Lookups don't synchronize since they use
+	 * the published copy of the statistics.
+	 */
+	static class PatternStats {
+		private final int numberStopPaths;
+		private final int numberBuckets;
+		private final DecayedStats travelTimes;
+		private final DecayedStats stopTimes;
+		private volatile PublishedStats published;
+		
+		// Whether samples have been added since the last publish
+		private boolean changed = false;
+
+		private PatternStats(int numberStopPaths, int numberBuckets) {
+			this.numberStopPaths = numberStopPaths;
+			this.numberBuckets = numberBuckets;
+			travelTimes = new DecayedStats(numberStopPaths * numberBuckets);
+			stopTimes = new DecayedStats(numberStopPaths * numberBuckets);
+		}
+
+		private int getIndex(int stopPathIndex, int bucket) {
+			return stopPathIndex * numberBuckets + bucket;
+		}
+
+		synchronized void addTravelTime(int stopPathIndex, int bucket,
+				int valueMsec, long timeMins, double halfLifeMins) {
+			travelTimes.add(getIndex(stopPathIndex, bucket), valueMsec,
+					timeMins, halfLifeMins);
+			changed = true;
+		}
+		
+		synchronized void addStopTime(int stopPathIndex, int bucket,
+				int valueMsec, long timeMins, double halfLifeMins) {
+			stopTimes.add(getIndex(stopPathIndex, bucket), valueMsec,
+					timeMins, halfLifeMins);
+			changed = true;
+		}
+		
+		/**
+		 * Publishes a copy of the statistics, but only if samples have been
+		 * added since the last publish or the published copy is older than
+		 * REPUBLISH_UNCHANGED_MINS.
+		 * 
+		 * @return true if published
+		 */
+		private synchronized boolean publish(long timeMins,
+				double halfLifeMins) {
+			if (!changed && published != null 
+					&& timeMins - published.timeMins < REPUBLISH_UNCHANGED_MINS)
+				return false;
+			published = new PublishedStats(this, timeMins, halfLifeMins);
+			changed = false;
+			return true;
+		}
+		
+		/**
+		 * @return the statistics as of the last publish, or null
+		 */
+		PublishedStats getPublished() {
+			return published;
+		}
+
+		private synchronized void write(DataOutputStream out)
+				throws IOException {
+			out.writeInt(numberStopPaths);
+			out.writeInt(numberBuckets);
+			travelTimes.write(out);
+			stopTimes.write(out);
+		}
+
+		private synchronized void read(DataInputStream in)
+				throws IOException {
+			travelTimes.read(in);
+			stopTimes.read(in);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Constructor for the singleton. If online learning is enabled then
+	 * reads in the snapshot, if there is one, and starts publishing the
+	 * learned statistics and writing snapshots periodically. Package
+	 * private instead of private only so that tests can use separate
+	 * instances.
+	 */
+	TravelTimesLearner() {
+		if (!onlineLearning.getValue())
+			return;
+		
+		String directory = onlineLearningSnapshotDirectory.getValue();
+		if (directory != null)
+			readSnapshot(getSnapshotFile(directory));
+
+		int publishIntervalSecs = 
+				Math.max(1, onlineLearningPublishIntervalSecs.getValue());
+		Timer.get().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					publish();
+				} catch (RuntimeException e) {
+					logger.error("Exception publishing learned travel times",
+							e);
+				}
+			}
+		}, 0, publishIntervalSecs, TimeUnit.SECONDS);
+		
+		if (directory == null)
+			return;
+
+		int intervalMins = onlineLearningSnapshotIntervalMins.getValue();
+		Timer.get().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshot(getSnapshotFile(
+							onlineLearningSnapshotDirectory.getValue()));
+				} catch (RuntimeException e) {
+					logger.error("Exception writing travel times learner "
+							+ "snapshot", e);
+				}
+			}
+		}, intervalMins, intervalMins, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @return the singleton TravelTimesLearner
+	 */
+	public static TravelTimesLearner getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return length of the time of day buckets in seconds
+	 */
+	private static int getBucketSecs() {
+		return Math.max(1, onlineLearningTimeBucketMins.getValue())
+				* Time.SEC_PER_MIN;
+	}
+	
+	/**
+	 * @return number of time of day buckets
+	 */
+	private static int getNumberBuckets() {
+		int bucketSecs = getBucketSecs();
+		return (Time.SEC_PER_DAY + bucketSecs - 1) / bucketSecs;
+	}
+
+	/**
+	 * Returns the time of day bucket for the trip, which is based on the
+	 * start time of the trip.
+	 *
+	 * @param trip
+	 * @param numberBuckets
+	 * @return the bucket
+	 */
+	private static int getBucket(Trip trip, int numberBuckets) {
+		return getBucket(trip.getStartTime(), numberBuckets);
+	}
+	
+	/**
+	 * Returns the time of day bucket for a trip start time. Start times
+	 * after midnight, which can be greater than a day, use the bucket for
+	 * the time of day.
+	 *
+	 * @param startTime
+	 *            seconds into the day that the trip starts. Can be null.
+	 * @param numberBuckets
+	 * @return the bucket
+	 */
+	static int getBucket(Integer startTime, int numberBuckets) {
+		if (startTime == null)
+			return 0;
+		int secsIntoDay = startTime % Time.SEC_PER_DAY;
+		if (secsIntoDay < 0)
+			secsIntoDay += Time.SEC_PER_DAY;
+		return Math.min(secsIntoDay / getBucketSecs(), numberBuckets - 1);
+	}
+
+	static double getHalfLifeMins() {
+		return Math.max(1.0, onlineLearningHalfLifeHours.getValue()
+				* Time.MIN_PER_HOUR);
+	}
+
+	/**
+	 * Returns the learned statistics for the trip pattern of the trip. If
+	 * the statistics are for a different number of stop paths or time of day
+	 * buckets, such as because they were read from an old snapshot, they are
+	 * not used.
+	 *
+	 * @param trip
+	 * @param create
+	 *            if true then the statistics are created if there aren't
+	 *            valid ones yet
+	 * @return the statistics, or null
+	 */
+	private PatternStats getStats(Trip trip, boolean create) {
+		TripPattern tripPattern = trip.getTripPattern();
+		if (tripPattern == null)
+			return null;
+		return getStats(tripPattern.getId(), 
+				tripPattern.getNumberStopPaths(), create);
+	}
+	
+	/**
+	 * Returns the learned statistics for the trip pattern, as long as they
+	 * are for the specified number of stop paths and the configured number
+	 * of time of day buckets.
+	 * 
+	 * @param tripPatternId
+	 * @param numberStopPaths
+	 * @param create
+	 *            if true then the statistics are created if there aren't
+	 *            valid ones yet
+	 * @return the statistics, or null
+	 */
+	PatternStats getStats(String tripPatternId, int numberStopPaths,
+			boolean create) {
+		int numberBuckets = getNumberBuckets();
+
+		PatternStats stats = statsMap.get(tripPatternId);
+		if (stats != null && stats.numberStopPaths == numberStopPaths
+				&& stats.numberBuckets == numberBuckets)
+			return stats;
+		if (!create)
+			return null;
+
+		PatternStats newStats = new PatternStats(numberStopPaths, numberBuckets);
+		if (stats == null) {
+			stats = statsMap.putIfAbsent(tripPatternId, newStats);
+			return stats != null ? stats : newStats;
+		}
+		statsMap.replace(tripPatternId, stats, newStats);
+		return statsMap.get(tripPatternId);
+	}
+
+	/**
+	 * Publishes a copy of the learned statistics of each trip pattern that
+	 * changed so that lookups can use them without synchronization. Also
+	 * removes old previous arrivals/departures.
+	 */
+	private void publish() {
+		publish((Core.isCoreApplication() ? 
+				Core.getInstance().getSystemTime() 
+				: System.currentTimeMillis()) / Time.MS_PER_MIN);
+	}
+	
+	/**
+	 * Publishes a copy of the learned statistics of each trip pattern that
+	 * has new samples since the last publish. The weights are decayed to the
+	 * specified time. Also removes previous arrivals/departures that are
+	 * too old to be used, such as for vehicles no longer in service.
+	 * 
+	 * @param nowMins
+	 *            current time in epoch minutes
+	 */
+	void publish(long nowMins) {
+		IntervalTimer timer = new IntervalTimer();
+		double halfLifeMins = getHalfLifeMins();
+		int published = 0;
+		for (PatternStats stats : statsMap.values()) {
+			if (stats.publish(nowMins, halfLifeMins))
+				++published;
+		}
+		
+		// Only remove an entry if it hasn't been replaced in the meantime
+		long oldestTime = 
+				nowMins * Time.MS_PER_MIN - MAX_PREVIOUS_ARR_DEP_AGE_MSEC;
+		for (Map.Entry<String, ArrivalDeparture> entry : 
+				previousArrDeps.entrySet()) {
+			if (entry.getValue().getTime() < oldestTime)
+				previousArrDeps.remove(entry.getKey(), entry.getValue());
+		}
+		
+		logger.debug("Published learned travel times for {} of {} trip "
+				+ "patterns. Took {} msec.", published, statsMap.size(),
+				timer.elapsedMsec());
+	}
+	
+	/**
+	 * Returns the travel and stop times for the trip with the published
+	 * learned values blended in. They are determined the first time they
+	 * are needed after the learned values have been published. Doesn't
+	 * synchronize.
+	 *
+	 * @param trip
+	 * @return the blended times, or null if no learned values for the trip
+	 */
+	private LearnedTripTimes getLearnedTripTimes(Trip trip) {
+		if (!onlineLearning.getValue())
+			return null;
+		PatternStats stats = getStats(trip, false);
+		if (stats == null)
+			return null;
+		PublishedStats published = stats.published;
+		TravelTimesForTrip historicTravelTimes = trip.getTravelTimes();
+		if (published == null || historicTravelTimes == null)
+			return null;
+		
+		LearnedTripTimes learned = published.tripTimesMap.get(trip.getId());
+		if (learned == null 
+				|| learned.historicTravelTimes != historicTravelTimes) {
+			learned = LearnedTripTimes.create(historicTravelTimes, published,
+					getBucket(trip, published.numberBuckets),
+					onlineLearningPriorWeight.getValue());
+			published.tripTimesMap.put(trip.getId(), learned);
+		}
+		return learned;
+	}
+
+	/**
+	 * Returns the expected travel time for the stop path, which is the
+	 * historic travel time blended with the learned one.
+	 *
+	 * @param trip
+	 * @param stopPathIndex
+	 * @param historicMsec
+	 *            the historic travel time for the stop path
+	 * @return expected travel time in msec
+	 */
+	public int getStopPathTravelTimeMsec(Trip trip, int stopPathIndex,
+			int historicMsec) {
+		LearnedTripTimes learned = getLearnedTripTimes(trip);
+		if (learned == null 
+				|| stopPathIndex >= learned.travelTimesMsec.length)
+			return historicMsec;
+		return learned.travelTimesMsec[stopPathIndex];
+	}
+
+	/**
+	 * Returns the expected stop time for the stop at the end of the stop
+	 * path, which is the historic stop time blended with the learned one.
+	 *
+	 * @param trip
+	 * @param stopPathIndex
+	 * @param historicMsec
+	 *            the historic stop time for the stop path
+	 * @return expected stop time in msec
+	 */
+	public int getStopTimeMsec(Trip trip, int stopPathIndex, int historicMsec) {
+		LearnedTripTimes learned = getLearnedTripTimes(trip);
+		if (learned == null 
+				|| stopPathIndex >= learned.stopTimesMsec.length)
+			return historicMsec;
+		return learned.stopTimesMsec[stopPathIndex];
+	}
+
+	/**
+	 * Returns the sum of the expected travel times and stop times for stop
+	 * paths fromStopPathIndex up to but not including toStopPathIndex. Like
+	 * TravelTimesForTrip.getTravelAndStopTimesMsec() but with the learned
+	 * values blended in. Takes constant time.
+	 *
+	 * @param trip
+	 * @param fromStopPathIndex
+	 * @param toStopPathIndex
+	 * @return Travel plus stop times in msec, 0 if toStopPathIndex is not
+	 *         after fromStopPathIndex, or -1 if there is a wait stop in the
+	 *         range
+	 */
+	public int getTravelAndStopTimesMsec(Trip trip, int fromStopPathIndex,
+			int toStopPathIndex) {
+		// The historic times determine whether there is a wait stop
+		int historicMsec = trip.getTravelTimes().getTravelAndStopTimesMsec(
+				trip, fromStopPathIndex, toStopPathIndex);
+		if (historicMsec < 0 || toStopPathIndex <= fromStopPathIndex)
+			return historicMsec;
+		
+		LearnedTripTimes learned = getLearnedTripTimes(trip);
+		if (learned == null 
+				|| toStopPathIndex > learned.getNumberStopPaths())
+			return historicMsec;
+		return learned.getTravelAndStopTimesMsec(fromStopPathIndex,
+				toStopPathIndex);
+	}
+
+	/**
+	 * Returns true if the sample is not too far from the expected value.
+	 *
+	 * @param sampleMsec
+	 * @param expectedMsec
+	 * @return true if sample should be used
+	 */
+	static boolean reasonable(int sampleMsec, int expectedMsec) {
+		double factor = onlineLearningOutlierFactor.getValue();
+		return sampleMsec >= 0
+				&& sampleMsec <= Math.max(expectedMsec * factor,
+						MIN_OUTLIER_LIMIT_MSEC)
+				&& sampleMsec >= expectedMsec / factor
+						- MIN_OUTLIER_LIMIT_MSEC;
+	}
+
+	/**
+	 * Called for each arrival/departure as it is generated. If the previous
+	 * arrival/departure for the vehicle was the departure from the previous
+	 * stop of the trip then the travel time for the stop path is learned. If
+	 * it was the arrival at the same stop then the stop time is learned. The
+	 * stop times for the first stop and for wait stops are not learned since
+	 * those are determined by the schedule.
+	 *
+	 * @param arrDep
+	 */
+	public void handleArrivalDeparture(ArrivalDeparture arrDep) {
+		if (!onlineLearning.getValue())
+			return;
+
+		ArrivalDeparture previous =
+				previousArrDeps.put(arrDep.getVehicleId(), arrDep);
+		if (previous == null
+				|| previous.getTripIndex() != arrDep.getTripIndex()
+				|| !previous.getTripId().equals(arrDep.getTripId()))
+			return;
+
+		Block block = arrDep.getBlock();
+		if (block == null)
+			return;
+		Trip trip = block.getTrip(arrDep.getTripIndex());
+		int stopPathIndex = arrDep.getStopPathIndex();
+		if (trip == null || stopPathIndex >= trip.getNumberStopPaths())
+			return;
+
+		long elapsedMsec = arrDep.getTime() - previous.getTime();
+		if (elapsedMsec < 0 || elapsedMsec > Integer.MAX_VALUE)
+			return;
+		int sampleMsec = (int) elapsedMsec;
+		long timeMins = arrDep.getTime() / Time.MS_PER_MIN;
+
+		if (arrDep.isArrival() && previous.isDeparture()
+				&& previous.getStopPathIndex() == stopPathIndex - 1) {
+			// Travel time for the stop path
+			int expectedMsec = getStopPathTravelTimeMsec(trip, stopPathIndex,
+					trip.getTravelTimesForStopPath(stopPathIndex)
+							.getStopPathTravelTimeMsec());
+			if (!reasonable(sampleMsec, expectedMsec)) {
+				logger.debug("Not learning travel time of {} msec since "
+						+ "expected {} msec. {}", sampleMsec, expectedMsec,
+						arrDep);
+				return;
+			}
+			PatternStats stats = getStats(trip, true);
+			stats.addTravelTime(stopPathIndex,
+					getBucket(trip, stats.numberBuckets), sampleMsec,
+					timeMins, getHalfLifeMins());
+		} else if (arrDep.isDeparture() && previous.isArrival()
+				&& previous.getStopPathIndex() == stopPathIndex
+				&& stopPathIndex > 0) {
+			// Stop time for the stop. Not for wait stops since then the
+			// departure time is determined by the schedule.
+			StopPath stopPath = trip.getStopPath(stopPathIndex);
+			if (stopPath == null || stopPath.isWaitStop())
+				return;
+			int expectedMsec = getStopTimeMsec(trip, stopPathIndex,
+					trip.getTravelTimesForStopPath(stopPathIndex)
+							.getStopTimeMsec());
+			if (!reasonable(sampleMsec, expectedMsec)) {
+				logger.debug("Not learning stop time of {} msec since "
+						+ "expected {} msec. {}", sampleMsec, expectedMsec,
+						arrDep);
+				return;
+			}
+			PatternStats stats = getStats(trip, true);
+			stats.addStopTime(stopPathIndex,
+					getBucket(trip, stats.numberBuckets), sampleMsec,
+					timeMins, getHalfLifeMins());
+		}
+	}
+
+	/**
+	 * @param directory
+	 * @return the snapshot file for the agency
+	 */
+	private static File getSnapshotFile(String directory) {
+		return new File(directory,
+				"travelTimesLearner_" + AgencyConfig.getAgencyId() + ".bin");
+	}
+
+	/**
+	 * Writes all of the learned statistics to the file. First writes to a
+	 * temporary file and then renames it so that a partially written file is
+	 * never read. Errors are logged but not thrown.
+	 *
+	 * @param file
+	 */
+	void writeSnapshot(File file) {
+		IntervalTimer timer = new IntervalTimer();
+		File tmpFile = new File(file.getPath() + ".tmp");
+		// Copy the entries so that the number written matches
+		Map<String, PatternStats> entries =
+				new HashMap<String, PatternStats>(statsMap);
+		try {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile),
+							64 * 1024));
+			try {
+				out.writeInt(MAGIC_NUMBER);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(getNumberBuckets());
+				out.writeInt(entries.size());
+				for (Map.Entry<String, PatternStats> entry :
+						entries.entrySet()) {
+					out.writeUTF(entry.getKey());
+					entry.getValue().write(out);
+				}
+			} finally {
+				out.close();
+			}
+
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Wrote travel times learner snapshot file {} for {} "
+					+ "trip patterns. Took {} msec.", file, entries.size(),
+					timer.elapsedMsec());
+		} catch (IOException e) {
+			logger.error("Could not write travel times learner snapshot file "
+					+ "{}", file, e);
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Reads in the learned statistics from the snapshot file, if there is
+	 * one. If the time of day buckets have been changed since the file was
+	 * written then it is ignored. Statistics for trip patterns that have a
+	 * different number of stop paths in the current configuration are
+	 * ignored when they are first used.
+	 *
+	 * @param file
+	 */
+	void readSnapshot(File file) {
+		if (!file.exists()) {
+			logger.info("No travel times learner snapshot file {}", file);
+			return;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file),
+							64 * 1024));
+			try {
+				int magicNumber = in.readInt();
+				int formatVersion = in.readInt();
+				int numberBuckets = in.readInt();
+				if (magicNumber != MAGIC_NUMBER
+						|| formatVersion != FORMAT_VERSION
+						|| numberBuckets != getNumberBuckets()) {
+					logger.warn("Travel times learner snapshot file {} has "
+							+ "magic number {}, format version {}, and {} "
+							+ "time of day buckets but expected {}, {}, and "
+							+ "{}. Therefore ignoring it.", file,
+							magicNumber, formatVersion, numberBuckets,
+							MAGIC_NUMBER, FORMAT_VERSION, getNumberBuckets());
+					return;
+				}
+
+				int numberPatterns = in.readInt();
+				for (int i = 0; i < numberPatterns; ++i) {
+					String tripPatternId = in.readUTF();
+					PatternStats stats =
+							new PatternStats(in.readInt(), in.readInt());
+					stats.read(in);
+					statsMap.put(tripPatternId, stats);
+				}
+				logger.info("Read travel times learner snapshot file {} for "
+						+ "{} trip patterns. Took {} msec.", file,
+						numberPatterns, timer.elapsedMsec());
+			} finally {
+				in.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not read travel times learner snapshot file "
+					+ "{}", file, e);
+			statsMap.clear();
+		}
+	}
+}
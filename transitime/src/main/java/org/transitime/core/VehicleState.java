@@ -34,6 +34,7 @@ import org.transitime.db.structs.Location;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.ipc.data.IpcHeadway;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
@@ -62,6 +63,7 @@ public class VehicleState {
 	private LinkedList<AvlReport> avlReportHistory =
 			new LinkedList<AvlReport>();
 	private List<IpcPrediction> predictions;
+	private IpcHeadway headway;
 	private TemporalDifference realTimeSchedAdh;
 	
 	// For keeping track of how many bad matches have been encountered.
@@ -714,6 +716,26 @@ public class VehicleState {
 		return predictions;
 	}
 	
+	/**
+	 * Stores the predicted headway of the vehicle at its next stop.
+	 * 
+	 * @param headway
+	 *            Can be null
+	 */
+	public void setHeadway(IpcHeadway headway) {
+		this.headway = headway;
+	}
+	
+	/**
+	 * Gets the predicted headway of the vehicle at its next stop. Can be
+	 * null.
+	 * 
+	 * @return
+	 */
+	public IpcHeadway getHeadway() {
+		return headway;
+	}
+	
 	/**
 	 * Stores the real-time schedule adherence for the vehicle.
 	 * 
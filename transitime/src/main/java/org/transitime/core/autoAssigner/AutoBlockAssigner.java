@@ -19,9 +19,20 @@ package org.transitime.core.autoAssigner;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +54,8 @@ import org.transitime.core.dataCache.VehicleStateManager;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.StopPathSegmentIndex.NearbySegments;
+import org.transitime.logging.Markers;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
 
@@ -61,6 +74,12 @@ import org.transitime.utils.Time;
  * match a vehicle since have to look at every stop path for each available trip
  * pattern. For an agency with ~250 available blocks this can take about 1/2 a
  * second.
+ * <p>
+ * To speed things up the blocks are examined in parallel using a fork-join
+ * pool. And when many vehicles need to be assigned at once, such as during
+ * the morning pull-out, autoAssignVehiclesToBlocks() can be used to examine
+ * all of the vehicles against all of the candidate blocks together in a
+ * single pass. This is done by the AutoBlockAssignerModule.
  *
  * @author SkiBu Smith
  *
@@ -69,15 +88,34 @@ public class AutoBlockAssigner {
 
 	/*********************** members *****************************/
 	
-	// The vehicle state is repeatedly used so it is a member so it doesn't
-	// have to be passed around to various methods.
-	private VehicleState vehicleState;
+	// The vehicle and its current and previous AVL reports. The AVL reports
+	// are determined when the object is constructed, while the caller has
+	// the vehicle state synchronized, so that the blocks can then be
+	// examined by other threads without having to access the vehicle state.
+	private final String vehicleId;
+	private final AvlReport avlReport;
+	private final AvlReport previousAvlReport;
+	
+	// The blocks to examine. Can be specified by the caller so that when
+	// doing a batch of vehicles they only need to be determined once.
+	// If null then determined when needed.
+	private final List<Block> blocksToExamine;
 	
 	// Contains the results of spatial matching the avl report to the 
-	// specified trip pattern. Keyed on trip pattern ID. Note: since the spatial 
-	// matches are cached and reused the block member will not be correct
-	private Map<String, SpatialMatch> spatialMatchCache = 
-			new HashMap<String, SpatialMatch>();
+	// specified trip pattern. Keyed on trip pattern ID. An empty list 
+	// indicates there was no spatial match. Since blocks are examined in
+	// parallel this cache is shared by all the threads examining blocks
+	// for the vehicle. Note: since the spatial matches are cached and reused
+	// the block member will not be correct
+	private final ConcurrentMap<String, List<SpatialMatch>> spatialMatchCache = 
+			new ConcurrentHashMap<String, List<SpatialMatch>>();
+	
+	// Results of querying the spatial index of stop path segments for the
+	// current and previous AVL reports. This way the index only needs to be 
+	// queried once per AVL report instead of once per block. Set before
+	// the blocks are examined in parallel.
+	private NearbySegments nearbySegments;
+	private NearbySegments previousNearbySegments;
 	
 	/****************************** Config params **********************/
 	
@@ -134,10 +172,40 @@ public class AutoBlockAssigner {
 					+ "reporting rates. So this param allows one to limit how "
 					+ "frequently auto assigner called for vehicle");
 	
+	private static IntegerConfigValue numberThreads =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.numberThreads", 
+					Runtime.getRuntime().availableProcessors(),
+					"Number of threads in the fork-join pool used for "
+					+ "examining blocks in parallel when auto assigning.");
+	
+	private static IntegerConfigValue blocksPerTask =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.blocksPerTask", 
+					4,
+					"When examining blocks in parallel the list of blocks is "
+					+ "split into tasks of no more than this many blocks.");
+	
 	// For keeping track of last time vehicle auto assigned so that can limit 
-	// how frequently it is done. Keyed on vehicleId
-	private static HashMap<String, Long> timeVehicleLastAutoAssigned =
-			new HashMap<String, Long>();
+	// how frequently it is done. Keyed on vehicleId. Accessed by multiple
+	// AVL processing threads so needs to be concurrent.
+	private static ConcurrentMap<String, Long> timeVehicleLastAutoAssigned =
+			new ConcurrentHashMap<String, Long>();
+	
+	// For examining blocks and vehicles in parallel. Created when first needed.
+	private static ForkJoinPool forkJoinPool = null;
+	
+	// Set when a batch module is doing the auto assigning so that it doesn't
+	// also need to be done for each AVL report
+	private static volatile boolean batchModeActive = false;
+	
+	// Metrics for the batch passes
+	private static final AtomicLong numberOfPasses = new AtomicLong();
+	private static final AtomicLong totalPassMsec = new AtomicLong();
+	private static volatile long lastPassMsec = 0;
+	private static volatile int lastPassVehicles = 0;
+	private static volatile int lastPassBlocks = 0;
+	private static volatile int lastPassAssignments = 0;
 	
 	/*********************** Logging **********************************/
 	
@@ -153,14 +221,34 @@ public class AutoBlockAssigner {
 	 *            Info on the vehicle to match
 	 */
 	public AutoBlockAssigner(VehicleState vehicleState) {
-		this.vehicleState = vehicleState;
+		this(vehicleState, null);
 	}
 	
 	/**
-	 * @return the current AVL report from vehicleState member
+	 * Constructor for when the blocks to examine have already been
+	 * determined, such as when doing a batch of vehicles. Should be called
+	 * while vehicleState is synchronized since the AVL reports are read
+	 * from it.
+	 * 
+	 * @param vehicleState
+	 *            Info on the vehicle to match
+	 * @param blocksToExamine
+	 *            The blocks to examine, or null if they should be determined
+	 */
+	private AutoBlockAssigner(VehicleState vehicleState,
+			List<Block> blocksToExamine) {
+		this.vehicleId = vehicleState.getVehicleId();
+		this.avlReport = vehicleState.getAvlReport();
+		this.previousAvlReport = vehicleState.getPreviousAvlReport(
+				minDistanceFromCurrentReport.getValue());
+		this.blocksToExamine = blocksToExamine;
+	}
+	
+	/**
+	 * @return the current AVL report for the vehicle
 	 */
 	private AvlReport getAvlReport() {
-		return vehicleState.getAvlReport();
+		return avlReport;
 	}
 
 	/**
@@ -169,11 +257,51 @@ public class AutoBlockAssigner {
 	 * trip.
 	 * 
 	 * @return the previous AVL report, at least min distance away from current
-	 *         AVL report, from vehicleState member
+	 *         AVL report
 	 */
 	private AvlReport getPreviousAvlReport() {
-		double minDistance = minDistanceFromCurrentReport.getValue();
-		return vehicleState.getPreviousAvlReport(minDistance);
+		return previousAvlReport;
+	}
+	
+	/**
+	 * Returns the segments near the AVL report as determined by the spatial
+	 * index. The index is queried only once for the current and for the 
+	 * previous AVL report.
+	 * 
+	 * @param avlReport
+	 * @return the nearby segments, or null if spatial index not available
+	 */
+	private NearbySegments getNearbySegments(AvlReport avlReport) {
+		if (avlReport == this.avlReport)
+			return nearbySegments;
+		if (avlReport == this.previousAvlReport)
+			return previousNearbySegments;
+		
+		return SpatialMatcher.getNearbySegments(avlReport, 
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+	}
+	
+	/**
+	 * Uses the spatial index to determine if any of the trip patterns of the
+	 * block are near the AVL report. If not then the block can't possibly
+	 * have a non-layover spatial match so it doesn't need to be examined.
+	 * 
+	 * @param block
+	 * @return true if block might be near the AVL report
+	 */
+	private boolean blockPossiblyNearAvlReport(Block block) {
+		NearbySegments nearbySegments = getNearbySegments(getAvlReport());
+		if (nearbySegments == null)
+			return true;
+		
+		double maxDistance = 
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
+		for (Trip trip : block.getTrips()) {
+			if (nearbySegments.possiblyWithinDistance(
+					trip.getTripPattern().getId(), maxDistance))
+				return true;
+		}
+		return false;
 	}
 	
 	/**
@@ -188,9 +316,24 @@ public class AutoBlockAssigner {
 	 * @return True if block is available to be assigned (doesn't have a regular
 	 *         vehicle assigned to it.
 	 */
-	private boolean isBlockUnassigned(String blockId) {
-		Collection<String> vehicleIdsForBlock = 
-				VehicleDataCache.getInstance().getVehiclesByBlockId(blockId);
+	private static boolean isBlockUnassigned(String blockId) {
+		return isBlockUnassigned(
+				VehicleDataCache.getInstance().getVehiclesByBlockId(blockId),
+				null);
+	}
+	
+	/**
+	 * Returns true if none of the vehicles associated with a block, other
+	 * than the specified one, are regular vehicles.
+	 * 
+	 * @param vehicleIdsForBlock
+	 *            The vehicles associated with the block
+	 * @param vehicleIdToIgnore
+	 *            The vehicle being assigned, which doesn't count. Can be null.
+	 * @return True if block is available to be assigned
+	 */
+	static boolean isBlockUnassigned(Collection<String> vehicleIdsForBlock,
+			String vehicleIdToIgnore) {
 		// If no vehicles associated with the block then it is definitely
 		// unassigned.
 		if (vehicleIdsForBlock.isEmpty())
@@ -199,6 +342,9 @@ public class AutoBlockAssigner {
 		// There are vehicles assigned to the block but still need to see if
 		// they are schedule based vehicles or not
 		for (String vehicleId : vehicleIdsForBlock) {
+			if (vehicleId.equals(vehicleIdToIgnore))
+				continue;
+			
 			// If a regular vehicle instead of one for schedule based
 			// predictions then the block has a vehicle assigned to it,
 			// meaning it is not unassigned
@@ -212,6 +358,29 @@ public class AutoBlockAssigner {
 		return true;
 	}
 
+	/**
+	 * For when applying an assignment determined by a batch pass. Since the
+	 * vehicle states are not synchronized while the blocks are examined
+	 * another vehicle might have been assigned to the block in the meantime,
+	 * such as through the AVL feed. If block assignments are exclusive then
+	 * the block is only still available if no other regular vehicle is
+	 * assigned to it.
+	 * 
+	 * @param blockId
+	 *            The block that the vehicle is to be assigned to
+	 * @param vehicleId
+	 *            The vehicle to be assigned
+	 * @return True if the vehicle can still be assigned to the block
+	 */
+	public static boolean isBlockStillAvailable(String blockId,
+			String vehicleId) {
+		if (!CoreConfig.exclusiveBlockAssignments())
+			return true;
+		return isBlockUnassigned(
+				VehicleDataCache.getInstance().getVehiclesByBlockId(blockId),
+				vehicleId);
+	}
+	
 	/**
 	 * Determines which blocks are currently active and are not assigned to a
 	 * vehicle, meaning that they are available for assignment.
@@ -219,7 +388,7 @@ public class AutoBlockAssigner {
 	 * @return List of blocks that are available for assignment. Can be empty
 	 *         but not null
 	 */
-	private List<Block> unassignedActiveBlocks() {
+	private static List<Block> unassignedActiveBlocks() {
 		List<Block> currentlyUnassignedBlocks = new ArrayList<Block>();
 		List<Block> activeBlocks = BlocksInfo.getCurrentlyActiveBlocks();
 		for (Block block : activeBlocks) {
@@ -254,7 +423,7 @@ public class AutoBlockAssigner {
 		List<Trip> potentialTrips = block.getTripsCurrentlyActive(avlReport);
 		List<SpatialMatch> spatialMatches = SpatialMatcher
 				.getSpatialMatchesForAutoAssigning(getAvlReport(),
-						block, potentialTrips);
+						block, potentialTrips, getNearbySegments(avlReport));
 		if (spatialMatches.isEmpty())
 			return null;
 
@@ -263,7 +432,8 @@ public class AutoBlockAssigner {
 		AvlReport previousAvlReport = getPreviousAvlReport();
 		List<SpatialMatch> prevSpatialMatches = SpatialMatcher
 				.getSpatialMatchesForAutoAssigning(previousAvlReport,
-						block, potentialTrips);
+						block, potentialTrips,
+						getNearbySegments(previousAvlReport));
 		if (prevSpatialMatches.isEmpty())
 			return null;
 		
@@ -364,15 +534,13 @@ public class AutoBlockAssigner {
 					trip.getTripPattern().getId());
 			
 			// If spatial match results already in cache...
-			if (spatialMatchCache.containsKey(tripPatternId)) {
+			List<SpatialMatch> previouslyFoundMatches =
+					spatialMatchCache.get(tripPatternId);
+			if (previouslyFoundMatches != null) {
 				// Already processed this trip pattern so use cached results. 
-				// Can be null
-				SpatialMatch previouslyFoundMatch =
-						spatialMatchCache.get(tripPatternId);
-
 				// If there actually was a successful spatial match to the 
 				// trip pattern in the cache then add it to spatialMatches list
-				if (previouslyFoundMatch != null) {
+				for (SpatialMatch previouslyFoundMatch : previouslyFoundMatches) {
 					// The cached match has the wrong trip info so need  
 					// to create an equivalent match with the proper trip block 
 					// info
@@ -386,7 +554,8 @@ public class AutoBlockAssigner {
 							+ "tripPatternId={} using previously cached "
 							+ "spatial match.", 
 							vehicleId, trip.getId(), tripPatternId);
-				} else {
+				}
+				if (previouslyFoundMatches.isEmpty()) {
 					logger.debug("For vehicleId={} for tripId={} with "
 							+ "tripPatternId={} found from cache that there "
 							+ "is no spatial match.", 
@@ -410,7 +579,8 @@ public class AutoBlockAssigner {
 		// considered a spatial match
 		List<SpatialMatch> newSpatialMatches = SpatialMatcher
 				.getSpatialMatchesForAutoAssigning(avlReport,
-						block, tripsNeedToInvestigate);
+						block, tripsNeedToInvestigate,
+						getNearbySegments(avlReport));
 		
 		// Add newly discovered matches to the cache and to the list of spatial
 		// matches to be returned
@@ -423,7 +593,7 @@ public class AutoBlockAssigner {
 			
 			// Cache it
 			spatialMatchCache.put(newSpatialMatch.getTrip().getTripPattern()
-					.getId(), newSpatialMatch);
+					.getId(), Collections.singletonList(newSpatialMatch));
 			
 			// Add to list of spatial matches to return
 			spatialMatches.add(newSpatialMatch);
@@ -450,7 +620,8 @@ public class AutoBlockAssigner {
 			// If no spatial match found for the trip pattern that just
 			// investigated then mark in cache that no match
 			if (!spatialMatchFound) {
-				spatialMatchCache.put(tripPatternId, null);
+				spatialMatchCache.putIfAbsent(tripPatternId, 
+						Collections.<SpatialMatch> emptyList());
 				
 				logger.debug("For vehicleId={} for tripId={} with "
 						+ "tripPatternId={} no spatial match found so storing "
@@ -486,7 +657,7 @@ public class AutoBlockAssigner {
 		// Get and return the spatial matches
 		List<SpatialMatch> spatialMatches = SpatialMatcher
 				.getSpatialMatchesForAutoAssigning(avlReport,
-						block, activeTrips);
+						block, activeTrips, getNearbySegments(avlReport));
 		return spatialMatches;
 	}
 	
@@ -626,6 +797,135 @@ public class AutoBlockAssigner {
 		return null;
 	}
 	
+	/**
+	 * Determines the best match for a single block. Called in parallel for
+	 * the different blocks.
+	 * 
+	 * @param block
+	 *            The block to try to match to
+	 * @return Best TemporalMatch to the block assignment, or null if no
+	 *         adequate match
+	 */
+	private TemporalMatch examineBlock(Block block) {
+		IntervalTimer blockTimer = new IntervalTimer();
+		
+		// If none of the trip patterns for the block are near the
+		// AVL report then can't match so don't need to examine it
+		if (!blockPossiblyNearAvlReport(block)) {
+			logger.debug("For vehicleId={} blockId={} is not near the "
+					+ "AVL report so not examining it.", 
+					vehicleId, block.getId());
+			return null;
+		}
+		
+		if (logger.isDebugEnabled()) {
+			// Note, when auto assignment first done for this block this
+			// debug statement will take a while to execute because block
+			// info read from db. But that is OK since it is going to happen
+			// at some point anyways.
+			logger.debug("For vehicleId={} examining blockId={} for match. "
+					+ "The block contains the routes {}. {}", 
+					vehicleId, block.getId(), block.getRouteIds(), 
+					block.toShortString());
+		}
+
+		// Determine best match for the block depending on whether the 
+		// block is schedule based or not
+		TemporalMatch bestMatch = block.isNoSchedule() ? 
+				bestNoScheduleMatch(block) :
+				bestScheduleMatch(block);					
+		
+		logger.debug("For vehicleId={} checking blockId={} took {}msec",
+				vehicleId, block.getId(), blockTimer);
+		
+		return bestMatch;
+	}
+	
+	/**
+	 * For examining a range of blocks in parallel. If the range is larger
+	 * than blocksPerTask then it is split in half and the halves are examined
+	 * in parallel.
+	 */
+	private class ExamineBlocksTask extends RecursiveTask<List<TemporalMatch>> {
+		private final List<Block> blocks;
+		private final int start;
+		private final int end;
+		
+		private static final long serialVersionUID = 5196462839186542981L;
+
+		private ExamineBlocksTask(List<Block> blocks, int start, int end) {
+			this.blocks = blocks;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected List<TemporalMatch> compute() {
+			if (end - start <= Math.max(blocksPerTask.getValue(), 1)) {
+				List<TemporalMatch> matches = new ArrayList<TemporalMatch>();
+				for (int i = start; i < end; ++i) {
+					TemporalMatch bestMatch = examineBlock(blocks.get(i));
+					if (bestMatch != null)
+						matches.add(bestMatch);
+				}
+				return matches;
+			}
+			
+			// Too many blocks so split into two tasks
+			int middle = (start + end) >>> 1;
+			ExamineBlocksTask firstHalf = 
+					new ExamineBlocksTask(blocks, start, middle);
+			ExamineBlocksTask secondHalf = 
+					new ExamineBlocksTask(blocks, middle, end);
+			firstHalf.fork();
+			List<TemporalMatch> matches = 
+					new ArrayList<TemporalMatch>(secondHalf.compute());
+			matches.addAll(0, firstHalf.join());
+			return matches;
+		}
+	}
+	
+	/**
+	 * Returns the fork-join pool used for examining blocks and vehicles in
+	 * parallel. Created the first time it is needed.
+	 * 
+	 * @return the fork-join pool
+	 */
+	private static synchronized ForkJoinPool getForkJoinPool() {
+		if (forkJoinPool == null) {
+			// Name the threads so that they can be identified in the logs
+			ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory =
+					new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				private final AtomicLong threadCounter = new AtomicLong();
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool
+							.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("AutoBlockAssigner-" 
+							+ threadCounter.incrementAndGet());
+					return thread;
+				}
+			};
+			forkJoinPool = new ForkJoinPool(
+					Math.max(numberThreads.getValue(), 1), threadFactory, 
+					null, false);
+		}
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Determines which blocks to examine. If agency configured such that
+	 * blocks are to be exclusive then only look at the ones currently not
+	 * used. But if not to be exclusive, such as for no schedule based routes,
+	 * then look at all active blocks.
+	 * 
+	 * @return the blocks to examine
+	 */
+	private static List<Block> determineBlocksToExamine() {
+		return CoreConfig.exclusiveBlockAssignments() ? 
+				unassignedActiveBlocks() : BlocksInfo.getCurrentlyActiveBlocks();
+	}
+	
 	/**
 	 * Goes through all the currently active blocks and tries to match the AVL
 	 * report to them. Returns list of valid temporal matches. Ignores layover
@@ -633,17 +933,13 @@ public class AutoBlockAssigner {
 	 * requires a previous AVL report to match appropriately to make sure that
 	 * vehicle really matches and isn't just sitting there and isn't going in
 	 * other direction or crossing route and matching only momentarily.
+	 * <p>
+	 * The blocks are examined in parallel using the fork-join pool.
 	 * 
 	 * @return A non-null list of TemporalMatches. Will be empty if there are no
 	 *         valid matches.
 	 */
 	private List<TemporalMatch> determineTemporalMatches() {
-		// Convenience variable for logging
-		String vehicleId = vehicleState.getVehicleId();
-		
-		// The list of matches to return
-		List<TemporalMatch> validMatches = new ArrayList<TemporalMatch>();
-		
 		// Only want to try to auto assign if there is also a previous AVL 
 		// report that is significantly away from the current report. This
 		// way we avoid trying to match non-moving vehicles which are
@@ -657,53 +953,41 @@ public class AutoBlockAssigner {
 					+ "than {}m from current AVL report {}",
 					vehicleId, minDistanceFromCurrentReport.getValue(),	
 					getAvlReport());
-			return validMatches;
+			return new ArrayList<TemporalMatch>();
 		}
 
 		// So can see how long the search takes
 		IntervalTimer timer = new IntervalTimer();		
 
-		// Determine which blocks to examine. If agency configured such that
-		// blocks are to be exclusive then only look at the ones currently
-		// not used. But if not to be exclusive, such as for no schedule based
-		// routes, then look at all active blocks.
-		List<Block> blocksToExamine = CoreConfig.exclusiveBlockAssignments() ? 
-				unassignedActiveBlocks() : BlocksInfo.getCurrentlyActiveBlocks();
+		// Determine which blocks to examine if not already specified
+		List<Block> blocks = blocksToExamine != null ? 
+				blocksToExamine : determineBlocksToExamine();
 		
-		if (blocksToExamine.isEmpty()) {
+		if (blocks.isEmpty()) {
 			logger.info("No currently active blocks to assign vehicleId={} to.",
 					vehicleId);
+			return new ArrayList<TemporalMatch>();
 		} else {
 			logger.info("For vehicleId={} examining {} blocks for matches.", 
-					vehicleId, blocksToExamine.size());
+					vehicleId, blocks.size());
 		}
 		
-		// For each active block that is currently unassigned...
-		for (Block block : blocksToExamine) {
-			IntervalTimer blockTimer = new IntervalTimer();
-			
-			if (logger.isDebugEnabled()) {
-				// Note, when auto assignment first done for this block this
-				// debug statement will take a while to execute because block
-				// info read from db. But that is OK since it is going to happen
-				// at some point anyways.
-				logger.debug("For vehicleId={} examining blockId={} for match. "
-						+ "The block contains the routes {}. {}", 
-						vehicleId, block.getId(), block.getRouteIds(), 
-						block.toShortString());
-			}
-
-			// Determine best match for the block depending on whether the 
-			// block is schedule based or not
-			TemporalMatch bestMatch = block.isNoSchedule() ? 
-					bestNoScheduleMatch(block) :
-					bestScheduleMatch(block);					
-			if (bestMatch != null)
-				validMatches.add(bestMatch);
-			
-			logger.debug("For vehicleId={} checking blockId={} took {}msec",
-					vehicleId, block.getId(), blockTimer);
-		}
+		// Query the spatial index once for the current and previous AVL
+		// reports before the blocks are examined in parallel
+		double maxDistance = 
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning();
+		nearbySegments = 
+				SpatialMatcher.getNearbySegments(avlReport, maxDistance);
+		previousNearbySegments = 
+				SpatialMatcher.getNearbySegments(previousAvlReport, maxDistance);
+		
+		// Examine each of the blocks in parallel. If already running within
+		// the fork-join pool, as happens when doing a batch of vehicles,
+		// then simply invoke the task so that it is run in the same pool.
+		ExamineBlocksTask task = 
+				new ExamineBlocksTask(blocks, 0, blocks.size());
+		List<TemporalMatch> validMatches = ForkJoinTask.inForkJoinPool() ? 
+				task.invoke() : getForkJoinPool().invoke(task);
 
 		// Return the valid matches that were found
 		logger.info("Total time for determining possible auto assignment "
@@ -719,14 +1003,28 @@ public class AutoBlockAssigner {
 	 * blocks. If have high reporting rate and many available blocks then the system can get bogged
 	 * down just doing auto assigning.
 	 * 
-	 * @param vehicleState
+	 * <p>
+	 * Also used when applying the assignments determined by a batch pass so
+	 * that a vehicle is not auto assigned more frequently that way either.
+	 * 
+	 * @param avlReport
+	 *            the current AVL report for the vehicle
 	 * @return true if was too recently called for the vehicle
 	 */
-	private static boolean tooRecent(VehicleState vehicleState) {
-		// Convenience variables
-		String vehicleId = vehicleState.getVehicleId();
-		long gpsTime = vehicleState.getAvlReport().getTime();
-		
+	public static boolean tooRecent(AvlReport avlReport) {
+		return tooRecent(avlReport.getVehicleId(), avlReport.getTime());
+	}
+	
+	/**
+	 * Determines if the auto assigner is being called too recently for the
+	 * vehicle. If not then the time is stored for the next call.
+	 * 
+	 * @param vehicleId
+	 * @param gpsTime
+	 *            time of the current AVL report for the vehicle
+	 * @return true if was too recently called for the vehicle
+	 */
+	static boolean tooRecent(String vehicleId, long gpsTime) {
 		// Determine last time vehicle was auto assigned
 		Long lastTime = timeVehicleLastAutoAssigned.get(vehicleId);
 
@@ -766,6 +1064,194 @@ public class AutoBlockAssigner {
 			
 	}
 	
+	/**
+	 * Indicates that a batch module, the AutoBlockAssignerModule, is doing
+	 * the auto assigning for all vehicles at once. When active the auto
+	 * assigning is not done for each individual AVL report.
+	 * 
+	 * @param active
+	 */
+	public static void setBatchModeActive(boolean active) {
+		batchModeActive = active;
+	}
+	
+	/**
+	 * @return true if a batch module is doing the auto assigning
+	 */
+	public static boolean batchModeActive() {
+		return batchModeActive;
+	}
+	
+	/**
+	 * Tries to automatically assign a batch of vehicles, such as all of the
+	 * unassigned vehicles after the morning pull-out, in a single pass. The
+	 * candidate blocks are determined just once for the pass and then all of
+	 * the vehicles are examined against all of the blocks in parallel on the
+	 * fork-join pool. The assignments are then made in a single round. A
+	 * vehicle is only assigned if it matches a single block. And if block
+	 * assignments are exclusive and multiple vehicles match the same block
+	 * then the situation is ambiguous so none of those vehicles are assigned
+	 * to the block.
+	 * <p>
+	 * The AVL reports for each vehicle are read while the vehicle state is
+	 * synchronized but the vehicle states are not synchronized while the
+	 * blocks are being examined. The caller is responsible for actually
+	 * applying the resulting assignments to the vehicles.
+	 * 
+	 * @param vehicleStates
+	 *            The vehicles to try to assign
+	 * @return Map, keyed by vehicle ID, of the matches for the vehicles that
+	 *         could be assigned. Empty if no vehicles could be assigned.
+	 */
+	public static Map<String, TemporalMatch> autoAssignVehiclesToBlocks(
+			Collection<VehicleState> vehicleStates) {
+		Map<String, TemporalMatch> assignments = 
+				new HashMap<String, TemporalMatch>();
+		if (!autoAssignerEnabled.getValue() || vehicleStates.isEmpty())
+			return assignments;
+		
+		IntervalTimer timer = new IntervalTimer();
+		
+		// Determine the candidate blocks once for the whole pass
+		List<Block> blocks = determineBlocksToExamine();
+		
+		// Create an auto assigner for each vehicle. Synchronize on the
+		// vehicle state while reading the AVL reports from it.
+		List<Callable<List<TemporalMatch>>> tasks = 
+				new ArrayList<Callable<List<TemporalMatch>>>();
+		List<String> vehicleIds = new ArrayList<String>();
+		for (VehicleState vehicleState : vehicleStates) {
+			final AutoBlockAssigner autoAssigner;
+			synchronized (vehicleState) {
+				if (vehicleState.getAvlReport() == null)
+					continue;
+				autoAssigner = new AutoBlockAssigner(vehicleState, blocks);
+			}
+			vehicleIds.add(vehicleState.getVehicleId());
+			tasks.add(new Callable<List<TemporalMatch>>() {
+				@Override
+				public List<TemporalMatch> call() {
+					return autoAssigner.determineTemporalMatches();
+				}
+			});
+		}
+		
+		// Examine all of the vehicles in parallel
+		Map<String, TemporalMatch> singleMatches = 
+				new HashMap<String, TemporalMatch>();
+		List<Future<List<TemporalMatch>>> futures = 
+				getForkJoinPool().invokeAll(tasks);
+		for (int i = 0; i < futures.size(); ++i) {
+			String vehicleId = vehicleIds.get(i);
+			try {
+				List<TemporalMatch> matches = futures.get(i).get();
+				if (matches.size() == 1) {
+					singleMatches.put(vehicleId, matches.get(0));
+				} else if (matches.size() > 1) {
+					logger.info("Found multiple matches ({}) for vehicleId={}. "
+							+ "Therefore could not auto assign vehicle. {}", 
+							matches.size(), vehicleId, matches);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return assignments;
+			} catch (ExecutionException e) {
+				logger.error(Markers.email(), 
+						"Exception when auto assigning vehicleId={}", 
+						vehicleId, e.getCause());
+			}
+		}
+		
+		// Determine how many vehicles matched to each block so that can
+		// avoid assigning multiple vehicles to an exclusive block
+		Map<String, Integer> vehiclesPerBlock = new HashMap<String, Integer>();
+		for (TemporalMatch match : singleMatches.values()) {
+			String blockId = match.getBlock().getId();
+			Integer count = vehiclesPerBlock.get(blockId);
+			vehiclesPerBlock.put(blockId, count == null ? 1 : count + 1);
+		}
+		
+		// Make the assignments in a single round
+		for (Map.Entry<String, TemporalMatch> entry : 
+				singleMatches.entrySet()) {
+			String vehicleId = entry.getKey();
+			TemporalMatch match = entry.getValue();
+			String blockId = match.getBlock().getId();
+			if (CoreConfig.exclusiveBlockAssignments()
+					&& vehiclesPerBlock.get(blockId) > 1) {
+				logger.info("For vehicleId={} found single match to blockId={} "
+						+ "but {} vehicles matched that block so the "
+						+ "assignment is ambiguous. Therefore not auto "
+						+ "assigning the vehicle. {}", vehicleId, blockId, 
+						vehiclesPerBlock.get(blockId), match);
+				continue;
+			}
+			
+			logger.info("Found single valid match for vehicleId={}. {}", 
+					vehicleId, match);
+			assignments.put(vehicleId, match);
+		}
+		
+		// Keep track of metrics for the pass
+		long passMsec = timer.elapsedMsec();
+		numberOfPasses.incrementAndGet();
+		totalPassMsec.addAndGet(passMsec);
+		lastPassMsec = passMsec;
+		lastPassVehicles = tasks.size();
+		lastPassBlocks = blocks.size();
+		lastPassAssignments = assignments.size();
+		logger.info("Auto assigner pass examined {} vehicles against {} "
+				+ "blocks and assigned {} vehicles. Took {}msec. Average "
+				+ "time per pass is {}msec.", 
+				lastPassVehicles, lastPassBlocks, lastPassAssignments, 
+				passMsec, getAveragePassMsec());
+		
+		return assignments;
+	}
+	
+	/**
+	 * @return Number of batch passes done by autoAssignVehiclesToBlocks()
+	 */
+	public static long getNumberOfPasses() {
+		return numberOfPasses.get();
+	}
+	
+	/**
+	 * @return Average time in msec of a batch pass, or 0 if no passes yet
+	 */
+	public static long getAveragePassMsec() {
+		long passes = numberOfPasses.get();
+		return passes == 0 ? 0 : totalPassMsec.get() / passes;
+	}
+	
+	/**
+	 * @return Time in msec of the most recent batch pass
+	 */
+	public static long getLastPassMsec() {
+		return lastPassMsec;
+	}
+	
+	/**
+	 * @return Number of vehicles examined in the most recent batch pass
+	 */
+	public static int getLastPassVehicles() {
+		return lastPassVehicles;
+	}
+	
+	/**
+	 * @return Number of blocks examined in the most recent batch pass
+	 */
+	public static int getLastPassBlocks() {
+		return lastPassBlocks;
+	}
+	
+	/**
+	 * @return Number of vehicles assigned in the most recent batch pass
+	 */
+	public static int getLastPassAssignments() {
+		return lastPassAssignments;
+	}
+	
 	/**
 	 * Returns true if the AutoBlockAssigner is actually enabled.
 	 * 
@@ -795,12 +1281,11 @@ public class AutoBlockAssigner {
 			return null;
 		
 		// If auto assigner called too recently for vehicle then return
-		if (tooRecent(vehicleState))
+		if (tooRecent(avlReport))
 			return null;
 		
-		String vehicleId = vehicleState.getVehicleId();
 		logger.info("Determining possible auto assignment match for {}",
-				vehicleState.getAvlReport());
+				avlReport);
 		
 		// Determine all the valid matches
 		List<TemporalMatch> matches = determineTemporalMatches();
@@ -0,0 +1,173 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.autoAssigner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.core.AvlProcessor;
+import org.transitime.core.TemporalMatch;
+import org.transitime.core.VehicleState;
+import org.transitime.core.dataCache.VehicleStateManager;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.logging.Markers;
+import org.transitime.modules.Module;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+/**
+ * For automatically assigning vehicles to blocks in batches. Instead of
+ * trying to auto assign each unassigned vehicle every time an AVL report is
+ * received, this module periodically does a single pass where all of the
+ * unassigned vehicles are examined against all of the candidate blocks in
+ * parallel using AutoBlockAssigner.autoAssignVehiclesToBlocks(). This is much
+ * more efficient when there are many unassigned vehicles, such as after the
+ * morning pull-out.
+ * <p>
+ * To use, add org.transitime.core.autoAssigner.AutoBlockAssignerModule to
+ * the transitime.modules.optionalModulesList. When the module is running
+ * the auto assigning is no longer done for each individual AVL report.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class AutoBlockAssignerModule extends Module {
+
+	/********************* Parameters *********************************/
+
+	private static IntegerConfigValue passIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.passIntervalSecs",
+					10,
+					"How frequently in seconds the AutoBlockAssignerModule "
+					+ "should do a pass to try to assign all of the currently "
+					+ "unassigned vehicles.");
+
+	private static IntegerConfigValue maxAvlReportAgeSecs =
+			new IntegerConfigValue(
+					"transitime.autoBlockAssigner.maxAvlReportAgeSecs",
+					2 * Time.SEC_PER_MIN,
+					"Vehicles are only auto assigned by the "
+					+ "AutoBlockAssignerModule if their last AVL report is "
+					+ "more recent than this number of seconds. This way "
+					+ "don't waste time on vehicles that are no longer "
+					+ "reporting.");
+
+	/********************* Logging ************************************/
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AutoBlockAssignerModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. Indicates to the AutoBlockAssigner that the auto
+	 * assigning will be done in batches by this module.
+	 *
+	 * @param agencyId
+	 */
+	public AutoBlockAssignerModule(String agencyId) {
+		super(agencyId);
+
+		AutoBlockAssigner.setBatchModeActive(true);
+	}
+
+	/**
+	 * Determines which vehicles should be auto assigned. These are the
+	 * vehicles that are not predictable, are not for schedule based
+	 * predictions, and have reported recently.
+	 *
+	 * @return the vehicles to try to auto assign
+	 */
+	private List<VehicleState> vehiclesToAssign() {
+		List<VehicleState> vehiclesToAssign = new ArrayList<VehicleState>();
+		long now = Core.getInstance().getSystemTime();
+		long maxAge = maxAvlReportAgeSecs.getValue() * Time.MS_PER_SEC;
+		for (VehicleState vehicleState :
+				VehicleStateManager.getInstance().getVehiclesState()) {
+			synchronized (vehicleState) {
+				AvlReport avlReport = vehicleState.getAvlReport();
+				if (vehicleState.isPredictable()
+						|| vehicleState.isForSchedBasedPreds()
+						|| avlReport == null
+						|| avlReport.ignoreBecauseInConsist()
+						|| now - avlReport.getTime() > maxAge)
+					continue;
+			}
+			vehiclesToAssign.add(vehicleState);
+		}
+		return vehiclesToAssign;
+	}
+
+	/**
+	 * Does a single pass of trying to auto assign all of the unassigned
+	 * vehicles and then applies the resulting assignments.
+	 */
+	private void doPass() {
+		List<VehicleState> vehiclesToAssign = vehiclesToAssign();
+		if (vehiclesToAssign.isEmpty())
+			return;
+
+		Map<String, TemporalMatch> assignments =
+				AutoBlockAssigner.autoAssignVehiclesToBlocks(vehiclesToAssign);
+
+		for (VehicleState vehicleState : vehiclesToAssign) {
+			TemporalMatch match = assignments.get(vehicleState.getVehicleId());
+			if (match != null)
+				AvlProcessor.getInstance().applyAutoAssignment(vehicleState,
+						match);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.info("Starting module {} for agencyId={}", getClass().getName(),
+				getAgencyId());
+
+		// Run forever
+		while (true) {
+			// For determining when to do next pass
+			IntervalTimer timer = new IntervalTimer();
+
+			try {
+				if (AutoBlockAssigner.enabled())
+					doPass();
+			} catch (Exception e) {
+				logger.error(Markers.email(),
+						"Error with AutoBlockAssignerModule for agencyId={}",
+						AgencyConfig.getAgencyId(), e);
+			}
+
+			// Wait appropriate amount of time till do next pass
+			long sleepTime = passIntervalSecs.getValue() * Time.MS_PER_SEC
+					- timer.elapsedMsec();
+			if (sleepTime > 0)
+				Time.sleep(sleepTime);
+		}
+	}
+
+}
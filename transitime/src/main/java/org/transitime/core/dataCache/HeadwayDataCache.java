@@ -0,0 +1,556 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.Trip;
+import org.transitime.gtfs.DbConfig;
+import org.transitime.ipc.data.IpcHeadway;
+import org.transitime.ipc.data.IpcHeadwaysForStop;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.utils.MapKey;
+
+/**
+ * For determining the current and predicted headways at stops. For each
+ * route/direction/stop keeps a small ring of the most recent vehicles that
+ * passed the stop, along with the vehicles predicted to arrive at the stop
+ * ordered by prediction time. The passages are added by the
+ * ArrivalDepartureGenerator as they are determined and the predicted
+ * arrivals are updated by the PredictionDataCache whenever the predictions
+ * for a vehicle change. Since the rings are of limited size each update takes
+ * constant time.
+ * <p>
+ * A passage is the departure time from the stop, except for the last stop of
+ * a trip where there is only an arrival time.
+ * <p>
+ * After each update an immutable IpcHeadwaysForStop is created for the
+ * route/direction/stop so that readers, such as the RMI PredictionsServer,
+ * can simply return it without any locking and without having to look at
+ * all of the vehicles.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class HeadwayDataCache {
+
+	// Make this class available as a singleton
+	private static HeadwayDataCache singleton = new HeadwayDataCache();
+
+	// Keyed by route short name. For each route the headways are keyed by
+	// stop ID, with a StopHeadways for each direction that serves the stop.
+	// The lists of StopHeadways are immutable and are replaced when a new
+	// direction is added.
+	private final ConcurrentMap<String, ConcurrentMap<String, List<StopHeadways>>> headwaysByRouteMap =
+			new ConcurrentHashMap<String, ConcurrentMap<String, List<StopHeadways>>>();
+
+	private static IntegerConfigValue maxPassagesPerStop =
+			new IntegerConfigValue("transitime.headways.maxPassagesPerStop",
+					5,
+					"How many of the most recent vehicles that passed a "
+					+ "stop are kept for determining the current headway "
+					+ "at the stop.");
+
+	private static IntegerConfigValue maxPredictedArrivalsPerStop =
+			new IntegerConfigValue(
+					"transitime.headways.maxPredictedArrivalsPerStop",
+					8,
+					"How many of the predicted arrivals at a stop are kept "
+					+ "for determining the predicted headways at the "
+					+ "stop. The earliest ones are kept.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(HeadwayDataCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static HeadwayDataCache getInstance() {
+		return singleton;
+	}
+
+	/*
+	 * Constructor declared private to enforce only access to this singleton
+	 * class being getInstance()
+	 */
+	private HeadwayDataCache() {
+	}
+
+	/**
+	 * The passages and predicted arrivals for a single route/direction/stop.
+	 * All access to the rings is synchronized on the object. Each change
+	 * publishes a new immutable snapshot.
+	 */
+	private static class StopHeadways {
+		private final String routeShortName;
+		private final String directionId;
+		private final String stopId;
+
+		// Ring of the most recent passages, ordered by time.
+		// newestPassage is the index of the most recent one.
+		private final String[] passageVehicleIds;
+		private final long[] passageTimes;
+		private int newestPassage = -1;
+		private int numPassages = 0;
+
+		// The predicted arrivals, ordered by time
+		private final String[] predictedVehicleIds;
+		private final long[] predictedTimes;
+		private int numPredicted = 0;
+
+		private volatile IpcHeadwaysForStop snapshot;
+
+		private StopHeadways(String routeShortName, String directionId,
+				String stopId) {
+			this.routeShortName = routeShortName;
+			this.directionId = directionId;
+			this.stopId = stopId;
+
+			int passagesSize = Math.max(2, maxPassagesPerStop.getValue());
+			passageVehicleIds = new String[passagesSize];
+			passageTimes = new long[passagesSize];
+
+			int predictedSize =
+					Math.max(1, maxPredictedArrivalsPerStop.getValue());
+			predictedVehicleIds = new String[predictedSize];
+			predictedTimes = new long[predictedSize];
+
+			publishSnapshot();
+		}
+
+		/**
+		 * Returns index into the passage ring of the i-th oldest passage
+		 */
+		private int passageIndex(int i) {
+			int size = passageTimes.length;
+			return (newestPassage - numPassages + 1 + i + size) % size;
+		}
+
+		/**
+		 * Adds a passage to the ring, replacing the oldest one if the ring is
+		 * full. Since passages for different vehicles can be determined out
+		 * of order the new one is moved back to its proper place. Also
+		 * removes the vehicle's predicted arrival since it has now passed the
+		 * stop.
+		 *
+		 * @param vehicleId
+		 * @param time
+		 */
+		private synchronized void addPassage(String vehicleId, long time) {
+			int size = passageTimes.length;
+
+			// If ring full and passage is older than all the others then
+			// it is not of interest
+			if (numPassages == size && time < passageTimes[passageIndex(0)])
+				return;
+
+			if (numPassages < size)
+				++numPassages;
+			newestPassage = (newestPassage + 1) % size;
+			passageVehicleIds[newestPassage] = vehicleId;
+			passageTimes[newestPassage] = time;
+
+			// Move back to proper place if out of order
+			for (int i = numPassages - 1; i > 0; --i) {
+				int index = passageIndex(i);
+				int previousIndex = passageIndex(i - 1);
+				if (passageTimes[previousIndex] <= passageTimes[index])
+					break;
+				swap(passageVehicleIds, passageTimes, index, previousIndex);
+			}
+
+			// The vehicle's next predicted arrival is for the passage that
+			// just happened so it no longer applies
+			for (int i = 0; i < numPredicted; ++i) {
+				if (predictedVehicleIds[i].equals(vehicleId)) {
+					removePredicted(i);
+					break;
+				}
+			}
+
+			publishSnapshot();
+		}
+
+		/**
+		 * Replaces the predicted arrivals for the vehicle.
+		 *
+		 * @param vehicleId
+		 * @param predictions
+		 *            The new predictions for the vehicle for this stop. Can be
+		 *            empty to just remove the old ones.
+		 */
+		private synchronized void setPredictedArrivals(String vehicleId,
+				List<IpcPrediction> predictions) {
+			// Remove the old predicted arrivals for the vehicle
+			for (int i = numPredicted - 1; i >= 0; --i) {
+				if (predictedVehicleIds[i].equals(vehicleId))
+					removePredicted(i);
+			}
+
+			// Insert the new ones in time order. If already full then the
+			// latest one is dropped.
+			int size = predictedTimes.length;
+			for (IpcPrediction prediction : predictions) {
+				long time = prediction.getPredictionTime();
+				if (numPredicted == size) {
+					if (time >= predictedTimes[size - 1])
+						continue;
+					--numPredicted;
+				}
+
+				int i = numPredicted;
+				while (i > 0 && predictedTimes[i - 1] > time) {
+					predictedVehicleIds[i] = predictedVehicleIds[i - 1];
+					predictedTimes[i] = predictedTimes[i - 1];
+					--i;
+				}
+				predictedVehicleIds[i] = vehicleId;
+				predictedTimes[i] = time;
+				++numPredicted;
+			}
+
+			publishSnapshot();
+		}
+
+		private void removePredicted(int index) {
+			for (int i = index; i < numPredicted - 1; ++i) {
+				predictedVehicleIds[i] = predictedVehicleIds[i + 1];
+				predictedTimes[i] = predictedTimes[i + 1];
+			}
+			--numPredicted;
+			predictedVehicleIds[numPredicted] = null;
+		}
+
+		private static void swap(String[] vehicleIds, long[] times, int i1,
+				int i2) {
+			String vehicleId = vehicleIds[i1];
+			vehicleIds[i1] = vehicleIds[i2];
+			vehicleIds[i2] = vehicleId;
+			long time = times[i1];
+			times[i1] = times[i2];
+			times[i2] = time;
+		}
+
+		/**
+		 * Creates the immutable IpcHeadwaysForStop for the current passages
+		 * and predicted arrivals, determining the headway for each one from
+		 * the one before it.
+		 */
+		private void publishSnapshot() {
+			List<IpcHeadway> headways =
+					new ArrayList<IpcHeadway>(numPassages + numPredicted);
+			long previousTime = -1;
+			for (int i = 0; i < numPassages; ++i) {
+				int index = passageIndex(i);
+				long time = passageTimes[index];
+				headways.add(new IpcHeadway(passageVehicleIds[index], time,
+						previousTime < 0 ? -1 : time - previousTime, false));
+				previousTime = time;
+			}
+			for (int i = 0; i < numPredicted; ++i) {
+				long time = predictedTimes[i];
+				headways.add(new IpcHeadway(predictedVehicleIds[i], time,
+						previousTime < 0 ? -1 : time - previousTime, true));
+				previousTime = time;
+			}
+
+			snapshot = new IpcHeadwaysForStop(routeShortName, directionId,
+					stopId, Collections.unmodifiableList(headways));
+		}
+	}
+
+	/**
+	 * Returns the StopHeadways for the route/direction/stop.
+	 *
+	 * @param routeShortName
+	 * @param directionId
+	 * @param stopId
+	 * @param create
+	 *            If true then the StopHeadways is created if it doesn't
+	 *            already exist
+	 * @return the StopHeadways, or null if it doesn't exist and create is
+	 *         false
+	 */
+	private StopHeadways getStopHeadways(String routeShortName,
+			String directionId, String stopId, boolean create) {
+		if (routeShortName == null || stopId == null)
+			return null;
+
+		ConcurrentMap<String, List<StopHeadways>> stopsMap =
+				headwaysByRouteMap.get(routeShortName);
+		if (stopsMap == null) {
+			if (!create)
+				return null;
+			stopsMap = new ConcurrentHashMap<String, List<StopHeadways>>();
+			ConcurrentMap<String, List<StopHeadways>> existing =
+					headwaysByRouteMap.putIfAbsent(routeShortName, stopsMap);
+			if (existing != null)
+				stopsMap = existing;
+		}
+
+		StopHeadways stopHeadways =
+				getStopHeadways(stopsMap.get(stopId), directionId);
+		if (stopHeadways != null || !create)
+			return stopHeadways;
+
+		// Need to add StopHeadways for the direction. Only happens the first
+		// time so simply synchronize.
+		synchronized (stopsMap) {
+			List<StopHeadways> stopHeadwaysList = stopsMap.get(stopId);
+			stopHeadways = getStopHeadways(stopHeadwaysList, directionId);
+			if (stopHeadways == null) {
+				List<StopHeadways> newList = stopHeadwaysList == null ?
+						new ArrayList<StopHeadways>(1)
+						: new ArrayList<StopHeadways>(stopHeadwaysList);
+				stopHeadways =
+						new StopHeadways(routeShortName, directionId, stopId);
+				newList.add(stopHeadways);
+				stopsMap.put(stopId, Collections.unmodifiableList(newList));
+			}
+			return stopHeadways;
+		}
+	}
+
+	private static StopHeadways getStopHeadways(
+			List<StopHeadways> stopHeadwaysList, String directionId) {
+		if (stopHeadwaysList != null) {
+			for (StopHeadways stopHeadways : stopHeadwaysList) {
+				if (Objects.equals(stopHeadways.directionId, directionId))
+					return stopHeadways;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * To be called when an arrival or departure is determined. Adds the
+	 * departure, or the arrival if for the last stop of the trip, as a
+	 * passage for the route/direction/stop.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public void handleArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		Trip trip = arrivalDeparture.getBlock().getTrip(
+				arrivalDeparture.getTripIndex());
+		if (trip == null)
+			return;
+
+		boolean lastStopOfTrip = arrivalDeparture.getStopPathIndex() ==
+				trip.getNumberStopPaths() - 1;
+		if (arrivalDeparture.isArrival() != lastStopOfTrip)
+			return;
+
+		StopHeadways stopHeadways = getStopHeadways(trip.getRouteShortName(),
+				trip.getDirectionId(), arrivalDeparture.getStopId(), true);
+		if (stopHeadways == null)
+			return;
+
+		logger.debug("Adding passage for vehicleId={} route={} stopId={}",
+				arrivalDeparture.getVehicleId(), trip.getRouteShortName(),
+				arrivalDeparture.getStopId());
+		stopHeadways.addPassage(arrivalDeparture.getVehicleId(),
+				arrivalDeparture.getTime());
+	}
+
+	/**
+	 * Groups the predictions by route/direction/stop
+	 *
+	 * @param predictions
+	 *            Can be null
+	 * @return Map keyed by route short name, direction ID, and stop ID
+	 */
+	private static Map<MapKey, List<IpcPrediction>> groupByRouteDirectionStop(
+			List<IpcPrediction> predictions) {
+		Map<MapKey, List<IpcPrediction>> map =
+				new HashMap<MapKey, List<IpcPrediction>>();
+		if (predictions == null)
+			return map;
+
+		for (IpcPrediction prediction : predictions) {
+			MapKey key = MapKey.create(prediction.getRouteShortName(),
+					prediction.getTrip().getDirectionId(),
+					prediction.getStopId());
+			List<IpcPrediction> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<IpcPrediction>(1);
+				map.put(key, list);
+			}
+			list.add(prediction);
+		}
+		return map;
+	}
+
+	/**
+	 * To be called when the predictions for a vehicle change. Updates the
+	 * predicted arrivals for the stops whose predictions changed. When the
+	 * predictions for a stop are the same as before, as happens when the
+	 * prediction generator keeps the previous prediction times, there is
+	 * nothing to update.
+	 *
+	 * @param oldPredictionsForVehicle
+	 *            Can be null
+	 * @param newPredictionsForVehicle
+	 *            Can be null if only removing old predictions
+	 */
+	public void updatePredictedArrivals(
+			List<IpcPrediction> oldPredictionsForVehicle,
+			List<IpcPrediction> newPredictionsForVehicle) {
+		Map<MapKey, List<IpcPrediction>> oldPredsByStopMap =
+				groupByRouteDirectionStop(oldPredictionsForVehicle);
+		Map<MapKey, List<IpcPrediction>> newPredsByStopMap =
+				groupByRouteDirectionStop(newPredictionsForVehicle);
+
+		for (List<IpcPrediction> newPreds : newPredsByStopMap.values()) {
+			IpcPrediction pred = newPreds.get(0);
+			if (IpcPrediction.samePredictions(newPreds,
+					oldPredsByStopMap.get(MapKey.create(
+							pred.getRouteShortName(),
+							pred.getTrip().getDirectionId(),
+							pred.getStopId()))))
+				continue;
+
+			StopHeadways stopHeadways = getStopHeadways(
+					pred.getRouteShortName(), pred.getTrip().getDirectionId(),
+					pred.getStopId(), true);
+			if (stopHeadways != null)
+				stopHeadways.setPredictedArrivals(pred.getVehicleId(),
+						newPreds);
+		}
+
+		// Remove the predicted arrivals for stops that no longer have
+		// predictions for the vehicle
+		for (Map.Entry<MapKey, List<IpcPrediction>> entry :
+				oldPredsByStopMap.entrySet()) {
+			if (newPredsByStopMap.containsKey(entry.getKey()))
+				continue;
+
+			IpcPrediction pred = entry.getValue().get(0);
+			StopHeadways stopHeadways = getStopHeadways(
+					pred.getRouteShortName(), pred.getTrip().getDirectionId(),
+					pred.getStopId(), false);
+			if (stopHeadways != null)
+				stopHeadways.setPredictedArrivals(pred.getVehicleId(),
+						Collections.<IpcPrediction> emptyList());
+		}
+	}
+
+	/**
+	 * Returns the predicted headway for the prediction, meaning the time
+	 * between the predicted arrival and the vehicle that is expected to pass
+	 * the stop before it.
+	 *
+	 * @param prediction
+	 * @return the IpcHeadway for the prediction, or null if not available
+	 */
+	public IpcHeadway getPredictedHeadway(IpcPrediction prediction) {
+		StopHeadways stopHeadways = getStopHeadways(
+				prediction.getRouteShortName(),
+				prediction.getTrip().getDirectionId(), prediction.getStopId(),
+				false);
+		if (stopHeadways == null)
+			return null;
+
+		for (IpcHeadway headway : stopHeadways.snapshot.getHeadways()) {
+			if (headway.isPredicted()
+					&& headway.getVehicleId().equals(prediction.getVehicleId()))
+				return headway;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the headways for the route. If a stop is specified then just
+	 * the headways for that stop, for each direction that serves it, are
+	 * returned. The returned objects are immutable snapshots.
+	 *
+	 * @param routeIdOrShortName
+	 *            route_id or route_short_name
+	 * @param stopIdOrCode
+	 *            stop_id or stop_code. If null then headways for all stops
+	 *            of the route are returned, in no particular order.
+	 * @return List of IpcHeadwaysForStop. Can be empty but will not be null.
+	 * @throws IllegalArgumentException
+	 *             if route or stop not valid
+	 */
+	public List<IpcHeadwaysForStop> getHeadways(String routeIdOrShortName,
+			String stopIdOrCode) {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+
+		// Determine the route short name since the map is keyed by it
+		String routeShortName = routeIdOrShortName;
+		Route route = dbConfig.getRouteById(routeIdOrShortName);
+		if (route != null)
+			routeShortName = route.getShortName();
+		else if (dbConfig.getRouteByShortName(routeIdOrShortName) == null)
+			throw new IllegalArgumentException("Route " + routeIdOrShortName
+					+ " not valid");
+
+		// Determine the stop ID since can pass in stopIdOrCode
+		String stopId = stopIdOrCode;
+		if (stopIdOrCode != null && dbConfig.getStop(stopIdOrCode) == null) {
+			Stop stop = null;
+			try {
+				stop = dbConfig.getStop(Integer.parseInt(stopIdOrCode));
+			} catch (NumberFormatException e) {
+				// Not a stop code so stop is not valid
+			}
+			if (stop == null)
+				throw new IllegalArgumentException("Stop " + stopIdOrCode
+						+ " not valid");
+			stopId = stop.getId();
+		}
+
+		List<IpcHeadwaysForStop> results = new ArrayList<IpcHeadwaysForStop>();
+		ConcurrentMap<String, List<StopHeadways>> stopsMap =
+				headwaysByRouteMap.get(routeShortName);
+		if (stopsMap == null)
+			return results;
+
+		if (stopId != null) {
+			List<StopHeadways> stopHeadwaysList = stopsMap.get(stopId);
+			if (stopHeadwaysList != null) {
+				for (StopHeadways stopHeadways : stopHeadwaysList)
+					results.add(stopHeadways.snapshot);
+			}
+		} else {
+			for (List<StopHeadways> stopHeadwaysList : stopsMap.values()) {
+				for (StopHeadways stopHeadways : stopHeadwaysList)
+					results.add(stopHeadways.snapshot);
+			}
+		}
+		return results;
+	}
+}
@@ -16,13 +16,17 @@
  */
 package org.transitime.core.dataCache;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,10 +57,13 @@ import org.transitime.utils.Time;
  * For concurrency and thread safety using ConcurrentHashMap instead of 
  * HashMap. 
  * <p> 
- * getPredictions() returns a copy of the list of predictions for the
- * route/stop. This way the contents will always be coherent and the 
- * caller does not need to synchronize, which would be difficult to
- * enforce.
+ * Whenever the predictions for a route/stop are written an immutable
+ * snapshot of them is published. getPredictions() reads only the snapshots,
+ * so the contents will always be coherent and the caller does not need to
+ * synchronize, which would be difficult to enforce. Since the snapshots
+ * cannot change, and are already filtered, readers don't need to copy the
+ * predictions either. This is important because getPredictions() is called
+ * for every API request.
  * 
  * @author SkiBu Smith
  */
@@ -86,9 +93,62 @@ public class PredictionDataCache {
 		predictionsMap =
 			new ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>>(1000);
 	
+	// The immutable snapshots of the predictions for each route/stop. These
+	// are what readers use. A new RouteStopSnapshot is published each time
+	// the predictions for a route/stop are updated. Keyed by MapKey using
+	// routeShortName/stopId.
+	private final ConcurrentHashMap<MapKey, RouteStopSnapshot> snapshotsMap =
+			new ConcurrentHashMap<MapKey, RouteStopSnapshot>(1000);
+	
+	// So that the time from process start to the first predictions is only
+	// reported once
+	private final AtomicBoolean firstPredictionsReported = 
+			new AtomicBoolean(false);
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionDataCache.class);
 
+	/**
+	 * Immutable snapshot of the predictions for a route/stop. Besides the
+	 * snapshot of each destination it also contains the list already filtered
+	 * the way that getPredictions() filters it. This way the typical request
+	 * can simply be given that list.
+	 */
+	private static class RouteStopSnapshot {
+		// Snapshot of the predictions for each destination of the route/stop
+		private final List<IpcPredictionsForRouteStopDest> destinations;
+		
+		// The destinations filtered as getPredictions() would when there is
+		// no direction specified and no limit on the predictions. Can be empty.
+		private final List<IpcPredictionsForRouteStopDest> filtered;
+		
+		private static final RouteStopSnapshot EMPTY = new RouteStopSnapshot(
+				Collections.<IpcPredictionsForRouteStopDest> emptyList(),
+				Collections.<IpcPredictionsForRouteStopDest> emptyList());
+		
+		private RouteStopSnapshot(
+				List<IpcPredictionsForRouteStopDest> destinations,
+				List<IpcPredictionsForRouteStopDest> filtered) {
+			this.destinations = destinations;
+			this.filtered = filtered;
+		}
+		
+		/**
+		 * Returns true if none of the predictions of the snapshot have expired
+		 * or need to be limited for the request. If so then the filtered list
+		 * can be returned as is.
+		 */
+		private boolean isCurrent(int maxPredictionsPerStop, long currentTime,
+				long maxSystemTimeForPrediction, double distanceToStop) {
+			for (IpcPredictionsForRouteStopDest preds : destinations) {
+				if (preds.getView(maxPredictionsPerStop, currentTime,
+						maxSystemTimeForPrediction, distanceToStop) != preds)
+					return false;
+			}
+			return true;
+		}
+	}
+	
 	/********************** Member Functions **************************/
 	
 	/**
@@ -112,12 +172,12 @@ public class PredictionDataCache {
 	}
 	
 	/**
-	 * Returns copy of the PredictionsForRouteStop object. This is the low-level
-	 * method that actually gets the appropriate predictions. A clone is used so
-	 * that it can be accessed as needed without worrying about another thread
-	 * writing to it. The list of predictions should be relatively small so
-	 * cloning is not very costly. And this way the caller of this method
-	 * doesn't have to synchronize or such.
+	 * Returns the predictions for the route/stop. This is the low-level
+	 * method that actually gets the appropriate predictions. The predictions
+	 * are from the immutable snapshots so they can be accessed as needed
+	 * without worrying about another thread writing to them, and without
+	 * having to copy them. This way the caller of this method doesn't have to
+	 * synchronize or such. The returned list must not be modified.
 	 * 
 	 * @param routeIdOrShortName  
 	 *            route_id or route_short_name, or null to specify all routes
@@ -179,25 +239,81 @@ public class PredictionDataCache {
 			}
 		}
 		
-		// Get the predictions from the map
-		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
-				getPredictionsForRouteStop(routeShortName, stopId);
-		
-		// Remove old predictions so that they are not provided through the 
-		// API and such
-		for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-			preds.removeExpiredPredictions(getSystemTime());
-		}
-
 		// Want to limit predictions to max time in future since if using
 		// schedule based predictions then generating predictions far into the 		
 		// future.
-		long maxPredictionEpochTime =
-				Core.getInstance().getSystemTime()
-						+ PredictionGeneratorDefaultImpl
-								.getMaxPredictionsTimeSecs()
-						* Time.SEC_IN_MSECS;
-				
+		long currentTime = getSystemTime();
+		long maxPredictionEpochTime = currentTime
+				+ PredictionGeneratorDefaultImpl.getMaxPredictionsTimeSecs()
+				* Time.SEC_IN_MSECS;
+
+		// Get the snapshots from the map
+		List<RouteStopSnapshot> snapshots = 
+				getSnapshotsForRouteStop(routeShortName, stopId);
+		
+		// For the usual case of a single route and no direction specified,
+		// if none of the predictions have expired since the snapshot was
+		// published, the pre-filtered list can be returned as is. Since it
+		// is immutable there is no need to copy it.
+		if (snapshots.size() == 1 && directionId == null) {
+			RouteStopSnapshot snapshot = snapshots.get(0);
+			if (!snapshot.filtered.isEmpty()
+					&& snapshot.isCurrent(maxPredictionsPerStop, currentTime,
+							maxPredictionEpochTime, distanceToStop))
+				return snapshot.filtered;
+		}
+		
+		// Need to filter for this particular request
+		List<IpcPredictionsForRouteStopDest> destinations =
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		for (RouteStopSnapshot snapshot : snapshots)
+			destinations.addAll(snapshot.destinations);
+		List<IpcPredictionsForRouteStopDest> filteredPredictions =
+				filterPredictions(destinations, directionId,
+						maxPredictionsPerStop, currentTime,
+						maxPredictionEpochTime, distanceToStop);
+		
+		// If no predictions should still return a IpcPredictionsForRouteStopDest
+		// object so that the client can get route, stop, and direction info to
+		// display in the UI.
+		if (filteredPredictions.size() == 0) {
+			IpcPredictionsForRouteStopDest pred =
+					new IpcPredictionsForRouteStopDest(routeShortName,
+							directionId, stopIdOrCode, distanceToStop);
+			filteredPredictions.add(pred);
+		}
+		
+		return filteredPredictions;
+	}
+
+	/**
+	 * Filters the snapshots of the predictions for a stop so that they are
+	 * appropriate for a request. Expired predictions are left out, only
+	 * predictions for the directionId are included, end of trip predictions
+	 * are filtered out if also have other predictions, and destinations
+	 * without predictions are filtered out if other destinations have them.
+	 * The predictions are not copied. Instead a view of each snapshot is used,
+	 * which is the snapshot itself if it doesn't need to be limited.
+	 * 
+	 * @param snapshots
+	 *            The snapshots of predictions for each destination for the
+	 *            stop
+	 * @param directionId
+	 *            Only include predictions for this direction. If null then
+	 *            include all directions.
+	 * @param maxPredictionsPerStop
+	 * @param currentTime
+	 *            For determining if predictions have expired
+	 * @param maxSystemTimeForPrediction
+	 *            Max point in future want predictions for
+	 * @param distanceToStop
+	 *            For when getting predictions by location
+	 * @return New list of filtered predictions. Can be empty.
+	 */
+	private static List<IpcPredictionsForRouteStopDest> filterPredictions(
+			List<IpcPredictionsForRouteStopDest> snapshots, String directionId,
+			int maxPredictionsPerStop, long currentTime,
+			long maxSystemTimeForPrediction, double distanceToStop) {
 		// Want to filter out arrivals at terminal if also getting departures 
 		// for that stop. Otherwise if user selects a terminal stop they could 
 		// see both departures and (useless) arrivals and be confused with too 
@@ -205,8 +321,12 @@ public class PredictionDataCache {
 		// because it could be useful to user.
 		boolean endOfTripPredFound = false;
 		boolean nonEndOfTripPredFound = false;
-		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
+		for (IpcPredictionsForRouteStopDest predictions : snapshots) {
 			for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
+				// Expired predictions don't count
+				if (preds.getPredictionTime() < currentTime)
+					continue;
+				
 				if (preds.isAtEndOfTrip())
 					endOfTripPredFound = true;
 				else
@@ -216,14 +336,9 @@ public class PredictionDataCache {
 		boolean shouldFilterOutEndOfTripPreds = 
 				endOfTripPredFound && nonEndOfTripPredFound;
 		
-		// Make a copy of the prediction objects so that they cannot be
-		// modified by another thread while they are being accessed. This
-		// is important because when the predictions are modified they are
-		// temporarily not coherent. 
-		List<IpcPredictionsForRouteStopDest> clonedPredictions = 
-				new ArrayList<IpcPredictionsForRouteStopDest>(
-						predictionsForRouteStop.size());
-		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
+		List<IpcPredictionsForRouteStopDest> filteredPredictions = 
+				new ArrayList<IpcPredictionsForRouteStopDest>(snapshots.size());
+		for (IpcPredictionsForRouteStopDest predictions : snapshots) {
 			// If supposed to return only predictions for specific direction and 
 			// the current predictions are for the wrong direction then simply
 			// continue to the next predictions.
@@ -235,46 +350,34 @@ public class PredictionDataCache {
 			// do so if all of the predictions for this stop are end of trip 
 			// predictions. Yes, this is a bit complicated.
 			if (shouldFilterOutEndOfTripPreds) {
-				if (predictions.getPredictionsForRouteStop().size() > 0) {
-					boolean allPredsForEndOfTrip = true;
-					for (IpcPrediction preds : predictions
-							.getPredictionsForRouteStop()) {
-						if (!preds.isAtEndOfTrip()) {
-							allPredsForEndOfTrip = false;
-							continue;
-						}
-					}
-					if (allPredsForEndOfTrip)
+				boolean predFound = false;
+				boolean allPredsForEndOfTrip = true;
+				for (IpcPrediction preds : predictions
+						.getPredictionsForRouteStop()) {
+					if (preds.getPredictionTime() < currentTime)
 						continue;
+					predFound = true;
+					if (!preds.isAtEndOfTrip()) {
+						allPredsForEndOfTrip = false;
+						break;
+					}
 				}
+				if (predFound && allPredsForEndOfTrip)
+					continue;
 			}
 			
-			// Direction ID is OK so clone prediction and add to list
-			IpcPredictionsForRouteStopDest clone =
-					predictions.getClone(maxPredictionsPerStop,
-							maxPredictionEpochTime, distanceToStop);
-			clonedPredictions.add(clone);
-		}
-		
-		// If no predictions should still return a IpcPredictionsForRouteStopDest
-		// object so that the client can get route, stop, and direction info to
-		// display in the UI.
-		if (clonedPredictions.size() == 0) {
-			IpcPredictionsForRouteStopDest pred =
-					new IpcPredictionsForRouteStopDest(routeShortName,
-							directionId, stopIdOrCode, distanceToStop);
-			clonedPredictions.add(pred);
+			// Direction ID is OK so add view of the predictions to list
+			filteredPredictions.add(predictions.getView(maxPredictionsPerStop,
+					currentTime, maxSystemTimeForPrediction, distanceToStop));
 		}
 		
 		// Will frequently get info for trip patterns that are not currently in
 		// service. If only have no predictions, then that should be returned. 
 		// But if do have predictions for a destination then should filter out
 		// the destinations that don't have any predictions so that useful
-		// info doesn't clutter the screen. Since need to make sure that don't
-		// modify clonedPredictions while removing elements need to be careful
-		// about how go about doing this.
+		// info doesn't clutter the screen.
 		boolean hasDestinationWithPredictions = false;
-		for (IpcPredictionsForRouteStopDest pred : clonedPredictions) {
+		for (IpcPredictionsForRouteStopDest pred : filteredPredictions) {
 			// If at least one of the destinations has predictions...
 			if (pred.getPredictionsForRouteStop().size() > 0) {
 				hasDestinationWithPredictions = true;
@@ -285,7 +388,7 @@ public class PredictionDataCache {
 			// Filter out destination info where there are no predictions.
 			// Use iterator since possibly removing elements in loop
 			Iterator<IpcPredictionsForRouteStopDest> iterator =
-					clonedPredictions.iterator();
+					filteredPredictions.iterator();
 			while (iterator.hasNext()) {
 				IpcPredictionsForRouteStopDest predsForRouteStopDest =
 						iterator.next();
@@ -297,17 +400,14 @@ public class PredictionDataCache {
 			}
 		}
 		
-		// Return the safe cloned predictions
-		return clonedPredictions;
+		return filteredPredictions;
 	}
 
 	
 	/**
-	 * Returns copy of the PredictionsForRouteStop object. A clone is used so
-	 * that it can be accessed as needed without worrying about another thread
-	 * writing to it. The list of predictions should be relatively small so
-	 * cloning is not very costly. And this way the caller of this method
-	 * doesn't have to synchronize or such.
+	 * Returns the predictions for the route/stop. They are from the immutable
+	 * snapshots so they can be accessed as needed without worrying about
+	 * another thread writing to them. The returned list must not be modified.
 	 * 
 	 * @param routeIdOrShortName
 	 *            route_id or route_short_name, or null to specify all routes
@@ -430,7 +530,7 @@ public class PredictionDataCache {
 	}
 	
 	/**
-	 * Returns copy of all predictions for system, limited by
+	 * Returns all predictions for system, limited by
 	 * maxPredictionsPerStop and maxPredictionTime.
 	 * 
 	 * @param maxPredictionsPerStop
@@ -447,24 +547,43 @@ public class PredictionDataCache {
 		List<IpcPredictionsForRouteStopDest> allPredictions = 
 				new ArrayList<IpcPredictionsForRouteStopDest>(5000);
 		
-		// Go through all PredictionsForRouteStop objects
-		Collection<List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop = 
-				predictionsMap.values();		
-		for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : predictionsByRouteStop) {
-			for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : predictionsForRouteStop) {
-				IpcPredictionsForRouteStopDest clonedPrediction = 
-						predictionForRouteStopDest.getClone(
-								maxPredictionsPerStop, maxSystemTimeForPrediction);
+		// Go through all the snapshots. Views of them are used so that
+		// the predictions don't need to be copied.
+		long currentTime = getSystemTime();
+		for (RouteStopSnapshot snapshot : snapshotsMap.values()) {
+			for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : 
+					snapshot.destinations) {
+				IpcPredictionsForRouteStopDest prediction = 
+						predictionForRouteStopDest.getView(
+								maxPredictionsPerStop, currentTime,
+								maxSystemTimeForPrediction, Double.NaN);
 				// If there were valid predictions then include it in array to
 				// be returned
-				if (!clonedPrediction.getPredictionsForRouteStop().isEmpty())
-					allPredictions.add(clonedPrediction);
+				if (!prediction.getPredictionsForRouteStop().isEmpty())
+					allPredictions.add(prediction);
 			}
 		}
 		
 		return allPredictions;
 	}
 	
+	/**
+	 * Logs how long it took from when the process was started until the
+	 * first predictions were generated, along with how long reading in the
+	 * config data took and whether it was read from a snapshot. This is the
+	 * restart-to-first-prediction time, which is the period during which no
+	 * predictions are available.
+	 */
+	private void reportFirstPredictions() {
+		long msecSinceStart = System.currentTimeMillis()
+				- ManagementFactory.getRuntimeMXBean().getStartTime();
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		logger.info("First predictions generated {} msec after process was "
+				+ "started. Reading config data took {} msec and was read "
+				+ "from {}.", msecSinceStart, dbConfig.getConfigReadMsec(),
+				dbConfig.isReadFromSnapshot() ? "snapshot" : "database");
+	}
+	
 	/**
 	 * Updates predictions in the cache that are associated with a vehicle.
 	 * Removes any that are in oldPredictionsForVehicle and adds all the ones in
@@ -482,6 +601,11 @@ public class PredictionDataCache {
 		if (newPredictionsForVehicle == null)
 			newPredictionsForVehicle = new ArrayList<IpcPrediction>();
 		
+		// Report how long it took after a restart to generate predictions
+		if (!newPredictionsForVehicle.isEmpty() 
+				&& firstPredictionsReported.compareAndSet(false, true))
+			reportFirstPredictions();
+		
 		// Can have several predictions for a route/stop/dest for a vehicle if
 		// the route is a relatively short loop. And if have unscheduled
 		// trips then won't have a unique trip identifier. Therefore to
@@ -508,11 +632,53 @@ public class PredictionDataCache {
 			predsForRouteStopDestList.add(newPrediction);
 		}
 		
+		// Keep track of which route/stops are changed so that new snapshots
+		// can be published for them once all the changes have been made.
+		// Keyed by route/stop and contains a prediction for that route/stop.
+		Map<MapKey, IpcPrediction> changedRouteStopsMap =
+				new LinkedHashMap<MapKey, IpcPrediction>();
+		
+		// Group the old predictions by route/stop/destination as well so
+		// that can tell when the predictions for a route/stop/destination
+		// are the same as before. This happens when the prediction generator
+		// keeps the previous prediction times because the vehicle is
+		// progressing as expected. For such route/stops the cache and the
+		// snapshot are left as is, since only the AVL and creation times of
+		// the predictions would change.
+		Map<MapKey, List<IpcPrediction>> oldPredsForVehicleByRouteStopDestMap =
+				new HashMap<MapKey, List<IpcPrediction>>();
+		if (oldPredictionsForVehicle != null) {
+			for (IpcPrediction oldPrediction : oldPredictionsForVehicle) {
+				MapKey key = new MapKey(oldPrediction.getRouteShortName(),
+						oldPrediction.getStopId(), 
+						oldPrediction.getTrip().getHeadsign());
+				List<IpcPrediction> predsForRouteStopDestList = 
+						oldPredsForVehicleByRouteStopDestMap.get(key);
+				if (predsForRouteStopDestList == null) {
+					predsForRouteStopDestList = new ArrayList<IpcPrediction>();
+					oldPredsForVehicleByRouteStopDestMap
+							.put(key, predsForRouteStopDestList);
+				}
+				predsForRouteStopDestList.add(oldPrediction);
+			}
+		}
+		
 		// Go through the new predictions grouped by route/stop/destination and
 		// process them.
-		for (List<IpcPrediction> newPredsForVehicleForRouteStopDest : 
-				newPredsForVehicleByRouteStopDestMap.values()) {
+		for (Map.Entry<MapKey, List<IpcPrediction>> entry : 
+				newPredsForVehicleByRouteStopDestMap.entrySet()) {
+			List<IpcPrediction> newPredsForVehicleForRouteStopDest = 
+					entry.getValue();
+			if (IpcPrediction.samePredictions(
+					newPredsForVehicleForRouteStopDest,
+					oldPredsForVehicleByRouteStopDestMap.get(entry.getKey())))
+				continue;
+			
 			updatePredictionsForVehicle(newPredsForVehicleForRouteStopDest);
+			
+			IpcPrediction pred = newPredsForVehicleForRouteStopDest.get(0);
+			changedRouteStopsMap.put(MapKey.create(pred.getRouteShortName(),
+					pred.getStopId()), pred);
 		}
 		
 		// Remove old predictions that are not in newPredictionsForVehicle 
@@ -526,9 +692,57 @@ public class PredictionDataCache {
 				if (newPredsForVehicleByRouteStopDestMap.get(key) == null) {
 					// Remove the old prediction
 					removePrediction(oldPrediction);
+					
+					changedRouteStopsMap.put(MapKey.create(
+							oldPrediction.getRouteShortName(),
+							oldPrediction.getStopId()), oldPrediction);
 				}
 			}
 		}
+		
+		// Now that the predictions have been updated publish new snapshots
+		// for the route/stops that changed so that readers will see them
+		for (IpcPrediction pred : changedRouteStopsMap.values()) {
+			publishSnapshot(pred.getRouteShortName(), pred.getStopId());
+		}
+		
+		// Keep the predicted headways for the stops up to date
+		HeadwayDataCache.getInstance().updatePredictedArrivals(
+				oldPredictionsForVehicle, newPredictionsForVehicle);
+	}
+	
+	/**
+	 * Creates an immutable snapshot of the current predictions for the
+	 * route/stop and publishes it so that readers will use it. Synchronized on
+	 * the list of predictions for the route/stop so that if multiple threads
+	 * are updating the route/stop the last snapshot published is always
+	 * the most recent one.
+	 * 
+	 * @param routeShortName
+	 * @param stopId
+	 */
+	private void publishSnapshot(String routeShortName, String stopId) {
+		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
+				getPredictionsForRouteStop(routeShortName, stopId);
+		long currentTime = getSystemTime();
+		
+		synchronized (predictionsForRouteStop) {
+			List<IpcPredictionsForRouteStopDest> destinations =
+					new ArrayList<IpcPredictionsForRouteStopDest>(
+							predictionsForRouteStop.size());
+			for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop)
+				destinations.add(preds.getSnapshot(currentTime));
+			
+			// Filter now so that usually won't need to filter when reading
+			List<IpcPredictionsForRouteStopDest> filtered = 
+					filterPredictions(destinations, null, Integer.MAX_VALUE,
+							currentTime, Long.MAX_VALUE, Double.NaN);
+			
+			RouteStopSnapshot snapshot = new RouteStopSnapshot(
+					Collections.unmodifiableList(destinations),
+					Collections.unmodifiableList(filtered));
+			snapshotsMap.put(MapKey.create(routeShortName, stopId), snapshot);
+		}
 	}
 	
 	/**
@@ -543,6 +757,10 @@ public class PredictionDataCache {
 		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
 		
 		updatePredictions(oldPredictions, null);
+		
+		// The chain of predictions won't be reused so don't keep it around
+		PredictionGeneratorDefaultImpl.removePredictionChain(
+				vehicleState.getVehicleId());
 	}
 
 	/**
@@ -595,54 +813,74 @@ public class PredictionDataCache {
 	 * Returns List of PredictionsForRouteStop objects associated with the
 	 * specified route/stop. Returns a list because there is a separate
 	 * PredictionsForRouteStop for each destination and some route directions
-	 * have multiple destinations.
+	 * have multiple destinations. These are the objects that are written to
+	 * when predictions are updated. Readers use the snapshots instead.
 	 * 
 	 * @param routeShortName
-	 *            The route short name. Set to null to get predictions for all
-	 *            routes for the stop.
+	 *            The route short name
 	 * @param stopId
 	 * @return list of predictions. Can be empty array but never null.
 	 */
 	private List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(
 			String routeShortName, String stopId) {
-		List<IpcPredictionsForRouteStopDest> predictionsForStop;
-		
-		// If routeShortName specified then get predictions for that route.
-		// If not then get predictions for all routes that serve the stop.
-		if (routeShortName != null) {
-			// Determine the predictions for all destinations for the route/stop
-			MapKey key = MapKey.create(routeShortName, stopId);
-			predictionsForStop = predictionsMap.get(key);
+		// Determine the predictions for all destinations for the route/stop
+		MapKey key = MapKey.create(routeShortName, stopId);
+		List<IpcPredictionsForRouteStopDest> predictionsForStop = 
+				predictionsMap.get(key);
 
-			if (predictionsForStop == null) {
-				// No predictions so return empty array instead of null
-				predictionsForStop = 
-						new ArrayList<IpcPredictionsForRouteStopDest>(1);
-				
-				// Need to update the predictions map with the 
-				// predictionsForStop list for this route/stop so that
-				// when this list of predictions is updated it will be
-				// kept around.
-				predictionsMap.putIfAbsent(key, predictionsForStop);
-			}
-		} else {
-			// No route specified so get predictions for all routes for the stop
-			predictionsForStop =
-					new ArrayList<IpcPredictionsForRouteStopDest>();
-			Collection<Route> routes = 
-					Core.getInstance().getDbConfig().getRoutesForStop(stopId);
-			for (Route route : routes) {
-				MapKey key = MapKey.create(route.getShortName(), stopId);
-				 List<IpcPredictionsForRouteStopDest> predsForRoute = 
-						 predictionsMap.get(key);
-				 if (predsForRoute != null)
-					 predictionsForStop.addAll(predsForRoute);
-			}
-		}		
+		if (predictionsForStop == null) {
+			// No predictions so return empty array instead of null
+			predictionsForStop = 
+					new ArrayList<IpcPredictionsForRouteStopDest>(1);
+			
+			// Need to update the predictions map with the 
+			// predictionsForStop list for this route/stop so that
+			// when this list of predictions is updated it will be
+			// kept around. If another thread just added a list then
+			// use that one instead.
+			List<IpcPredictionsForRouteStopDest> existing =
+					predictionsMap.putIfAbsent(key, predictionsForStop);
+			if (existing != null)
+				predictionsForStop = existing;
+		}
 
 		return predictionsForStop;
 	}
 	
+	/**
+	 * Returns the published snapshots of predictions for the specified
+	 * route/stop, or for all routes that serve the stop if routeShortName is
+	 * null.
+	 * 
+	 * @param routeShortName
+	 *            The route short name. Set to null to get predictions for all
+	 *            routes for the stop.
+	 * @param stopId
+	 * @return list of snapshots. Can be empty but never null.
+	 */
+	private List<RouteStopSnapshot> getSnapshotsForRouteStop(
+			String routeShortName, String stopId) {
+		// If routeShortName specified then get predictions for that route.
+		if (routeShortName != null) {
+			RouteStopSnapshot snapshot = 
+					snapshotsMap.get(MapKey.create(routeShortName, stopId));
+			return Collections.singletonList(snapshot != null ? 
+					snapshot : RouteStopSnapshot.EMPTY);
+		}
+		
+		// No route specified so get predictions for all routes for the stop
+		List<RouteStopSnapshot> snapshots = new ArrayList<RouteStopSnapshot>();
+		Collection<Route> routes = 
+				Core.getInstance().getDbConfig().getRoutesForStop(stopId);
+		for (Route route : routes) {
+			RouteStopSnapshot snapshot = snapshotsMap.get(
+					MapKey.create(route.getShortName(), stopId));
+			if (snapshot != null)
+				snapshots.add(snapshot);
+		}
+		return snapshots;
+	}
+	
 	/**
 	 * Returns PredictionsForRouteStop object associated with the specified
 	 * route/stop/destination specified by the trip and stopId parameters.
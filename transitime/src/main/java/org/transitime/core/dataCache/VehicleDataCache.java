@@ -19,11 +19,11 @@ package org.transitime.core.dataCache;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -48,6 +48,16 @@ import org.transitime.utils.Time;
  * always be coherent without having to synchronize VehicleState for when
  * converting to a IpcExtVehicle. Organizes vehicles info by vehicle ID but also
  * by route so can easily determine which vehicles are associated with a route.
+ * <p>
+ * The vehicles for all vehicles and for each route are kept in concurrent
+ * maps keyed by vehicle ID so that updating a vehicle, which is done for
+ * every AVL report, is just a put() into the maps. Readers, such as the RMI
+ * VehiclesServer, get immutable snapshots of the vehicles. A snapshot is
+ * only created when it is read and something has changed since the previous
+ * snapshot was created, so the cost of copying the collection is paid by the
+ * readers instead of by every AVL report, and the snapshots can be shared
+ * without copying and without any locking. The vehicle IDs for each block
+ * are small immutable lists that are replaced when the assignments change.
  * 
  * @author SkiBu Smith
  */
@@ -56,36 +66,45 @@ public class VehicleDataCache {
     // Make this class available as a singleton
     private static VehicleDataCache singleton = new VehicleDataCache();
 
-    // Keyed by vehicle ID
-    private Map<String, IpcVehicleComplete> vehiclesMap = 
-    		new ConcurrentHashMap<String, IpcVehicleComplete>();
-
+    // All the vehicles, keyed by vehicle ID
+    private final VehicleCollection allVehicles = new VehicleCollection();
+    
     // Keyed by route_short_name. Key is null for vehicles that have not
     // been successfully associated with a route. For each route there is a 
-    // submap that is keyed by vehicle.
-    private Map<String, Map<String, IpcVehicleComplete>> vehiclesByRouteMap = 
-    		new ConcurrentHashMapNullKeyOk<String, Map<String, IpcVehicleComplete>>();
+    // collection of the vehicles for the route.
+    private final ConcurrentMap<String, VehicleCollection> vehiclesByRouteMap = 
+    		new ConcurrentHashMapNullKeyOk<String, VehicleCollection>();
 
     // So can determine vehicles associated with a block ID. Keyed on
     // block ID. Each block can have a list of vehicle IDs. Though rare
     // there are situations where multiple vehicles might have the
-    // same assignment, such as for unscheduled assignments. 
-    private Map<String, List<String>> vehicleIdsByBlockMap =
+    // same assignment, such as for unscheduled assignments. The lists
+    // are immutable and are replaced when the assignments change.
+    private final ConcurrentMap<String, List<String>> vehicleIdsByBlockMap =
     		new ConcurrentHashMapNullKeyOk<String, List<String>>();
     
+    // Incremented every time a vehicle is updated. Allows clients to easily
+    // determine if anything changed.
+    private final AtomicLong version = new AtomicLong();
+    
     // Keeps track of vehicle static config info. If new vehicle encountered
     // in AVL feed then this map is updated and the new VehicleConfig is also
-    // written to the database. Using HashMap instead of ConcurrentHashMap
-    // since synchronizing puts anyways.
-    private Map<String, VehicleConfig> vehicleConfigsMap =
-    		new HashMap<String, VehicleConfig>();
+    // written to the database. ConcurrentHashMap so that the lookups done
+    // for every AVL report don't need to lock.
+    private final ConcurrentMap<String, VehicleConfig> vehicleConfigsMap =
+    		new ConcurrentHashMap<String, VehicleConfig>();
     
-    // So can quickly look up vehicle config using tracker ID
-    private Map<String, VehicleConfig> vehicleConfigByTrackerIdMap =
-    		new HashMap<String, VehicleConfig>();
+    // So can quickly look up vehicle config using tracker ID. Tracker ID
+    // can be null so need map that allows null keys.
+    private final ConcurrentMap<String, VehicleConfig> vehicleConfigByTrackerIdMap =
+    		new ConcurrentHashMapNullKeyOk<String, VehicleConfig>();
+    
+    // For when reading vehicle config data from db. Only the infrequent 
+    // reads from the db are synchronized.
+    private final Object vehicleConfigDbReadLock = new Object();
     
     // So can determine how long since data was read from db
-    private long dbReadTime;
+    private volatile long dbReadTime;
     
 	// For filtering out info more than MAX_AGE since it means that the AVL info is
 	// obsolete and shouldn't be displayed.
@@ -94,6 +113,103 @@ public class VehicleDataCache {
     private static final Logger logger = LoggerFactory
 	    .getLogger(VehicleDataCache.class);
 
+	/**
+	 * An immutable snapshot of a collection of vehicles, along with the
+	 * version of the collection when it was created. Also contains the
+	 * vehicles without the schedule based ones since that is what is usually
+	 * requested.
+	 */
+	private static class VehiclesSnapshot {
+		private final List<IpcVehicleComplete> vehicles;
+		private final List<IpcVehicleComplete> vehiclesNotSchedBased;
+		private final long version;
+
+		private static final VehiclesSnapshot EMPTY = new VehiclesSnapshot(
+				Collections.<IpcVehicleComplete> emptyList(), 0);
+
+		private VehiclesSnapshot(Collection<IpcVehicleComplete> vehicles,
+				long version) {
+			List<IpcVehicleComplete> vehiclesNotSchedBased =
+					new ArrayList<IpcVehicleComplete>(vehicles.size());
+			for (IpcVehicleComplete vehicle : vehicles) {
+				if (!vehicle.isForSchedBasedPred())
+					vehiclesNotSchedBased.add(vehicle);
+			}
+			this.vehicles = Collections.unmodifiableList(
+					new ArrayList<IpcVehicleComplete>(vehicles));
+			this.vehiclesNotSchedBased =
+					Collections.unmodifiableList(vehiclesNotSchedBased);
+			this.version = version;
+		}
+	}
+	
+	/**
+	 * A collection of vehicles keyed by vehicle ID. Updating a vehicle simply
+	 * puts it into the concurrent map and increments the version of the
+	 * collection. The immutable snapshot is only recreated when it is read
+	 * and the version has changed.
+	 */
+	private static class VehicleCollection {
+		private final ConcurrentMap<String, IpcVehicleComplete> vehicles =
+				new ConcurrentHashMap<String, IpcVehicleComplete>();
+		
+		// Incremented after every change to the vehicles map
+		private final AtomicLong version = new AtomicLong();
+		
+		// The most recently created snapshot. Volatile since it is replaced
+		// by readers without locking.
+		private volatile VehiclesSnapshot snapshot = VehiclesSnapshot.EMPTY;
+
+		/**
+		 * Adds or replaces the vehicle.
+		 * 
+		 * @param vehicleId
+		 * @param vehicle
+		 *            The new vehicle info, or null if vehicle is to be removed
+		 */
+		private void put(String vehicleId, IpcVehicleComplete vehicle) {
+			if (vehicle != null)
+				vehicles.put(vehicleId, vehicle);
+			else
+				vehicles.remove(vehicleId);
+			
+			// Increment the version after changing the map so that a reader
+			// that sees the new version also sees the change
+			version.incrementAndGet();
+		}
+		
+		private IpcVehicleComplete get(String vehicleId) {
+			return vehicles.get(vehicleId);
+		}
+		
+		/**
+		 * Returns snapshot of the vehicles, creating a new one if the
+		 * vehicles have changed since the last one was created. If multiple
+		 * readers create a new snapshot at the same time then each simply
+		 * uses its own, and whichever is stored last is reused or replaced by
+		 * the next reader.
+		 * 
+		 * @return immutable snapshot of the vehicles
+		 */
+		private VehiclesSnapshot getSnapshot() {
+			VehiclesSnapshot currentSnapshot = snapshot;
+			long currentVersion = version.get();
+			if (currentSnapshot.version == currentVersion)
+				return currentSnapshot;
+			
+			// Version was read before iterating over the map so the new
+			// snapshot includes at least all changes up to that version
+			VehiclesSnapshot newSnapshot = 
+					new VehiclesSnapshot(vehicles.values(), currentVersion);
+			snapshot = newSnapshot;
+			return newSnapshot;
+		}
+		
+		private long getVersion() {
+			return version.get();
+		}
+	}
+	
     /********************** Member Functions **************************/
 
 	/**
@@ -114,7 +230,7 @@ public class VehicleDataCache {
 
     /**
      * Reads in vehicle config data from db. Unsynchronized since the
-     * calling methods are expected to sync.
+     * calling methods are expected to sync on vehicleConfigDbReadLock.
      */
     private void readVehicleConfigFromDb() {
 		Session session = 
@@ -144,7 +260,12 @@ public class VehicleDataCache {
      * Reads in vehicle config data from db if haven't done so yet.
      */
 	private void readVehicleConfigFromDbIfNeedTo() {
-		synchronized (vehicleConfigsMap) {
+		// If already have data then done. Checked first without locking
+		// since this is called for every AVL report.
+		if (!vehicleConfigsMap.isEmpty())
+			return;
+		
+		synchronized (vehicleConfigDbReadLock) {
 			if (vehicleConfigsMap.isEmpty()) {
 				readVehicleConfigFromDb();
 			}
@@ -156,8 +277,12 @@ public class VehicleDataCache {
 	 * db read. Useful for when vehicle data has been updated in db.
 	 */
 	private void readVehicleConfigFromDbIfOld() {
-		synchronized (vehicleConfigsMap) {
-			// Read db if more than 5 minutes since last read
+		if (System.currentTimeMillis() <= dbReadTime + 5 * Time.MIN_IN_MSECS)
+			return;
+		
+		synchronized (vehicleConfigDbReadLock) {
+			// Read db if more than 5 minutes since last read. Need to check
+			// again in case another thread just read the data.
 			if (System.currentTimeMillis() > dbReadTime + 5 * Time.MIN_IN_MSECS)
 				readVehicleConfigFromDb();
 		}		
@@ -178,23 +303,21 @@ public class VehicleDataCache {
 		// Make sure go initial data from database
 		readVehicleConfigFromDbIfNeedTo();
 		
-		// Synchronize on the map since separately testing for object
-		// and adding object
-		synchronized (vehicleConfigsMap) {
-			// If new vehicle...
-			String vehicleId = avlReport.getVehicleId();
-			if (!vehicleConfigsMap.containsKey(vehicleId)) {
-				logger.info("Encountered new vehicle where vehicleId={} so "
-						+ "updating vehicle cache and writing the "
-						+ "VehicleConfig to database.", vehicleId);
-
-				// Add vehicle to cache and update database
-				VehicleConfig vehicleConfig = new VehicleConfig(vehicleId);
-				vehicleConfigsMap.put(vehicleId, vehicleConfig);
+		// Usually already know about the vehicle
+		String vehicleId = avlReport.getVehicleId();
+		if (vehicleConfigsMap.containsKey(vehicleId))
+			return;
+		
+		// New vehicle. Use putIfAbsent() so that only a single thread
+		// writes the VehicleConfig to the database.
+		VehicleConfig vehicleConfig = new VehicleConfig(vehicleId);
+		if (vehicleConfigsMap.putIfAbsent(vehicleId, vehicleConfig) == null) {
+			logger.info("Encountered new vehicle where vehicleId={} so "
+					+ "updating vehicle cache and writing the "
+					+ "VehicleConfig to database.", vehicleId);
 
-				// Write the vehicle to the database
-				Core.getInstance().getDbLogger().add(vehicleConfig);
-			}
+			// Write the vehicle to the database
+			Core.getInstance().getDbLogger().add(vehicleConfig);
 		}
 	}
     
@@ -242,14 +365,29 @@ public class VehicleDataCache {
 	 * vehicles.
 	 * 
 	 * @param vehicles
-	 * @return
+	 *            Immutable collection of vehicles
+	 * @return The vehicles parameter if no vehicles need to be filtered out,
+	 *         otherwise a new collection
 	 */
     private Collection<IpcVehicleComplete> filterOldAvlReports(
     		Collection<IpcVehicleComplete> vehicles) {
+    	long timeCutoff = Core.getInstance().getSystemTime() - MAX_AGE_MSEC;
+    	
+    	// Usually none of the vehicles are too old. For that case simply
+    	// return the immutable collection so don't need to copy it.
+    	boolean oldVehicleFound = false;
+    	for (IpcVehicleComplete vehicle : vehicles) {
+    		if (!vehicle.isLayover() 
+    				&& vehicle.getAvl().getTime() <= timeCutoff) {
+    			oldVehicleFound = true;
+    			break;
+    		}
+    	}
+    	if (!oldVehicleFound)
+    		return vehicles;
+    	
     	Collection<IpcVehicleComplete> filteredVehicles = 
 				new ArrayList<IpcVehicleComplete>(vehicles.size());
-    	
-    	long timeCutoff = Core.getInstance().getSystemTime() - MAX_AGE_MSEC;
     	for (IpcVehicleComplete vehicle : vehicles) {
     		if (vehicle.isLayover() 
     				|| vehicle.getAvl().getTime() > timeCutoff) {
@@ -261,35 +399,12 @@ public class VehicleDataCache {
     	return filteredVehicles;
     }
 
-	/**
-	 * This is intended to be used, when the vehicle maps are read, in order to
-	 * remove schedule based vehicles from a collection. 
-	 * 
-	 * @param vehicles
-	 *            collection of vehicles to investigate
-	 * @return filtered collection of vehicles
-	 */
-	private Collection<IpcVehicleComplete> filterSchedBasedVehicle(
-			Collection<IpcVehicleComplete> vehicles) {
-    	Collection<IpcVehicleComplete> filteredVehicles = 
-				new ArrayList<IpcVehicleComplete>(vehicles.size());
-
-    	for (IpcVehicleComplete vehicle : vehicles) {
-			// Return the vehicle info unless it is a schedule based vehicle 
-    		if (!vehicle.isForSchedBasedPred()) {
-				filteredVehicles.add(vehicle);
-			}
-    	}
-    	
-    	// Return results
-    	return filteredVehicles;
-	}
-	
 	/**
 	 * Returns Collection of Vehicles currently associated with specified route.
 	 * Filters out info more than MAX_AGE_MSEC since it means that the info is
 	 * obsolete and shouldn't be displayed. Returns null if no vehicles for
-	 * specified route.
+	 * specified route. The returned collection is usually the shared immutable
+	 * snapshot for the route and therefore must not be modified.
 	 * 
 	 * @param routeIdOrShortName
 	 *            Specifies which route to return vehicle data for. Can be a
@@ -306,23 +421,23 @@ public class VehicleDataCache {
 		// as the route short name instead of an empty string.
 		if (routeShortName != null && routeShortName.isEmpty())
 			routeShortName = null;
-		Map<String, IpcVehicleComplete> vehicleMapForRoute = vehiclesByRouteMap
+		VehicleCollection vehiclesForRoute = vehiclesByRouteMap
 				.get(routeShortName);
 		
 		// If couldn't get vehicles by route short name try using
 		// the route ID.
-		if (vehicleMapForRoute == null) {
+		if (vehiclesForRoute == null) {
 			Route route = Core.getInstance().getDbConfig()
 					.getRouteById(routeIdOrShortName);
 			if (route != null) {
-				vehicleMapForRoute = 
+				vehiclesForRoute = 
 						vehiclesByRouteMap.get(route.getShortName());
 			}
 		}
 
-		if (vehicleMapForRoute != null)
-			return filterSchedBasedVehicle(
-					filterOldAvlReports(vehicleMapForRoute.values()));
+		if (vehiclesForRoute != null)
+			return filterOldAvlReports(
+					vehiclesForRoute.getSnapshot().vehiclesNotSchedBased);
 		else
 			return null;
 	}
@@ -368,7 +483,7 @@ public class VehicleDataCache {
 	public Collection<IpcVehicleComplete> getVehicles(Collection<String> vehicleIds) {
 		Collection<IpcVehicleComplete> vehicles = new ArrayList<IpcVehicleComplete>();
 		for (String vehicleId : vehicleIds) {
-			IpcVehicleComplete vehicle = vehiclesMap.get(vehicleId);
+			IpcVehicleComplete vehicle = allVehicles.get(vehicleId);
 			if (vehicle != null)
 				vehicles.add(vehicle);
 		}
@@ -386,7 +501,7 @@ public class VehicleDataCache {
 	 * @return
 	 */
 	public IpcVehicleComplete getVehicle(String vehicleId) {
-		return vehiclesMap.get(vehicleId);
+		return allVehicles.get(vehicleId);
 	}
 
 	/**
@@ -399,7 +514,7 @@ public class VehicleDataCache {
 	 * @return
 	 */
 	public Collection<IpcVehicleComplete> getVehicles() {
-		return filterSchedBasedVehicle(vehiclesMap.values());
+		return allVehicles.getSnapshot().vehiclesNotSchedBased;
 	}
 	
 	/**
@@ -408,14 +523,39 @@ public class VehicleDataCache {
 	 * @return all vehicles, even schedule based ones
 	 */
 	public Collection<IpcVehicleComplete> getVehiclesIncludingSchedBasedOnes() {
-		return vehiclesMap.values();
+		return allVehicles.getSnapshot().vehicles;
+	}
+	
+	/**
+	 * Returns the version of the vehicle data. It is incremented every time
+	 * a vehicle is updated so clients can use it to determine whether
+	 * anything has changed since they last read the vehicles.
+	 * 
+	 * @return the current version
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
+	/**
+	 * Returns the version of the vehicles for the specified route. Only
+	 * changes when a vehicle for the route is updated.
+	 * 
+	 * @param routeShortName
+	 * @return the version, or 0 if there have not been any vehicles for the
+	 *         route
+	 */
+	public long getVersionForRoute(String routeShortName) {
+		VehicleCollection vehiclesForRoute = 
+				vehiclesByRouteMap.get(routeShortName);
+		return vehiclesForRoute != null ? vehiclesForRoute.getVersion() : 0;
 	}
 
 	/**
-	 * Returns copy of list of vehicle IDs that are currently assigned to the
-	 * specified block. A copy is returned since the list is quite small and
-	 * will often need to iterate over it while calling methods that modify the
-	 * underlying list. Using a copy makes sure that don't get a
+	 * Returns list of vehicle IDs that are currently assigned to the
+	 * specified block. The list is an immutable snapshot that is replaced
+	 * when assignments change, so can iterate over it while calling methods
+	 * that modify the assignments without getting a
 	 * ConcurrentModificationException. Will return empty list if no vehicles
 	 * assigned to that block (won't return null). Usually there will only be a
 	 * single vehicle associated with a block assignment but there are cases,
@@ -425,17 +565,46 @@ public class VehicleDataCache {
 	 * harder to tell if vehicle is stale.
 	 * 
 	 * @param blockId
-	 * @return Copy of list of vehicle IDs associated with the specified block
-	 *         Id. Returns empty list instead of null if no vehicles associated
-	 *         with the block ID.
+	 * @return Immutable list of vehicle IDs associated with the specified
+	 *         block Id. Returns empty list instead of null if no vehicles
+	 *         associated with the block ID.
 	 */
 	public Collection<String> getVehiclesByBlockId(String blockId) {
 		List<String> vehicleIds = vehicleIdsByBlockMap.get(blockId);
 		if (vehicleIds != null)
-			// Return copy of collection 
-			return new ArrayList<String>(vehicleIds);
+			return vehicleIds;
 		else
-			return new ArrayList<String>(0);
+			return Collections.emptyList();
+	}
+	
+	/**
+	 * Atomically replaces the list of vehicle IDs for the block with a new
+	 * list that has the vehicle ID removed or added. Uses compare and set so
+	 * that don't need to lock even if multiple threads are changing the 
+	 * assignments for the block.
+	 * 
+	 * @param blockId
+	 * @param vehicleId
+	 * @param add
+	 *            true if vehicle ID is to be added, false if to be removed
+	 */
+	private void updateVehicleIdsForBlock(String blockId, String vehicleId,
+			boolean add) {
+		while (true) {
+			List<String> vehicleIds = vehicleIdsByBlockMap.get(blockId);
+			List<String> newVehicleIds = vehicleIds != null ? 
+					new ArrayList<String>(vehicleIds) : new ArrayList<String>(1);
+			if (add)
+				newVehicleIds.add(vehicleId);
+			else
+				newVehicleIds.remove(vehicleId);
+			newVehicleIds = Collections.unmodifiableList(newVehicleIds);
+			
+			if (vehicleIds == null ? 
+					vehicleIdsByBlockMap.putIfAbsent(blockId, newVehicleIds) == null
+					: vehicleIdsByBlockMap.replace(blockId, vehicleIds, newVehicleIds))
+				return;
+		}
 	}
 	
 	/**
@@ -459,20 +628,43 @@ public class VehicleDataCache {
 				
 			// Block assignment has changed for vehicle so remove the old one 
 			// from the map
-			List<String> vehicleIdsForOldBlock = 
-					vehicleIdsByBlockMap.get(originalVehicle.getBlockId());
-			if (vehicleIdsForOldBlock != null)
-				vehicleIdsForOldBlock.remove(originalVehicle.getId());
+			if (vehicleIdsByBlockMap.containsKey(originalVehicle.getBlockId()))
+				updateVehicleIdsForBlock(originalVehicle.getBlockId(),
+						originalVehicle.getId(), false);
 		}
 		
 		// Add the new block assignment to the map
-		List<String> vehiclesForNewBlock = 
-				vehicleIdsByBlockMap.get(vehicle.getBlockId());
-		if (vehiclesForNewBlock == null) {
-			vehiclesForNewBlock = new ArrayList<String>(1);
-			vehicleIdsByBlockMap.put(vehicle.getBlockId(), vehiclesForNewBlock);
+		updateVehicleIdsForBlock(vehicle.getBlockId(), vehicle.getId(), true);
+	}
+	
+	/**
+	 * Adds, replaces, or removes the vehicle in the collection of vehicles
+	 * for the route.
+	 * 
+	 * @param routeShortName
+	 *            Identifies the route. Can be null for vehicles not associated
+	 *            with a route.
+	 * @param vehicleId
+	 * @param vehicle
+	 *            The new vehicle info, or null if vehicle is to be removed
+	 */
+	private void updateVehiclesForRoute(String routeShortName,
+			String vehicleId, IpcVehicleComplete vehicle) {
+		VehicleCollection vehiclesForRoute = 
+				vehiclesByRouteMap.get(routeShortName);
+		if (vehiclesForRoute == null) {
+			// Don't need a collection just to remove a vehicle from it
+			if (vehicle == null)
+				return;
+			
+			vehiclesForRoute = new VehicleCollection();
+			VehicleCollection existing = 
+					vehiclesByRouteMap.putIfAbsent(routeShortName, 
+							vehiclesForRoute);
+			if (existing != null)
+				vehiclesForRoute = existing;
 		}
-		vehiclesForNewBlock.add(vehicle.getId());
+		vehiclesForRoute.put(vehicleId, vehicle);
 	}
 	
 	/**
@@ -491,41 +683,33 @@ public class VehicleDataCache {
 				&& (originalVehicle.getRouteShortName() == null 
 					|| !originalVehicle.getRouteShortName().equals(
 						vehicle.getRouteShortName()))) {
-			Map<String, IpcVehicleComplete> vehicleMapForRoute = vehiclesByRouteMap
-					.get(originalVehicle.getRouteShortName());
-			vehicleMapForRoute.remove(vehicle.getId());
+			updateVehiclesForRoute(originalVehicle.getRouteShortName(),
+					vehicle.getId(), null);
 		}
 
 		// Add IpcExtVehicle to the vehiclesByRouteMap
-		Map<String, IpcVehicleComplete> vehicleMapForRoute = 
-				vehiclesByRouteMap.get(vehicle.getRouteShortName());
-		if (vehicleMapForRoute == null) {
-			vehicleMapForRoute = new HashMap<String, IpcVehicleComplete>();
-			String routeMapKey = vehicle.getRouteShortName();
-			vehiclesByRouteMap.put(routeMapKey, vehicleMapForRoute);
-		}
-		vehicleMapForRoute.put(vehicle.getId(), vehicle);				
+		updateVehiclesForRoute(vehicle.getRouteShortName(), vehicle.getId(),
+				vehicle);
 	}
 
 	/**
-	 * Updates vehiclesMap. Usually will add the IpcExtVehicle to the
-	 * vehiclesMap. But there is a special case where a schedule based
+	 * Updates the collection of all vehicles. Usually will add the
+	 * IpcExtVehicle. But there is a special case where a schedule based
 	 * vehicle is being made unpredictable. For this situation actually
-	 * need to remove the vehicle from the vehicles map so that it won't
-	 * show up requesting vehicles for the API. 
+	 * need to remove the vehicle so that it won't show up requesting vehicles
+	 * for the API.
 	 * 
 	 * @param vehicle
 	 */
-	private void updateVehiclesMap(IpcVehicleComplete vehicle) {
+	private void updateAllVehicles(IpcVehicleComplete vehicle) {
 		if (!vehicle.isForSchedBasedPred() || vehicle.isPredictable()) {
-			// Normal situation. Add vehicle to vehiclesMap
-			vehiclesMap.put(vehicle.getId(), vehicle);			
+			// Normal situation. Add vehicle
+			allVehicles.put(vehicle.getId(), vehicle);
 		} else {
 			// Special case where vehicle is schedule based and it is not 
 			// predictable. This means that should get rid of the vehicle
-			// from the vehiclesMap since it was just a temporary fake
-			// vehicle.
-			vehiclesMap.remove(vehicle.getId());
+			// since it was just a temporary fake vehicle.
+			allVehicles.put(vehicle.getId(), null);
 		}
 	}
 	
@@ -538,12 +722,16 @@ public class VehicleDataCache {
 	 */
 	public void updateVehicle(VehicleState vehicleState) {
 		IpcVehicleComplete vehicle = new IpcVehicleComplete(vehicleState);
-		IpcVehicleComplete originalVehicle = vehiclesMap.get(vehicle.getId());
+		IpcVehicleComplete originalVehicle = allVehicles.get(vehicle.getId());
 		
 		logger.debug("Adding to VehicleDataCache vehicle={}", vehicle);
 
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
-		updateVehiclesMap(vehicle);
+		updateAllVehicles(vehicle);
+		
+		// Increment version last so that clients that see the new version
+		// also see the updated vehicle
+		version.incrementAndGet();
 	}
 }
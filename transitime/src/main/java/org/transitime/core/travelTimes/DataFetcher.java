@@ -17,16 +17,22 @@
 
 package org.transitime.core.travelTimes;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.db.structs.ActiveRevisions;
 import org.transitime.db.structs.Agency;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -38,6 +44,14 @@ import org.transitime.utils.Time;
 /**
  * For retrieving historic AVL based data from database so that travel times can
  * be determined.
+ * <p>
+ * The data can either all be read in at once using readData(), or it can be
+ * streamed using streamData(). When streamed the data is read in pages
+ * ordered by time, using the time of the last row of the previous page as the
+ * start of the next page instead of an offset. The arrivals/departures are
+ * grouped per vehicle trip as they are read and each trip is handed off as
+ * soon as it is complete. This way the memory used is bounded by the number
+ * of vehicles instead of by the length of the time range.
  * 
  * @author SkiBu Smith
  * 
@@ -57,6 +71,24 @@ public class DataFetcher {
 	
 //	private List<Integer> specialDaysOfWeek = null;
 
+	// When streaming, a trip is only handed off once the matches have been
+	// read in for this much time after the trip was complete. Also, matches
+	// are discarded once they are more than twice this old.
+	private static final long STREAMING_MATCHES_SLACK_MSEC = 
+			30 * Time.MS_PER_MIN;
+	
+	// When streaming, if there has been no arrival/departure for a vehicle
+	// trip for this long then the trip is considered to be complete.
+	private static final long STREAMING_IDLE_TRIP_MSEC = 
+			2 * Time.MS_PER_HOUR;
+	
+	private static IntegerConfigValue streamingBatchSize =
+			new IntegerConfigValue("transitime.travelTimes.streamingBatchSize",
+					50000,
+					"When streaming historic data for determining travel "
+					+ "times this is how many arrivals/departures or "
+					+ "matches are read from the database at a time.");
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(DataFetcher.class);
 
@@ -355,6 +387,214 @@ public class DataFetcher {
 				readArrivalsDepartures(agencyId, beginTime, endTime);
 	}
 
+	/**
+	 * For handling each vehicle trip as it is streamed by streamData().
+	 */
+	public interface TripHandler {
+		/**
+		 * Called for each vehicle trip. The matches for the trip are
+		 * available from getMatchesMap() while this method is being called.
+		 * 
+		 * @param arrDepList
+		 *            The arrivals/departures for the vehicle trip, in time
+		 *            order
+		 */
+		public void handleTrip(List<ArrivalDeparture> arrDepList);
+	}
+	
+	/**
+	 * The arrivals/departures for a vehicle trip while streaming
+	 */
+	private static class StreamedTrip {
+		private final DbDataMapKey key;
+		private final List<ArrivalDeparture> arrDepList = 
+				new ArrayList<ArrivalDeparture>();
+		private long lastTime;
+		// When the trip was determined to be complete
+		private long completedTime;
+		
+		private StreamedTrip(DbDataMapKey key) {
+			this.key = key;
+		}
+	}
+	
+	/**
+	 * Streams the arrivals/departures and the matches from the database for
+	 * the specified time range. Instead of reading all of the data into
+	 * memory, the arrivals/departures are grouped per vehicle trip as they are
+	 * read and handler.handleTrip() is called for each trip once it is
+	 * complete. A vehicle trip is complete once the vehicle has an
+	 * arrival/departure for a different trip, once there has been no
+	 * arrival/departure for it for a while, or once all of the data has been
+	 * read. Only the matches for a limited amount of time are kept in memory.
+	 * <p>
+	 * Note that unlike readData(), if a vehicle goes back to a trip that it
+	 * already left then the trip is handed off as two separate parts.
+	 * 
+	 * @param dbName
+	 * @param beginTime
+	 * @param endTime
+	 * @param handler
+	 *            called for each vehicle trip
+	 */
+	public void streamData(final String dbName, Date beginTime, Date endTime,
+			TripHandler handler) {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Streaming historic data from db...");
+		
+		int batchSize = streamingBatchSize.getValue();
+		KeysetCursor<ArrivalDeparture> arrDepCursor = 
+				new KeysetCursor<ArrivalDeparture>(beginTime, endTime,
+						batchSize, "arrival/departures") {
+			@Override
+			protected List<ArrivalDeparture> readBatch(Date begin, Date end,
+					int maxResults) {
+				return ArrivalDeparture.getArrivalsDeparturesFromDb(dbName,
+						begin, end, "ORDER BY time", 0, maxResults, null);
+			}
+
+			@Override
+			protected long getTime(ArrivalDeparture arrDep) {
+				return arrDep.getTime();
+			}
+		};
+		KeysetCursor<Match> matchCursor = 
+				new KeysetCursor<Match>(beginTime, endTime, batchSize,
+						"matches") {
+			@Override
+			protected List<Match> readBatch(Date begin, Date end,
+					int maxResults) {
+				// Only want matches that are not at a stop since for that
+				// situation instead using arrivals/departures
+				return Match.getMatchesFromDb(dbName, begin, end,
+						"AND atStop = false ORDER BY avlTime", 0, maxResults);
+			}
+
+			@Override
+			protected long getTime(Match match) {
+				return match.getTime();
+			}
+		};
+		
+		// The matches read in so far that are still needed, keyed by trip.
+		// Made available via getMatchesMap() while handling trips.
+		matchesMap = new HashMap<DbDataMapKey, List<Match>>();
+		Map<DbDataMapKey, Long> lastMatchTimes = 
+				new HashMap<DbDataMapKey, Long>();
+		
+		// The trip each vehicle is currently on, keyed by vehicle ID
+		Map<String, StreamedTrip> currentTrips = 
+				new HashMap<String, StreamedTrip>();
+		// Trips that are complete but are waiting for their matches to be
+		// read in. In order of completedTime.
+		Queue<StreamedTrip> completedTrips = new ArrayDeque<StreamedTrip>();
+		
+		long lastCleanupTime = beginTime.getTime();
+		long time = beginTime.getTime();
+		int tripsHandled = 0;
+		ArrivalDeparture arrDep;
+		while ((arrDep = arrDepCursor.next()) != null) {
+			time = arrDep.getTime();
+			
+			// Add the arrival/departure to the trip for the vehicle
+			DbDataMapKey key = getKey(arrDep.getServiceId(), arrDep.getDate(),
+					arrDep.getTripId(), arrDep.getVehicleId());
+			StreamedTrip trip = currentTrips.get(arrDep.getVehicleId());
+			if (trip != null && !trip.key.equals(key)) {
+				// Vehicle is on a new trip so previous one is complete
+				trip.completedTime = time;
+				completedTrips.add(trip);
+				trip = null;
+			}
+			if (trip == null) {
+				trip = new StreamedTrip(key);
+				currentTrips.put(arrDep.getVehicleId(), trip);
+			}
+			trip.arrDepList.add(arrDep);
+			trip.lastTime = time;
+			
+			// Read in the matches up to the current time
+			readMatches(matchCursor, time, lastMatchTimes);
+			
+			// Hand off the completed trips whose matches have all been read
+			while (!completedTrips.isEmpty()
+					&& completedTrips.peek().completedTime
+						+ STREAMING_MATCHES_SLACK_MSEC <= time) {
+				handler.handleTrip(completedTrips.poll().arrDepList);
+				++tripsHandled;
+			}
+			
+			// Every once in a while consider idle trips to be complete and
+			// get rid of matches that are no longer needed
+			if (time - lastCleanupTime >= STREAMING_MATCHES_SLACK_MSEC) {
+				lastCleanupTime = time;
+				
+				Iterator<StreamedTrip> iterator = 
+						currentTrips.values().iterator();
+				while (iterator.hasNext()) {
+					StreamedTrip currentTrip = iterator.next();
+					if (currentTrip.lastTime + STREAMING_IDLE_TRIP_MSEC < time) {
+						currentTrip.completedTime = time;
+						completedTrips.add(currentTrip);
+						iterator.remove();
+					}
+				}
+				
+				Set<DbDataMapKey> keysInUse = new HashSet<DbDataMapKey>();
+				for (StreamedTrip currentTrip : currentTrips.values())
+					keysInUse.add(currentTrip.key);
+				for (StreamedTrip completedTrip : completedTrips)
+					keysInUse.add(completedTrip.key);
+				Iterator<Map.Entry<DbDataMapKey, Long>> matchIterator =
+						lastMatchTimes.entrySet().iterator();
+				while (matchIterator.hasNext()) {
+					Map.Entry<DbDataMapKey, Long> entry = matchIterator.next();
+					if (entry.getValue() 
+								+ 2 * STREAMING_MATCHES_SLACK_MSEC < time
+							&& !keysInUse.contains(entry.getKey())) {
+						matchesMap.remove(entry.getKey());
+						matchIterator.remove();
+					}
+				}
+			}
+		}
+		
+		// Read in the matches that might be needed by the remaining trips
+		// and then hand off the remaining trips
+		readMatches(matchCursor, time + STREAMING_MATCHES_SLACK_MSEC,
+				lastMatchTimes);
+		for (StreamedTrip trip : completedTrips)
+			handler.handleTrip(trip.arrDepList);
+		for (StreamedTrip trip : currentTrips.values())
+			handler.handleTrip(trip.arrDepList);
+		tripsHandled += completedTrips.size() + currentTrips.size();
+		matchesMap = null;
+		
+		logger.info("Streaming {} vehicle trips of historic data took {} msec",
+				tripsHandled, timer.elapsedMsec());
+	}
+	
+	/**
+	 * Reads in matches from the cursor up to and including the specified time
+	 * and adds them to matchesMap.
+	 * 
+	 * @param matchCursor
+	 * @param upToTime
+	 * @param lastMatchTimes
+	 *            updated with time of the latest match for each trip
+	 */
+	private void readMatches(KeysetCursor<Match> matchCursor, long upToTime,
+			Map<DbDataMapKey, Long> lastMatchTimes) {
+		Match match;
+		while ((match = matchCursor.peek()) != null
+				&& match.getTime() <= upToTime) {
+			matchCursor.next();
+			addMatchToMap(matchesMap, match);
+			lastMatchTimes.put(getKey(match.getServiceId(), match.getDate(),
+					match.getTripId(), match.getVehicleId()), match.getTime());
+		}
+	}
+	
 	/**
 	 * Provides the arrival/departure data in a map. The values in the map are
 	 * Lists of ArrivalDeparture times, one list for each trip where there was
@@ -0,0 +1,160 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.travelTimes;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads rows from the database a page at a time, ordered by time. Instead of
+ * using an offset, which gets slower and slower for each page since the
+ * database needs to go through all of the previous rows, each page starts at
+ * the time of the last row of the previous page. Since multiple rows can have
+ * the same time the rows with the same time as the last row of a full page
+ * are not returned until the next page, which starts at that time. If every
+ * row of a full page has the same time then all of the rows with that time
+ * are read in with a separate query that is not limited to the page size.
+ * This way no rows are skipped or returned twice.
+ * 
+ * @author SkiBu Smith
+ * 
+ * @param <T>
+ *            ArrivalDeparture or Match
+ */
+abstract class KeysetCursor<T> {
+	private final Date endTime;
+	private final int batchSize;
+	private final String description;
+	private Date cursorTime;
+	private List<T> batch = Collections.emptyList();
+	private int index = 0;
+	private boolean exhausted = false;
+	private long rowsRead = 0;
+	
+	private static final Logger logger = 
+			LoggerFactory.getLogger(KeysetCursor.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param beginTime
+	 * @param endTime
+	 * @param batchSize
+	 *            maximum number of rows to read per page
+	 * @param description
+	 *            what is being read, for logging
+	 */
+	KeysetCursor(Date beginTime, Date endTime, int batchSize,
+			String description) {
+		this.cursorTime = beginTime;
+		this.endTime = endTime;
+		this.batchSize = batchSize;
+		this.description = description;
+	}
+	
+	/**
+	 * Reads in rows with time >= beginTime and time < endTime, ordered by
+	 * time
+	 * 
+	 * @param beginTime
+	 * @param endTime
+	 * @param maxResults
+	 *            maximum number of rows to read in
+	 * @return the rows, or null if there was a problem
+	 */
+	protected abstract List<T> readBatch(Date beginTime, Date endTime,
+			int maxResults);
+	
+	protected abstract long getTime(T row);
+	
+	/**
+	 * Makes sure batch has a row at index, unless all rows have been read
+	 */
+	private void fill() {
+		while (index >= batch.size() && !exhausted) {
+			List<T> rows = read(cursorTime, endTime, batchSize);
+			
+			if (rows.size() < batchSize) {
+				// Last page
+				batch = rows;
+				exhausted = true;
+			} else {
+				// Hold back the rows with the same time as the last row
+				// since there might be more rows with that time
+				long lastTime = getTime(rows.get(rows.size()-1));
+				int end = rows.size();
+				while (end > 0 && getTime(rows.get(end-1)) == lastTime)
+					--end;
+				if (end > 0) {
+					batch = rows.subList(0, end);
+					cursorTime = new Date(lastTime);
+				} else {
+					// Every row of the page has the same time so can't page
+					// using time. Read in all of the rows for that time
+					// without limiting the number and continue after it.
+					logger.warn("All {} {} read in have the same time {} so "
+							+ "reading in all of them at once. Should "
+							+ "increase transitime.travelTimes."
+							+ "streamingBatchSize.", 
+							rows.size(), description, new Date(lastTime));
+					batch = read(new Date(lastTime), new Date(lastTime + 1),
+							Integer.MAX_VALUE);
+					cursorTime = new Date(lastTime + 1);
+				}
+			}
+			index = 0;
+			rowsRead += batch.size();
+			logger.info("Read in total of {} {}", rowsRead, description);
+		}
+	}
+	
+	/**
+	 * Calls readBatch() and makes sure that it succeeded
+	 * 
+	 * @return the rows
+	 */
+	private List<T> read(Date beginTime, Date endTime, int maxResults) {
+		List<T> rows = readBatch(beginTime, endTime, maxResults);
+		if (rows == null)
+			throw new RuntimeException("Could not read " + description
+					+ " from database.");
+		return rows;
+	}
+	
+	/**
+	 * @return the next row without consuming it, or null if no more
+	 */
+	T peek() {
+		fill();
+		return index < batch.size() ? batch.get(index) : null;
+	}
+	
+	/**
+	 * @return the next row, or null if no more
+	 */
+	T next() {
+		T row = peek();
+		if (row != null)
+			++index;
+		return row;
+	}
+}
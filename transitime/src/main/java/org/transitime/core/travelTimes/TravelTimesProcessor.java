@@ -17,19 +17,28 @@
 
 package org.transitime.core.travelTimes;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.TemporalDifference;
 import org.transitime.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -57,6 +66,13 @@ import com.amazonaws.services.importexport.model.InvalidParameterException;
  * get greater accuracy (assuming that buses might consistently travel
  * differently on Monday compared to Friday even though they have the same
  * service ID.
+ * <p>
+ * The processing is done in parallel using a ForkJoinPool. The historic data
+ * is partitioned by route and direction, which means that all the data for a
+ * trip pattern is in the same partition, and each partition has its own
+ * accumulator so that no locking is needed. The accumulators are merged at
+ * the end and the travel times are then determined in parallel by trip
+ * pattern.
  *
  * @author SkiBu Smith
  *
@@ -137,28 +153,89 @@ public class TravelTimesProcessor {
 					+ "to make sure that don't get invalid travel times due to "
 					+ "bad data.");
 	
-	// The aggregate data processed from the historic db data.
-	// ProcessedDataMapKey combines tripId and stopPathIndex in 
-	// order to combine data for a particular tripId and stopPathIndex.
-	// stopTimesMap contains data for each trip on how long vehicle was stopped
-	// for at a particular stop. It is obtained by comparing the arrival time
-	// with the departure time for each stop for each trip. There is one
-	// entry per data point, hence a List of Integers with one Integer
-	// per data point.
-	private static Map<ProcessedDataMapKey, List<Integer>> stopTimesMap = 
-			new HashMap<ProcessedDataMapKey, List<Integer>>();	
-	// Values are List of List of times where outer List is by single trip and
-	// inner List is by travel time segment. For every trip that has historical
-	// data we get a single entry in the outer List. For every travel time
-	// segment we have historical data for we get an entry in the inner List.
-	private static Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap =
-			new HashMap<ProcessedDataMapKey, List<List<Integer>>>();
+	private static BooleanConfigValue streamHistoricData =
+			new BooleanConfigValue("transitime.travelTimes.streamHistoricData",
+					false,
+					"If true then instead of reading all of the historic "
+					+ "arrivals/departures and matches into memory before "
+					+ "processing them, the data is streamed from the "
+					+ "database and processed one vehicle trip at a time. "
+					+ "This greatly reduces the memory needed when "
+					+ "processing a large amount of data.");
+	
+	private static IntegerConfigValue aggregationThreads =
+			new IntegerConfigValue("transitime.travelTimes.aggregationThreads",
+					0,
+					"Number of threads used for processing the historic data "
+					+ "into travel times. A value of 0 means that the number "
+					+ "of available processors is used.");
+	
+	// When streaming the historic data this many trips are collected before
+	// they are processed in parallel
+	private final static int STREAMED_TRIPS_PER_BATCH = 2000;
+	
+	// The aggregate data processed from the historic db data, partitioned
+	// by route and direction so that each partition can be processed by a
+	// separate thread. Since partitioning by route and direction all the
+	// data for a trip pattern is in a single partition.
+	private final Accumulator[] partitions;
+	
+	// For processing the partitions in parallel
+	private final ForkJoinPool forkJoinPool;
+	
+	// For logging how long the entire run took
+	private final IntervalTimer runTimer = new IntervalTimer();
 
 	private static final Logger logger = 
 			LoggerFactory.getLogger(TravelTimesProcessor.class);
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * Creates the ForkJoinPool and the accumulator for each partition. Also
+	 * resets the peak heap usage so that the peak for this run can be logged.
+	 */
+	public TravelTimesProcessor() {
+		int threads = aggregationThreads.getValue();
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		forkJoinPool = new ForkJoinPool(threads);
+		
+		// Use more partitions than threads so that the load is balanced
+		// even if some routes have far more data than others
+		partitions = new Accumulator[4 * threads];
+		for (int i = 0; i < partitions.length; ++i)
+			partitions[i] = new Accumulator();
+		
+		resetPeakHeapUsage();
+	}
+	
+	/**
+	 * Resets the peak usage of the heap memory pools.
+	 */
+	private static void resetPeakHeapUsage() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+	
+	/**
+	 * Returns the peak heap usage since resetPeakHeapUsage() was called. The
+	 * peaks of the separate heap memory pools don't necessarily occur at the
+	 * same time so this is an upper bound.
+	 * 
+	 * @return peak heap usage in bytes
+	 */
+	private static long getPeakHeapUsage() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+	
 	/**
 	 * Special MapKey class so that can make sure using the proper one for the
 	 * associated maps in this class. The key is made up of the tripId, the
@@ -201,39 +278,148 @@ public class TravelTimesProcessor {
 	}
 
 	/**
-	 * Adds stop times for a stop path for a single trip to the stopTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param stopTimeMsec
+	 * A growable array of ints. Used for the historic data points instead of
+	 * Lists of Integers since there can be a huge number of data points and
+	 * this way there isn't an object for each one.
 	 */
-	private static void addStopTimeToMap(ProcessedDataMapKey mapKey,
-			int stopTimeMsec) {
-		List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
-		if (stopTimesForStop == null) {
-			stopTimesForStop = new ArrayList<Integer>();
-			stopTimesMap.put(mapKey, stopTimesForStop);
-		}
-		stopTimesForStop.add(stopTimeMsec);
+	private static class IntArray {
+		private int[] values = new int[8];
+		private int size = 0;
+		
+		private void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = value;
+		}
+		
+		private void addAll(IntArray other) {
+			if (size + other.size > values.length)
+				values = Arrays.copyOf(values,
+						Math.max(size + other.size, 2 * size));
+			System.arraycopy(other.values, 0, values, size, other.size);
+			size += other.size;
+		}
+		
+		private int get(int index) {
+			return values[index];
+		}
+		
+		private int size() {
+			return size;
+		}
+		
+		/**
+		 * @return the values as a List, for use with Statistics
+		 */
+		private List<Integer> toList() {
+			List<Integer> list = new ArrayList<Integer>(size);
+			for (int i = 0; i < size; ++i)
+				list.add(values[i]);
+			return list;
+		}
 	}
 	
 	/**
-	 * Adds travel times for stop path for a single trip to the travelTimesMap.
-	 * 
-	 * @param mapKey
-	 * @param travelTimesForStopPath
+	 * The aggregate data processed from the historic db data for a partition.
+	 * ProcessedDataMapKey combines tripId and stopPathIndex in order to
+	 * combine data for a particular tripId and stopPathIndex. Only accessed by
+	 * a single thread at a time so doesn't need to be synchronized.
 	 */
-	private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
-			List<Integer> travelTimesForStopPath) {
-		// If there is no data then simply return
-		if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty())
-			return;
+	private static class Accumulator {
+		// Contains data for each trip on how long vehicle was stopped for at
+		// a particular stop. It is obtained by comparing the arrival time
+		// with the departure time for each stop for each trip. There is one
+		// value per data point.
+		private Map<ProcessedDataMapKey, IntArray> stopTimesMap = 
+				new HashMap<ProcessedDataMapKey, IntArray>();
+		
+		// For every trip that has historical data there is the number of
+		// travel time segments followed by the travel time for each of the
+		// segments.
+		private Map<ProcessedDataMapKey, IntArray> travelTimesMap =
+				new HashMap<ProcessedDataMapKey, IntArray>();
 		
-		List<List<Integer>> travelTimesForStop = travelTimesMap.get(mapKey);
-		if (travelTimesForStop == null) {
-			travelTimesForStop = new ArrayList<List<Integer>>();
-			travelTimesMap.put(mapKey, travelTimesForStop);
+		/**
+		 * Adds stop times for a stop path for a single trip to the
+		 * stopTimesMap.
+		 * 
+		 * @param mapKey
+		 * @param stopTimeMsec
+		 */
+		private void addStopTime(ProcessedDataMapKey mapKey, int stopTimeMsec) {
+			IntArray stopTimesForStop = stopTimesMap.get(mapKey);
+			if (stopTimesForStop == null) {
+				stopTimesForStop = new IntArray();
+				stopTimesMap.put(mapKey, stopTimesForStop);
+			}
+			stopTimesForStop.add(stopTimeMsec);
+		}
+		
+		/**
+		 * Adds travel times for stop path for a single trip to the
+		 * travelTimesMap.
+		 * 
+		 * @param mapKey
+		 * @param travelTimesForStopPath
+		 */
+		private void addTravelTimes(ProcessedDataMapKey mapKey, 
+				int[] travelTimesForStopPath) {
+			// If there is no data then simply return
+			if (travelTimesForStopPath == null 
+					|| travelTimesForStopPath.length == 0)
+				return;
+			
+			IntArray travelTimesForStop = travelTimesMap.get(mapKey);
+			if (travelTimesForStop == null) {
+				travelTimesForStop = new IntArray();
+				travelTimesMap.put(mapKey, travelTimesForStop);
+			}
+			travelTimesForStop.add(travelTimesForStopPath.length);
+			for (int travelTime : travelTimesForStopPath)
+				travelTimesForStop.add(travelTime);
+		}
+		
+		/**
+		 * Moves all the data from the other accumulator into this one.
+		 * 
+		 * @param other
+		 */
+		private void merge(Accumulator other) {
+			merge(stopTimesMap, other.stopTimesMap);
+			merge(travelTimesMap, other.travelTimesMap);
+			other.stopTimesMap = new HashMap<ProcessedDataMapKey, IntArray>();
+			other.travelTimesMap = new HashMap<ProcessedDataMapKey, IntArray>();
+		}
+		
+		private static void merge(Map<ProcessedDataMapKey, IntArray> map,
+				Map<ProcessedDataMapKey, IntArray> otherMap) {
+			for (Map.Entry<ProcessedDataMapKey, IntArray> entry : 
+					otherMap.entrySet()) {
+				IntArray values = map.get(entry.getKey());
+				if (values == null)
+					map.put(entry.getKey(), entry.getValue());
+				else
+					values.addAll(entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * The historic data for a single vehicle trip, so that it can be
+	 * processed by any thread.
+	 */
+	private static class TripData {
+		// The ArrivalDepartures for vehicle for the trip
+		private final List<ArrivalDeparture> arrDepList;
+		// The matches for the trip. Never null.
+		private final List<Match> matchesForTrip;
+		
+		private TripData(List<ArrivalDeparture> arrDepList,
+				List<Match> matchesForTrip) {
+			this.arrDepList = arrDepList;
+			this.matchesForTrip = matchesForTrip != null ? 
+					matchesForTrip : new ArrayList<Match>();
 		}
-		travelTimesForStop.add(travelTimesForStopPath);
 	}
 	
 	/**
@@ -252,9 +438,12 @@ public class TravelTimesProcessor {
 	 * For when the arrival/departure is for first stop of trip. If the schedule
 	 * adherence isn't too bad adds the stop time to the stop wait map.
 	 * 
+	 * @param accumulator
+	 *            where to put the resulting data
 	 * @param arrDep
 	 */
-	private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+	private static void processFirstStopOfTrip(Accumulator accumulator,
+			ArrivalDeparture arrDep) {
 		// Only need to handle departure for first stop in trip
 		if (arrDep.getStopPathIndex() != 0) 
 			return;
@@ -287,7 +476,7 @@ public class TravelTimesProcessor {
 						arrDep.getStopId());
 
 		// Add this stop time to map so it can be averaged
-		addStopTimeToMap(mapKeyForTravelTimes, lateTimeMsec);		
+		accumulator.addStopTime(mapKeyForTravelTimes, lateTimeMsec);		
 	}
 	
 	/**
@@ -298,26 +487,17 @@ public class TravelTimesProcessor {
 	 * list of matches for the stopPath directly from the map instead of getting
 	 * all the matches for the trip and then filtering them.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
+	 *            the matches for the entire trip since that is how the data
+	 *            is available
 	 * @param arrDep
 	 * @return List of Match objects. Never returns null.
 	 */
-	private static List<Match> getMatchesForStopPath(DataFetcher dataFetcher,
-			ArrivalDeparture arrDep) {
+	private static List<Match> getMatchesForStopPath(
+			List<Match> matchesForTrip, ArrivalDeparture arrDep) {
 		// For returning the results
 		List<Match> matchesForStopPath = new ArrayList<Match>();
 
-		// Get the matches for the entire trip since that is
-		// how the data is available
-		DbDataMapKey mapKey = dataFetcher.getKey(arrDep.getServiceId(),
-				arrDep.getDate(), arrDep.getTripId(), arrDep.getVehicleId());
-		List<Match> matchesForTrip = dataFetcher.getMatchesMap().get(mapKey);
-		
-		// If no matches were found for this trip then return empty
-		// array (don't continue since would get NPE).
-		if (matchesForTrip == null)
-			return matchesForStopPath;
-		
 		for (Match match : matchesForTrip) {
 			if (match.getStopPathIndex() == arrDep.getStopPathIndex())
 				matchesForStopPath.add(match);
@@ -442,7 +622,7 @@ public class TravelTimesProcessor {
 	 * matches will include the departure time from the first stop (arrDep1), in
 	 * between matches, and the arrival time as the second stop (arrDep2).
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
@@ -450,7 +630,7 @@ public class TravelTimesProcessor {
 	 * @return List of MatchPoints, which contain the basic Match info needed
 	 *         for determining travel times.
 	 */
-	private static List<MatchPoint> getMatchPoints(DataFetcher dataFetcher,
+	private static List<MatchPoint> getMatchPoints(List<Match> matchesForTrip,
 			ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
 		// The array to be returned
 		List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
@@ -462,7 +642,7 @@ public class TravelTimesProcessor {
 		// Stop path is long enough such that have more than one travel
 		// time segment. Get the corresponding matches
 		List<Match> matchesForStopPath = 
-				getMatchesForStopPath(dataFetcher, arrDep2);
+				getMatchesForStopPath(matchesForTrip, arrDep2);
 
 		// Add the matches that are in between the arrival and the departure.
 		for (Match match : matchesForStopPath) {
@@ -493,17 +673,17 @@ public class TravelTimesProcessor {
 	 * path, to determine the travel time for each travel time segment for this
 	 * particular trip.
 	 * 
-	 * @param dataFetcher
+	 * @param matchesForTrip
 	 * @param arrDep1
 	 *            The departure stop
 	 * @param arrDep2
 	 *            The arrival stop. Also defines which stop path working with.
-	 * @return List of travel times in msec. There is a separate travel time for
-	 *         each travel time segment. If the match points are garbled and go
-	 *         backwards in time then null is returned.
+	 * @return Array of travel times in msec. There is a separate travel time
+	 *         for each travel time segment. If the match points are garbled
+	 *         and go backwards in time then null is returned.
 	 */
-	private List<Integer> determineTravelTimesForStopPath(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
+	private int[] determineTravelTimesForStopPath(
+			List<Match> matchesForTrip, ArrivalDeparture arrDep1,
 			ArrivalDeparture arrDep2) {
 		// Determine departure time. If shouldn't use departures times
 		// for terminal departure that are earlier then schedule time
@@ -529,9 +709,7 @@ public class TravelTimesProcessor {
 			// Determine and return the travel time between the stops
 			int travelTimeBetweenStopsMsec = 
 					(int) (arrDep2.getTime() - departureTime);
-			List<Integer> travelTimesForStopPath = new ArrayList<Integer>();
-			travelTimesForStopPath.add(travelTimeBetweenStopsMsec);
-			return travelTimesForStopPath;
+			return new int[] {travelTimeBetweenStopsMsec};
 		}
 
 		// Stop path is longer than a single travel time segment so need to
@@ -540,7 +718,7 @@ public class TravelTimesProcessor {
 		double travelTimeSegmentLength = getTravelTimeSegmentLength(arrDep2);
 
 		List<MatchPoint> matchPoints = 
-				getMatchPoints(dataFetcher, arrDep1, arrDep2);
+				getMatchPoints(matchesForTrip, arrDep1, arrDep2);
 		
 		// The times when a travel time segment vertex is crossed.
 		// Will include the departure time, the middle vertices, and
@@ -606,7 +784,7 @@ public class TravelTimesProcessor {
 		
 		// Now that we have all the vertex times for the stop path determine the
 		// travel times and add them to the list of times to be returned.
-		List<Integer> travelTimesForStopPath = new ArrayList<Integer>();
+		int[] travelTimesForStopPath = new int[vertexTimes.size()-1];
 		for (int i=0; i<vertexTimes.size()-1; ++i) {
 			// The segment time is the time between two vertices
 			long vertexTime1 = vertexTimes.get(i);
@@ -642,7 +820,7 @@ public class TravelTimesProcessor {
 			}
 			
 			// Keep track of this segment time for this segment
-			travelTimesForStopPath.add(segmentTime);
+			travelTimesForStopPath[i] = segmentTime;
 		}
 		return travelTimesForStopPath;
 	}
@@ -653,19 +831,21 @@ public class TravelTimesProcessor {
 	 * stop and then an arrival for the subsequent stop. If the schedule
 	 * adherence is off too much (by MAX_SCHED_ADH_SECS) then the data is
 	 * ignored. If schedule adherence is acceptable then the resulting travel
-	 * and stop/dwell times are put into the stopTimesMap and travelTimesMap
-	 * members for further processing.
+	 * and stop/dwell times are put into the accumulator for further
+	 * processing.
 	 * 
-	 * @param dataFetcher
-	 *            Contains the AVL based historic data in maps
+	 * @param accumulator
+	 *            Where to put the resulting data
+	 * @param matchesForTrip
+	 *            The AVL based matches for the trip
 	 * @param arrDep1
 	 *            The first arrival/departure
 	 * @param arrDep2
 	 *            The second arrival/departure
 	 */
 	private void processDataBetweenTwoArrivalDepartures(
-			DataFetcher dataFetcher, ArrivalDeparture arrDep1,
-			ArrivalDeparture arrDep2) {
+			Accumulator accumulator, List<Match> matchesForTrip,
+			ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
 		// If schedule adherence is really far off then ignore the data
 		// point because it would skew the results.
 		TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -692,7 +872,7 @@ public class TravelTimesProcessor {
 			int dwellTimeMsec = (int) (arrDep2.getTime() - arrDep1.getTime());
 
 			// Add this stop time to map so it can be averaged
-			addStopTimeToMap(mapKeyForTravelTimes, dwellTimeMsec);		
+			accumulator.addStopTime(mapKeyForTravelTimes, dwellTimeMsec);		
 
 			return;
 		}
@@ -703,10 +883,11 @@ public class TravelTimesProcessor {
 				&& arrDep1.isDeparture()
 				&& arrDep2.isArrival()) {
 			// Determine the travel times and add them to the map
-			List<Integer> travelTimesForStopPath = 
-					determineTravelTimesForStopPath(dataFetcher, arrDep1, 
+			int[] travelTimesForStopPath = 
+					determineTravelTimesForStopPath(matchesForTrip, arrDep1, 
 							arrDep2);
-			addTravelTimesToMap(mapKeyForTravelTimes, travelTimesForStopPath);
+			accumulator.addTravelTimes(mapKeyForTravelTimes,
+					travelTimesForStopPath);
 				
 			return;
 		}
@@ -714,16 +895,16 @@ public class TravelTimesProcessor {
 	
 	/**
 	 * Process historic data from database for single trip. Puts resulting data
-	 * into stopTimesMap and travelTimesMap.
+	 * into the accumulator.
 	 * 
-	 * @param dataFetcher
-	 *            Contains arrival/departures and matches fetched from database
-	 * @param arrDepList
-	 *            List of ArrivalDepartures for vehicle for a trip
+	 * @param accumulator
+	 *            Where to put the resulting data
+	 * @param tripData
+	 *            The ArrivalDepartures and matches for vehicle for a trip
 	 */
-	private void aggregateTripDataIntoMaps(DataFetcher dataFetcher,
-			List<ArrivalDeparture> arrDepList) {
-		
+	private void aggregateTripDataIntoMaps(Accumulator accumulator,
+			TripData tripData) {
+		List<ArrivalDeparture> arrDepList = tripData.arrDepList;
 		for (int i=0; i<arrDepList.size()-1; ++i) {
 			ArrivalDeparture arrDep1 = arrDepList.get(i);
 			
@@ -735,14 +916,71 @@ public class TravelTimesProcessor {
 					continue;
 
 				// Handle first stop
-				processFirstStopOfTrip(arrDep1);
+				processFirstStopOfTrip(accumulator, arrDep1);
 			} 
 			
 			// Deal with normal travel times
 			ArrivalDeparture arrDep2 = arrDepList.get(i+1);				
-			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);							
+			processDataBetweenTwoArrivalDepartures(accumulator,
+					tripData.matchesForTrip, arrDep1, arrDep2);
 		}		
 	}
+	
+	/**
+	 * Runs the tasks on the ForkJoinPool and waits for all of them to
+	 * complete.
+	 * 
+	 * @param tasks
+	 */
+	private void runInParallel(final List<? extends ForkJoinTask<?>> tasks) {
+		forkJoinPool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(tasks);
+			}
+		});
+	}
+	
+	/**
+	 * Processes the historic data for the trips in parallel. The trips are
+	 * partitioned by route and direction and the trips for a partition are
+	 * processed by a single task that puts the resulting data into the
+	 * accumulator for the partition.
+	 * 
+	 * @param trips
+	 *            The historic data for the trips
+	 */
+	private void processTrips(List<TripData> trips) {
+		List<List<TripData>> tripsByPartition = 
+				new ArrayList<List<TripData>>(partitions.length);
+		for (int i = 0; i < partitions.length; ++i)
+			tripsByPartition.add(new ArrayList<TripData>());
+		for (TripData tripData : trips) {
+			debugLogTrip(tripData.arrDepList);
+			ArrivalDeparture arrDep = tripData.arrDepList.get(0);
+			int partition = (Objects.hash(arrDep.getRouteId(),
+					arrDep.getDirectionId()) & Integer.MAX_VALUE)
+					% partitions.length;
+			tripsByPartition.get(partition).add(tripData);
+		}
+		
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int i = 0; i < partitions.length; ++i) {
+			final Accumulator accumulator = partitions[i];
+			final List<TripData> tripsForPartition = tripsByPartition.get(i);
+			if (tripsForPartition.isEmpty())
+				continue;
+			
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					for (TripData tripData : tripsForPartition)
+						aggregateTripDataIntoMaps(accumulator, tripData);
+				}
+			});
+		}
+		runInParallel(tasks);
+	}
 		
 	/**
 	 * Converts the list of travel times such that times are grouped by segment
@@ -759,8 +997,8 @@ public class TravelTimesProcessor {
 	 * as possible, yet not try to use data that doesn't pertain.
 	 * 
 	 * @param historicTravelTimes
-	 *            List of List of times where outer List is by single trip and
-	 *            inner List is travel time segment.
+	 *            For each single trip the number of travel time segments
+	 *            followed by the time for each travel time segment.
 	 * @param trip
 	 *            Contains config info for the trip that the data is for. Used
 	 *            to determine if the historic data for the trip has the proper
@@ -773,8 +1011,7 @@ public class TravelTimesProcessor {
 	 *         or null if there is no valid historic data for the trip.
 	 */
 	private static List<List<Integer>> bySegment(
-			List<List<Integer>> historicTravelTimes, Trip trip,
-			int stopPathIndex) {
+			IntArray historicTravelTimes, Trip trip, int stopPathIndex) {
 		// Determine how many travel time segments there should be for the stop
 		// path according to the current configuration of the trip's path 
 		// length.
@@ -792,11 +1029,10 @@ public class TravelTimesProcessor {
 		
 		// Put the historic per trip travel time data into the per segment array
 		boolean validDataFound = false;
-		for (int tripIdx = 0; tripIdx < historicTravelTimes.size(); ++tripIdx) {
+		int index = 0;
+		while (index < historicTravelTimes.size()) {
 			// Determine historic travel times for the current trip.
-			List<Integer> historicTravelTimeForTrip =
-					historicTravelTimes.get(tripIdx);
-			int numberHistoricTravelTimeSegs = historicTravelTimeForTrip.size();
+			int numberHistoricTravelTimeSegs = historicTravelTimes.get(index++);
 
 			// Only use the historic travel times if have the number of travel
 			// time segments for the historical data matches the current 
@@ -804,10 +1040,11 @@ public class TravelTimesProcessor {
 			if (numberHistoricTravelTimeSegs == expectedTravelTimeSegments) {
 				validDataFound = true;
 				for (int segIdx = 0; segIdx < expectedTravelTimeSegments; ++segIdx) {
-					Integer value = historicTravelTimeForTrip.get(segIdx);
+					int value = historicTravelTimes.get(index + segIdx);
 					timesBySegment.get(segIdx).add(value);
 				}
 			}
+			index += numberHistoricTravelTimeSegs;
 		}
 		
 		// If valid data found then return the times grouped by segment
@@ -818,9 +1055,128 @@ public class TravelTimesProcessor {
 	}
 	
 	/**
-	 * Takes the data from the stopTimesMap and travelTimesMap and creates
-	 * corresponding travel times. Puts those travel times into the
-	 * TravelTimeInfoMap that is returned.
+	 * Determines the travel times for a trip/stop path from the processed
+	 * historic data. Only reads the accumulator so can be called by multiple
+	 * threads at once.
+	 * 
+	 * @param accumulator
+	 *            Contains all the processed historic data
+	 * @param mapKey
+	 *            Specifies the trip/stop path
+	 * @param trip
+	 *            The configured trip for the mapKey
+	 * @return The travel times, or null if the historic data doesn't match
+	 *         the current configuration of the trip
+	 */
+	private static TravelTimeInfo createTravelTimeInfo(Accumulator accumulator,
+			ProcessedDataMapKey mapKey, Trip trip) {
+		// Make sure stopPathIndex and stopId from historic data match
+		// the current trip configuration. This is important since stops
+		// for a trip might have changed.
+		if (mapKey.getStopPathIndex() >= trip.getStopPaths().size()) {
+			logger.error("Problem with stopPathIndex for historical data. "
+					+ "The stopPathIndex from the historical data {} is "
+					+ "greater than the number of stop paths for {}",
+					mapKey.getStopPathIndex(), trip);
+			return null;
+		}
+		String stopIdFromTrip = 
+				trip.getStopPath(mapKey.getStopPathIndex()).getStopId();
+		if (!mapKey.getStopId().equals(stopIdFromTrip)) {
+			logger.error("Problem with stopPathIndex for historical data. "
+					+ "The stopPathIndex from the historical data {} "
+					+ "corresponds to stopId={} but for the trip the "
+					+ "stopId={}. {}",
+					mapKey.getStopPathIndex(), mapKey.getStopId(), 
+					stopIdFromTrip, trip);
+			return null;
+		}
+		
+		// Determine average travel times for this trip/stop path
+		IntArray travelTimesForStopPathForTrip =
+				accumulator.travelTimesMap.get(mapKey);
+		List<Integer> averageTravelTimes = new ArrayList<Integer>();
+		if (travelTimesForStopPathForTrip != null) {
+			// Get the travel times, grouped by segment
+			List<List<Integer>> travelTimesBySegment =
+					bySegment(travelTimesForStopPathForTrip, trip,
+							mapKey.getStopPathIndex());
+
+			// Only continue to process if some of the historic data for 
+			// the trip was actually valid
+			if (travelTimesBySegment != null) {
+				// For each segment, process travel times...
+				for (List<Integer> travelTimesByTripForSegment : 
+						travelTimesBySegment) {
+					int averageTravelTimeForSegment = Statistics
+							.filteredMean(travelTimesByTripForSegment, 
+									FRACTION_LIMIT_FOR_SEGMENT_TIMES);
+					averageTravelTimes.add(averageTravelTimeForSegment);
+				}
+			}
+		}
+		
+		// Determine average stop time for this trip/stop
+		int averagedStopTime;
+		IntArray stopTimesForStopPathForTrip = 
+				accumulator.stopTimesMap.get(mapKey);
+		if (stopTimesForStopPathForTrip != null) { 
+			// For first stops of trip will be providing departure
+			// times so need to be conservative and bias the stop time
+			if (mapKey.getStopPathIndex() == 0) {
+				// First stop of trip so be extra conservative because
+				// don't want to determine that vehicles depart at 8:02
+				// when the doors actually shut at 8:01 and the vehicle
+				// starts moving slowly giving a slightly wrong departure
+				// time.
+				// Determine best stop time to use
+				averagedStopTime =
+						Statistics.biasedFilteredMean(
+								stopTimesForStopPathForTrip.toList(),
+								FRACTION_LIMIT_FOR_STOP_TIMES,
+								STD_DEV_BIAS_FOR_FIRST_STOP);
+				
+				// So far have determine when vehicle has departed. But should add
+				// a bit of a bias since passengers have to get on a few seconds
+				// before doors shut and vehicle starts moving.
+				averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
+			} else {
+				// Not first stop of trip
+				averagedStopTime = Statistics.filteredMean(
+						stopTimesForStopPathForTrip.toList(),
+						FRACTION_LIMIT_FOR_STOP_TIMES);
+			}
+		} else {
+			// No arrival and corresponding departure time for the stop. 
+			averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
+
+			// Not having stop time indicates possible problem unless it 
+			// is the last stop path for the trip. So if not the last stop  
+			// path for trip then log the problem.
+			if (mapKey.getStopPathIndex() != trip.getNumberStopPaths()-1) {
+				logger.debug("No stop times for {} even though there are " +
+					"travel times for that map key", mapKey);
+			}
+		}
+		
+		// Determine the travel time segment length actually used
+		double travelTimeSegLength = 
+				getTravelTimeSegmentLength(trip, mapKey.getStopPathIndex());
+		
+		// Put the results into TravelTimeInfo object so that it can be put
+		// into the TravelTimeInfo map
+		return new TravelTimeInfo(trip, mapKey.getStopPathIndex(),
+				averagedStopTime, averageTravelTimes, travelTimeSegLength);
+	}
+	
+	/**
+	 * Takes the data from the stopTimesMap and travelTimesMap of the
+	 * accumulators and creates corresponding travel times. Puts those travel
+	 * times into the TravelTimeInfoMap that is returned. The trip patterns
+	 * are processed in parallel.
+	 * <p>
+	 * Since this is the final step of processing the historic data also logs
+	 * the wall clock time and the peak heap usage for the whole run.
 	 * 
 	 * @param tripMap
 	 *            contains all the trips that are configured and that need
@@ -828,21 +1184,27 @@ public class TravelTimesProcessor {
 	 * @return TravelTimeInfoMap The generated travel times
 	 */
 	public TravelTimeInfoMap createTravelTimesFromMaps(
-			Map<String, Trip> tripMap) {
+			final Map<String, Trip> tripMap) {
 		logger.info("Processing data into a TravelTimeInfoMap...");
 		IntervalTimer intervalTimer = new IntervalTimer();
 
-		TravelTimeInfoMap travelTimeInfoMap = new TravelTimeInfoMap();
+		// Merge the data from all the partitions
+		final Accumulator accumulator = new Accumulator();
+		for (Accumulator partition : partitions)
+			accumulator.merge(partition);
 		
 		// Need to look at all trips that have data for. Therefore need
 		// to combine keys from both stopTimesMap and travelTimesMap.
 		Set<ProcessedDataMapKey> combinedKeySet = 
 				new HashSet<ProcessedDataMapKey>();
-		combinedKeySet.addAll(travelTimesMap.keySet());
-		combinedKeySet.addAll(stopTimesMap.keySet());
+		combinedKeySet.addAll(accumulator.travelTimesMap.keySet());
+		combinedKeySet.addAll(accumulator.stopTimesMap.keySet());
 		
 		// For each trip/stop path that had historical arrivals/departures and 
-		// or matches in the database...
+		// or matches in the database group the keys by trip pattern so that 
+		// the trip patterns can be processed in parallel
+		Map<String, List<ProcessedDataMapKey>> keysByTripPattern =
+				new HashMap<String, List<ProcessedDataMapKey>>();
 		for (ProcessedDataMapKey mapKey : combinedKeySet) {
 			// Determine the associated Trip object for the data
 			Trip trip = tripMap.get(mapKey.getTripId());
@@ -853,112 +1215,57 @@ public class TravelTimesProcessor {
 						mapKey.getTripId());
 				continue;
 			}
-
-			// Make sure stopPathIndex and stopId from historic data match
-			// the current trip configuration. This is important since stops
-			// for a trip might have changed.
-			if (mapKey.getStopPathIndex() >= trip.getStopPaths().size()) {
-				logger.error("Problem with stopPathIndex for historical data. "
-						+ "The stopPathIndex from the historical data {} is "
-						+ "greater than the number of stop paths for {}",
-						mapKey.getStopPathIndex(), trip);
-				continue;
-			}
-			String stopIdFromTrip = 
-					trip.getStopPath(mapKey.getStopPathIndex()).getStopId();
-			if (!mapKey.getStopId().equals(stopIdFromTrip)) {
-				logger.error("Problem with stopPathIndex for historical data. "
-						+ "The stopPathIndex from the historical data {} "
-						+ "corresponds to stopId={} but for the trip the "
-						+ "stopId={}. {}",
-						mapKey.getStopPathIndex(), mapKey.getStopId(), 
-						stopIdFromTrip, trip);
-				continue;
-			}
 			
-			// Determine average travel times for this trip/stop path
-			List<List<Integer>> travelTimesForStopPathForTrip =
-					travelTimesMap.get(mapKey);
-			List<Integer> averageTravelTimes = new ArrayList<Integer>();
-			if (travelTimesForStopPathForTrip != null) {
-				// Get the travel times, grouped by segment
-				List<List<Integer>> travelTimesBySegment =
-						bySegment(travelTimesForStopPathForTrip, trip,
-								mapKey.getStopPathIndex());
-
-				// Only continue to process if some of the historic data for 
-				// the trip was actually valid
-				if (travelTimesBySegment != null) {
-					// For each segment, process travel times...
-					for (List<Integer> travelTimesByTripForSegment : 
-							travelTimesBySegment) {
-						int averageTravelTimeForSegment = Statistics
-								.filteredMean(travelTimesByTripForSegment, 
-										FRACTION_LIMIT_FOR_SEGMENT_TIMES);
-						averageTravelTimes.add(averageTravelTimeForSegment);
-					}
-				}
+			String tripPatternId = trip.getTripPattern().getId();
+			List<ProcessedDataMapKey> keysForTripPattern =
+					keysByTripPattern.get(tripPatternId);
+			if (keysForTripPattern == null) {
+				keysForTripPattern = new ArrayList<ProcessedDataMapKey>();
+				keysByTripPattern.put(tripPatternId, keysForTripPattern);
 			}
-			
-			// Determine average stop time for this trip/stop
-			int averagedStopTime;
-			List<Integer> stopTimesForStopPathForTrip = 
-					stopTimesMap.get(mapKey);
-			if (stopTimesForStopPathForTrip != null) { 
-				// For first stops of trip will be providing departure
-				// times so need to be conservative and bias the stop time
-				if (mapKey.getStopPathIndex() == 0) {
-					// First stop of trip so be extra conservative because
-					// don't want to determine that vehicles depart at 8:02
-					// when the doors actually shut at 8:01 and the vehicle
-					// starts moving slowly giving a slightly wrong departure
-					// time.
-					// Determine best stop time to use
-					averagedStopTime =
-							Statistics.biasedFilteredMean(
-									stopTimesForStopPathForTrip,
-									FRACTION_LIMIT_FOR_STOP_TIMES,
-									STD_DEV_BIAS_FOR_FIRST_STOP);
-					
-					// So far have determine when vehicle has departed. But should add
-					// a bit of a bias since passengers have to get on a few seconds
-					// before doors shut and vehicle starts moving.
-					averagedStopTime -= STOP_TIME_BIAS_FOR_FIRST_STOP;
-				} else {
-					// Not first stop of trip
-					averagedStopTime = Statistics.filteredMean(
-							stopTimesForStopPathForTrip,
-							FRACTION_LIMIT_FOR_STOP_TIMES);
-				}
-			} else {
-				// No arrival and corresponding departure time for the stop. 
-				averagedStopTime = TravelTimeInfo.STOP_TIME_NOT_VALID;
-
-				// Not having stop time indicates possible problem unless it 
-				// is the last stop path for the trip. So if not the last stop  
-				// path for trip then log the problem.
-				if (mapKey.getStopPathIndex() != trip.getNumberStopPaths()-1) {
-					logger.debug("No stop times for {} even though there are " +
-						"travel times for that map key", mapKey);
+			keysForTripPattern.add(mapKey);
+		}
+		
+		// Determine the travel times for each trip pattern in parallel
+		List<RecursiveTask<List<TravelTimeInfo>>> tasks =
+				new ArrayList<RecursiveTask<List<TravelTimeInfo>>>();
+		for (final List<ProcessedDataMapKey> keysForTripPattern : 
+				keysByTripPattern.values()) {
+			tasks.add(new RecursiveTask<List<TravelTimeInfo>>() {
+				@Override
+				protected List<TravelTimeInfo> compute() {
+					List<TravelTimeInfo> travelTimeInfos =
+							new ArrayList<TravelTimeInfo>();
+					for (ProcessedDataMapKey mapKey : keysForTripPattern) {
+						TravelTimeInfo travelTimeInfo =
+								createTravelTimeInfo(accumulator, mapKey,
+										tripMap.get(mapKey.getTripId()));
+						if (travelTimeInfo != null)
+							travelTimeInfos.add(travelTimeInfo);
+					}
+					return travelTimeInfos;
 				}
-			}
-			
-			// Determine the travel time segment length actually used
-			double travelTimeSegLength = 
-					getTravelTimeSegmentLength(trip, mapKey.getStopPathIndex());
-			
-			// Put the results into TravelTimeInfo object and put into 
-			// TravelTimeInfo map so can be used to find best travel times 
-			// when there is no data for particular trip.
-			TravelTimeInfo travelTimeInfo = new TravelTimeInfo(trip,
-					mapKey.getStopPathIndex(), averagedStopTime,
-					averageTravelTimes, travelTimeSegLength);
-			travelTimeInfoMap.add(travelTimeInfo);
+			});
+		}
+		runInParallel(tasks);
+		
+		// Put the results into the TravelTimeInfo map so can be used to find
+		// best travel times when there is no data for particular trip. The
+		// map is not thread safe so this is done serially.
+		TravelTimeInfoMap travelTimeInfoMap = new TravelTimeInfoMap();
+		for (RecursiveTask<List<TravelTimeInfo>> task : tasks) {
+			for (TravelTimeInfo travelTimeInfo : task.join())
+				travelTimeInfoMap.add(travelTimeInfo);
 		}
 
 		// Nice to log how long things took so can see progress and bottle necks
-		logger.info("Processing data into a TravelTimeInfoMap took {} msec.", 
-				intervalTimer.elapsedMsec());
+		logger.info("Processing data into a TravelTimeInfoMap for {} trip "
+				+ "patterns took {} msec.", 
+				keysByTripPattern.size(), intervalTimer.elapsedMsec());
+		logger.info("Processing travel times took {} msec of wall clock time "
+				+ "using {} threads. Peak heap usage was {} MB.",
+				runTimer.elapsedMsec(), forkJoinPool.getParallelism(),
+				getPeakHeapUsage() / (1024 * 1024));
 
 		// Return the map with all the processed travel time data in it
 		return travelTimeInfoMap;	
@@ -966,8 +1273,11 @@ public class TravelTimesProcessor {
 	
 	/**
 	 * Reads in the Matches and the ArrivalDepartures from the database for the
-	 * time specified. Puts the data into the stopTimesMap and the travelTimesMap 
-	 * for further processing.
+	 * time specified. Processes the trips in parallel and puts the data into
+	 * the stopTimesMap and the travelTimesMap of the accumulators for further
+	 * processing. If transitime.travelTimes.streamHistoricData is set then the
+	 * data is streamed and processed in batches of vehicle trips instead of
+	 * all being read into memory first.
 	 * 
 	 * @param projectId
 	 * @param specialDaysOfWeek
@@ -976,20 +1286,55 @@ public class TravelTimesProcessor {
 	 */
 	public void readAndProcessHistoricData(String projectId, 
 			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
+		final DataFetcher dataFetcher = 
+				new DataFetcher(projectId, specialDaysOfWeek);
+
+		// If streaming then collect the trips as they are read in and 
+		// process them in batches
+		if (streamHistoricData.getValue()) {
+			final List<TripData> batch = new ArrayList<TripData>();
+			dataFetcher.streamData(projectId, beginTime, endTime,
+					new DataFetcher.TripHandler() {
+						@Override
+						public void handleTrip(
+								List<ArrivalDeparture> arrDepList) {
+							// Matches can still be added for the trip after
+							// this method returns so copy them
+							ArrivalDeparture arrDep = arrDepList.get(0);
+							DbDataMapKey mapKey = dataFetcher.getKey(
+									arrDep.getServiceId(), arrDep.getDate(),
+									arrDep.getTripId(), arrDep.getVehicleId());
+							List<Match> matchesForTrip =
+									dataFetcher.getMatchesMap().get(mapKey);
+							batch.add(new TripData(arrDepList,
+									matchesForTrip == null ? null
+											: new ArrayList<Match>(
+													matchesForTrip)));
+							
+							if (batch.size() >= STREAMED_TRIPS_PER_BATCH) {
+								processTrips(batch);
+								batch.clear();
+							}
+						}
+					});
+			processTrips(batch);
+			return;
+		}
+		
 		// Read the arrivals/departures and matches into a DataFetcher
-		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
 		dataFetcher.readData(projectId, beginTime, endTime);
 		
 		// Process all the historic data read from the database. Puts 
-		// resulting data into stopTimesMap and travelTimesMap.
+		// resulting data into the accumulators of the partitions.
 		logger.info("Processing data into travel time maps...");
 		IntervalTimer intervalTimer = new IntervalTimer();
-		Collection<List<ArrivalDeparture>> arrivalDepartures =
-				dataFetcher.getArrivalDepartureMap().values();
-		for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-			debugLogTrip(arrDepList);
-			aggregateTripDataIntoMaps(dataFetcher, arrDepList);
+		List<TripData> trips = new ArrayList<TripData>();
+		for (Map.Entry<DbDataMapKey, List<ArrivalDeparture>> entry : 
+				dataFetcher.getArrivalDepartureMap().entrySet()) {
+			trips.add(new TripData(entry.getValue(),
+					dataFetcher.getMatchesMap().get(entry.getKey())));
 		}
+		processTrips(trips);
 		
 		// Nice to log how long things took so can see progress and bottle necks
 		logger.info("Processing data from db into the travel times and stop " +
@@ -1002,22 +1347,20 @@ public class TravelTimesProcessor {
 	 * Just for debugging
 	 */
 	public static void main(String[] args) {
-		List<Integer> t1 = new ArrayList<Integer>();
-		t1.add(1);
-		t1.add(2);
-		t1.add(3);
-		
-		List<Integer> t2 = new ArrayList<Integer>();
-		t2.add(4);
-		t2.add(5);
-		t2.add(6);
-		
-		List<List<Integer>> travelTimesByTrip = new ArrayList<List<Integer>>();
-		travelTimesByTrip.add(t1);
-		travelTimesByTrip.add(t2);
+		IntArray travelTimesByTrip = new IntArray();
+		travelTimesByTrip.add(3);
+		travelTimesByTrip.add(1);
+		travelTimesByTrip.add(2);
+		travelTimesByTrip.add(3);
+		
+		travelTimesByTrip.add(3);
+		travelTimesByTrip.add(4);
+		travelTimesByTrip.add(5);
+		travelTimesByTrip.add(6);
+		
 		List<List<Integer>> travelTimesBySegment =
 				bySegment(travelTimesByTrip, null, 0);
-		System.err.println(travelTimesByTrip);
+		System.err.println(travelTimesByTrip.toList());
 		System.err.println(travelTimesBySegment);
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,522 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only on-disk journal for the DataDbLogger. When the database is
+ * not available, such as when it is being vacuumed or restarted, the
+ * DataDbLogger queue fills up. Instead of losing data or using up lots of
+ * heap the overflow objects are written to this journal and are then replayed
+ * in order once the database is available again.
+ * <p>
+ * The journal consists of a sequence of segment files in the journal
+ * directory. Each segment is memory mapped so that appending a record is
+ * simply a memory copy. Each segment starts with a 4 byte header holding the
+ * read position, which is the offset of the first record that has not yet
+ * been handed to the DataDbLogger queue. Each record is a 4 byte length
+ * followed by the serialized object. To keep the records compact the class
+ * descriptors that Java serialization normally writes for every object are
+ * replaced by just the class name, the serialVersionUID and a hash of the
+ * names and types of the serializable fields. The local class descriptor is
+ * used when reading, and records whose class has changed since they were
+ * written are rejected since the local descriptor would not match the data.
+ * This reduces the size of a record to about a third. The payload is written
+ * before the length so that a partially written record is never seen, even
+ * if the process is killed. A length of 0 indicates the end of the data in a
+ * segment. Segments are deleted once all of their records have been read.
+ * <p>
+ * Segment files left over from a previous run, such as when the core was
+ * restarted during a database outage, are read in at startup so that their
+ * data is replayed as well. Reading resumes at the read position stored in
+ * the header so that records that were already replayed, and therefore
+ * already written to the database, are not written again. Records that were
+ * handed to the in-memory queue but not yet written when the process died
+ * are lost, same as for objects that never overflowed into the journal.
+ * <p>
+ * Changes to the memory mapped segments are only guaranteed to survive an
+ * operating system crash once they have been forced to disk. The read
+ * position is forced each time records are read. Appended records are
+ * forced when a segment fills up and whenever flush() is called, which the
+ * DataDbLogger replay thread does periodically.
+ * <p>
+ * The methods are synchronized since the journal is appended to by threads
+ * calling DataDbLogger.add() and read by the DataDbLogger replay thread.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class DataDbJournal {
+
+	// Directory where segment files are stored
+	private final File directory;
+
+	// For naming the segment files
+	private final String fileNamePrefix;
+
+	// Size of each memory mapped segment file
+	private final int segmentSizeBytes;
+
+	// Max number of segments, so that disk doesn't fill up
+	private final int maxSegments;
+
+	// Segments that still have records to be read, oldest first. The last
+	// one is the segment being appended to, if there is one.
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	// The segment currently being appended to. Null if a new segment needs
+	// to be created for the next append.
+	private Segment writeSegment = null;
+
+	// Sequence number for naming the next segment file
+	private long nextSegmentSequence = 0;
+
+	// Number of records appended but not yet read
+	private long pendingRecords = 0;
+
+	private static final String FILE_NAME_SUFFIX = ".journal";
+
+	// Number of bytes used to store length of a record
+	private static final int LENGTH_BYTES = 4;
+
+	// Number of bytes of the segment header that holds the read position
+	private static final int HEADER_BYTES = 4;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DataDbJournal.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns a hash of the names and types of the serializable fields of the
+	 * class, in the order that serialization writes them. Classes that
+	 * declare a serialVersionUID keep it when fields are changed, so this is
+	 * what detects that the layout of such a class changed.
+	 * 
+	 * @param desc
+	 * @return hash of the field layout
+	 */
+	private static int layoutHash(ObjectStreamClass desc) {
+		int hash = 17;
+		for (ObjectStreamField field : desc.getFields()) {
+			hash = 31 * hash + field.getName().hashCode();
+			hash = 31 * hash + (field.isPrimitive() ? field.getTypeCode()
+					: field.getTypeString().hashCode());
+		}
+		return hash;
+	}
+	
+	/**
+	 * ObjectOutputStream that writes only the class name, serialVersionUID
+	 * and field layout hash instead of the full class descriptor.
+	 */
+	private static class CompactObjectOutputStream extends ObjectOutputStream {
+		private CompactObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc)
+				throws IOException {
+			writeUTF(desc.getName());
+			writeLong(desc.getSerialVersionUID());
+			writeInt(layoutHash(desc));
+		}
+	}
+
+	/**
+	 * ObjectInputStream for reading what was written by
+	 * CompactObjectOutputStream. Uses the local class descriptor for the
+	 * class name, as long as its serialVersionUID and field layout are the
+	 * same as when the record was written.
+	 */
+	private static class CompactObjectInputStream extends ObjectInputStream {
+		private CompactObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException,
+				ClassNotFoundException {
+			String className = readUTF();
+			long serialVersionUID = readLong();
+			int layoutHash = readInt();
+			ObjectStreamClass desc =
+					ObjectStreamClass.lookupAny(Class.forName(className, false,
+							DataDbJournal.class.getClassLoader()));
+			if (desc == null)
+				throw new ClassNotFoundException(className);
+			if (desc.getSerialVersionUID() != serialVersionUID)
+				throw new InvalidClassException(className, "serialVersionUID "
+						+ serialVersionUID + " of record does not match local "
+						+ "serialVersionUID " + desc.getSerialVersionUID());
+			if (layoutHash(desc) != layoutHash)
+				throw new InvalidClassException(className, "fields of the "
+						+ "class have changed since the record was written");
+			return desc;
+		}
+	}
+
+	/**
+	 * A single memory mapped segment file.
+	 */
+	private static class Segment {
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private final MappedByteBuffer buffer;
+		private int writePosition = HEADER_BYTES;
+		private int readPosition = HEADER_BYTES;
+		// Whether appended records still need to be forced to disk
+		private boolean dirty = false;
+
+		/**
+		 * Opens and memory maps the segment file, creating it if needed.
+		 */
+		private Segment(File file, int sizeBytes) throws IOException {
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			int mappedSize = (int) Math.max(sizeBytes, randomAccessFile.length());
+			this.buffer = randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+		}
+
+		/**
+		 * For existing segment files. Determines where the records end and
+		 * where reading left off, and returns the number of records that
+		 * still need to be read.
+		 */
+		private int recover() {
+			if (buffer.capacity() < HEADER_BYTES)
+				return 0;
+
+			int storedReadPosition = buffer.getInt(0);
+			int count = 0;
+			while (writePosition + LENGTH_BYTES <= buffer.capacity()) {
+				int length = buffer.getInt(writePosition);
+				if (length <= 0
+						|| writePosition + LENGTH_BYTES + length > buffer.capacity())
+					break;
+				writePosition += LENGTH_BYTES + length;
+				
+				// Records before the stored read position were already read
+				if (writePosition <= storedReadPosition)
+					readPosition = writePosition;
+				else
+					++count;
+			}
+			return count;
+		}
+
+		private boolean hasRoomFor(int length) {
+			return writePosition + LENGTH_BYTES + length + LENGTH_BYTES
+					<= buffer.capacity();
+		}
+
+		/**
+		 * Appends the record. Payload is written before the length so that a
+		 * partially written record is not considered part of the data.
+		 */
+		private void append(byte[] bytes) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(writePosition + LENGTH_BYTES);
+			view.put(bytes);
+			buffer.putInt(writePosition, bytes.length);
+			writePosition += LENGTH_BYTES + bytes.length;
+			dirty = true;
+		}
+
+		/**
+		 * Stores the read position in the header so that records already
+		 * read are not replayed again after a restart.
+		 */
+		private void commitReadPosition() {
+			buffer.putInt(0, readPosition);
+			dirty = true;
+		}
+
+		/**
+		 * Forces any changes to the segment to disk.
+		 */
+		private void force() {
+			if (dirty) {
+				buffer.force();
+				dirty = false;
+			}
+		}
+
+		private boolean hasUnreadRecords() {
+			return readPosition < writePosition;
+		}
+
+		private byte[] read() {
+			int length = buffer.getInt(readPosition);
+			byte[] bytes = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(readPosition + LENGTH_BYTES);
+			view.get(bytes);
+			readPosition += LENGTH_BYTES + length;
+			return bytes;
+		}
+
+		/**
+		 * Closes the file and deletes it. The memory mapping itself is
+		 * released when the buffer is garbage collected.
+		 */
+		private void delete() {
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				logger.error("Could not close journal file {}", file, e);
+			}
+			if (!file.delete())
+				logger.error("Could not delete journal file {}", file);
+		}
+	}
+
+	/**
+	 * Creates the journal. Any segment files left over from a previous run are
+	 * read in so that their data is replayed.
+	 *
+	 * @param directory
+	 *            where to store the segment files
+	 * @param agencyId
+	 *            for naming the segment files
+	 * @param segmentSizeBytes
+	 *            size of each memory mapped segment file
+	 * @param maxSegments
+	 *            limit on number of segment files so disk doesn't fill up
+	 */
+	public DataDbJournal(String directory, String agencyId,
+			int segmentSizeBytes, int maxSegments) {
+		this.directory = new File(directory);
+		this.fileNamePrefix = "dataDbLogger_" + agencyId + "_";
+		this.segmentSizeBytes = segmentSizeBytes;
+		this.maxSegments = maxSegments;
+
+		if (!this.directory.exists() && !this.directory.mkdirs())
+			logger.error("Could not create DataDbLogger journal directory {}",
+					directory);
+
+		recoverExistingSegments();
+	}
+
+	/**
+	 * Reads in segment files left over from a previous run, oldest first.
+	 */
+	private void recoverExistingSegments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(fileNamePrefix)
+						&& name.endsWith(FILE_NAME_SUFFIX);
+			}
+		});
+		if (files == null)
+			return;
+
+		// File names contain zero padded sequence numbers so sorting by name
+		// sorts by age
+		Arrays.sort(files);
+		for (File file : files) {
+			try {
+				Segment segment = new Segment(file, 0);
+				int records = segment.recover();
+				pendingRecords += records;
+				segments.add(segment);
+				nextSegmentSequence =
+						Math.max(nextSegmentSequence, sequenceOf(file) + 1);
+				logger.info("Recovered {} records from DataDbLogger journal "
+						+ "file {} so that they can be written to database.",
+						records, file);
+			} catch (IOException | NumberFormatException e) {
+				logger.error("Could not recover DataDbLogger journal file {}",
+						file, e);
+			}
+		}
+	}
+
+	private long sequenceOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(fileNamePrefix.length(),
+				name.length() - FILE_NAME_SUFFIX.length()));
+	}
+
+	/**
+	 * Serializes the object and appends it to the journal.
+	 *
+	 * @param o
+	 *            the object to be stored. Must be Serializable.
+	 * @return true if successful, false if the object could not be serialized
+	 *         or the journal is full.
+	 */
+	public synchronized boolean append(Object o) {
+		byte[] bytes;
+		try {
+			ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+			ObjectOutputStream objectOutputStream =
+					new CompactObjectOutputStream(byteOutputStream);
+			objectOutputStream.writeObject(o);
+			objectOutputStream.close();
+			bytes = byteOutputStream.toByteArray();
+		} catch (IOException e) {
+			logger.error("Could not serialize object {} for DataDbLogger "
+					+ "journal. {}", o, e.getMessage());
+			return false;
+		}
+
+		try {
+			if (writeSegment == null || !writeSegment.hasRoomFor(bytes.length)) {
+				// Make sure the full segment is on disk before moving on
+				if (writeSegment != null)
+					writeSegment.force();
+
+				if (segments.size() >= maxSegments) {
+					logger.error("DataDbLogger journal in {} already has max "
+							+ "number of segments {} so cannot store object {}",
+							directory, maxSegments, o);
+					return false;
+				}
+				if (HEADER_BYTES + bytes.length + 2 * LENGTH_BYTES 
+						> segmentSizeBytes) {
+					logger.error("Object {} is {} bytes which is too large "
+							+ "for DataDbLogger journal segment size of {}",
+							o, bytes.length, segmentSizeBytes);
+					return false;
+				}
+				File file = new File(directory, String.format("%s%012d%s",
+						fileNamePrefix, nextSegmentSequence++,
+						FILE_NAME_SUFFIX));
+				logger.info("Creating new DataDbLogger journal file {}", file);
+				writeSegment = new Segment(file, segmentSizeBytes);
+				segments.add(writeSegment);
+			}
+
+			writeSegment.append(bytes);
+			++pendingRecords;
+			return true;
+		} catch (IOException e) {
+			logger.error("Could not write to DataDbLogger journal in {}",
+					directory, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads up to maxObjects objects from the journal, in the order that they
+	 * were appended. Segments are deleted once they have been completely read.
+	 * Otherwise the new read position is stored in the segment header and
+	 * forced to disk so that the records are not replayed again after a
+	 * restart. Records that cannot be deserialized, such as because a class
+	 * changed between runs or its readObject() threw an exception, are
+	 * logged and skipped.
+	 *
+	 * @param maxObjects
+	 * @return list of objects, empty if journal is empty
+	 */
+	public synchronized List<Object> read(int maxObjects) {
+		List<Object> objects = new ArrayList<Object>();
+		while (objects.size() < maxObjects && !segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			if (segment.hasUnreadRecords()) {
+				byte[] bytes = segment.read();
+				--pendingRecords;
+				try {
+					ObjectInputStream objectInputStream = 
+							new CompactObjectInputStream(
+									new ByteArrayInputStream(bytes));
+					objects.add(objectInputStream.readObject());
+				} catch (IOException | ClassNotFoundException e) {
+					logger.error("Could not deserialize record from "
+							+ "DataDbLogger journal file {} so skipping it. {}",
+							segment.file, e.getMessage());
+				} catch (RuntimeException e) {
+					// Don't let a single bad record stop the replay
+					logger.error("Exception deserializing record from "
+							+ "DataDbLogger journal file {} so skipping it.",
+							segment.file, e);
+				}
+			}
+
+			// If done with segment then delete it right away so that its
+			// records are not replayed again if the core is restarted. If it
+			// is the one being appended to then a new one will be created for
+			// the next append.
+			if (!segment.hasUnreadRecords()) {
+				if (segment == writeSegment)
+					writeSegment = null;
+				segments.removeFirst();
+				segment.delete();
+			}
+		}
+
+		// Persist where reading left off for the partially read segment
+		if (!segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			segment.commitReadPosition();
+			segment.force();
+		}
+
+		return objects;
+	}
+
+	/**
+	 * Forces appended records to disk so that they survive an operating
+	 * system crash. Called periodically instead of for every append since
+	 * forcing is expensive.
+	 */
+	public synchronized void flush() {
+		if (writeSegment != null)
+			writeSegment.force();
+	}
+
+	/**
+	 * @return true if there are no records waiting to be read
+	 */
+	public synchronized boolean isEmpty() {
+		return pendingRecords == 0;
+	}
+
+	/**
+	 * @return number of records waiting to be read
+	 */
+	public synchronized long size() {
+		return pendingRecords;
+	}
+}
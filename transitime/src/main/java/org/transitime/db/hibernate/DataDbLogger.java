@@ -20,6 +20,7 @@ import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
@@ -28,14 +29,16 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.hibernate.HibernateException;
-import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
 import org.hibernate.exception.GenericJDBCException;
 import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.exception.SQLGrammarException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringConfigValue;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.logging.Markers;
 import org.transitime.utils.IntervalTimer;
@@ -54,17 +57,32 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * The application simply calls add(Object o) to add the object to be stored
  * to the queue. 
  * 
- * A separate thread is used to read from the queue and write the data to the 
- * database. If the queue starts filling up then error messages are e-mailed
- * to users alerting them that there is a problem. E-mail messages are also
- * sent out when the queue level is going down again.
+ * Separate writer threads, the number specified by 
+ * transitime.db.dataDbLogger.numWriterThreads, are used to read from the 
+ * queue and write the data to the database. If the queue starts filling up 
+ * then error messages are e-mailed to users alerting them that there is a 
+ * problem. E-mail messages are also sent out when the queue level is going 
+ * down again.
  * 
  * A goal with this class was to make the writing to the database is 
  * efficient as possible. Therefore the objects are written in batches.
- * This reduces network traffic as well as database load. But this did
- * make handling exceptions more complicated. If there is an exception
- * with a batch then each item is individually written so that don't
- * lose any data.
+ * Each writer thread takes as many objects as are available from the queue,
+ * groups them by class, and writes each group with JDBC batch inserts via
+ * a StatelessSession. This reduces network traffic as well as database load.
+ * But this did make handling exceptions more complicated. If there is an 
+ * exception with a batch then the batch is split in half and each half is
+ * written separately, recursively, so that the bad objects are isolated
+ * and don't lose any of the good data.
+ * 
+ * The sustained number of rows written per second is periodically logged
+ * and is available via rowsPerSec().
+ * 
+ * If transitime.db.dataDbLogger.journalDirectory is set then when the queue
+ * is full, such as when the database is down for a long time, the overflow
+ * objects are written to an on-disk DataDbJournal instead of being lost. 
+ * Once the journal has data all new objects also go to the journal so that
+ * the order is maintained. A separate thread replays the journal into the
+ * queue, in order, once the database is accessible again.
  * 
  * When in playback mode then don't want to store the data because it would
  * interfere with data stored when the application was run in real time. 
@@ -79,8 +97,63 @@ public class DataDbLogger {
 	// For when cannot connect to data the length of time in msec between retries
 	private static final long TIME_BETWEEN_RETRIES = 2 * Time.MS_PER_SEC;
 	
+	// How long the result of checking whether the database is accessible is
+	// used by the journal replay thread before checking again
+	private static final long TIME_BETWEEN_DB_ACCESSIBLE_CHECKS = 
+			10 * Time.MS_PER_SEC;
+	
 	private static final int QUEUE_CAPACITY = 100000;
 	
+	private static IntegerConfigValue numWriterThreads =
+			new IntegerConfigValue(
+					"transitime.db.dataDbLogger.numWriterThreads", 
+					1,
+					"Number of threads used by the DataDbLogger to write "
+					+ "data to the database. For large systems can use "
+					+ "multiple threads so that data can be written in "
+					+ "parallel.");
+	
+	private static IntegerConfigValue maxBatchSize =
+			new IntegerConfigValue(
+					"transitime.db.dataDbLogger.maxBatchSize", 
+					1000,
+					"Maximum number of objects that a DataDbLogger writer "
+					+ "thread takes from the queue at once. The objects are "
+					+ "grouped by class and each group is written in a single "
+					+ "transaction using JDBC batches of "
+					+ "hibernate.jdbc.batch_size.");
+	
+	private static StringConfigValue journalDirectory =
+			new StringConfigValue(
+					"transitime.db.dataDbLogger.journalDirectory", 
+					null,
+					"Directory where DataDbLogger writes overflow data to "
+					+ "when its queue is full, such as when the database is "
+					+ "unavailable for a long time. The data is replayed "
+					+ "once the database is available again. If not set "
+					+ "then data is lost when the queue is full.");
+	
+	private static IntegerConfigValue journalSegmentSizeMB =
+			new IntegerConfigValue(
+					"transitime.db.dataDbLogger.journalSegmentSizeMB", 
+					64,
+					"Size in MB of each memory mapped DataDbLogger journal "
+					+ "file.");
+	
+	private static IntegerConfigValue journalMaxSizeMB =
+			new IntegerConfigValue(
+					"transitime.db.dataDbLogger.journalMaxSizeMB", 
+					10240,
+					"Max total size in MB of the DataDbLogger journal files "
+					+ "so that the disk doesn't fill up.");
+	
+	private static IntegerConfigValue throughputLoggingIntervalSecs =
+			new IntegerConfigValue(
+					"transitime.db.dataDbLogger.throughputLoggingIntervalSecs", 
+					60,
+					"How frequently the DataDbLogger logs the number of "
+					+ "rows written per second.");
+	
 	// The queue capacity levels when an error message should be e-mailed out. 
 	// The max value should be 1.0. 
 	private final double levels[] = { 0.5, 0.8, 1.00 };
@@ -116,8 +189,29 @@ public class DataDbLogger {
 	// So can access agencyId for logging messages
 	private String agencyId;
 	
-	// The Session for writing data to db
-	private SessionFactory sessionFactory;
+	// For writing overflow to disk when queue is full. Null if
+	// transitime.db.dataDbLogger.journalDirectory not set.
+	private final DataDbJournal journal;
+	
+	// So can log when start and finish writing overflow to journal
+	private boolean writingToJournal = false;
+	
+	// For the journal replay thread so that it doesn't need to check if the
+	// database is accessible every time it moves a batch into the queue
+	private boolean dbAccessible = false;
+	private long lastDbAccessibleCheckTime = 0;
+	
+	// So that the replay thread only forces the journal to disk periodically
+	private long lastJournalFlushTime = 0;
+	
+	// The Session for writing data to db. Volatile since can be replaced
+	// by any of the writer threads if there is a connection problem.
+	private volatile SessionFactory sessionFactory;
+	
+	// For determining sustained number of rows written per second
+	private long rowsWrittenSinceLastLog = 0;
+	private final IntervalTimer throughputTimer = new IntervalTimer();
+	private double rowsPerSec = 0.0;
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(DataDbLogger.class);
@@ -155,8 +249,8 @@ public class DataDbLogger {
 	
 	/**
 	 * Constructor. Private so that factory method getDataDbLogger() has to be
-	 * used. Starts up separate thread that actually reads from queue and stores
-	 * the data.
+	 * used. Starts up separate writer threads that actually read from queue 
+	 * and store the data.
 	 * 
 	 * @param agencyId
 	 *            Id of database to be written to
@@ -178,15 +272,37 @@ public class DataDbLogger {
 		// Create the reusable heavy weight session factory
 		sessionFactory = HibernateUtils.getSessionFactory(agencyId);
 		
-		// Start up separate thread that reads from the queue and
-		// actually stores the data
+		// Create the journal for the overflow if configured to do so
+		if (shouldStoreToDb && journalDirectory.getValue() != null) {
+			int segmentSizeMB = journalSegmentSizeMB.getValue();
+			journal = new DataDbJournal(journalDirectory.getValue(), agencyId,
+					segmentSizeMB * 1024 * 1024,
+					Math.max(1, journalMaxSizeMB.getValue() / segmentSizeMB));
+		} else {
+			journal = null;
+		}
+		
+		// Start up separate writer threads that read from the queue and
+		// actually store the data
+		int numberThreads = Math.max(1, numWriterThreads.getValue());
 		NamedThreadFactory threadFactory = new NamedThreadFactory(getClass().getSimpleName());
-		ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-		executor.execute(new Runnable() {
-			public void run() {
-				processData();
-				}
-			});
+		ExecutorService executor = Executors.newFixedThreadPool(numberThreads, threadFactory);
+		for (int i = 0; i < numberThreads; ++i) {
+			executor.execute(new Runnable() {
+				public void run() {
+					processData();
+					}
+				});
+		}
+		
+		// If using journal then also need thread to replay it
+		if (journal != null) {
+			threadFactory.newThread(new Runnable() {
+				public void run() {
+					replayJournal();
+					}
+				}).start();
+		}
 
 	}
 	
@@ -210,6 +326,16 @@ public class DataDbLogger {
 		return queue.size();
 	}
 	
+	/**
+	 * Returns how many items are in the on-disk journal waiting to be
+	 * written to the database.
+	 * 
+	 * @return items in journal, or 0 if not using a journal
+	 */
+	public long journalSize() {
+		return journal != null ? journal.size() : 0;
+	}
+	
 	/**
 	 * Returns the index into levels that the queue capacity is at.
 	 * For determining if should send e-mail warning message.
@@ -265,8 +391,8 @@ public class DataDbLogger {
 		if (!shouldStoreToDb)
 			return true;
 		
-		// Add the object to the queue
-		boolean success = queue.offer(o);
+		// Add the object to the queue, or to the journal if queue is full
+		boolean success = journal == null ? queue.offer(o) : addUsingJournal(o);
 
 		double level = queueLevel();
 		int levelIndex = indexOfLevel(level);
@@ -322,16 +448,115 @@ public class DataDbLogger {
 	}
 	
 	/**
-	 * Gets the next object from the head of the queue, waiting if
-	 * necessary until an object becomes available. If the capacity
-	 * level drops significantly from when last logged then that
-	 * info is logged to indicate that the situation is getting better. 
-	 * When the queue level drops down below 10% of a specified level
-	 * then an e-mail mail message is sent out indicating such. That way
-	 * a supervisor can see that the queue is being cleared out.
-	 * @return The object to be stored in the database
+	 * Adds the object to the queue, or if the queue is full or the journal
+	 * already has data then appends the object to the journal. Synchronized 
+	 * on the journal so that the order of the objects is maintained when the
+	 * journal is replayed into the queue.
+	 * 
+	 * @param o
+	 *            The object that should be logged to the database
+	 * @return True if added to queue or journal
+	 */
+	private boolean addUsingJournal(Object o) {
+		synchronized (journal) {
+			if (journal.isEmpty() && queue.offer(o))
+				return true;
+			
+			if (!writingToJournal) {
+				writingToJournal = true;
+				logger.error(Markers.email(), "DataDbLogger queue is full for "
+						+ "agencyId={} so writing data to journal in {} until "
+						+ "it can be written to the database.", 
+						agencyId, journalDirectory.getValue());
+			}
+			return journal.append(o);
+		}
+	}
+	
+	/**
+	 * Run by separate thread to replay the journal into the queue once the
+	 * database is accessible again. Only moves objects into the queue while
+	 * it is less than half full so that the queue doesn't fill up again
+	 * and the writer threads can keep up.
 	 */
-	private Object get() {
+	private void replayJournal() {
+		while (true) {
+			try {
+				// Periodically make sure that what has been appended to the
+				// journal would survive a crash
+				if (System.currentTimeMillis() - lastJournalFlushTime 
+						>= TIME_BETWEEN_RETRIES) {
+					journal.flush();
+					lastJournalFlushTime = System.currentTimeMillis();
+				}
+				
+				if (journal.isEmpty() || !isDatabaseAccessible()) {
+					Time.sleep(TIME_BETWEEN_RETRIES);
+					continue;
+				}
+				
+				int room = QUEUE_CAPACITY / 2 - queue.size();
+				if (room <= 0) {
+					Time.sleep(TIME_BETWEEN_RETRIES);
+					continue;
+				}
+				
+				synchronized (journal) {
+					List<Object> objects = 
+							journal.read(Math.min(room, maxBatchSize.getValue()));
+					for (Object o : objects) {
+						// Since synchronized on journal only the writer 
+						// threads can change the queue, and they only remove,
+						// so there will be room
+						if (!queue.offer(o))
+							logger.error("DataDbLogger queue unexpectedly full "
+									+ "when replaying journal for agencyId={}. "
+									+ "LOSING DATA!!! Failed to store "
+									+ "object=[{}]", agencyId, o);
+					}
+					
+					if (journal.isEmpty() && writingToJournal) {
+						writingToJournal = false;
+						logger.error(Markers.email(), "DataDbLogger finished "
+								+ "replaying journal for agencyId={} into the "
+								+ "queue so that the data can be written to "
+								+ "the database.", agencyId);
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Error replaying DataDbLogger journal for "
+						+ "agencyId={}", agencyId, e);
+				Time.sleep(TIME_BETWEEN_RETRIES);
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether the database is accessible so that the journal can be
+	 * replayed. Actually checking requires a round trip to the database so
+	 * the result is reused for TIME_BETWEEN_DB_ACCESSIBLE_CHECKS. Only called
+	 * by the replay thread so doesn't need to be synchronized.
+	 * 
+	 * @return true if database is accessible
+	 */
+	private boolean isDatabaseAccessible() {
+		long now = System.currentTimeMillis();
+		if (now - lastDbAccessibleCheckTime >= TIME_BETWEEN_DB_ACCESSIBLE_CHECKS) {
+			dbAccessible = HibernateUtils.isDatabaseAccessible(agencyId);
+			lastDbAccessibleCheckTime = now;
+		}
+		return dbAccessible;
+	}
+	
+	/**
+	 * Gets the next batch of objects from the queue, waiting if necessary
+	 * until an object becomes available. Up to maxBatchSize objects are
+	 * returned. The objects are grouped by class so that each group can be
+	 * written using a single JDBC batch insert statement.
+	 * 
+	 * @return Map of the objects to be stored in the database, keyed by class
+	 */
+	private Map<Class<?>, List<Object>> getBatch() {
 		// Get the next object from the head of the queue
 		Object o = null;
 		do {
@@ -342,6 +567,40 @@ public class DataDbLogger {
 			}
 		} while (o == null);
 		
+		// Get whatever else is in the queue, up to the batch size
+		List<Object> objects = new ArrayList<Object>(maxBatchSize.getValue());
+		objects.add(o);
+		queue.drainTo(objects, maxBatchSize.getValue() - 1);
+		
+		// Group the objects by class. Using LinkedHashMap so that the classes
+		// are written in the order that they were first encountered.
+		Map<Class<?>, List<Object>> objectsByClass = 
+				new LinkedHashMap<Class<?>, List<Object>>();
+		for (Object objectToBeStored : objects) {
+			List<Object> objectsForClass = 
+					objectsByClass.get(objectToBeStored.getClass());
+			if (objectsForClass == null) {
+				objectsForClass = new ArrayList<Object>();
+				objectsByClass.put(objectToBeStored.getClass(), objectsForClass);
+			}
+			objectsForClass.add(objectToBeStored);
+		}
+		
+		// Log if queue level dropped
+		logIfQueueEmptyingOut();
+		
+		return objectsByClass;
+	}
+	
+	/**
+	 * If the capacity level drops significantly from when last logged then
+	 * that info is logged to indicate that the situation is getting better.
+	 * When the queue level drops down below 10% of a specified level then an
+	 * e-mail mail message is sent out indicating such. That way a supervisor
+	 * can see that the queue is being cleared out. Synchronized since called
+	 * by each of the writer threads.
+	 */
+	private synchronized void logIfQueueEmptyingOut() {
 		// Log if went below a capacity level
 		// See if queue dropped to 10% less than the previously logged level.
 		// Use a margin of 10% so that don't get flood of messages if queue
@@ -359,9 +618,6 @@ public class DataDbLogger {
 			// Reset the maxQueueLevel so can determine what next peak is
 			maxQueueLevel = level;
 		}
-
-		// Return the result
-		return o;
 	}
 	
 	/**
@@ -373,34 +629,58 @@ public class DataDbLogger {
 	}
 	
 	/**
-	 * Store just a single object into data. This is slower than batching a few
-	 * at a time. Should be used when the batching encounters an exception. This
-	 * way can still store all of the good data from a batch.
+	 * Returns the sustained number of rows per second written to the database
+	 * as determined over the last throughput logging interval. If no rows
+	 * have been written for a whole interval then returns 0.
 	 * 
-	 * @param o
+	 * @return rows written per second
 	 */
-	private void processSingleObject(Object objectToBeStored) {
-		Session session = null;
-		Transaction tx = null;
-		try {
-			session = sessionFactory.openSession();
-			tx = session.beginTransaction();
-			logger.debug("Individually saving object {}", objectToBeStored);
-			session.save(objectToBeStored);
-			tx.commit();
-		} catch (HibernateException e) {
-			if (tx != null) {
-				try {
-					tx.rollback();
-				} catch (HibernateException e2) {
-					logger.error("Error rolling back transaction in "
-							+ "processSingleObject(). ", e2);
-				}
-			}
-		} finally {			
-			if (session != null)
-				session.close();
+	public synchronized double rowsPerSec() {
+		updateRowsPerSec();
+		return rowsPerSec;
+	}
+	
+	/**
+	 * Keeps track of how many rows were written and periodically logs the
+	 * sustained rows per second. Synchronized since called by each of the
+	 * writer threads.
+	 * 
+	 * @param rows
+	 *            number of rows just written
+	 */
+	private synchronized void recordRowsWritten(int rows) {
+		rowsWrittenSinceLastLog += rows;
+		updateRowsPerSec();
+	}
+	
+	/**
+	 * If the throughput logging interval has elapsed then determines the
+	 * rows per second for the interval and logs it. Also called by
+	 * rowsPerSec() so that the rate goes to 0 when the writer threads are
+	 * idle and therefore not recording any rows. Caller must synchronize.
+	 */
+	private void updateRowsPerSec() {
+		long elapsedMsec = throughputTimer.elapsedMsec();
+		if (elapsedMsec < throughputLoggingIntervalSecs.getValue() 
+				* Time.MS_PER_SEC)
+			return;
+		
+		// Only log if something happened so that an idle logger doesn't
+		// fill up the log file
+		double previousRowsPerSec = rowsPerSec;
+		rowsPerSec = 
+				(double) rowsWrittenSinceLastLog * Time.MS_PER_SEC 
+				/ elapsedMsec;
+		if (rowsWrittenSinceLastLog > 0 || previousRowsPerSec > 0.0) {
+			logger.info("DataDbLogger for agencyId={} wrote {} rows in {} "
+					+ "msec using {} writer threads, which is {} rows/sec. "
+					+ "{} objects still in queue.", 
+					agencyId, rowsWrittenSinceLastLog, elapsedMsec, 
+					numWriterThreads.getValue(), 
+					String.format("%.1f", rowsPerSec), queueSize());
 		}
+		rowsWrittenSinceLastLog = 0;
+		throughputTimer.resetTimer();
 	}
 	
 	/**
@@ -437,169 +717,164 @@ public class DataDbLogger {
 	}
 	
 	/**
-	 * Process a batch of data, as specified by BATCH_SIZE member. The goal
-	 * is to batch a few db writes together to reduce load on network and on
-	 * db machines. There this method will try to store multiple objects
-	 * from the queue at once, up to the BATCH_SIZE.
-	 * 
-	 * If there is an exception with an object being written then the
-	 * batch of objects will be written individually so that all of the
-	 * good data will still be stored.
+	 * Writes the objects, which are all of the same class, to the database in
+	 * a single transaction. Uses a StatelessSession so that the objects are
+	 * not kept in a first level cache and the inserts are sent as JDBC
+	 * batches, as specified by hibernate.jdbc.batch_size . If the JDBC driver
+	 * is configured to rewrite batched inserts (see
+	 * transitime.db.rewriteBatchedInserts) then each batch becomes a single
+	 * multi-row INSERT statement.
 	 * 
-	 *  When looked at Hibernate documentation on batch writing there is
-	 *  mention of using:
-	 *      if (++batchingCounter % BATCH_SIZE == 0) {
-	 *        session.flush();
-	 *        session.clear();
-	 *      }
-	 * But the above doesn't commit the data to the db until the transaction
-	 * commit is done. Therefore the need here isn't true Hibernate batch
-	 * processing. Instead, need to use a transaction for each batch.
+	 * @param objects
+	 *            the objects to be written
+	 * @throws HibernateException
+	 *             if there was a problem writing the objects. The transaction
+	 *             will have been rolled back.
 	 */
-	private void processBatchOfData() {
-		// Create an array for holding what is being written to db. If there
-		// is an exception with one of the objects, such as a constraint violation,
-		// then can try to write the objects one at a time to make sure that the
-		// the good ones are written. This way don't lose any good data even if
-		// an exception occurs while batching data.
-		List<Object> objectsForThisBatch = new ArrayList<Object>(HibernateUtils.BATCH_SIZE);
-		
+	private void writeObjects(List<Object> objects) throws HibernateException {
+		StatelessSession session = null;
 		Transaction tx = null;
-		Session session = null;
-		
-		try {			
-			int batchingCounter = 0;
-			do {	
-				// Get the object to be stored from the queue
-				Object objectToBeStored = get();
-				
-				objectsForThisBatch.add(objectToBeStored);
-			} while (queueHasData() && ++batchingCounter < HibernateUtils.BATCH_SIZE);
-			
-			session = sessionFactory.openSession();
-			tx = session.beginTransaction();			
-			for (Object objectToBeStored : objectsForThisBatch) {				
-				// Write the data to the session. This doesn't yet
-				// actually write the data to the db though. That is only
-				// done when the session is flushed or committed.
-				logger.debug("DataDbLogger batch saving object={}", 
+		try {
+			session = sessionFactory.openStatelessSession();
+			tx = session.beginTransaction();
+			for (Object objectToBeStored : objects) {
+				logger.debug("DataDbLogger batch inserting object={}", 
 						objectToBeStored);
-				session.save(objectToBeStored);
+				session.insert(objectToBeStored);
 			}
 			
-			// Sometimes useful for debugging via the console
-			//System.err.println(new Date() + " Committing " 
-			//		+ objectsForThisBatch.size() + " objects. " + queueSize() 
-			//		+ " objects still in queue.");			
 			logger.debug("Committing {} objects. {} objects still in queue.", 
-					objectsForThisBatch.size(), queueSize());			
+					objects.size(), queueSize());			
 			IntervalTimer timer = new IntervalTimer();
 
 			// Actually do the commit
 			tx.commit();
 			
-			// Sometimes useful for debugging via the console
-			//System.err.println(new Date() + " Done committing. Took " 
-			//		+ timer.elapsedMsec() + " msec");
 			logger.debug("Done committing. Took {} msec", timer.elapsedMsec());
-			
-			session.close();
 		} catch (HibernateException e) {
-			e.printStackTrace();
-			
-			// If there was a connection problem then create a whole session
-			// factory so that get new connections.
-			Throwable rootCause = HibernateUtils.getRootCause(e);
-			
-			if (rootCause instanceof SocketTimeoutException
-					|| (rootCause instanceof SQLException 
-							&& rootCause.getMessage().contains("statement closed"))) {
-				logger.error(Markers.email(),
-						"Had a connection problem to the database for agencyId={}. "
-						+ "Likely means that the db was rebooted or that the "
-						+ "connection to it was lost. Therefore creating a new "
-						+ "SessionFactory so get new connections.", agencyId);
-				HibernateUtils.clearSessionFactory();
-				sessionFactory = HibernateUtils.getSessionFactory(agencyId);
-			} else {
-				// Rollback the transaction since it likely was not committed.
-				// Otherwise can get an error when using Postgres "ERROR:
-				// current transaction is aborted, commands ignored until end of
-				// transaction block".
-				try {
-					if (tx != null)
-						tx.rollback();
-				} catch (HibernateException e2) {
-					logger.error(
-							"Error rolling back transaction after processing "
-									+ "batch of data via DataDbLogger.", e2);
+			// Rollback the transaction since it likely was not committed.
+			// Otherwise can get an error when using Postgres "ERROR:
+			// current transaction is aborted, commands ignored until end of
+			// transaction block".
+			try {
+				if (tx != null)
+					tx.rollback();
+			} catch (HibernateException e2) {
+				logger.error("Error rolling back transaction after writing "
+						+ "batch of data via DataDbLogger.", e2);
+			}
+			throw e;
+		} finally {
+			try {
+				if (session != null)
+					session.close();
+			} catch (HibernateException e) {
+				logger.error("Error closing session after writing batch of "
+						+ "data via DataDbLogger.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the batch of objects, which are all of the same class, to the
+	 * database. If there is a problem connecting to the database then keeps
+	 * trying until successful so that data is not lost. If there is a problem
+	 * with the data itself, such as a constraint violation, then the batch is
+	 * split in half and each half is written separately. This way the bad
+	 * objects are isolated with only a logarithmic number of additional
+	 * transactions and all of the good data is still written.
+	 * 
+	 * @param objects
+	 *            the objects to be written
+	 */
+	private void writeBatch(List<Object> objects) {
+		while (true) {
+			try {
+				writeObjects(objects);
+				recordRowsWritten(objects.size());
+				return;
+			} catch (HibernateException e) {
+				Throwable rootCause = HibernateUtils.getRootCause(e);
+				
+				// If there was a connection problem then create a whole 
+				// session factory so that get new connections, and then try 
+				// again.
+				if (rootCause instanceof SocketTimeoutException
+						|| (rootCause instanceof SQLException 
+								&& rootCause.getMessage() != null
+								&& rootCause.getMessage().contains("statement closed"))) {
+					logger.error(Markers.email(),
+							"Had a connection problem to the database for agencyId={}. "
+							+ "Likely means that the db was rebooted or that the "
+							+ "connection to it was lost. Therefore creating a new "
+							+ "SessionFactory so get new connections.", agencyId);
+					synchronized (this) {
+						HibernateUtils.clearSessionFactory();
+						sessionFactory = HibernateUtils.getSessionFactory(agencyId);
+					}
+					continue;
 				}
 
-				// Close session here so that can process the objects
-				// individually
-				// using a new session.
-				try {
-					if (session != null)
-						session.close();
-				} catch (HibernateException e2) {
-					logger.error("Error closing session after processing "
-							+ "batch of data via DataDbLogger.", e2);
+				// If db not accessible then want to keep trying to write the 
+				// data
+				if (shouldKeepTryingBecauseConnectionException(e)) {
+					logger.error("Encountered database connection exception "
+							+ "{} when writing batch of {} objects so will "
+							+ "sleep for {} msec and will then try again. msg={}", 
+							e.getClass().getSimpleName(), objects.size(), 
+							TIME_BETWEEN_RETRIES, rootCause.getMessage());
+					Time.sleep(TIME_BETWEEN_RETRIES);
+					continue;
 				}
-			
-				// If it is a SQLGrammarException then also log the SQL to
-				// help in debugging.
-				String additionaInfo = e instanceof SQLGrammarException ? 
-						" SQL=\"" + ((SQLGrammarException) e).getSQL() + "\""
-						: "";
-				Throwable cause = HibernateUtils.getRootCause(e);
-				logger.error("{} for database for project={} when batch writing "
-						+ "objects: {}. Will try to write each object "
-						+ "from batch individually. {}", 
-						e.getClass().getSimpleName(), agencyId,
-						cause.getMessage(), additionaInfo);
-			}
-			
-			// Write each object individually so that the valid ones will be
-			// successfully written.
-			for (Object o : objectsForThisBatch) {
-				boolean shouldKeepTrying = false;
-				do {
-					try {
-						processSingleObject(o);
-						shouldKeepTrying = false;
-					} catch (HibernateException e2) {
-						// Need to know if it is a problem with the database not
-						// being accessible or if there is a problem with the SQL/data.
-						// If there is a problem accessibility of the database then
-						// want to keep trying writing the old data. But if it is
-						// a problem with the SQL/data then only want to try to write
-						// the good data from the batch a single time to make sure 
-						// all good data is written.
-						if (shouldKeepTryingBecauseConnectionException(e2)) {
-							shouldKeepTrying = true;
-							logger.error("Encountered database connection " +
-									"exception so will sleep for {} msec and " +
-									"will then try again.", TIME_BETWEEN_RETRIES);
-							Time.sleep(TIME_BETWEEN_RETRIES);
-						}
-						
-						// Output message on what is going on
-						Throwable cause2 = HibernateUtils.getRootCause(e2);
-						logger.error(e2.getClass().getSimpleName() + " when individually writing object " +
-								o + ". " + 
-								(shouldKeepTrying?"Will keep trying. " : "") +
-								"msg=" + cause2.getMessage()); 
-					}
-				} while (shouldKeepTrying);
+				
+				// Problem with the data. If only a single object then it is
+				// the bad one so log and give up on it.
+				if (objects.size() == 1) {
+					// If it is a SQLGrammarException then also log the SQL to
+					// help in debugging.
+					String additionaInfo = e instanceof SQLGrammarException ? 
+							" SQL=\"" + ((SQLGrammarException) e).getSQL() + "\""
+							: "";
+					logger.error("{} when individually writing object {} for "
+							+ "agencyId={}. msg={}.{}", 
+							e.getClass().getSimpleName(), objects.get(0), 
+							agencyId, rootCause.getMessage(), additionaInfo);
+					return;
+				}
+				
+				// Bisect the batch so that the good objects get written
+				logger.error("{} for database for agencyId={} when batch "
+						+ "writing {} objects: {}. Will split batch in half "
+						+ "and write each half separately.", 
+						e.getClass().getSimpleName(), agencyId, objects.size(),
+						rootCause.getMessage());
+				int middle = objects.size() / 2;
+				writeBatch(objects.subList(0, middle));
+				writeBatch(objects.subList(middle, objects.size()));
+				return;
 			}
 		}
 	}
 	
 	/**
-	 * This is the main method for processing data. It simply keeps on calling
-	 * processBatchOfData() so that data is batched as efficiently as possible.
-	 * Exceptions are caught such that this method will continue to run
-	 * indefinitely.
+	 * Process a batch of data. The goal is to batch db writes together to
+	 * reduce load on network and on db machines. Therefore this method gets
+	 * as many objects from the queue as are available, up to the configured
+	 * batch size, and then writes the objects of each class as a separate
+	 * JDBC batch.
+	 */
+	private void processBatchOfData() {
+		Map<Class<?>, List<Object>> objectsByClass = getBatch();
+		for (List<Object> objectsForClass : objectsByClass.values()) {
+			writeBatch(objectsForClass);
+		}
+	}
+	
+	/**
+	 * This is the main method for processing data for a writer thread. It
+	 * simply keeps on calling processBatchOfData() so that data is batched as
+	 * efficiently as possible. Exceptions are caught such that this method
+	 * will continue to run indefinitely.
 	 */
 	private void processData() {
 		while (true) {
@@ -21,6 +21,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Properties;
 import org.hibernate.HibernateException;
@@ -28,6 +30,7 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.ReturningWork;
 import org.hibernate.service.ServiceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -123,6 +126,16 @@ public class HibernateUtils {
 				
 				dbUrl += "?connectTimeout=" + timeout + "&socketTimeout=" + timeout;
 			}
+			
+			// If should rewrite batched inserts as multi-row inserts then 
+			// add the driver specific parameter to the URL
+			if (DbSetupConfig.shouldRewriteBatchedInserts()) {
+				dbUrl += dbUrl.contains("?") ? "&" : "?";
+				if (DbSetupConfig.getDbType().equals("mysql"))
+					dbUrl += "rewriteBatchedStatements=true";
+				else
+					dbUrl += "reWriteBatchedInserts=true";
+			}
 			config.setProperty("hibernate.connection.url", dbUrl);			
 		}
 		
@@ -247,6 +260,42 @@ public class HibernateUtils {
 		return session;
 	}
 	
+	/**
+	 * Determines whether the database for the agency can currently be
+	 * reached. Useful for determining when data that was held back while the
+	 * database was unavailable can be written again.
+	 * 
+	 * @param agencyId
+	 *            Used as the database name if the property
+	 *            transitime.db.dbName is not set
+	 * @return true if a valid connection to the database could be obtained
+	 */
+	public static boolean isDatabaseAccessible(String agencyId) {
+		Session session = null;
+		try {
+			session = getSession(agencyId);
+			return session.doReturningWork(new ReturningWork<Boolean>() {
+				@Override
+				public Boolean execute(Connection connection) 
+						throws SQLException {
+					return connection.isValid(5 /* seconds */);
+				}
+			});
+		} catch (HibernateException e) {
+			logger.debug("Database for agencyId={} not accessible. {}", 
+					agencyId, e.getMessage());
+			return false;
+		} finally {
+			if (session != null) {
+				try {
+					session.close();
+				} catch (HibernateException e) {
+					// Not important since just checking accessibility
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Determines the size of a serializable object by serializing it in memory
 	 * and then measuring the resulting size in bytes.
@@ -183,9 +183,11 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 	@Column
 	private final float stopPathLength;
 	
-	// So can easily create copy constructor withUpdatedTime()
+	// So can easily create copy constructor withUpdatedTime(). Declared
+	// transient so that the whole Block isn't serialized along with the
+	// ArrivalDeparture, such as when written to the DataDbLogger journal.
 	@Transient
-	private final Block block;
+	private final transient Block block;
 	
 	// Needed because some methods need to know if dealing with arrivals or 
 	// departures.
@@ -139,6 +139,12 @@ public final class Block implements Serializable {
 	// at a time.
 	private static final Object lazyLoadingSyncObject = new Object();
 	
+	// When the config data is loaded eagerly the trips are copied into
+	// this unmodifiable list so that getTrips() can simply return it
+	// without needing to synchronize on lazyLoadingSyncObject or to
+	// access the Hibernate session. Transient so not persisted.
+	private transient volatile List<Trip> preloadedTrips = null;
+	
 	// Hibernate requires class to be serializable because has composite Id
 	private static final long serialVersionUID = 6511242755235485004L;
 
@@ -208,6 +214,37 @@ public final class Block implements Serializable {
 		return query.list();
 	}
 
+	/**
+	 * Returns list of Block objects for the specified configRev where the
+	 * trips for each block are read in as part of the same query instead of
+	 * being lazy loaded. The trips for each block are then copied into an
+	 * unmodifiable list via preloadTrips() so that getTrips() never needs to
+	 * access the session. Since Trip has eager associations to its
+	 * TripPattern and TravelTimesForTrip those are also read in. It is
+	 * therefore best to first read in the TripPatterns and Trips using the
+	 * same session so that they are already in the session cache.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @return List of Block objects with their trips already loaded
+	 * @throws HibernateException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Block> getBlocksWithTrips(Session session, int configRev)
+			throws HibernateException {
+		String hql = "SELECT DISTINCT b FROM Blocks b " +
+				"    LEFT JOIN FETCH b.trips " +
+				"    WHERE b.configRev = :configRev";
+		Query query = session.createQuery(hql);
+		query.setInteger("configRev", configRev);
+		List<Block> blocks = query.list();
+		
+		for (Block block : blocks)
+			block.preloadTrips();
+		
+		return blocks;
+	}
+
 	/**
 	 * Deletes rev from the Blocks, Trips, and Block_to_Trip_joinTable
 	 * 
@@ -767,6 +804,12 @@ public final class Block implements Serializable {
 	 * @return the trips as an unmodifiable collection
 	 */
 	public List<Trip> getTrips() {
+		// If trips were preloaded then simply return them. No need to 
+		// synchronize or to access the session.
+		List<Trip> theTrips = preloadedTrips;
+		if (theTrips != null)
+			return theTrips;
+		
 		// If trips already lazy loaded then simply return them
 		if (Hibernate.isInitialized(trips))
 			return Collections.unmodifiableList(trips);
@@ -913,6 +956,19 @@ public final class Block implements Serializable {
 		return Collections.unmodifiableList(trips);
 	}
 	
+	/**
+	 * Copies the already loaded trips collection into an unmodifiable list so
+	 * that subsequent calls to getTrips() don't need to synchronize or access
+	 * the Hibernate session. Must be called by the thread that read in the
+	 * block, while the session is still open, since it accesses the trips
+	 * collection.
+	 */
+	public void preloadTrips() {
+		if (!Hibernate.isInitialized(trips))
+			Hibernate.initialize(trips);
+		preloadedTrips = Collections.unmodifiableList(new ArrayList<Trip>(trips));
+	}
+	
 	/**
 	 * So can sync up loading of trip and trip pattern data when trips are all
 	 * read at once in another class as opposed to through Block.getTrips().
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.db.structs;
+
+import java.util.List;
+
+/**
+ * The segments of all of the stop paths of a trip pattern stored in flat
+ * primitive arrays. This way the SpatialMatcher can examine the segments
+ * without going through the StopPath, VectorWithHeading and Location objects
+ * and without creating any objects. Segments are identified by their ordinal,
+ * which is the position of the segment when walking through all of the stop
+ * paths and segments of the trip pattern in order.
+ * <p>
+ * Immutable so can be shared by all threads.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class SegmentCoordinates {
+
+	// For each segment the lat and lon of the beginning of the segment
+	// followed by the lat and lon of the end. In radians since that is
+	// what Geo.distance() works with, so the conversion is only done once.
+	private final double[] coordinates;
+
+	// Heading of each segment in degrees, as in VectorWithHeading
+	private final float[] headings;
+
+	// Length of each segment in meters, as in Vector.length()
+	private final double[] lengths;
+
+	// Ordinal of the first segment of each stop path. Has an additional
+	// element at the end so the number of segments of a stop path can be
+	// determined.
+	private final int[] firstOrdinals;
+
+	// Whether each stop path is for a layover stop
+	private final boolean[] layoverStopPaths;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param tripPattern
+	 */
+	public SegmentCoordinates(TripPattern tripPattern) {
+		List<StopPath> stopPaths = tripPattern.getStopPaths();
+		firstOrdinals = new int[stopPaths.size() + 1];
+		layoverStopPaths = new boolean[stopPaths.size()];
+		int numberSegments = 0;
+		for (int i = 0; i < stopPaths.size(); ++i) {
+			firstOrdinals[i] = numberSegments;
+			layoverStopPaths[i] = stopPaths.get(i).isLayoverStop();
+			numberSegments += stopPaths.get(i).getNumberSegments();
+		}
+		firstOrdinals[stopPaths.size()] = numberSegments;
+
+		coordinates = new double[4 * numberSegments];
+		headings = new float[numberSegments];
+		lengths = new double[numberSegments];
+		int ordinal = 0;
+		for (StopPath stopPath : stopPaths) {
+			for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+				coordinates[4*ordinal] = Math.toRadians(segment.getL1().getLat());
+				coordinates[4*ordinal + 1] = 
+						Math.toRadians(segment.getL1().getLon());
+				coordinates[4*ordinal + 2] = 
+						Math.toRadians(segment.getL2().getLat());
+				coordinates[4*ordinal + 3] = 
+						Math.toRadians(segment.getL2().getLon());
+				headings[ordinal] = segment.getHeading();
+				lengths[ordinal] = segment.length();
+				++ordinal;
+			}
+		}
+	}
+
+	/**
+	 * @param stopPathIndex
+	 * @param segmentIndex
+	 * @return the ordinal of the segment within the trip pattern
+	 */
+	public int getOrdinal(int stopPathIndex, int segmentIndex) {
+		return firstOrdinals[stopPathIndex] + segmentIndex;
+	}
+
+	/**
+	 * @param stopPathIndex
+	 * @return number of segments of the stop path
+	 */
+	public int getNumberSegments(int stopPathIndex) {
+		return firstOrdinals[stopPathIndex + 1] - firstOrdinals[stopPathIndex];
+	}
+
+	/**
+	 * @param stopPathIndex
+	 * @return true if the stop path is for a layover stop
+	 */
+	public boolean isLayoverStopPath(int stopPathIndex) {
+		return layoverStopPaths[stopPathIndex];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Latitude of the beginning of the segment, in radians
+	 */
+	public double getLat1(int ordinal) {
+		return coordinates[4*ordinal];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Longitude of the beginning of the segment, in radians
+	 */
+	public double getLon1(int ordinal) {
+		return coordinates[4*ordinal + 1];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Latitude of the end of the segment, in radians
+	 */
+	public double getLat2(int ordinal) {
+		return coordinates[4*ordinal + 2];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Longitude of the end of the segment, in radians
+	 */
+	public double getLon2(int ordinal) {
+		return coordinates[4*ordinal + 3];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Heading of the segment in degrees clockwise from due North
+	 */
+	public float getHeading(int ordinal) {
+		return headings[ordinal];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return Length of the segment in meters
+	 */
+	public double getLength(int ordinal) {
+		return lengths[ordinal];
+	}
+}
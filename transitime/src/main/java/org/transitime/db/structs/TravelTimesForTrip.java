@@ -32,6 +32,7 @@ import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.OrderColumn;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
@@ -105,6 +106,12 @@ public class TravelTimesForTrip implements Serializable {
 	private final List<TravelTimesForStopPath> travelTimesForStopPaths = 
 			new ArrayList<TravelTimesForStopPath>();
 
+	// For quickly determining the travel time between stop paths without
+	// having to iterate over them. Built from travelTimesForStopPaths by
+	// buildCumulativeTimes(). Not stored in db.
+	@Transient
+	private transient volatile CumulativeTimes cumulativeTimes;
+	
 	// Hibernate requires that this class be serializable if it has multiple 
 	// column IDs so doing it in case have multiple ID columns in future.
 	private static final long serialVersionUID = -5208608077900300605L;
@@ -149,6 +156,93 @@ public class TravelTimesForTrip implements Serializable {
 	 */
 	public void add(TravelTimesForStopPath travelTimesForPath) {
 		travelTimesForStopPaths.add(travelTimesForPath);
+		cumulativeTimes = null;
+	}
+
+	/**
+	 * Cumulative travel and stop times for the stop paths of a trip so that
+	 * the time between any two stop paths is simply a subtraction. Also
+	 * the cumulative number of wait stops so that can quickly tell if there
+	 * is a wait stop between two stop paths, since then the time depends on
+	 * the schedule and the cumulative times cannot be used.
+	 */
+	private static class CumulativeTimes {
+		// Element i is the sum of the travel and stop times of stop paths 
+		// 0 through i-1. Length is number of stop paths + 1.
+		private final int[] cumulativeTimesMsec;
+		
+		// Element i is the number of wait stops for stop paths 0 through
+		// i-1. Length is number of stop paths + 1.
+		private final int[] cumulativeWaitStops;
+		
+		private CumulativeTimes(List<TravelTimesForStopPath> travelTimes,
+				List<StopPath> stopPaths) {
+			int numStopPaths = travelTimes.size();
+			cumulativeTimesMsec = new int[numStopPaths + 1];
+			cumulativeWaitStops = new int[numStopPaths + 1];
+			for (int i = 0; i < numStopPaths; ++i) {
+				TravelTimesForStopPath travelTimesForPath = travelTimes.get(i);
+				cumulativeTimesMsec[i + 1] = cumulativeTimesMsec[i]
+						+ travelTimesForPath.getStopPathTravelTimeMsec()
+						+ travelTimesForPath.getStopTimeMsec();
+				boolean waitStop = i < stopPaths.size()
+						&& stopPaths.get(i).isWaitStop();
+				cumulativeWaitStops[i + 1] =
+						cumulativeWaitStops[i] + (waitStop ? 1 : 0);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the cumulative travel and stop times so that 
+	 * getTravelAndStopTimesMsec() is fast. Should be called when the config
+	 * is loaded. If not called the cumulative times are built the first
+	 * time they are needed.
+	 * 
+	 * @param trip
+	 *            A trip that uses these travel times. Needed so that can
+	 *            determine which stop paths are wait stops. Since travel
+	 *            times are only shared by trips with the same trip pattern
+	 *            any of the trips can be used.
+	 */
+	public void buildCumulativeTimes(Trip trip) {
+		cumulativeTimes = 
+				new CumulativeTimes(travelTimesForStopPaths, trip.getStopPaths());
+	}
+	
+	/**
+	 * Returns the sum of the travel times and stop times for stop paths
+	 * fromStopPathIndex up to but not including toStopPathIndex. Takes
+	 * constant time since it uses the cumulative times. But if one of the
+	 * stop paths is a wait stop then the time depends on the schedule, so -1
+	 * is returned and the caller needs to handle the stop paths individually.
+	 * 
+	 * @param trip
+	 *            A trip that uses these travel times, for if the cumulative
+	 *            times haven't been built yet
+	 * @param fromStopPathIndex
+	 * @param toStopPathIndex
+	 * @return Travel plus stop times in msec, 0 if toStopPathIndex is not
+	 *         after fromStopPathIndex, or -1 if there is a wait stop in the
+	 *         range
+	 */
+	public int getTravelAndStopTimesMsec(Trip trip, int fromStopPathIndex,
+			int toStopPathIndex) {
+		if (toStopPathIndex <= fromStopPathIndex)
+			return 0;
+		
+		CumulativeTimes times = cumulativeTimes;
+		if (times == null) {
+			times = new CumulativeTimes(travelTimesForStopPaths, 
+					trip.getStopPaths());
+			cumulativeTimes = times;
+		}
+
+		if (times.cumulativeWaitStops[toStopPathIndex] 
+				!= times.cumulativeWaitStops[fromStopPathIndex])
+			return -1;
+		return times.cumulativeTimesMsec[toStopPathIndex]
+				- times.cumulativeTimesMsec[fromStopPathIndex];
 	}
 
 	/**
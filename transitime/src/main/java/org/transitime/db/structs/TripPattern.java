@@ -113,6 +113,11 @@ public class TripPattern implements Serializable, Lifecycle {
 	final protected Map<String, StopPath> stopPathsMap =
 		new HashMap<String, StopPath>();
 	
+	// The segments of the stop paths in flat arrays for spatial matching.
+	// Created lazily by getSegmentCoordinates().
+	@Transient
+	private transient volatile SegmentCoordinates segmentCoordinates = null;
+	
 	// For specifying max size of the trip pattern ID
 	public static final int TRIP_PATTERN_ID_LENGTH = 120;
 	// For specifying max size of headsign
@@ -801,6 +806,23 @@ public class TripPattern implements Serializable, Lifecycle {
 		return extent;
 	}
 
+	/**
+	 * Returns the segments of the stop paths in flat primitive arrays so that
+	 * spatial matching can be done without creating any objects. Created the
+	 * first time it is needed. If two threads happen to create it at the same
+	 * time the results are identical so no synchronization is needed.
+	 * 
+	 * @return the segment coordinates for the trip pattern
+	 */
+	public SegmentCoordinates getSegmentCoordinates() {
+		SegmentCoordinates coordinates = segmentCoordinates;
+		if (coordinates == null) {
+			coordinates = new SegmentCoordinates(this);
+			segmentCoordinates = coordinates;
+		}
+		return coordinates;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.hibernate.classic.Lifecycle#onDelete(org.hibernate.Session)
 	 */
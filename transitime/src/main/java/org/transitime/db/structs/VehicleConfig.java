@@ -17,6 +17,7 @@
 
 package org.transitime.db.structs;
 
+import java.io.Serializable;
 import java.util.List;
 
 import javax.persistence.Column;
@@ -32,12 +33,14 @@ import org.transitime.db.hibernate.HibernateUtils;
 
 /**
  * For storing static configuration information for a vehicle.
+ * <p>
+ * Serializable so that it can be written to the DataDbLogger journal.
  *
  * @author SkiBu Smith
  *
  */
 @Entity @DynamicUpdate @Table(name="VehicleConfigs")
-public class VehicleConfig {
+public class VehicleConfig implements Serializable {
 
 	// ID of vehicle
 	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
@@ -71,6 +74,9 @@ public class VehicleConfig {
 	@Column
 	private final Boolean nonPassengerVehicle;
 	
+	// Needed because serializable so can be stored in DataDbLogger journal
+	private static final long serialVersionUID = 6297391849125187337L;
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -0,0 +1,381 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.feed.gtfsRt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.core.dataCache.PredictionDataCache;
+import org.transitime.core.dataCache.VehicleDataCache;
+import org.transitime.db.structs.Agency;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
+import org.transitime.logging.Markers;
+import org.transitime.modules.Module;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Keeps pre-serialized GTFS-realtime TripUpdates and VehiclePositions feeds
+ * up to date within the core. At a fixed interval the feeds are created from
+ * the PredictionDataCache and the VehicleDataCache and encoded into byte
+ * arrays, both uncompressed and gzipped. Clients such as the API then
+ * simply get the bytes via RMI and stream them instead of getting all of
+ * the predictions and vehicles via RMI and creating the feed themselves for
+ * each request.
+ * <p>
+ * The feeds are created incrementally. The FeedEntity for a trip or vehicle
+ * is only created again if the predictions or vehicle data changed since
+ * the previous feed was created.
+ * <p>
+ * Each publish pass has a sequence number. Clients can use the sequence
+ * number to request a DIFFERENTIAL feed that only contains the entities that
+ * changed or were deleted since they last got the feed, and can wait for the
+ * next pass so that changes can be streamed to them. See GtfsRtFeedVersions.
+ * <p>
+ * To use, add org.transitime.feed.gtfsRt.GtfsRtFeedPublisherModule to the
+ * transitime.modules.optionalModulesList.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtFeedPublisherModule extends Module {
+
+	// The most recently published feeds. Null until the module has published
+	// them, such as if the module is not configured to run.
+	private static volatile SerializedFeed tripUpdatesFeed = null;
+	private static volatile SerializedFeed vehiclePositionsFeed = null;
+
+	// The versions of the entities of the most recently published feeds, for
+	// creating differential feeds. Null until the module has published them.
+	private static volatile GtfsRtFeedVersions tripUpdatesVersions = null;
+	private static volatile GtfsRtFeedVersions vehiclePositionsVersions = null;
+	
+	// For notifying clients waiting for the next publish pass
+	private static final Object publishLock = new Object();
+
+	/********************* Parameters *********************************/
+
+	private static IntegerConfigValue publishIntervalMsec =
+			new IntegerConfigValue(
+					"transitime.gtfsRt.publishIntervalMsec",
+					5 * Time.MS_PER_SEC,
+					"How frequently in msec the GTFS-realtime TripUpdates and "
+					+ "VehiclePositions feeds should be published by the "
+					+ "GtfsRtFeedPublisherModule.");
+
+	private static IntegerConfigValue predictionMaxFutureSecs =
+			new IntegerConfigValue(
+					"transitime.gtfsRt.predictionMaxFutureSecs",
+					25 * Time.SEC_PER_MIN,
+					"Only predictions that are less than this number of "
+					+ "seconds into the future are included in the "
+					+ "GTFS-realtime TripUpdates feed.");
+
+	private static IntegerConfigValue maxDifferentialHistory =
+			new IntegerConfigValue(
+					"transitime.gtfsRt.maxDifferentialHistory",
+					120,
+					"How many publish passes deleted entities are remembered "
+					+ "for so that DIFFERENTIAL GTFS-realtime feeds can be "
+					+ "created. Clients that ask for changes since an older "
+					+ "pass get the full dataset instead.");
+
+	private static IntegerConfigValue maxDeltaWaitMsec =
+			new IntegerConfigValue(
+					"transitime.gtfsRt.maxDeltaWaitMsec",
+					60 * Time.MS_PER_SEC,
+					"The maximum time in msec that a client can wait for the "
+					+ "next publish pass when requesting the changes to a "
+					+ "GTFS-realtime feed.");
+
+	/********************* Logging ************************************/
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(GtfsRtFeedPublisherModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * An encoded GTFS-realtime feed, both uncompressed and gzipped, along
+	 * with their HTTP entity tags. The entity tags are determined once here
+	 * so that they don't need to be determined for every request. Immutable.
+	 */
+	public static class SerializedFeed {
+		private final IpcSerializedGtfsRtFeed feed;
+		private final IpcSerializedGtfsRtFeed gzippedFeed;
+		private final long timeCreated;
+
+		private SerializedFeed(FeedMessage message) throws IOException {
+			byte[] bytes = message.toByteArray();
+
+			ByteArrayOutputStream byteStream =
+					new ByteArrayOutputStream(bytes.length / 4);
+			GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream);
+			gzipStream.write(bytes);
+			gzipStream.close();
+			byte[] gzippedBytes = byteStream.toByteArray();
+
+			// The gzipped bytes are a different representation of the same
+			// content so they need a different strong entity tag
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			String tag = Integer.toHexString(bytes.length) + "-"
+					+ Long.toHexString(crc.getValue());
+			this.feed = new IpcSerializedGtfsRtFeed(bytes, "\"" + tag + "\"");
+			this.gzippedFeed = new IpcSerializedGtfsRtFeed(gzippedBytes, 
+					"\"" + tag + "-gzip\"");
+
+			this.timeCreated = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return The encoded feed along with its entity tag
+		 */
+		public IpcSerializedGtfsRtFeed getFeed() {
+			return feed;
+		}
+
+		/**
+		 * @return The gzipped encoded feed along with its entity tag
+		 */
+		public IpcSerializedGtfsRtFeed getGzippedFeed() {
+			return gzippedFeed;
+		}
+
+		/**
+		 * @return Epoch time in msec when feed was created
+		 */
+		public long getTimeCreated() {
+			return timeCreated;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param agencyId
+	 */
+	public GtfsRtFeedPublisherModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Returns the most recently published TripUpdates feed.
+	 *
+	 * @return The feed, or null if it hasn't been published, such as when
+	 *         this module is not running.
+	 */
+	public static SerializedFeed getTripUpdatesFeed() {
+		return tripUpdatesFeed;
+	}
+
+	/**
+	 * Returns the most recently published VehiclePositions feed.
+	 *
+	 * @return The feed, or null if it hasn't been published, such as when
+	 *         this module is not running.
+	 */
+	public static SerializedFeed getVehiclePositionsFeed() {
+		return vehiclePositionsFeed;
+	}
+
+	/**
+	 * Returns the changes to the TripUpdates feed since the specified
+	 * sequence number. If there haven't been any publish passes since the
+	 * sequence number then waits up to maxWaitMsec for the next one.
+	 * 
+	 * @param sinceSequence
+	 *            The sequence number that the client last received, or 0 if
+	 *            the full dataset is wanted
+	 * @param maxWaitMsec
+	 *            How long to wait for next publish pass if there haven't been
+	 *            any since sinceSequence. Limited to
+	 *            transitime.gtfsRt.maxDeltaWaitMsec.
+	 * @return The changes, or null if the feed hasn't been published, such as
+	 *         when this module is not running.
+	 */
+	public static IpcGtfsRtFeedDelta getTripUpdatesDelta(long sinceSequence,
+			long maxWaitMsec) {
+		return getDelta(true, sinceSequence, maxWaitMsec);
+	}
+
+	/**
+	 * Returns the changes to the VehiclePositions feed since the specified
+	 * sequence number. If there haven't been any publish passes since the
+	 * sequence number then waits up to maxWaitMsec for the next one.
+	 * 
+	 * @param sinceSequence
+	 *            The sequence number that the client last received, or 0 if
+	 *            the full dataset is wanted
+	 * @param maxWaitMsec
+	 *            How long to wait for next publish pass if there haven't been
+	 *            any since sinceSequence. Limited to
+	 *            transitime.gtfsRt.maxDeltaWaitMsec.
+	 * @return The changes, or null if the feed hasn't been published, such as
+	 *         when this module is not running.
+	 */
+	public static IpcGtfsRtFeedDelta getVehiclePositionsDelta(
+			long sinceSequence, long maxWaitMsec) {
+		return getDelta(false, sinceSequence, maxWaitMsec);
+	}
+
+	/**
+	 * Returns the changes to the specified feed since the specified
+	 * sequence number, waiting for the next publish pass if necessary.
+	 * 
+	 * @param tripUpdates
+	 *            true for TripUpdates feed, false for VehiclePositions
+	 * @param sinceSequence
+	 * @param maxWaitMsec
+	 * @return The changes, or null if the feed hasn't been published
+	 */
+	private static IpcGtfsRtFeedDelta getDelta(boolean tripUpdates,
+			long sinceSequence, long maxWaitMsec) {
+		long waitUntil = System.currentTimeMillis()
+				+ Math.min(maxWaitMsec, maxDeltaWaitMsec.getValue());
+		GtfsRtFeedVersions versions;
+		synchronized (publishLock) {
+			while (true) {
+				versions = tripUpdates ? tripUpdatesVersions
+						: vehiclePositionsVersions;
+				if (versions == null)
+					return null;
+				
+				// If there are changes, or if waited long enough, then done
+				long waitTime = waitUntil - System.currentTimeMillis();
+				if (versions.getSequence() != sinceSequence || waitTime <= 0)
+					break;
+				
+				try {
+					publishLock.wait(waitTime);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		return versions.getDelta(sinceSequence);
+	}
+
+	/**
+	 * Returns the time zone of the agency so that the trip start dates can
+	 * be determined.
+	 *
+	 * @return
+	 */
+	private static TimeZone getTimeZone() {
+		Agency agency = Core.getInstance().getDbConfig().getFirstAgency();
+		return agency != null ? agency.getTimeZone() : TimeZone.getDefault();
+	}
+
+	/**
+	 * Creates and publishes the TripUpdates feed
+	 *
+	 * @param builder
+	 * @throws IOException
+	 */
+	private void publishTripUpdates(GtfsRtTripFeedBuilder builder)
+			throws IOException {
+		long maxSystemTimeForPrediction = Core.getInstance().getSystemTime()
+				+ predictionMaxFutureSecs.getValue() * Time.MS_PER_SEC;
+		List<IpcPredictionsForRouteStopDest> allPredictionsByStop =
+				PredictionDataCache.getInstance().getAllPredictions(
+						Integer.MAX_VALUE, maxSystemTimeForPrediction);
+		FeedMessage message = builder.createMessage(GtfsRtTripFeedBuilder
+				.getPredictionsPerTrip(allPredictionsByStop));
+		tripUpdatesFeed = new SerializedFeed(message);
+		tripUpdatesVersions = GtfsRtFeedVersions.next(tripUpdatesVersions,
+				message, maxDifferentialHistory.getValue());
+	}
+
+	/**
+	 * Creates and publishes the VehiclePositions feed
+	 *
+	 * @param builder
+	 * @throws IOException
+	 */
+	private void publishVehiclePositions(GtfsRtVehicleFeedBuilder builder)
+			throws IOException {
+		FeedMessage message = builder.createMessage(
+				VehicleDataCache.getInstance().getVehicles());
+		vehiclePositionsFeed = new SerializedFeed(message);
+		vehiclePositionsVersions = GtfsRtFeedVersions.next(
+				vehiclePositionsVersions, message,
+				maxDifferentialHistory.getValue());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.info("Starting module {} for agencyId={}", getClass().getName(),
+				getAgencyId());
+
+		// The builders remember the entities from the previous feed so that
+		// only the changed ones need to be created
+		TimeZone timeZone = getTimeZone();
+		GtfsRtTripFeedBuilder tripFeedBuilder =
+				new GtfsRtTripFeedBuilder(timeZone);
+		GtfsRtVehicleFeedBuilder vehicleFeedBuilder =
+				new GtfsRtVehicleFeedBuilder(timeZone);
+
+		// Run forever
+		while (true) {
+			// For determining when to publish next
+			IntervalTimer timer = new IntervalTimer();
+
+			try {
+				publishTripUpdates(tripFeedBuilder);
+				publishVehiclePositions(vehicleFeedBuilder);
+				
+				// Let any clients waiting for changes know about them
+				synchronized (publishLock) {
+					publishLock.notifyAll();
+				}
+				logger.debug("Publishing GTFS-realtime feeds took {} msec",
+						timer.elapsedMsec());
+			} catch (Exception e) {
+				logger.error(Markers.email(),
+						"Error with GtfsRtFeedPublisherModule for agencyId={}",
+						AgencyConfig.getAgencyId(), e);
+			}
+
+			// Wait appropriate amount of time till publish again
+			long sleepTime = publishIntervalMsec.getValue()
+					- timer.elapsedMsec();
+			if (sleepTime > 0)
+				Time.sleep(sleepTime);
+		}
+	}
+
+}
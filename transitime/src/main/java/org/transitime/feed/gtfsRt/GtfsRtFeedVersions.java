@@ -0,0 +1,249 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.feed.gtfsRt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Immutable snapshot of the entities of a published GTFS-realtime feed along
+ * with the sequence number of the publish pass in which each entity last
+ * changed. Also remembers which entities were deleted in recent passes. This
+ * makes it possible to create a DIFFERENTIAL feed that only contains the
+ * entities that changed or were deleted since a sequence number supplied by
+ * the client.
+ * <p>
+ * An entity is considered changed if the FeedEntity object differs from the
+ * one in the previous pass. This works because GtfsRtTripFeedBuilder and
+ * GtfsRtVehicleFeedBuilder reuse the FeedEntity objects for trips and
+ * vehicles that have not changed.
+ * <p>
+ * A new snapshot is created for each publish pass via next(). Since the
+ * snapshots are immutable they can be used by any number of threads. The
+ * encoded deltas are cached in the snapshot since typically many clients
+ * will request the changes since the same sequence number.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtFeedVersions {
+
+	// Sequence number of the publish pass
+	private final long sequence;
+
+	// Changes since sequence numbers less than this are no longer available
+	// because the deleted entities from that far back have been purged.
+	private final long oldestSequenceAvailable;
+
+	// The entities of the feed and the sequence number when they last
+	// changed. Keyed by entity ID.
+	private final Map<String, VersionedEntity> entities;
+
+	// The sequence number when the entity was deleted. Keyed by entity ID.
+	private final Map<String, Long> deletedEntities;
+
+	// Cache of the encoded deltas. Keyed by the sequence number that the
+	// changes are since.
+	private final ConcurrentHashMap<Long, IpcGtfsRtFeedDelta> deltasCache =
+			new ConcurrentHashMap<Long, IpcGtfsRtFeedDelta>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * A FeedEntity along with the sequence number of the pass in which it
+	 * last changed.
+	 */
+	private static class VersionedEntity {
+		private final FeedEntity entity;
+		private final long sequence;
+
+		private VersionedEntity(FeedEntity entity, long sequence) {
+			this.entity = entity;
+			this.sequence = sequence;
+		}
+	}
+
+	private GtfsRtFeedVersions(long sequence, long oldestSequenceAvailable,
+			Map<String, VersionedEntity> entities,
+			Map<String, Long> deletedEntities) {
+		this.sequence = sequence;
+		this.oldestSequenceAvailable = oldestSequenceAvailable;
+		this.entities = entities;
+		this.deletedEntities = deletedEntities;
+	}
+
+	/**
+	 * Creates the snapshot for the next publish pass.
+	 *
+	 * @param previous
+	 *            The snapshot from the previous pass. Null if this is the
+	 *            first pass.
+	 * @param message
+	 *            The full dataset feed for this pass
+	 * @param maxHistory
+	 *            How many passes deleted entities are remembered for, which
+	 *            determines how far back clients can ask for changes
+	 * @return The new snapshot
+	 */
+	public static GtfsRtFeedVersions next(GtfsRtFeedVersions previous,
+			FeedMessage message, int maxHistory) {
+		// If first pass then use the current time as the sequence number.
+		// This way sequence numbers from before a restart will be less
+		// than oldestSequenceAvailable and the client will get the full
+		// dataset.
+		if (previous == null) {
+			long sequence = System.currentTimeMillis();
+			Map<String, VersionedEntity> entities =
+					new HashMap<String, VersionedEntity>();
+			for (FeedEntity entity : message.getEntityList())
+				entities.put(entity.getId(),
+						new VersionedEntity(entity, sequence));
+			return new GtfsRtFeedVersions(sequence, sequence, entities,
+					new HashMap<String, Long>());
+		}
+
+		long sequence = previous.sequence + 1;
+
+		// Determine the entities that changed
+		Map<String, VersionedEntity> entities =
+				new HashMap<String, VersionedEntity>(message.getEntityCount());
+		for (FeedEntity entity : message.getEntityList()) {
+			VersionedEntity previousEntity =
+					previous.entities.get(entity.getId());
+			if (previousEntity != null && previousEntity.entity == entity)
+				entities.put(entity.getId(), previousEntity);
+			else
+				entities.put(entity.getId(),
+						new VersionedEntity(entity, sequence));
+		}
+
+		// Determine the entities that were deleted. Purge the ones that were
+		// deleted too long ago and the ones that were added back.
+		long oldestSequenceAvailable =
+				Math.max(previous.oldestSequenceAvailable,
+						sequence - maxHistory);
+		Map<String, Long> deletedEntities =
+				new HashMap<String, Long>(previous.deletedEntities);
+		Iterator<Map.Entry<String, Long>> iterator =
+				deletedEntities.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			if (entry.getValue() <= oldestSequenceAvailable
+					|| entities.containsKey(entry.getKey()))
+				iterator.remove();
+		}
+		for (String id : previous.entities.keySet()) {
+			if (!entities.containsKey(id))
+				deletedEntities.put(id, sequence);
+		}
+
+		return new GtfsRtFeedVersions(sequence, oldestSequenceAvailable,
+				entities, deletedEntities);
+	}
+
+	/**
+	 * @return The sequence number of the publish pass for this snapshot
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Creates a FeedMessage containing the entities that changed or were
+	 * deleted since the specified sequence number. If the changes since the
+	 * sequence number are no longer available then the full dataset is
+	 * returned.
+	 *
+	 * @param sinceSequence
+	 * @return The message
+	 */
+	private FeedMessage createDeltaMessage(long sinceSequence) {
+		boolean fullDataset = sinceSequence < oldestSequenceAvailable
+				|| sinceSequence > sequence;
+
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(fullDataset ? Incrementality.FULL_DATASET
+						: Incrementality.DIFFERENTIAL)
+				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		for (VersionedEntity versionedEntity : entities.values()) {
+			if (fullDataset || versionedEntity.sequence > sinceSequence)
+				message.addEntity(versionedEntity.entity);
+		}
+
+		if (!fullDataset) {
+			for (Map.Entry<String, Long> entry : deletedEntities.entrySet()) {
+				if (entry.getValue() > sinceSequence)
+					message.addEntity(FeedEntity.newBuilder()
+							.setId(entry.getKey()).setIsDeleted(true));
+			}
+		}
+
+		return message.build();
+	}
+
+	/**
+	 * Returns the encoded feed containing the entities that changed or were
+	 * deleted since the specified sequence number. The result is cached so
+	 * that it only needs to be encoded once no matter how many clients
+	 * request it.
+	 *
+	 * @param sinceSequence
+	 *            The sequence number the client last received. If the
+	 *            changes since it are no longer available, such as when
+	 *            the client is requesting data for the first time and uses
+	 *            0, then the full dataset is returned.
+	 * @return The encoded feed along with the sequence number it brings the
+	 *         client up to
+	 */
+	public IpcGtfsRtFeedDelta getDelta(long sinceSequence) {
+		// All requests for changes that are no longer available get the
+		// same full dataset so use the same key for them in the cache
+		if (sinceSequence < oldestSequenceAvailable
+				|| sinceSequence > sequence)
+			sinceSequence = -1;
+
+		IpcGtfsRtFeedDelta delta = deltasCache.get(sinceSequence);
+		if (delta == null) {
+			FeedMessage message = createDeltaMessage(sinceSequence);
+			delta = new IpcGtfsRtFeedDelta(sequence,
+					message.getHeader().getIncrementality()
+							== Incrementality.FULL_DATASET,
+					message.toByteArray());
+			IpcGtfsRtFeedDelta existing =
+					deltasCache.putIfAbsent(sinceSequence, delta);
+			if (existing != null)
+				delta = existing;
+		}
+		return delta;
+	}
+
+}
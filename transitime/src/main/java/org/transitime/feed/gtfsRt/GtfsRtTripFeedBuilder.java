@@ -0,0 +1,347 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.feed.gtfsRt;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * For creating GTFS-realtime trip update feed from predictions. Used both by
+ * the core, which keeps a pre-serialized feed up to date via
+ * GtfsRtFeedPublisherModule, and by the API when getting the predictions via
+ * RMI.
+ * <p>
+ * The FeedEntity for each trip is remembered. If the same builder is used to
+ * create the next message and the predictions for a trip are still the same
+ * IpcPrediction objects then the FeedEntity is reused instead of being
+ * created again. Since predictions are only regenerated for a vehicle when it
+ * reports its position this means that only the trips for vehicles that have
+ * reported since the last message was created need to be processed.
+ * <p>
+ * Note: for the trip feed predictions that are schedule based instead of GPS
+ * based the StopTimeEvent uncertainty is set to
+ * SCHED_BASED_PRED_UNCERTAINTY_VALUE so that the client can treat the
+ * prediction differently. If a vehicle is delayed and not moving then
+ * uncertainty is set to DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and
+ * the prediction is for a subsequent trip then uncertainty is set to
+ * LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+ * <p>
+ * Not thread safe so a builder should only be used by a single thread.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtTripFeedBuilder {
+
+	// For outputting date in GTFS-realtime format
+	private final SimpleDateFormat gtfsRealtimeDateFormatter =
+			new SimpleDateFormat("yyyyMMdd");
+
+	// The entities created for the previous message so that they can be
+	// reused if the predictions for the trip haven't changed. Keyed on tripId.
+	private Map<String, CachedEntity> cachedEntities =
+			new HashMap<String, CachedEntity>();
+
+	// For when creating StopTimeEvent for schedule based prediction
+	// 5 minutes (300 seconds)
+	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60;
+
+	// For when creating StopTimeEvent and the vehicle is delayed
+	private static final int DELAYED_UNCERTAINTY_VALUE =
+			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
+
+	// If vehicle is late and prediction is for a subsequent trip then
+	// the predictions are not as certain because it is reasonably likely
+	// that another vehicle will take over the subsequent trip. Takes
+	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE =
+			DELAYED_UNCERTAINTY_VALUE + 1;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(GtfsRtTripFeedBuilder.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The FeedEntity for a trip along with the predictions it was created
+	 * from.
+	 */
+	private static class CachedEntity {
+		private final List<IpcPrediction> predsForTrip;
+		private final FeedEntity feedEntity;
+
+		private CachedEntity(List<IpcPrediction> predsForTrip,
+				FeedEntity feedEntity) {
+			this.predsForTrip = predsForTrip;
+			this.feedEntity = feedEntity;
+		}
+
+		/**
+		 * Returns true if the predictions are the same as the ones that the
+		 * entity was created from, as determined by
+		 * IpcPrediction.isSamePredictionAs(). The predictions can be new
+		 * objects for a newer AVL report, in which case only the timestamp
+		 * of the entity needs to be updated.
+		 *
+		 * @param preds
+		 * @return
+		 */
+		private boolean sameAs(List<IpcPrediction> preds) {
+			return IpcPrediction.samePredictions(preds, predsForTrip);
+		}
+	}
+
+	/**
+	 * For sorting the predictions for a trip by stop sequence, as required
+	 * by the GTFS-realtime spec.
+	 */
+	private static final Comparator<IpcPrediction> stopSequenceComparator =
+			new Comparator<IpcPrediction>() {
+		@Override
+		public int compare(IpcPrediction p1, IpcPrediction p2) {
+			if (p1.getGtfsStopSeq() != p2.getGtfsStopSeq())
+				return p1.getGtfsStopSeq() < p2.getGtfsStopSeq() ? -1 : 1;
+			return Long.compare(p1.getPredictionTime(),
+					p2.getPredictionTime());
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param timeZone
+	 *            Time zone of the agency, for determining the trip start
+	 *            dates.
+	 */
+	public GtfsRtTripFeedBuilder(TimeZone timeZone) {
+		this.gtfsRealtimeDateFormatter.setTimeZone(timeZone);
+	}
+
+	/**
+	 * Groups the predictions by trip instead of by stop. The predictions for
+	 * each trip are ordered by stop sequence.
+	 *
+	 * @param allPredictionsByStop
+	 * @return Map keyed on tripId of List of Predictions for the trip
+	 */
+	public static Map<String, List<IpcPrediction>> getPredictionsPerTrip(
+			List<IpcPredictionsForRouteStopDest> allPredictionsByStop) {
+		Map<String, List<IpcPrediction>> predictionsByTrip =
+				new HashMap<String, List<IpcPrediction>>();
+		for (IpcPredictionsForRouteStopDest predictionsForStop :
+				allPredictionsByStop) {
+			for (IpcPrediction prediction :
+					predictionsForStop.getPredictionsForRouteStop()) {
+				String tripId = prediction.getTripId();
+				List<IpcPrediction> predsForTrip = predictionsByTrip.get(tripId);
+				if (predsForTrip == null) {
+					// A new trip so need to use a new trip list
+					predsForTrip = new ArrayList<IpcPrediction>();
+					predictionsByTrip.put(tripId, predsForTrip);
+				}
+
+				predsForTrip.add(prediction);
+			}
+		}
+
+		for (List<IpcPrediction> predsForTrip : predictionsByTrip.values())
+			Collections.sort(predsForTrip, stopSequenceComparator);
+
+		// Return results
+		return predictionsByTrip;
+	}
+
+	/**
+	 * Returns the timestamp for the TripUpdate for the predictions, which is
+	 * the time of the most recent AVL report they are based on.
+	 *
+	 * @param predsForTrip
+	 * @return timestamp in seconds
+	 */
+	private static long getTimestampSecs(List<IpcPrediction> predsForTrip) {
+		long avlTime = 0;
+		for (IpcPrediction pred : predsForTrip)
+			avlTime = Math.max(avlTime, pred.getAvlTime());
+		return avlTime / Time.MS_PER_SEC;
+	}
+
+	/**
+	 * Create TripUpdate for the trip.
+	 *
+	 * @param predsForTrip
+	 * @return
+	 */
+	public TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
+		// Create the parent TripUpdate object that is returned.
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+
+		// Add the trip descriptor information
+		IpcPrediction firstPred = predsForTrip.get(0);
+		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+		if (firstPred.getRouteId() != null)
+			tripDescriptor.setRouteId(firstPred.getRouteId());
+		if (firstPred.getTripId() != null) {
+			tripDescriptor.setTripId(firstPred.getTripId());
+
+			long tripStartEpochTime = firstPred.getTripStartEpochTime();
+			String tripStartDateStr =
+					gtfsRealtimeDateFormatter.format(new Date(
+							tripStartEpochTime));
+			tripDescriptor.setStartDate(tripStartDateStr);
+		}
+		tripUpdate.setTrip(tripDescriptor);
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
+		tripUpdate.setVehicle(vehicleDescriptor);
+
+		// Add the StopTimeUpdate information for each prediction
+		for (IpcPrediction pred : predsForTrip) {
+			StopTimeUpdate.Builder stopTimeUpdate =	StopTimeUpdate.newBuilder()
+					.setStopSequence(pred.getGtfsStopSeq())
+					.setStopId(pred.getStopId());
+
+			StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+			stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
+
+			// If schedule based prediction then set the uncertainty to special
+			// value so that client can tell
+			if (pred.isSchedBasedPred())
+				stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
+
+			// If vehicle is late and prediction is for a subsequent trip then
+			// the predictions are not as certain because it is reasonably likely
+			// that another vehicle will take over the subsequent trip. Takes
+			// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+			if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
+				stopTimeEvent.setUncertainty(LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
+
+			// If vehicle not making forward progress then set uncertainty to
+			// special value so that client can tell. Takes precedence over
+			// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+			if (pred.isDelayed())
+				stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
+
+			if (pred.isArrival())
+				stopTimeUpdate.setArrival(stopTimeEvent);
+			else
+				stopTimeUpdate.setDeparture(stopTimeEvent);
+
+			stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
+			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+		}
+
+		// Add timestamp
+		tripUpdate.setTimestamp(getTimestampSecs(predsForTrip));
+
+		// Return the results
+		return tripUpdate.build();
+	}
+
+	/**
+	 * Creates a GTFS-realtime message for the predictions by trip passed in.
+	 * The FeedEntity for a trip from the previous call is reused if the
+	 * predictions for the trip have not changed. If only their AVL time
+	 * changed then just the timestamp of the previous entity is updated.
+	 * Reusing the entity means that it isn't considered changed when
+	 * creating DIFFERENTIAL feeds.
+	 *
+	 * @param predsByTripMap
+	 *            the data to be put into the GTFS-realtime message
+	 * @return the GTFS-realtime FeedMessage
+	 */
+	public FeedMessage createMessage(
+			Map<String, List<IpcPrediction>> predsByTripMap) {
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+
+		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(Incrementality.FULL_DATASET)
+				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		// For each trip...
+		Map<String, CachedEntity> newCachedEntities =
+				new HashMap<String, CachedEntity>(predsByTripMap.size());
+		for (Map.Entry<String, List<IpcPrediction>> entry :
+				predsByTripMap.entrySet()) {
+			List<IpcPrediction> predsForTrip = entry.getValue();
+
+			// If predictions for trip haven't changed then use the
+			// previously created entity, updating the timestamp if needed
+			CachedEntity cachedEntity = cachedEntities.get(entry.getKey());
+			if (cachedEntity != null && cachedEntity.sameAs(predsForTrip)) {
+				long timestampSecs = getTimestampSecs(predsForTrip);
+				if (cachedEntity.feedEntity.getTripUpdate().getTimestamp() 
+						!= timestampSecs) {
+					FeedEntity.Builder feedEntity = 
+							cachedEntity.feedEntity.toBuilder();
+					feedEntity.getTripUpdateBuilder()
+							.setTimestamp(timestampSecs);
+					cachedEntity = 
+							new CachedEntity(predsForTrip, feedEntity.build());
+				}
+			} else {
+				// Create feed entity for each trip
+				try {
+					FeedEntity feedEntity = FeedEntity.newBuilder()
+							.setId(predsForTrip.get(0).getTripId())
+							.setTripUpdate(createTripUpdate(predsForTrip))
+							.build();
+					cachedEntity = new CachedEntity(predsForTrip, feedEntity);
+				} catch (Exception e) {
+					logger.error("Error parsing trip update data. {}",
+							predsForTrip, e);
+					continue;
+				}
+			}
+
+			message.addEntity(cachedEntity.feedEntity);
+			newCachedEntities.put(entry.getKey(), cachedEntity);
+		}
+		cachedEntities = newCachedEntities;
+
+		return message.build();
+	}
+
+}
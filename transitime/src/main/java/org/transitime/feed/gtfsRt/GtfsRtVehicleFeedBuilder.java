@@ -0,0 +1,224 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.feed.gtfsRt;
+
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+/**
+ * For creating GTFS-realtime vehicle positions feed from vehicle data. Used
+ * both by the core, which keeps a pre-serialized feed up to date via
+ * GtfsRtFeedPublisherModule, and by the API when getting the vehicles via RMI.
+ * <p>
+ * The FeedEntity for each vehicle is remembered. If the same builder is used
+ * to create the next message and the vehicle data is still the same
+ * immutable IpcVehicleGtfsRealtime object then the FeedEntity is reused
+ * instead of being created again.
+ * <p>
+ * Not thread safe so a builder should only be used by a single thread.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class GtfsRtVehicleFeedBuilder {
+
+	// For outputting date in GTFS-realtime format
+	private final SimpleDateFormat gtfsRealtimeDateFormatter =
+			new SimpleDateFormat("yyyyMMdd");
+
+	// The entities created for the previous message so that they can be
+	// reused if the vehicle hasn't changed. Keyed on vehicleId.
+	private Map<String, CachedEntity> cachedEntities =
+			new HashMap<String, CachedEntity>();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(GtfsRtVehicleFeedBuilder.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The FeedEntity for a vehicle along with the vehicle data it was created
+	 * from.
+	 */
+	private static class CachedEntity {
+		private final IpcVehicleGtfsRealtime vehicle;
+		private final FeedEntity feedEntity;
+
+		private CachedEntity(IpcVehicleGtfsRealtime vehicle,
+				FeedEntity feedEntity) {
+			this.vehicle = vehicle;
+			this.feedEntity = feedEntity;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param timeZone
+	 *            Time zone of the agency, for determining the trip start
+	 *            dates.
+	 */
+	public GtfsRtVehicleFeedBuilder(TimeZone timeZone) {
+		this.gtfsRealtimeDateFormatter.setTimeZone(timeZone);
+	}
+
+	/**
+	 * Takes in IpcGtfsRealtimeVehicle and puts it into a GTFS-realtime
+	 * VehiclePosition object.
+	 *
+	 * @param vehicleData
+	 * @return the resulting VehiclePosition
+	 */
+	public VehiclePosition createVehiclePosition(
+			IpcVehicleGtfsRealtime vehicleData) {
+		// Create the parent VehiclePosition object that is returned.
+		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
+
+		// If there is route information then add it via the TripDescriptor
+		if (vehicleData.getRouteId() != null
+				&& vehicleData.getRouteId().length() > 0) {
+			String tripStartDateStr =
+					gtfsRealtimeDateFormatter.format(new Date(vehicleData
+							.getTripStartEpochTime()));
+			TripDescriptor.Builder tripDescriptor =
+					TripDescriptor.newBuilder()
+							.setRouteId(vehicleData.getRouteId())
+							.setTripId(vehicleData.getTripId())
+							.setStartDate(tripStartDateStr);
+			vehiclePosition.setTrip(tripDescriptor);
+		}
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
+		// License plate information is optional so only add it if not null
+		if (vehicleData.getLicensePlate() != null)
+			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
+		vehiclePosition.setVehicle(vehicleDescriptor);
+
+		// Add the Position information
+		Position.Builder position =
+				Position.newBuilder().setLatitude(vehicleData.getLatitude())
+						.setLongitude(vehicleData.getLongitude());
+		// Heading and speed are optional so only add them if actually a
+		// valid number.
+		if (!Float.isNaN(vehicleData.getHeading())) {
+			position.setBearing(vehicleData.getHeading());
+		}
+		if (!Float.isNaN(vehicleData.getSpeed())) {
+			position.setSpeed(vehicleData.getSpeed());
+		}
+		vehiclePosition.setPosition(position);
+
+		// Convert the GPS timestamp information to an epoch time as
+		// number of milliseconds since 1970.
+		long gpsTime = vehicleData.getGpsTime();
+		vehiclePosition.setTimestamp(gpsTime / Time.MS_PER_SEC);
+
+		// Set the stop_id if at a stop or going to a stop
+		String stopId = vehicleData.getAtOrNextStopId();
+		if (stopId != null)
+			vehiclePosition.setStopId(stopId);
+
+		// Set current_status part of vehiclePosition if vehicle is actually
+		// predictable. If not predictable then the vehicle stop status will
+		// not be included in feed since it is not stopped nor in transit to.
+		if (vehicleData.isPredictable()) {
+			VehicleStopStatus currentStatus =
+					vehicleData.isAtStop() ? VehicleStopStatus.STOPPED_AT
+							: VehicleStopStatus.IN_TRANSIT_TO;
+			vehiclePosition.setCurrentStatus(currentStatus);
+
+			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
+				vehiclePosition.setCurrentStopSequence(vehicleData.getAtOrNextGtfsStopSeq());
+		}
+
+		// Return the results
+		return vehiclePosition.build();
+	}
+
+	/**
+	 * Creates a GTFS-realtime message for the list of vehicles passed in. The
+	 * FeedEntity for a vehicle from the previous call is reused if the
+	 * vehicle data has not changed.
+	 *
+	 * @param vehicles
+	 *            the data to be put into the GTFS-realtime message
+	 * @return the GTFS-realtime FeedMessage
+	 */
+	public FeedMessage createMessage(
+			Collection<? extends IpcVehicleGtfsRealtime> vehicles) {
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+
+		FeedHeader.Builder feedheader =
+				FeedHeader
+						.newBuilder()
+						.setGtfsRealtimeVersion("1.0")
+						.setIncrementality(Incrementality.FULL_DATASET)
+						.setTimestamp(
+								System.currentTimeMillis() / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		Map<String, CachedEntity> newCachedEntities =
+				new HashMap<String, CachedEntity>(vehicles.size());
+		for (IpcVehicleGtfsRealtime vehicle : vehicles) {
+			// If vehicle hasn't changed then use the previously created
+			// entity
+			CachedEntity cachedEntity = cachedEntities.get(vehicle.getId());
+			if (cachedEntity == null || cachedEntity.vehicle != vehicle) {
+				try {
+					FeedEntity feedEntity = FeedEntity.newBuilder()
+							.setId(vehicle.getId())
+							.setVehicle(createVehiclePosition(vehicle))
+							.build();
+					cachedEntity = new CachedEntity(vehicle, feedEntity);
+				} catch (Exception e) {
+					logger.error("Error parsing vehicle data for vehicle={}",
+							vehicle, e);
+					continue;
+				}
+			}
+
+			message.addEntity(cachedEntity.feedEntity);
+			newCachedEntities.put(vehicle.getId(), cachedEntity);
+		}
+		cachedEntities = newCachedEntities;
+
+		return message.build();
+	}
+
+}
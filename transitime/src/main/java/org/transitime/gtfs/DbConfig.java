@@ -22,14 +22,23 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.StringConfigValue;
 import org.transitime.core.ServiceUtils;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ActiveRevisions;
@@ -51,6 +60,7 @@ import org.transitime.db.structs.TripPattern;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS
@@ -60,15 +70,50 @@ import org.transitime.utils.Time;
  * DbConfig is intended for the core application such that the necessary top
  * level data can be read in at system startup. This doesn't read in all the
  * low-level data such as paths and travel times. Those items are very
- * voluminous and are therefore lazy loaded.
+ * voluminous and are therefore lazy loaded. Alternatively, if 
+ * transitime.core.eagerConfigLoad is set, all of the data is read in at
+ * startup so that the data can be accessed without any lazy loading.
  * 
  * @author SkiBu Smith
  *
  */
 public class DbConfig {
 
+	private static BooleanConfigValue eagerConfigLoad =
+			new BooleanConfigValue("transitime.core.eagerConfigLoad", 
+					false,
+					"If true then all of the block, trip, trip pattern, stop "
+					+ "path, and schedule time data is read in at startup "
+					+ "instead of being lazy loaded. The trips for each block "
+					+ "are then stored in unmodifiable lists so that they can "
+					+ "be accessed by multiple threads without having to "
+					+ "synchronize or access the Hibernate session. The "
+					+ "other config data is read in in parallel using "
+					+ "separate sessions. Startup takes longer but there is "
+					+ "no lock contention once the system is running. Should "
+					+ "be set to false for debugging so that startup is "
+					+ "quick.");
+	
+	private static StringConfigValue configSnapshotDirectory =
+			new StringConfigValue("transitime.core.configSnapshotDirectory",
+					null,
+					"If set then after the config data is read from the "
+					+ "database a binary snapshot of it is written to this "
+					+ "local directory. When the core is restarted for the "
+					+ "same configRev and travelTimesRev the snapshot is "
+					+ "memory mapped and read "
+					+ "in instead of reading the data from the database, "
+					+ "which is much faster. When set the data is always "
+					+ "read in eagerly, as if transitime.core.eagerConfigLoad "
+					+ "were true, since all of it needs to be in the "
+					+ "snapshot.");
+	
 	private final String agencyId;
 
+	// For reporting how long startup took
+	private long configReadMsec;
+	private boolean readFromSnapshot = false;
+
 	// Keeps track of which revision of config data was read in
 	private int configRev;
 
@@ -93,8 +138,12 @@ public class DbConfig {
 	
 	// Keyed on routeId
 	private Map<String, List<TripPattern>> tripPatternsByRouteMap;
+	// Spatial index of all the stop path segments of all trip patterns
+	private StopPathSegmentIndex stopPathSegmentIndex;
 	// For when reading in all trips from db. Keyed on tripId
 	private Map<String, Trip> tripsMap;
+	// True if all trips were read in at startup via eager loading
+	private boolean tripsEagerlyLoaded = false;
 	// For trips that have been read in individually. Keyed on tripId.
 	private Map<String, Trip> individualTripsMap = new HashMap<String, Trip>();
 	// For trips that have been read in individually. Keyed on trip short name.
@@ -196,8 +245,30 @@ public class DbConfig {
 		}
 
 		// Let user know what is going on
-		logger.info("Finished reading configuration data from database . "
-				+ "Took {} msec.", timer.elapsedMsec());
+		configReadMsec = timer.elapsedMsec();
+		logger.info("Finished reading configuration data from {}. "
+				+ "Took {} msec.", 
+				readFromSnapshot ? "snapshot" : "database", configReadMsec);
+	}
+	
+	/**
+	 * Returns how long it took read() to read in the config data. For
+	 * reporting how long startup took.
+	 * 
+	 * @return msec
+	 */
+	public long getConfigReadMsec() {
+		return configReadMsec;
+	}
+	
+	/**
+	 * Returns true if the config data was read in from a snapshot file
+	 * instead of from the database.
+	 * 
+	 * @return true if read from snapshot
+	 */
+	public boolean isReadFromSnapshot() {
+		return readFromSnapshot;
 	}
 
 	/**
@@ -464,6 +535,18 @@ public class DbConfig {
 		return tripPatternsByRouteMap.get(routeId);
 	}
 
+	/**
+	 * Returns the spatial index of all the stop path segments of all trip
+	 * patterns for the configuration revision. The index is built when the
+	 * config data is read in and is immutable so it can be used by multiple
+	 * threads at once.
+	 *
+	 * @return The spatial index, or null if config data not yet read in
+	 */
+	public StopPathSegmentIndex getStopPathSegmentIndex() {
+		return stopPathSegmentIndex;
+	}
+
 	/**
 	 * Returns cached map of all Trips. Can be slow first time accessed because
 	 * it can take a while to read in all trips including all sub-data.
@@ -503,6 +586,13 @@ public class DbConfig {
 	 * @return The trip, or null if no such trip
 	 */
 	public Trip getTrip(String tripIdOrShortName) {
+		// If all trips were read in at startup then simply use them
+		if (tripsEagerlyLoaded) {
+			Trip trip = tripsMap.get(tripIdOrShortName);
+			if (trip != null)
+				return trip;
+		}
+		
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
 		// If trip not read in yet, do so now
@@ -682,6 +772,32 @@ public class DbConfig {
 		// stopPaths = StopPath.getPaths(session, configRev);
 		// logger.debug("Reading stopPaths took {} msec", timer.elapsedMsec());
 
+		// If there is a snapshot of the data for the configRev then use it.
+		// The trips include their travel times so the snapshot is also
+		// specific to the travelTimesRev.
+		String snapshotDirectory = configSnapshotDirectory.getValue();
+		int travelTimesRev = -1;
+		if (snapshotDirectory != null) {
+			travelTimesRev = 
+					ActiveRevisions.get(globalSession).getTravelTimesRev();
+			DbConfigSnapshot snapshot = DbConfigSnapshot.read(
+					snapshotDirectory, agencyId, configRev, travelTimesRev);
+			if (snapshot != null) {
+				setDataFromSnapshot(snapshot);
+				return;
+			}
+		}
+		
+		if (eagerConfigLoad.getValue() || snapshotDirectory != null) {
+			actuallyReadDataEagerly(configRev);
+			
+			// Write out snapshot so can quickly read the data next time
+			if (snapshotDirectory != null)
+				createSnapshot().write(snapshotDirectory, agencyId, configRev,
+						travelTimesRev);
+			return;
+		}
+		
 		timer = new IntervalTimer();
 		blocks = Block.getBlocks(globalSession, configRev);
 		blocksByServiceMap = putBlocksIntoMap(blocks);
@@ -696,6 +812,8 @@ public class DbConfig {
 
 		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
 		
+		buildStopPathSegmentIndex();
+
 		timer = new IntervalTimer();
 		List<Stop> stopsList = Stop.getStops(globalSession, configRev);
 		stopsMap = putStopsIntoMap(stopsList);
@@ -707,26 +825,336 @@ public class DbConfig {
 		agencies = Agency.getAgencies(globalSession, configRev);
 		calendars = Calendar.getCalendars(globalSession, configRev);
 		calendarDates = CalendarDate.getCalendarDates(globalSession, configRev);
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
 		
-		calendarDatesMap = new HashMap<Long, List<CalendarDate>>();
+		fareAttributes =
+				FareAttribute.getFareAttributes(globalSession, configRev);
+		fareRules = FareRule.getFareRules(globalSession, configRev);
+		frequencies = Frequency.getFrequencies(globalSession, configRev);
+		transfers = Transfer.getTransfers(globalSession, configRev);
+
+		logger.debug("Reading everything else took {} msec",
+				timer.elapsedMsec());
+	}
+
+	/**
+	 * Returns all the trip patterns for all of the routes.
+	 * tripPatternsByRouteMap must already be set.
+	 * 
+	 * @return
+	 */
+	private List<TripPattern> getAllTripPatterns() {
+		List<TripPattern> allTripPatterns = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values())
+			allTripPatterns.addAll(tripPatternsForRoute);
+		return allTripPatterns;
+	}
+	
+	/**
+	 * Creates a snapshot of all of the data that has been eagerly read in so
+	 * that it can be written to a file.
+	 * 
+	 * @return the snapshot
+	 */
+	private DbConfigSnapshot createSnapshot() {
+		return new DbConfigSnapshot(blocks, routes, getAllTripPatterns(),
+				tripsMap.values(), new ArrayList<Stop>(stopsMap.values()),
+				agencies, calendars, calendarDates, fareAttributes, fareRules,
+				frequencies, transfers);
+	}
+	
+	/**
+	 * Sets all of the data using a snapshot that was read from a file
+	 * instead of from the database. The trips for the blocks are already
+	 * loaded so no lazy loading is needed.
+	 * 
+	 * @param snapshot
+	 */
+	private void setDataFromSnapshot(DbConfigSnapshot snapshot) {
+		readFromSnapshot = true;
+		
+		blocks = snapshot.getBlocks();
+		for (Block block : blocks)
+			block.preloadTrips();
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+		
+		routes = snapshot.getRoutes();
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+		
+		tripPatternsByRouteMap = 
+				putTripPatternsIntoMap(snapshot.getTripPatterns());
+		
+		Map<String, Trip> theTripsMap = new HashMap<String, Trip>();
+		for (Trip trip : snapshot.getTrips())
+			theTripsMap.put(trip.getId(), trip);
+		tripsMap = theTripsMap;
+		tripsEagerlyLoaded = true;
+		
+		buildStopPathSegmentIndex();
+		buildCumulativeTravelTimes();
+		
+		List<Stop> stopsList = snapshot.getStops();
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+		
+		agencies = snapshot.getAgencies();
+		calendars = snapshot.getCalendars();
+		calendarDates = snapshot.getCalendarDates();
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = snapshot.getFareAttributes();
+		fareRules = snapshot.getFareRules();
+		frequencies = snapshot.getFrequencies();
+		transfers = snapshot.getTransfers();
+	}
+	
+	/**
+	 * Creates the spatial index of all of the stop path segments for all of
+	 * the trip patterns. tripPatternsByRouteMap must already be set.
+	 */
+	private void buildStopPathSegmentIndex() {
+		IntervalTimer timer = new IntervalTimer();
+		stopPathSegmentIndex = new StopPathSegmentIndex(getAllTripPatterns());
+		logger.debug("Building spatial index {} took {} msec", 
+				stopPathSegmentIndex, timer.elapsedMsec());
+	}
+	
+	/**
+	 * Builds the cumulative travel times for all of the trips so that 
+	 * determining the travel time between matches is fast right from the
+	 * start. tripsMap must already be set. For when config not eagerly read
+	 * the cumulative travel times are instead built when first needed.
+	 */
+	private void buildCumulativeTravelTimes() {
+		IntervalTimer timer = new IntervalTimer();
+		int count = 0;
+		Set<TravelTimesForTrip> travelTimesDone = Collections.newSetFromMap(
+				new IdentityHashMap<TravelTimesForTrip, Boolean>());
+		for (Trip trip : tripsMap.values()) {
+			TravelTimesForTrip travelTimes = trip.getTravelTimes();
+			if (travelTimes != null && travelTimesDone.add(travelTimes)) {
+				travelTimes.buildCumulativeTimes(trip);
+				++count;
+			}
+		}
+		logger.debug("Building cumulative travel times for {} trips took {} "
+				+ "msec", count, timer.elapsedMsec());
+	}
+	
+	/**
+	 * Creates map of calendar dates keyed on the time of the date so that
+	 * can efficiently look up calendar dates.
+	 * 
+	 * @param calendarDates
+	 * @return
+	 */
+	private static Map<Long, List<CalendarDate>> putCalendarDatesIntoMap(
+			List<CalendarDate> calendarDates) {
+		Map<Long, List<CalendarDate>> map = 
+				new HashMap<Long, List<CalendarDate>>();
 		for (CalendarDate calendarDate : calendarDates) {
 			Long time = calendarDate.getTime();
-			List<CalendarDate> calendarDatesForDate = calendarDatesMap.get(time);
+			List<CalendarDate> calendarDatesForDate = map.get(time);
 			if (calendarDatesForDate == null) {
 				calendarDatesForDate = new ArrayList<CalendarDate>(1);
-				calendarDatesMap.put(time, calendarDatesForDate);
+				map.put(time, calendarDatesForDate);
 			}
 			calendarDatesForDate.add(calendarDate);
 		}
+		return map;
+	}
+	
+	/**
+	 * For reading in a list of data in a separate thread using its own
+	 * session. The session is closed once the data has been read in so the
+	 * data must not have any lazy loaded members.
+	 */
+	private abstract class ParallelReader<T> implements Callable<List<T>> {
+		private final String name;
 		
-		fareAttributes =
-				FareAttribute.getFareAttributes(globalSession, configRev);
-		fareRules = FareRule.getFareRules(globalSession, configRev);
-		frequencies = Frequency.getFrequencies(globalSession, configRev);
-		transfers = Transfer.getTransfers(globalSession, configRev);
-
-		logger.debug("Reading everything else took {} msec",
+		private ParallelReader(String name) {
+			this.name = name;
+		}
+		
+		protected abstract List<T> read(Session session);
+		
+		@Override
+		public List<T> call() {
+			IntervalTimer timer = new IntervalTimer();
+			Session session = HibernateUtils.getSession(agencyId);
+			try {
+				List<T> list = read(session);
+				logger.debug("Reading {} in parallel took {} msec", name,
+						timer.elapsedMsec());
+				return list;
+			} finally {
+				session.close();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the result of a ParallelReader. If the reader threw an 
+	 * exception then it is rethrown so that it is handled the same way as
+	 * when reading in the data serially.
+	 * 
+	 * @param future
+	 * @return
+	 */
+	private static <T> List<T> getResult(Future<List<T>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HibernateException("Interrupted while reading config "
+					+ "data", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new HibernateException(cause);
+		}
+	}
+	
+	/**
+	 * Reads in all of the config data at once instead of lazy loading the
+	 * trips for each block. The trip patterns (which include the stop paths),
+	 * the trips (which include the schedule times and travel times), and the
+	 * blocks are read in using the global session so that the same TripPattern
+	 * and Trip objects are shared by all of the blocks. This is done with
+	 * just a few large queries instead of a query per block. The trips for
+	 * each block are stored in an unmodifiable list so that Block.getTrips()
+	 * doesn't need to synchronize or access the session.
+	 * <p>
+	 * Meanwhile the other data, which doesn't have any associations to the
+	 * trip data, is read in in parallel by other threads using separate
+	 * sessions.
+	 * 
+	 * @param configRev
+	 */
+	private void actuallyReadDataEagerly(final int configRev) {
+		IntervalTimer totalTimer = new IntervalTimer();
+		
+		// Start reading the independent data in parallel using separate
+		// sessions
+		ExecutorService executor = Executors.newFixedThreadPool(4,
+				new NamedThreadFactory("DbConfigReader"));
+		Future<List<Route>> routesFuture;
+		Future<List<Stop>> stopsFuture;
+		Future<List<Agency>> agenciesFuture;
+		Future<List<Calendar>> calendarsFuture;
+		Future<List<CalendarDate>> calendarDatesFuture;
+		Future<List<FareAttribute>> fareAttributesFuture;
+		Future<List<FareRule>> fareRulesFuture;
+		Future<List<Frequency>> frequenciesFuture;
+		Future<List<Transfer>> transfersFuture;
+		try {
+			routesFuture = executor.submit(new ParallelReader<Route>("routes") {
+				protected List<Route> read(Session session) {
+					return Route.getRoutes(session, configRev);
+				}
+			});
+			stopsFuture = executor.submit(new ParallelReader<Stop>("stops") {
+				protected List<Stop> read(Session session) {
+					return Stop.getStops(session, configRev);
+				}
+			});
+			agenciesFuture = executor.submit(
+					new ParallelReader<Agency>("agencies") {
+				protected List<Agency> read(Session session) {
+					return Agency.getAgencies(session, configRev);
+				}
+			});
+			calendarsFuture = executor.submit(
+					new ParallelReader<Calendar>("calendars") {
+				protected List<Calendar> read(Session session) {
+					return Calendar.getCalendars(session, configRev);
+				}
+			});
+			calendarDatesFuture = executor.submit(
+					new ParallelReader<CalendarDate>("calendar dates") {
+				protected List<CalendarDate> read(Session session) {
+					return CalendarDate.getCalendarDates(session, configRev);
+				}
+			});
+			fareAttributesFuture = executor.submit(
+					new ParallelReader<FareAttribute>("fare attributes") {
+				protected List<FareAttribute> read(Session session) {
+					return FareAttribute.getFareAttributes(session, configRev);
+				}
+			});
+			fareRulesFuture = executor.submit(
+					new ParallelReader<FareRule>("fare rules") {
+				protected List<FareRule> read(Session session) {
+					return FareRule.getFareRules(session, configRev);
+				}
+			});
+			frequenciesFuture = executor.submit(
+					new ParallelReader<Frequency>("frequencies") {
+				protected List<Frequency> read(Session session) {
+					return Frequency.getFrequencies(session, configRev);
+				}
+			});
+			transfersFuture = executor.submit(
+					new ParallelReader<Transfer>("transfers") {
+				protected List<Transfer> read(Session session) {
+					return Transfer.getTransfers(session, configRev);
+				}
+			});
+		} finally {
+			// No more tasks. Threads exit once the submitted tasks complete.
+			executor.shutdown();
+		}
+		
+		// While the other data is being read in read in the trip data
+		// using the global session. Trip patterns first so that they are
+		// in the session cache when the trips are read, and then the trips
+		// so that they are in the session cache when the blocks are read.
+		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
+		
+		IntervalTimer timer = new IntervalTimer();
+		tripsMap = Trip.getTrips(globalSession, configRev);
+		tripsEagerlyLoaded = true;
+		logger.debug("Eagerly reading {} trips took {} msec", tripsMap.size(),
+				timer.elapsedMsec());
+		
+		timer = new IntervalTimer();
+		blocks = Block.getBlocksWithTrips(globalSession, configRev);
+		blocksByServiceMap = putBlocksIntoMap(blocks);
+		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+		logger.debug("Eagerly reading {} blocks took {} msec", blocks.size(),
 				timer.elapsedMsec());
+		
+		buildStopPathSegmentIndex();
+		buildCumulativeTravelTimes();
+		
+		// Get the results of the parallel readers
+		timer = new IntervalTimer();
+		routes = getResult(routesFuture);
+		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
+		routesByRouteShortNameMap = putRoutesIntoMapByRouteShortName(routes);
+		
+		List<Stop> stopsList = getResult(stopsFuture);
+		stopsMap = putStopsIntoMap(stopsList);
+		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
+		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+		
+		agencies = getResult(agenciesFuture);
+		calendars = getResult(calendarsFuture);
+		calendarDates = getResult(calendarDatesFuture);
+		calendarDatesMap = putCalendarDatesIntoMap(calendarDates);
+		fareAttributes = getResult(fareAttributesFuture);
+		fareRules = getResult(fareRulesFuture);
+		frequencies = getResult(frequenciesFuture);
+		transfers = getResult(transfersFuture);
+		logger.debug("Waiting for parallel reads of other data took {} msec",
+				timer.elapsedMsec());
+		
+		logger.info("Eagerly read in all config data for configRev={}. "
+				+ "Took {} msec.", configRev, totalTimer.elapsedMsec());
 	}
 
 	/************************** Getter Methods ***************************/
@@ -0,0 +1,392 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.db.structs.FareAttribute;
+import org.transitime.db.structs.FareRule;
+import org.transitime.db.structs.Frequency;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.Transfer;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A binary snapshot of all of the config data read in by DbConfig for a
+ * configRev and travelTimesRev. The snapshot is written to a file in a local
+ * directory once the config data has been read from the database. When the
+ * core is restarted for the same revisions the file is memory mapped and the
+ * config data is deserialized from it instead of being read from the
+ * database through Hibernate, which for a large agency is much faster.
+ * <p>
+ * The travelTimesRev is part of the snapshot identity because the trips
+ * contain their travel times. UpdateTravelTimes writes new travel times for
+ * the trips of the same configRev and then increments the travelTimesRev, so
+ * a snapshot that was written for an earlier travelTimesRev has stale travel
+ * times and must not be used.
+ * <p>
+ * The file name contains the configRev and travelTimesRev and the file starts
+ * with a header containing a magic number, the format version, the configRev,
+ * and the travelTimesRev so that a file that doesn't match is rejected. The
+ * data itself uses standard Java serialization of the whole object graph
+ * instead of a hand written compact encoding. This way objects shared between
+ * blocks, such as Trips and TripPatterns, are still shared once the snapshot
+ * is read back in, and there is no second description of every field of the
+ * Hibernate classes that would need to be kept in sync. If any of the classes
+ * change incompatibly then the serialVersionUID check causes the snapshot
+ * to be ignored and the data is read from the database instead.
+ * <p>
+ * Only the lists of data are stored. The maps and the spatial index are
+ * rebuilt by DbConfig since they are quick to create.
+ *
+ * @author SkiBu Smith
+ *
+ */
+class DbConfigSnapshot implements Serializable {
+
+	private final List<Block> blocks;
+	private final List<Route> routes;
+	private final List<TripPattern> tripPatterns;
+	private final List<Trip> trips;
+	private final List<Stop> stops;
+	private final List<Agency> agencies;
+	private final List<Calendar> calendars;
+	private final List<CalendarDate> calendarDates;
+	private final List<FareAttribute> fareAttributes;
+	private final List<FareRule> fareRules;
+	private final List<Frequency> frequencies;
+	private final List<Transfer> transfers;
+
+	// For identifying snapshot files
+	private static final int MAGIC_NUMBER = 0x54434653; // "TCFS"
+
+	// Should be incremented if the layout of the file changes. Changes to
+	// the serialized classes are handled by their serialVersionUIDs.
+	private static final int FORMAT_VERSION = 2;
+
+	private static final String FILE_NAME_SUFFIX = ".bin";
+
+	private static final long serialVersionUID = -3958306409851183650L;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(DbConfigSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor. Copies the lists so that the snapshot isn't affected by
+	 * changes to the collections passed in.
+	 */
+	DbConfigSnapshot(List<Block> blocks, List<Route> routes,
+			List<TripPattern> tripPatterns, Collection<Trip> trips,
+			List<Stop> stops, List<Agency> agencies, List<Calendar> calendars,
+			List<CalendarDate> calendarDates,
+			List<FareAttribute> fareAttributes, List<FareRule> fareRules,
+			List<Frequency> frequencies, List<Transfer> transfers) {
+		this.blocks = new ArrayList<Block>(blocks);
+		this.routes = new ArrayList<Route>(routes);
+		this.tripPatterns = new ArrayList<TripPattern>(tripPatterns);
+		this.trips = new ArrayList<Trip>(trips);
+		this.stops = new ArrayList<Stop>(stops);
+		this.agencies = new ArrayList<Agency>(agencies);
+		this.calendars = new ArrayList<Calendar>(calendars);
+		this.calendarDates = new ArrayList<CalendarDate>(calendarDates);
+		this.fareAttributes = new ArrayList<FareAttribute>(fareAttributes);
+		this.fareRules = new ArrayList<FareRule>(fareRules);
+		this.frequencies = new ArrayList<Frequency>(frequencies);
+		this.transfers = new ArrayList<Transfer>(transfers);
+	}
+
+	/**
+	 * Returns the prefix of the names of the snapshot files for the agency.
+	 * 
+	 * @param agencyId
+	 * @return
+	 */
+	private static String getFileNamePrefix(String agencyId) {
+		return "configSnapshot_" + agencyId + "_";
+	}
+	
+	/**
+	 * Returns the snapshot file for the agency, configRev, and
+	 * travelTimesRev.
+	 *
+	 * @param directory
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return
+	 */
+	static File getFile(String directory, String agencyId, int configRev,
+			int travelTimesRev) {
+		return new File(directory, getFileNamePrefix(agencyId) + "rev"
+				+ configRev + "_travelTimesRev" + travelTimesRev 
+				+ FILE_NAME_SUFFIX);
+	}
+	
+	/**
+	 * Deletes the snapshot files for the agency other than the specified one
+	 * since they are for other revisions and would otherwise just take up
+	 * disk space.
+	 * 
+	 * @param directory
+	 * @param agencyId
+	 * @param fileToKeep
+	 */
+	private static void deleteOtherSnapshots(String directory,
+			String agencyId, File fileToKeep) {
+		File[] files = new File(directory).listFiles();
+		if (files == null)
+			return;
+		
+		String prefix = getFileNamePrefix(agencyId);
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(FILE_NAME_SUFFIX)
+					&& !name.equals(fileToKeep.getName())) {
+				logger.info("Deleting obsolete config snapshot file {}", file);
+				if (!file.delete())
+					logger.error("Could not delete config snapshot file {}", 
+							file);
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot to the directory. First writes to a temporary file
+	 * and then renames it so that a partially written file is never read.
+	 * Errors are logged but not thrown since the snapshot is only an
+	 * optimization.
+	 *
+	 * @param directory
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 */
+	void write(String directory, String agencyId, int configRev,
+			int travelTimesRev) {
+		IntervalTimer timer = new IntervalTimer();
+		File file = getFile(directory, agencyId, configRev, travelTimesRev);
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			new File(directory).mkdirs();
+
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile),
+							64 * 1024));
+			try {
+				out.writeInt(MAGIC_NUMBER);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(configRev);
+				out.writeInt(travelTimesRev);
+
+				ObjectOutputStream objectOut = new ObjectOutputStream(out);
+				objectOut.writeObject(this);
+				objectOut.flush();
+			} finally {
+				out.close();
+			}
+
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			logger.info("Wrote config snapshot file {} of {} bytes. Took {} "
+					+ "msec.", file, file.length(), timer.elapsedMsec());
+			
+			deleteOtherSnapshots(directory, agencyId, file);
+		} catch (IOException | RuntimeException e) {
+			logger.error("Could not write config snapshot file {}", file, e);
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Reads the snapshot for the configRev and travelTimesRev from the
+	 * directory by memory mapping the file. Returns null if there is no such
+	 * file, if its header doesn't match the revisions, or if it could not be
+	 * read, such as because the serialized classes have changed. In that case
+	 * the config data needs to be read from the database instead.
+	 *
+	 * @param directory
+	 * @param agencyId
+	 * @param configRev
+	 * @param travelTimesRev
+	 * @return The snapshot, or null if it could not be read
+	 */
+	static DbConfigSnapshot read(String directory, String agencyId,
+			int configRev, int travelTimesRev) {
+		File file = getFile(directory, agencyId, configRev, travelTimesRev);
+		if (!file.exists()) {
+			logger.info("No config snapshot file {} so will read config "
+					+ "data from database.", file);
+			return null;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		try {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = randomAccessFile.getChannel();
+				MappedByteBuffer buffer =
+						channel.map(FileChannel.MapMode.READ_ONLY, 0,
+								channel.size());
+
+				DataInputStream in =
+						new DataInputStream(new ByteBufferInputStream(buffer));
+				int magicNumber = in.readInt();
+				int formatVersion = in.readInt();
+				int fileConfigRev = in.readInt();
+				int fileTravelTimesRev = in.readInt();
+				if (magicNumber != MAGIC_NUMBER
+						|| formatVersion != FORMAT_VERSION
+						|| fileConfigRev != configRev
+						|| fileTravelTimesRev != travelTimesRev) {
+					logger.warn("Config snapshot file {} has magic number {}, "
+							+ "format version {}, configRev {}, and "
+							+ "travelTimesRev {} but expected {}, {}, {}, and "
+							+ "{}. Therefore ignoring it.",
+							file, magicNumber, formatVersion, fileConfigRev,
+							fileTravelTimesRev, MAGIC_NUMBER, FORMAT_VERSION, 
+							configRev, travelTimesRev);
+					return null;
+				}
+
+				ObjectInputStream objectIn = new ObjectInputStream(in);
+				DbConfigSnapshot snapshot =
+						(DbConfigSnapshot) objectIn.readObject();
+				logger.info("Read config snapshot file {} of {} bytes. Took "
+						+ "{} msec.", file, channel.size(), timer.elapsedMsec());
+				return snapshot;
+			} finally {
+				randomAccessFile.close();
+			}
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			logger.warn("Could not read config snapshot file {} so will read "
+					+ "config data from database instead. {}", file,
+					e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * For reading a memory mapped buffer as an InputStream.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	List<Block> getBlocks() {
+		return blocks;
+	}
+
+	List<Route> getRoutes() {
+		return routes;
+	}
+
+	List<TripPattern> getTripPatterns() {
+		return tripPatterns;
+	}
+
+	List<Trip> getTrips() {
+		return trips;
+	}
+
+	List<Stop> getStops() {
+		return stops;
+	}
+
+	List<Agency> getAgencies() {
+		return agencies;
+	}
+
+	List<Calendar> getCalendars() {
+		return calendars;
+	}
+
+	List<CalendarDate> getCalendarDates() {
+		return calendarDates;
+	}
+
+	List<FareAttribute> getFareAttributes() {
+		return fareAttributes;
+	}
+
+	List<FareRule> getFareRules() {
+		return fareRules;
+	}
+
+	List<Frequency> getFrequencies() {
+		return frequencies;
+	}
+
+	List<Transfer> getTransfers() {
+		return transfers;
+	}
+
+}
@@ -25,11 +25,17 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.hibernate.HibernateException;
@@ -94,6 +100,7 @@ import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.MapKey;
 import org.transitime.utils.StringUtils;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Contains all the GTFS data processed into Java lists and such. Also combines
@@ -200,6 +207,21 @@ public class GtfsData {
 	private List<FareRule> fareRules;
 	private List<Transfer> transfers;
 	
+	// The shapes.txt data. Read in while the other data is being processed
+	// so that it is ready for processPaths().
+	private Collection<GtfsShape> gtfsShapes;
+	
+	// For processing independent data in parallel. Only set while 
+	// processData() is running, and null if only a single thread is to be
+	// used.
+	private ExecutorService importExecutor;
+	private int numberImportThreads = 1;
+	
+	// How long each stage of processing took, in the order that the stages
+	// finished. Keyed on name of the stage.
+	private final Map<String, Long> stageTimesMsec = 
+			Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+	
 	// This is the format that dates are in for CSV. Should
 	// be accessed only through getDateFormatter() to make
 	// sure that it is initialized.
@@ -233,7 +255,9 @@ public class GtfsData {
 			+ "\"^((?!(SPECIAL1|SPECIAL2)).)*$\" "
 			+ "if want to filter out two names. The default value "
 			+ "of null causes all trips to be included.");
-	private static Pattern tripIdFilterRegExPattern = null;
+	private static final Pattern tripIdFilterRegExPattern = 
+			tripIdFilterRegEx.getValue() == null ? 
+					null : Pattern.compile(tripIdFilterRegEx.getValue());
 	
 	private static IntegerConfigValue stopCodeBaseValue = 
 			new IntegerConfigValue("transitime.gtfs.stopCodeBaseValue", 
@@ -249,6 +273,17 @@ public class GtfsData {
 					+ "stops for the trips with the same headsign differ by "
 					+ "less than this amount.");
 	
+	private static IntegerConfigValue importThreads =
+			new IntegerConfigValue("transitime.gtfs.importThreads", 
+					0,
+					"Number of threads to use for processing the GTFS data. "
+					+ "Files that don't depend on each other, such as "
+					+ "stops.txt, calendar.txt, shapes.txt and the fare "
+					+ "files, are processed concurrently, and the stop paths "
+					+ "are determined for the trip patterns in parallel. A value "
+					+ "of 0 means use the number of available processors. A "
+					+ "value of 1 means process everything sequentially.");
+	
 	// Logging
 	public static final Logger logger = 
 			LoggerFactory.getLogger(GtfsData.class);
@@ -971,6 +1006,53 @@ public class GtfsData {
 		return processedGtfsStopTimesForTrip;
 	}
 	
+	/**
+	 * Same as calling processStopTimesForTrip() for each trip in
+	 * gtfsStopTimesForTripMap and replacing the stop times for the trip with
+	 * the result, but the trips are divided into chunks that are processed
+	 * by the importExecutor threads. Only the map is updated by the calling
+	 * thread since it is not thread safe.
+	 */
+	private void processStopTimesForTripsInParallel() {
+		final List<String> tripIds =
+				new ArrayList<String>(gtfsStopTimesForTripMap.keySet());
+		final List<List<GtfsStopTime>> stopTimesForTrips = 
+				new ArrayList<List<GtfsStopTime>>(tripIds.size());
+		for (String tripId : tripIds)
+			stopTimesForTrips.add(gtfsStopTimesForTripMap.get(tripId));
+		
+		// Use several chunks per thread so that the work is evenly divided
+		// even if some trips take longer than others
+		int chunkSize = tripIds.size() / (4 * numberImportThreads) + 1;
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int start = 0; start < tripIds.size(); start += chunkSize) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start + chunkSize, tripIds.size());
+			futures.add(importExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// Replacing elements doesn't change the structure of the
+					// list so different threads can do so for different 
+					// elements.
+					for (int i = chunkStart; i < chunkEnd; ++i) {
+						stopTimesForTrips.set(i, 
+								processStopTimesForTrip(
+										stopTimesForTrips.get(i)));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures)
+			waitFor(future);
+		
+		// Replace the stop times for the trips with the processed/cleaned up
+		// versions
+		for (int i = 0; i < tripIds.size(); ++i)
+			gtfsStopTimesForTripMap.put(tripIds.get(i), 
+					stopTimesForTrips.get(i));
+	}
+	
 	/**
 	 * Reads the data from stop_times.txt and puts it into
 	 * gtfsStopTimesForTripMap map. Also processes the data to determine Trips
@@ -1093,17 +1175,23 @@ public class GtfsData {
 		}
 		
 		// Go through the stop times for each tripId. Sort them and look for
-		// any problems with the data.
-		Set<String> tripIds = gtfsStopTimesForTripMap.keySet();
-		for (String tripId : tripIds) {
-			List<GtfsStopTime> gtfsStopTimesForTrip =
-					gtfsStopTimesForTripMap.get(tripId);			
-			List<GtfsStopTime> processedGtfsStopTimesForTrip =
-					processStopTimesForTrip(gtfsStopTimesForTrip);
-			
-			// Replace the stop times for the trip with the processed/cleaned 
-			// up version
-			gtfsStopTimesForTripMap.put(tripId, processedGtfsStopTimesForTrip);
+		// any problems with the data. The trips are independent of each 
+		// other so they can be processed in parallel.
+		if (importExecutor == null) {
+			Set<String> tripIds = gtfsStopTimesForTripMap.keySet();
+			for (String tripId : tripIds) {
+				List<GtfsStopTime> gtfsStopTimesForTrip =
+						gtfsStopTimesForTripMap.get(tripId);			
+				List<GtfsStopTime> processedGtfsStopTimesForTrip =
+						processStopTimesForTrip(gtfsStopTimesForTrip);
+				
+				// Replace the stop times for the trip with the 
+				// processed/cleaned up version
+				gtfsStopTimesForTripMap.put(tripId, 
+						processedGtfsStopTimesForTrip);
+			}
+		} else {
+			processStopTimesForTripsInParallel();
 		}
 		
 		// Log if a trip is defined in the trips.txt file but not in 
@@ -1770,25 +1858,16 @@ public class GtfsData {
 	}
 	
 	/**
-	 * Reads in shapes.txt file and processes the information into 
-	 * StopPath objects. Using the term "StopPath" instead of "Shape" to
-	 * be more descriptive of what the data is really for. 
+	 * Reads in shapes.txt file, combines it with the supplemental shapes.txt
+	 * file if there is one, and puts the data into gtfsShapes. Doesn't depend
+	 * on any other data so can be done while the other data is processed.
 	 */
-	private void processPaths() {
-		// Make sure needed data is already read in. This method 
-		// converts the shapes into Paths such that each path ends
-		// at a stop. Therefore need to have read in stop info first.
-		if (stopsMap == null || stopsMap.isEmpty()) {
-			logger.error("processStopData() must be called before " + 
-					"GtfsData.processPaths() is. Exiting.");
-			System.exit(-1);
-		}
-
+	private void readShapes() {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
 		// Let user know what is going on
-		logger.info("Processing shapes.txt data...");
+		logger.info("Reading shapes.txt data...");
 		
 		// Read in the shapes.txt GTFS data from file
 		GtfsShapesReader shapesReader = new GtfsShapesReader(gtfsDirectoryName);
@@ -1849,6 +1928,39 @@ public class GtfsData {
 				gtfsShapes = map.values();
 			}
 		}
+		this.gtfsShapes = gtfsShapes;
+		
+		// Let user know what is going on
+		logger.info("Finished reading shapes.txt data. Took {} msec.",
+				timer.elapsedMsec());		
+	}
+	
+	/**
+	 * Processes the shapes.txt data read in by readShapes() into StopPath 
+	 * objects. Using the term "StopPath" instead of "Shape" to be more 
+	 * descriptive of what the data is really for. The trip patterns are 
+	 * processed in parallel if using multiple threads.
+	 */
+	private void processPaths() {
+		// Make sure needed data is already read in. This method 
+		// converts the shapes into Paths such that each path ends
+		// at a stop. Therefore need to have read in stop info first.
+		if (stopsMap == null || stopsMap.isEmpty()) {
+			logger.error("processStopData() must be called before " + 
+					"GtfsData.processPaths() is. Exiting.");
+			System.exit(-1);
+		}
+		if (gtfsShapes == null) {
+			logger.error("readShapes() must be called before " + 
+					"GtfsData.processPaths() is. Exiting.");
+			System.exit(-1);
+		}
+
+		// For logging how long things take
+		IntervalTimer timer = new IntervalTimer();
+
+		// Let user know what is going on
+		logger.info("Processing shapes.txt data...");
 		
 		// Process all the shapes into stopPaths
 		StopPathProcessor pathProcessor = 
@@ -1860,7 +1972,10 @@ public class GtfsData {
 						maxStopToPathDistance, 
 						maxDistanceForEliminatingVertices,
 						trimPathBeforeFirstStopOfTrip);
-		pathProcessor.processPathSegments();
+		pathProcessor.processPathSegments(importExecutor);
+		
+		// Don't need the shapes anymore so allow them to be garbage collected
+		gtfsShapes = null;
 						
 		// Let user know what is going on
 		logger.info("Finished processing shapes.txt data. Took {} msec.",
@@ -2572,12 +2687,8 @@ public class GtfsData {
 	 * @return True if trip not to be filtered out
 	 */
 	public static boolean tripNotFiltered(String tripId) {
-		if (tripIdFilterRegEx.getValue() == null)
-			return true;
-		
-		// Create pattern if haven't done so yet, but only do so once.
 		if (tripIdFilterRegExPattern == null)
-			tripIdFilterRegExPattern = Pattern.compile(tripIdFilterRegEx.getValue());
+			return true;
 		
 		boolean matches = tripIdFilterRegExPattern.matcher(tripId.trim()).matches();
 		return matches;
@@ -2603,37 +2714,224 @@ public class GtfsData {
 	}
 	
 	/**
-	 * Does all the work. Processes the data and store it in internal structures
+	 * A named part of processing the GTFS data. When run the time it takes is
+	 * recorded in stageTimesMsec.
+	 */
+	private abstract class ImportStage implements Runnable {
+		private final String name;
+		
+		private ImportStage(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Does the actual work of the stage
+		 */
+		protected abstract void process();
+		
+		@Override
+		public void run() {
+			IntervalTimer timer = new IntervalTimer();
+			process();
+			stageTimesMsec.put(name, timer.elapsedMsec());
+		}
+	}
+	
+	/**
+	 * Runs the stages one after another using the calling thread.
+	 * 
+	 * @param stages
+	 *            the stages to run, in order
+	 */
+	private static void runSequentially(ImportStage... stages) {
+		for (ImportStage stage : stages)
+			stage.run();
+	}
+	
+	/**
+	 * Starts running the stages one after another. If there is an
+	 * importExecutor then they are run by one of its threads so that they
+	 * run concurrently with the calling thread and with other stages.
+	 * Otherwise they are simply run by the calling thread before returning.
+	 * 
+	 * @param stages
+	 *            the stages to run, in order
+	 * @return Future for waiting for the stages to finish, or null if the
+	 *         stages were already run by the calling thread
+	 */
+	private Future<Void> startStages(final ImportStage... stages) {
+		if (importExecutor == null) {
+			runSequentially(stages);
+			return null;
+		}
+		
+		return importExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				runSequentially(stages);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Waits for stages started by startStages() to finish. If a stage threw
+	 * an exception then it is rethrown.
+	 * 
+	 * @param future
+	 *            as returned by startStages(). If null then simply returns.
+	 */
+	private static void waitFor(Future<Void> future) {
+		if (future == null)
+			return;
+		
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while processing "
+					+ "GTFS data", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	/**
+	 * Returns how long each stage of processData() took. The stages are in
+	 * the order that they finished.
+	 * 
+	 * @return map of stage name to time in msec
+	 */
+	public Map<String, Long> getStageTimesMsec() {
+		synchronized (stageTimesMsec) {
+			return new LinkedHashMap<String, Long>(stageTimesMsec);
+		}
+	}
+	
+	/**
+	 * Does all the work. Processes the data and store it in internal 
+	 * structures.
+	 * <p>
+	 * The data sets that don't depend on each other are processed
+	 * concurrently if transitime.gtfs.importThreads is not 1. The routes and
+	 * trips, the stops, the calendars, the shapes, and the fares and transfers
+	 * are each processed by a separate thread. Once those are done the stop
+	 * times, which depend on the stops and trips, are processed, followed
+	 * by the rest of the stages that depend on the trip patterns.
 	 */
 	public void processData() {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
 		// Let user know what is going on
-		logger.info("Processing GTFS data from {} ...",
-				gtfsDirectoryName);
-
+		numberImportThreads = importThreads.getValue() > 0 ? 
+				importThreads.getValue() : 
+				Runtime.getRuntime().availableProcessors();
+		logger.info("Processing GTFS data from {} using {} threads...",
+				gtfsDirectoryName, numberImportThreads);
+
+		if (numberImportThreads > 1)
+			importExecutor = Executors.newFixedThreadPool(numberImportThreads,
+					new NamedThreadFactory("GtfsImport"));
+		try {
+			processDataInStages();
+		} finally {
+			if (importExecutor != null) {
+				importExecutor.shutdownNow();
+				importExecutor = null;
+			}
+		}
+		
+		// Let user know what is going on
+		logger.info("Finished processing GTFS data from {} . Took {} msec. "
+				+ "Time for each stage in msec: {}",
+				gtfsDirectoryName, timer.elapsedMsec(), getStageTimesMsec());
+	}
+	
+	/**
+	 * Called by processData() to process the data in stages, running the 
+	 * independent stages concurrently if there is an importExecutor.
+	 */
+	private void processDataInStages() {
 		// Note. The order of how these are processed in important because
 		// some data sets rely on others in order to be fully processed.
 		// If the order is wrong then the methods below will log an error and
-		// exit.
-		processRouteData();
-		processStopData();		
-		processCalendarDates();
-		processCalendars();
-		processServiceIds();
-		processTripsData();	
-		processFrequencies();
-		processStopTimesData();		
-		processRouteMaps(); 
-		processBlocks();
-		processPaths();
-		processAgencyData();
-		
-		// Following are simple objects that don't require combining tables
-		processFareAttributes();
-		processFareRules();
-		processTransfers();
+		// exit. The stages started by a single startStages() call are run
+		// in order, but might be run concurrently with the stages of the
+		// other startStages() calls.
+		
+		// The date formatter is used when processing calendars. Create it
+		// now so that it isn't created by multiple threads at once.
+		getDateFormatter();
+		
+		// Start the stages that don't depend on each other
+		Future<Void> routesAndTrips = startStages(
+				new ImportStage("routes") {
+					protected void process() { processRouteData(); }
+				},
+				new ImportStage("fare rules") {
+					protected void process() { processFareRules(); }
+				},
+				new ImportStage("trips") {
+					protected void process() { processTripsData(); }
+				},
+				new ImportStage("frequencies") {
+					protected void process() { processFrequencies(); }
+				});
+		Future<Void> stops = startStages(
+				new ImportStage("stops") {
+					protected void process() { processStopData(); }
+				});
+		Future<Void> calendarsFuture = startStages(
+				new ImportStage("calendars") {
+					protected void process() { 
+						processCalendarDates();
+						processCalendars();
+						processServiceIds();
+					}
+				});
+		Future<Void> shapes = startStages(
+				new ImportStage("read shapes") {
+					protected void process() { readShapes(); }
+				});
+		Future<Void> faresAndTransfers = startStages(
+				new ImportStage("fare attributes") {
+					protected void process() { processFareAttributes(); }
+				},
+				new ImportStage("transfers") {
+					protected void process() { processTransfers(); }
+				});
+		
+		// The stop times depend on the stops and the trips
+		waitFor(routesAndTrips);
+		waitFor(stops);
+		waitFor(calendarsFuture);
+		runSequentially(
+				new ImportStage("stop times") {
+					protected void process() { processStopTimesData(); }
+				},
+				new ImportStage("route maps") {
+					protected void process() { processRouteMaps(); }
+				},
+				new ImportStage("blocks") {
+					protected void process() { processBlocks(); }
+				});
+		
+		// The paths depend on the trip patterns and the shapes
+		waitFor(shapes);
+		runSequentially(
+				new ImportStage("paths") {
+					protected void process() { processPaths(); }
+				},
+				new ImportStage("agency") {
+					protected void process() { processAgencyData(); }
+				});
+		waitFor(faresAndTransfers);
 		
 		// Sometimes will be using a partial configuration. For example, for 
 		// MBTA commuter rail only want to use the trips defined for 
@@ -2653,11 +2951,16 @@ public class GtfsData {
 		//outputPathsAndStopsForGraphing("8699");
 		
 		// Now process travel times and update the Trip objects. 
-		TravelTimesProcessorForGtfsUpdates travelTimesProcesssor =
-				new TravelTimesProcessorForGtfsUpdates(revs,
-						originalTravelTimesRev, maxTravelTimeSegmentLength,
-						defaultWaitTimeAtStopMsec, maxSpeedKph);
-		travelTimesProcesssor.process(session, this);
+		runSequentially(new ImportStage("travel times") {
+			protected void process() {
+				TravelTimesProcessorForGtfsUpdates travelTimesProcesssor =
+						new TravelTimesProcessorForGtfsUpdates(revs,
+								originalTravelTimesRev, 
+								maxTravelTimeSegmentLength,
+								defaultWaitTimeAtStopMsec, maxSpeedKph);
+				travelTimesProcesssor.process(session, GtfsData.this);
+			}
+		});
 		
 		// Try allowing garbage collector to free up some memory since
 		// don't need the GTFS structures anymore.
@@ -2668,15 +2971,15 @@ public class GtfsData {
 		// Now that have read in all the data into collections output it
 		// to database.
 		try {
-			DbWriter dbWriter = new DbWriter(this);
-			dbWriter.write(session, revs.getConfigRev());		
+			runSequentially(new ImportStage("write to db") {
+				protected void process() {
+					DbWriter dbWriter = new DbWriter(GtfsData.this);
+					dbWriter.write(session, revs.getConfigRev());		
+				}
+			});
 			
 			// Finish things up by closing the session
 			session.close();
-			
-			// Let user know what is going on
-			logger.info("Finished processing GTFS data from {} . Took {} msec.",
-					gtfsDirectoryName, timer.elapsedMsec());
 		} catch (HibernateException e) {
 			logger.error("Exception when writing data to db", e);
 			throw e;
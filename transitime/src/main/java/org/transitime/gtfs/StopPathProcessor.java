@@ -22,6 +22,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -604,6 +608,38 @@ public class StopPathProcessor {
 		}		
 	}
 
+	/**
+	 * Determines the path segments for the trip pattern. If shapes.txt GTFS
+	 * file has a shape for the trip pattern then that data is used. Otherwise
+	 * will simply connect the stops with straight line stopPaths. Only
+	 * modifies the StopPaths of the trip pattern so different trip patterns
+	 * can be processed at the same time by different threads.
+	 * 
+	 * @param tripPattern
+	 */
+	private void processPathSegmentsForTripPattern(TripPattern tripPattern) {
+		// Determine the GtfsShape associated with the TripPattern
+		String shapeId = tripPattern.getShapeId();
+		List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		
+		// If no shape defined then simply connect the stops
+		if (gtfsShapesForTripPattern == null) {
+			// Create stopPaths by connecting the stops
+			connectStopsSinceNoShapes(tripPattern);
+		} else {
+			// Determine list of shapes associated with the trip pattern.
+			// The stopPaths are offset to the right by the offsetDistance
+			// if needed. This is useful if the shapes.txt data is street
+			// centerline data.
+			List<Location> offsetLocations = 
+					getOffsetLocations(gtfsShapesMap.get(shapeId));
+					
+			// Create stopPaths by finding best match to shapes
+			determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
+					tripPattern);
+		}
+	}
+	
 	/**
 	 * Determines the path segments for each trip pattern. If shapes.txt
 	 * GTFS file has a shape for the trip pattern then that data is used. 
@@ -620,6 +656,20 @@ public class StopPathProcessor {
 	 * adjusted.
 	 */
 	public void processPathSegments() {
+		processPathSegments(null);
+	}
+	
+	/**
+	 * Same as processPathSegments() but if an executor is specified then the
+	 * trip patterns are processed in parallel by its threads. This can make
+	 * a big difference since matching the stops to the shapes is expensive
+	 * when there are many trip patterns.
+	 * 
+	 * @param executor
+	 *            for processing the trip patterns in parallel. If null then
+	 *            the trip patterns are processed by the calling thread.
+	 */
+	public void processPathSegments(ExecutorService executor) {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
@@ -627,26 +677,35 @@ public class StopPathProcessor {
 		logger.info("Processing and filtering path segment data...");
 		
 		// Need to process stopPaths for every trip pattern...
-		for (TripPattern tripPattern : tripPatterns) {
-			// Determine the GtfsShape associated with the TripPattern
-			String shapeId = tripPattern.getShapeId();
-			List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		if (executor == null) {
+			for (TripPattern tripPattern : tripPatterns)
+				processPathSegmentsForTripPattern(tripPattern);
+		} else {
+			List<Future<Void>> futures = 
+					new ArrayList<Future<Void>>(tripPatterns.size());
+			for (final TripPattern tripPattern : tripPatterns) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						processPathSegmentsForTripPattern(tripPattern);
+						return null;
+					}
+				}));
+			}
 			
-			// If no shape defined then simply connect the stops
-			if (gtfsShapesForTripPattern == null) {
-				// Create stopPaths by connecting the stops
-				connectStopsSinceNoShapes(tripPattern);
-			} else {
-				// Determine list of shapes associated with the trip pattern.
-				// The stopPaths are offset to the right by the offsetDistance
-				// if needed. This is useful if the shapes.txt data is street
-				// centerline data.
-				List<Location> offsetLocations = 
-						getOffsetLocations(gtfsShapesMap.get(shapeId));
-						
-				// Create stopPaths by finding best match to shapes
-				determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
-						tripPattern);
+			// Wait for all the trip patterns to be processed
+			try {
+				for (Future<Void> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while "
+						+ "processing path segments", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new IllegalStateException(cause);
 			}
 		}
 		
@@ -0,0 +1,569 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.gtfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.Geo;
+
+/**
+ * An immutable spatial index of all of the stop path segments of all of the
+ * trip patterns for a configuration revision. It is a packed R-tree built
+ * with the Sort-Tile-Recursive (STR) algorithm: the segments are sorted into
+ * vertical slices by longitude, each slice is sorted by latitude, and then
+ * groups of NODE_SIZE bounding boxes are combined into parent nodes until
+ * there is a single root. Everything is stored in flat arrays so the index is
+ * compact and a query only touches the segments whose bounding boxes are
+ * near the location.
+ * <p>
+ * Since the index is never modified after it is built it can be queried
+ * from any number of threads without synchronization. It is built once
+ * when DbConfig reads in a configuration revision.
+ * <p>
+ * Each segment is identified by its trip pattern plus its ordinal within the
+ * trip pattern. The ordinal is simply the position of the segment when
+ * walking through all of the stop paths and segments of the trip pattern in
+ * order, which is the same order that the SpatialMatcher walks them in.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class StopPathSegmentIndex {
+
+	// Number of children per node of the tree
+	private static final int NODE_SIZE = 16;
+
+	// Meters per degree of latitude, consistent with Geo.distance()
+	private static final double METERS_PER_DEGREE_LAT =
+			Geo.RADIUS_OF_EARTH_IN_METERS * Math.PI / 180.0;
+
+	// Geo.distance() uses an equirectangular approximation so the query box
+	// is made a bit larger than the distance to make sure that no segment
+	// is missed. The exact distance check then filters out the extra ones.
+	private static final double QUERY_BOX_MARGIN = 1.25;
+
+	// The trip patterns that were indexed, keyed by trip pattern ID
+	private final Map<String, TripPatternSegments> tripPatternSegmentsMap;
+
+	// Info for each segment, indexed by item number
+	private final TripPatternSegments[] itemTripPatterns;
+	private final int[] itemOrdinals;
+	private final VectorWithHeading[] itemSegments;
+
+	// The packed tree. For each node there are 4 values in boxes: minLat,
+	// minLon, maxLat, maxLon. For leaf nodes nodeIndices is the item number.
+	// For non-leaf nodes nodeIndices is the position of the first child.
+	private final double[] boxes;
+	private final int[] nodeIndices;
+	// levelBounds[level] is the position just past the last node of level
+	private final int[] levelBounds;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Describes the segments of a single trip pattern so that a segment
+	 * ordinal can be converted to the corresponding stop path and segment
+	 * indices.
+	 */
+	public static class TripPatternSegments {
+		private final String tripPatternId;
+		private final int[] stopPathIndices;
+		private final int[] segmentIndices;
+		// The ordinals of the last segment of layover stop paths. These
+		// always need to be examined by the SpatialMatcher since vehicles
+		// can match to layovers even when they are away from the path.
+		private final BitSet layoverOrdinals;
+
+		private TripPatternSegments(String tripPatternId,
+				List<StopPath> stopPaths) {
+			this.tripPatternId = tripPatternId;
+
+			int numberSegments = 0;
+			for (StopPath stopPath : stopPaths)
+				numberSegments += stopPath.getNumberSegments();
+
+			this.stopPathIndices = new int[numberSegments];
+			this.segmentIndices = new int[numberSegments];
+			this.layoverOrdinals = new BitSet(numberSegments);
+			int ordinal = 0;
+			for (int stopPathIndex = 0; stopPathIndex < stopPaths.size();
+					++stopPathIndex) {
+				StopPath stopPath = stopPaths.get(stopPathIndex);
+				int segmentsInPath = stopPath.getNumberSegments();
+				for (int segmentIndex = 0; segmentIndex < segmentsInPath;
+						++segmentIndex) {
+					stopPathIndices[ordinal] = stopPathIndex;
+					segmentIndices[ordinal] = segmentIndex;
+					if (stopPath.isLayoverStop()
+							&& segmentIndex == segmentsInPath - 1)
+						layoverOrdinals.set(ordinal);
+					++ordinal;
+				}
+			}
+		}
+
+		public String getTripPatternId() {
+			return tripPatternId;
+		}
+
+		/**
+		 * @return Total number of segments for all stop paths of the trip
+		 *         pattern
+		 */
+		public int getNumberSegments() {
+			return stopPathIndices.length;
+		}
+
+		public int getStopPathIndex(int ordinal) {
+			return stopPathIndices[ordinal];
+		}
+
+		public int getSegmentIndex(int ordinal) {
+			return segmentIndices[ordinal];
+		}
+	}
+
+	/**
+	 * The results of querying the index for a location. Contains the segments
+	 * within the query distance of the location, grouped by trip pattern,
+	 * along with the distance of the location to each of those segments.
+	 * Not modified once the query has completed so can be shared by multiple
+	 * threads that are matching the same AVL report.
+	 */
+	public static class NearbySegments {
+		private final StopPathSegmentIndex index;
+		private final Location location;
+		private final double maxDistance;
+		// Keyed by trip pattern ID
+		private final Map<String, Hits> hitsMap = new HashMap<String, Hits>();
+
+		private static class Hits {
+			private int count = 0;
+			private int[] ordinals = new int[8];
+			private double[] distances = new double[8];
+
+			private void add(int ordinal, double distance) {
+				if (count == ordinals.length) {
+					ordinals = Arrays.copyOf(ordinals, count * 2);
+					distances = Arrays.copyOf(distances, count * 2);
+				}
+				ordinals[count] = ordinal;
+				distances[count] = distance;
+				++count;
+			}
+		}
+
+		private NearbySegments(StopPathSegmentIndex index, Location location,
+				double maxDistance) {
+			this.index = index;
+			this.location = location;
+			this.maxDistance = maxDistance;
+		}
+
+		private void add(String tripPatternId, int ordinal, double distance) {
+			Hits hits = hitsMap.get(tripPatternId);
+			if (hits == null) {
+				hits = new Hits();
+				hitsMap.put(tripPatternId, hits);
+			}
+			hits.add(ordinal, distance);
+		}
+
+		/**
+		 * @return The location that the index was queried for
+		 */
+		public Location getLocation() {
+			return location;
+		}
+
+		/**
+		 * @return The distance that the index was queried with. Only segments
+		 *         closer than this distance are included in the results.
+		 */
+		public double getMaxDistance() {
+			return maxDistance;
+		}
+
+		/**
+		 * Returns true if these results can be used for the location and
+		 * distance specified. They can be if the query was for the same
+		 * location and for at least the distance specified.
+		 *
+		 * @param loc
+		 * @param distance
+		 * @return true if can use these results
+		 */
+		public boolean covers(Location loc, double distance) {
+			return location.equals(loc) && distance <= maxDistance;
+		}
+
+		/**
+		 * Returns the segment info for the trip pattern so can convert
+		 * ordinals to stop path and segment indices.
+		 *
+		 * @param tripPatternId
+		 * @return The segments info, or null if trip pattern wasn't indexed
+		 */
+		public TripPatternSegments getTripPatternSegments(String tripPatternId) {
+			return index.getTripPatternSegments(tripPatternId);
+		}
+
+		/**
+		 * Returns true if the trip pattern has a segment closer than the
+		 * specified distance to the location. Also returns true if the trip
+		 * pattern was not indexed since then can't rule it out.
+		 *
+		 * @param tripPatternId
+		 * @param distance
+		 *            Should not be greater than getMaxDistance()
+		 * @return true if trip pattern is possibly within distance
+		 */
+		public boolean possiblyWithinDistance(String tripPatternId,
+				double distance) {
+			if (index.getTripPatternSegments(tripPatternId) == null)
+				return true;
+
+			Hits hits = hitsMap.get(tripPatternId);
+			if (hits == null)
+				return false;
+			for (int i = 0; i < hits.count; ++i) {
+				if (hits.distances[i] < distance)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the ordinals of the segments for the trip pattern that need
+		 * to be examined when spatially matching. These are the segments
+		 * closer than the specified distance plus the last segment of any
+		 * layover stop paths.
+		 *
+		 * @param tripPatternId
+		 * @param distance
+		 *            Should not be greater than getMaxDistance()
+		 * @return Ordinals of segments to examine, or null if trip pattern
+		 *         was not indexed.
+		 */
+		public BitSet getSegmentsToExamine(String tripPatternId,
+				double distance) {
+			TripPatternSegments tripPatternSegments =
+					index.getTripPatternSegments(tripPatternId);
+			if (tripPatternSegments == null)
+				return null;
+
+			BitSet segmentsToExamine =
+					(BitSet) tripPatternSegments.layoverOrdinals.clone();
+			Hits hits = hitsMap.get(tripPatternId);
+			if (hits != null) {
+				for (int i = 0; i < hits.count; ++i) {
+					if (hits.distances[i] < distance)
+						segmentsToExamine.set(hits.ordinals[i]);
+				}
+			}
+			return segmentsToExamine;
+		}
+
+		@Override
+		public String toString() {
+			return "NearbySegments ["
+					+ "location=" + location
+					+ ", maxDistance=" + Geo.distanceFormat(maxDistance)
+					+ ", tripPatternIds=" + hitsMap.keySet()
+					+ "]";
+		}
+	}
+
+	/**
+	 * Builds the index for all of the segments of the trip patterns
+	 * specified.
+	 *
+	 * @param tripPatterns
+	 */
+	public StopPathSegmentIndex(Collection<TripPattern> tripPatterns) {
+		this(getStopPathsByTripPatternId(tripPatterns));
+	}
+
+	/**
+	 * @param tripPatterns
+	 * @return The stop paths of each trip pattern, keyed by trip pattern ID.
+	 *         If a trip pattern ID is listed more than once only the first
+	 *         one is used.
+	 */
+	private static Map<String, List<StopPath>> getStopPathsByTripPatternId(
+			Collection<TripPattern> tripPatterns) {
+		Map<String, List<StopPath>> stopPathsByTripPatternId =
+				new LinkedHashMap<String, List<StopPath>>();
+		for (TripPattern tripPattern : tripPatterns) {
+			if (!stopPathsByTripPatternId.containsKey(tripPattern.getId()))
+				stopPathsByTripPatternId.put(tripPattern.getId(),
+						tripPattern.getStopPaths());
+		}
+		return stopPathsByTripPatternId;
+	}
+
+	/**
+	 * Builds the index for all of the segments of the stop paths specified.
+	 * Package private so that the index can be tested without having to
+	 * create full TripPatterns.
+	 *
+	 * @param stopPathsByTripPatternId
+	 *            The stop paths of each trip pattern, keyed by trip pattern ID
+	 */
+	StopPathSegmentIndex(Map<String, List<StopPath>> stopPathsByTripPatternId) {
+		// Gather the segments of all of the trip patterns
+		tripPatternSegmentsMap = new HashMap<String, TripPatternSegments>();
+		List<TripPatternSegments> segmentTripPatterns =
+				new ArrayList<TripPatternSegments>();
+		List<Integer> ordinals = new ArrayList<Integer>();
+		List<VectorWithHeading> segments = new ArrayList<VectorWithHeading>();
+		for (Map.Entry<String, List<StopPath>> entry :
+				stopPathsByTripPatternId.entrySet()) {
+			String tripPatternId = entry.getKey();
+			TripPatternSegments tripPatternSegments =
+					new TripPatternSegments(tripPatternId, entry.getValue());
+			tripPatternSegmentsMap.put(tripPatternId, tripPatternSegments);
+
+			int ordinal = 0;
+			for (StopPath stopPath : entry.getValue()) {
+				for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+					segmentTripPatterns.add(tripPatternSegments);
+					ordinals.add(ordinal++);
+					segments.add(segment);
+				}
+			}
+		}
+
+		final int numItems = segments.size();
+
+		// Determine bounding box of each segment
+		final double[] itemBoxes = new double[numItems * 4];
+		for (int i = 0; i < numItems; ++i) {
+			Location l1 = segments.get(i).getL1();
+			Location l2 = segments.get(i).getL2();
+			itemBoxes[4*i] = Math.min(l1.getLat(), l2.getLat());
+			itemBoxes[4*i + 1] = Math.min(l1.getLon(), l2.getLon());
+			itemBoxes[4*i + 2] = Math.max(l1.getLat(), l2.getLat());
+			itemBoxes[4*i + 3] = Math.max(l1.getLon(), l2.getLon());
+		}
+
+		// Sort the items using STR. First sort by longitude of center of
+		// box and then sort each vertical slice by latitude.
+		Integer[] order = new Integer[numItems];
+		for (int i = 0; i < numItems; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(
+						itemBoxes[4*i1 + 1] + itemBoxes[4*i1 + 3],
+						itemBoxes[4*i2 + 1] + itemBoxes[4*i2 + 3]);
+			}
+		});
+		int numLeafNodes = (numItems + NODE_SIZE - 1) / NODE_SIZE;
+		int numSlices = (int) Math.ceil(Math.sqrt(numLeafNodes));
+		int itemsPerSlice = numSlices * NODE_SIZE;
+		Comparator<Integer> latComparator = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(
+						itemBoxes[4*i1] + itemBoxes[4*i1 + 2],
+						itemBoxes[4*i2] + itemBoxes[4*i2 + 2]);
+			}
+		};
+		for (int start = 0; start < numItems; start += itemsPerSlice) {
+			Arrays.sort(order, start,
+					Math.min(start + itemsPerSlice, numItems), latComparator);
+		}
+
+		// Store the items in sorted order so that items of the same leaf
+		// node are next to each other in memory
+		itemTripPatterns = new TripPatternSegments[numItems];
+		itemOrdinals = new int[numItems];
+		itemSegments = new VectorWithHeading[numItems];
+
+		// Determine number of nodes and the levels of the tree
+		List<Integer> levelBoundsList = new ArrayList<Integer>();
+		int numNodes = numItems;
+		int nodesInLevel = numItems;
+		levelBoundsList.add(numNodes);
+		while (nodesInLevel > 1) {
+			nodesInLevel = (nodesInLevel + NODE_SIZE - 1) / NODE_SIZE;
+			numNodes += nodesInLevel;
+			levelBoundsList.add(numNodes);
+		}
+		levelBounds = new int[levelBoundsList.size()];
+		for (int level = 0; level < levelBounds.length; ++level)
+			levelBounds[level] = levelBoundsList.get(level);
+
+		boxes = new double[numNodes * 4];
+		nodeIndices = new int[numNodes];
+
+		// Fill in the leaf nodes
+		for (int pos = 0; pos < numItems; ++pos) {
+			int item = order[pos];
+			itemTripPatterns[pos] = segmentTripPatterns.get(item);
+			itemOrdinals[pos] = ordinals.get(item);
+			itemSegments[pos] = segments.get(item);
+			System.arraycopy(itemBoxes, 4*item, boxes, 4*pos, 4);
+			nodeIndices[pos] = pos;
+		}
+
+		// Build the parent levels by combining groups of NODE_SIZE nodes
+		int pos = numItems;
+		for (int level = 1; level < levelBounds.length; ++level) {
+			int childStart = level == 1 ? 0 : levelBounds[level - 2];
+			int childEnd = levelBounds[level - 1];
+			for (int child = childStart; child < childEnd;
+					child += NODE_SIZE) {
+				double minLat = Double.POSITIVE_INFINITY;
+				double minLon = Double.POSITIVE_INFINITY;
+				double maxLat = Double.NEGATIVE_INFINITY;
+				double maxLon = Double.NEGATIVE_INFINITY;
+				int end = Math.min(child + NODE_SIZE, childEnd);
+				for (int c = child; c < end; ++c) {
+					minLat = Math.min(minLat, boxes[4*c]);
+					minLon = Math.min(minLon, boxes[4*c + 1]);
+					maxLat = Math.max(maxLat, boxes[4*c + 2]);
+					maxLon = Math.max(maxLon, boxes[4*c + 3]);
+				}
+				boxes[4*pos] = minLat;
+				boxes[4*pos + 1] = minLon;
+				boxes[4*pos + 2] = maxLat;
+				boxes[4*pos + 3] = maxLon;
+				nodeIndices[pos] = child;
+				++pos;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of segments in the index
+	 */
+	public int size() {
+		return itemSegments.length;
+	}
+
+	/**
+	 * @return Number of trip patterns in the index
+	 */
+	public int getNumberTripPatterns() {
+		return tripPatternSegmentsMap.size();
+	}
+
+	/**
+	 * Returns the segment info for the trip pattern so can convert ordinals
+	 * to stop path and segment indices.
+	 *
+	 * @param tripPatternId
+	 * @return The segments info, or null if trip pattern wasn't indexed
+	 */
+	public TripPatternSegments getTripPatternSegments(String tripPatternId) {
+		return tripPatternSegmentsMap.get(tripPatternId);
+	}
+
+	/**
+	 * Determines all of the segments that are closer than maxDistance to the
+	 * location. The distance used is VectorWithHeading.distance() so that
+	 * the results are consistent with what the SpatialMatcher uses.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 * @return The nearby segments. Not null.
+	 */
+	public NearbySegments query(Location loc, double maxDistance) {
+		NearbySegments results = new NearbySegments(this, loc, maxDistance);
+		if (itemSegments.length == 0)
+			return results;
+
+		// Determine the query box
+		double lat = loc.getLat();
+		double lon = loc.getLon();
+		double deltaLat =
+				maxDistance * QUERY_BOX_MARGIN / METERS_PER_DEGREE_LAT;
+		double cosLat = Math.cos(Math.toRadians(
+				Math.min(Math.abs(lat) + deltaLat, 89.0)));
+		double deltaLon = deltaLat / cosLat;
+		double qMinLat = lat - deltaLat;
+		double qMaxLat = lat + deltaLat;
+		double qMinLon = lon - deltaLon;
+		double qMaxLon = lon + deltaLon;
+
+		// Walk down the tree using a stack of node positions and levels,
+		// starting with the root.
+		int[] stack = new int[2 * NODE_SIZE * levelBounds.length];
+		int stackSize = 0;
+		stack[stackSize++] = boxes.length / 4 - 1;
+		stack[stackSize++] = levelBounds.length - 1;
+		while (stackSize > 0) {
+			int level = stack[--stackSize];
+			int nodePos = stack[--stackSize];
+
+			if (boxes[4*nodePos] > qMaxLat || boxes[4*nodePos + 1] > qMaxLon
+					|| boxes[4*nodePos + 2] < qMinLat
+					|| boxes[4*nodePos + 3] < qMinLon)
+				continue;
+
+			if (level == 0) {
+				// A leaf so check actual distance to segment
+				int item = nodeIndices[nodePos];
+				double distance = itemSegments[item].distance(loc);
+				if (distance < maxDistance) {
+					results.add(itemTripPatterns[item].tripPatternId,
+							itemOrdinals[item], distance);
+				}
+			} else {
+				// Push the children onto the stack
+				int childStart = nodeIndices[nodePos];
+				int childEnd = Math.min(childStart + NODE_SIZE,
+						levelBounds[level - 1]);
+				if (stackSize + 2 * (childEnd - childStart) > stack.length)
+					stack = Arrays.copyOf(stack, stack.length * 2
+							+ 2 * NODE_SIZE);
+				for (int child = childStart; child < childEnd; ++child) {
+					stack[stackSize++] = child;
+					stack[stackSize++] = level - 1;
+				}
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public String toString() {
+		return "StopPathSegmentIndex ["
+				+ "segments=" + itemSegments.length
+				+ ", tripPatterns=" + tripPatternSegmentsMap.size()
+				+ ", nodes=" + nodeIndices.length
+				+ ", levels=" + levelBounds.length
+				+ "]";
+	}
+}
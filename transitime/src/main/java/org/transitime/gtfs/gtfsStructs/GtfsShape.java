@@ -19,6 +19,7 @@ package org.transitime.gtfs.gtfsStructs;
 import org.apache.commons.csv.CSVRecord;
 import org.transitime.db.structs.Location;
 import org.transitime.utils.csv.CsvBase;
+import org.transitime.utils.csv.MappedCsvTokenizer;
 
 
 /**
@@ -84,6 +85,43 @@ public class GtfsShape extends CsvBase implements Comparable<GtfsShape> {
 		delete = getOptionalBooleanValue(record, "delete");
 	}
 	
+	/**
+	 * Creates a GtfsShape object from the current record of the
+	 * MappedCsvTokenizer. Same as the constructor that uses a CSVRecord but
+	 * the numbers are parsed directly by the tokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param supplemental
+	 * @param fileName for logging errors
+	 */
+	public GtfsShape(MappedCsvTokenizer tokenizer, boolean supplemental,
+			String fileName) throws NumberFormatException {
+		super(tokenizer, supplemental, fileName);
+
+		shapeId = getRequiredValue(tokenizer, "shape_id");
+		
+		int latColumn = 
+				getRequiredUnlessSupplementalColumn(tokenizer, "shape_pt_lat");
+		shapePtLat = latColumn >= 0 ? 
+				tokenizer.getDouble(latColumn) : Double.NaN;
+		
+		int lonColumn = 
+				getRequiredUnlessSupplementalColumn(tokenizer, "shape_pt_lon");
+		shapePtLon = lonColumn >= 0 ? 
+				tokenizer.getDouble(lonColumn) : Double.NaN;
+		
+		int sequenceColumn = getRequiredColumn(tokenizer, "shape_pt_sequence");
+		if (sequenceColumn < 0)
+			throw new NumberFormatException("shape_pt_sequence not set");
+		shapePtSequence = tokenizer.getInt(sequenceColumn);
+		
+		int distColumn = getOptionalColumn(tokenizer, "shape_dist_traveled");
+		shapeDistTraveled = 
+				distColumn >= 0 ? tokenizer.getDouble(distColumn) : null;
+		
+		delete = getOptionalBooleanValue(tokenizer, "delete");
+	}
+	
 	/**
 	 * Creates a copy of the GtfsShape but updates the latitude and longitude.
 	 * Useful for transforming coordinates in China so that locations are
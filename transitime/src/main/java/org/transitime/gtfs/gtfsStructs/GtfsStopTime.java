@@ -19,6 +19,7 @@ package org.transitime.gtfs.gtfsStructs;
 import org.apache.commons.csv.CSVRecord;
 import org.transitime.utils.Time;
 import org.transitime.utils.csv.CsvBase;
+import org.transitime.utils.csv.MappedCsvTokenizer;
 
 /**
  * A GTFS stop_times object
@@ -136,6 +137,49 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
 		isWaitStop = null;
 	}
 
+	/**
+	 * Creates a GtfsStopTime object from the current record of the
+	 * MappedCsvTokenizer. Same as the constructor that uses a CSVRecord but
+	 * the times and numbers are parsed directly by the tokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param supplemental
+	 * @param fileName
+	 *            for logging errors
+	 */
+	public GtfsStopTime(MappedCsvTokenizer tokenizer, boolean supplemental,
+			String fileName) throws NumberFormatException {
+		super(tokenizer, supplemental, fileName);
+
+		tripId = getRequiredValue(tokenizer, "trip_id");
+
+		// Convert arrival_time and departure_time to seconds in day
+		int column = getOptionalColumn(tokenizer, "arrival_time");
+		arrivalTimeSecs = 
+				column >= 0 ? tokenizer.getTimeOfDaySecs(column) : null;
+		column = getOptionalColumn(tokenizer, "departure_time");
+		departureTimeSecs = 
+				column >= 0 ? tokenizer.getTimeOfDaySecs(column) : null;
+
+		stopId = getRequiredValue(tokenizer, "stop_id");
+
+		column = getRequiredUnlessSupplementalColumn(tokenizer, "stop_sequence");
+		stopSequence = column >= 0 ? tokenizer.getInt(column) : null;
+
+		stopHeadsign = getOptionalValue(tokenizer, "stop_headsign");
+		pickupType = getOptionalValue(tokenizer, "pickup_type");
+		dropOffType = getOptionalValue(tokenizer, "drop_off_type");
+		
+		column = getOptionalColumn(tokenizer, "shape_dist_traveled");
+		shapeDistTraveled = 
+				column >= 0 ? tokenizer.getDouble(column) : null;
+		
+		timepointStop = getOptionalBooleanValue(tokenizer, "timepoint");
+		
+		delete = getOptionalBooleanValue(tokenizer, "delete");
+		isWaitStop = null;
+	}
+
 	/**
 	 * For when need to convert a GtfsStopTime to a subclass. Copies the
 	 * originalValues but uses newArrivalTime and newDepartureTime if they are
@@ -21,6 +21,7 @@ import java.text.ParseException;
 import org.apache.commons.csv.CSVRecord;
 import org.transitime.gtfs.gtfsStructs.GtfsShape;
 import org.transitime.utils.csv.CsvBaseReader;
+import org.transitime.utils.csv.MappedCsvTokenizer;
 
 
 /**
@@ -41,4 +42,19 @@ public class GtfsShapesReader extends CsvBaseReader<GtfsShape> {
 		return new GtfsShape(record, supplemental, getFileName());
 	}
 
+	/**
+	 * shapes.txt can be huge so use the faster MappedCsvTokenizer
+	 */
+	@Override
+	protected MappedRecordHandler<GtfsShape> getMappedRecordHandler() {
+		return new MappedRecordHandler<GtfsShape>() {
+			@Override
+			public GtfsShape handleRecord(MappedCsvTokenizer tokenizer,
+					boolean supplemental) 
+					throws ParseException, NumberFormatException {
+				return new GtfsShape(tokenizer, supplemental, getFileName());
+			}
+		};
+	}
+
 }
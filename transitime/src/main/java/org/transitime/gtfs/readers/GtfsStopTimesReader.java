@@ -22,6 +22,7 @@ import org.apache.commons.csv.CSVRecord;
 import org.transitime.gtfs.GtfsData;
 import org.transitime.gtfs.gtfsStructs.GtfsStopTime;
 import org.transitime.utils.csv.CsvBaseReader;
+import org.transitime.utils.csv.MappedCsvTokenizer;
 
 /**
  * GTFS reader for the stop_times.txt file
@@ -44,4 +45,24 @@ public class GtfsStopTimesReader extends CsvBaseReader<GtfsStopTime> {
 			return null;
 	}
 	
+	/**
+	 * stop_times.txt can be huge so use the faster MappedCsvTokenizer
+	 */
+	@Override
+	protected MappedRecordHandler<GtfsStopTime> getMappedRecordHandler() {
+		return new MappedRecordHandler<GtfsStopTime>() {
+			@Override
+			public GtfsStopTime handleRecord(MappedCsvTokenizer tokenizer,
+					boolean supplemental) throws ParseException {
+				int column = tokenizer.getColumn("trip_id");
+				if (!tokenizer.isSet(column) 
+						|| GtfsData.tripNotFiltered(tokenizer.getString(column)))
+					return new GtfsStopTime(tokenizer, supplemental, 
+							getFileName());
+				else
+					return null;
+			}
+		};
+	}
+	
 }
@@ -223,6 +223,44 @@ public class IpcAvl implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the AVL data using the compact format of
+	 * IpcCompactSerialization. The time is delta coded against the previous
+	 * time written, which for a list of vehicles is usually close.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		writer.writeString(vehicleId);
+		writer.writeTime(time);
+		writer.writeFloat(latitude);
+		writer.writeFloat(longitude);
+		writer.writeFloat(speed);
+		writer.writeFloat(heading);
+		writer.writeString(source);
+		writer.writeString(assignmentId);
+		writer.writeEnum(assignmentType);
+		writer.writeString(driverId);
+		writer.writeString(licensePlate);
+		writer.writeVarInt(passengerCount);
+	}
+
+	/**
+	 * Reads AVL data written by writeCompact()
+	 * 
+	 * @param reader
+	 * @return the IpcAvl
+	 * @throws IOException
+	 */
+	static IpcAvl readCompact(IpcCompactReader reader) throws IOException {
+		return new IpcAvl(reader.readString(), reader.readTime(),
+				reader.readFloat(), reader.readFloat(), reader.readFloat(),
+				reader.readFloat(), reader.readString(), reader.readString(),
+				reader.readEnum(AssignmentType.class), reader.readString(),
+				reader.readString(), reader.readVarInt());
+	}
+
 	public String getVehicleId() {
 		return vehicleId;
 	}
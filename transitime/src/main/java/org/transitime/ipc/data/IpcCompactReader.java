@@ -0,0 +1,131 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * For reading IPC objects written by an IpcCompactWriter. See
+ * IpcCompactWriter for a description of the format.
+ *
+ * @author SkiBu Smith
+ *
+ */
+class IpcCompactReader {
+
+	private final DataInput in;
+
+	// The strings read so far, in the order they were first written
+	private final List<String> stringDictionary = new ArrayList<String>();
+
+	// For delta coding times
+	private long previousTime = 0;
+
+	/********************** Member Functions **************************/
+
+	IpcCompactReader(DataInput in) {
+		this.in = in;
+	}
+
+	long readUnsignedVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	long readVarLong() throws IOException {
+		long value = readUnsignedVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	int readVarInt() throws IOException {
+		return (int) readVarLong();
+	}
+
+	Integer readInteger() throws IOException {
+		return in.readBoolean() ? Integer.valueOf(readVarInt()) : null;
+	}
+
+	long readTime() throws IOException {
+		long value = readUnsignedVarLong();
+		if (value == 0)
+			return 0;
+
+		value -= 1;
+		long delta = (value >>> 1) ^ -(value & 1);
+		previousTime += delta;
+		return previousTime;
+	}
+
+	long readTimeRelativeTo(long baseTime) throws IOException {
+		long value = readUnsignedVarLong();
+		if (value == 0)
+			return 0;
+
+		value -= 1;
+		return baseTime + ((value >>> 1) ^ -(value & 1));
+	}
+
+	String readString() throws IOException {
+		long code = readUnsignedVarLong();
+		if (code == 0)
+			return null;
+
+		if (code == 1) {
+			String s = in.readUTF();
+			stringDictionary.add(s);
+			return s;
+		}
+
+		int index = (int) (code - 2);
+		if (index >= stringDictionary.size())
+			throw new StreamCorruptedException("String index " + index
+					+ " not in dictionary of size " + stringDictionary.size());
+		return stringDictionary.get(index);
+	}
+
+	<E extends Enum<E>> E readEnum(Class<E> enumClass) throws IOException {
+		String name = readString();
+		return name != null ? Enum.valueOf(enumClass, name) : null;
+	}
+
+	boolean readBoolean() throws IOException {
+		return in.readBoolean();
+	}
+
+	int readByte() throws IOException {
+		return in.readByte();
+	}
+
+	float readFloat() throws IOException {
+		return in.readFloat();
+	}
+
+	double readDouble() throws IOException {
+		return in.readDouble();
+	}
+}
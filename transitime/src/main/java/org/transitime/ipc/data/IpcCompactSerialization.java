@@ -0,0 +1,266 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.transitime.config.BooleanConfigValue;
+
+/**
+ * For transmitting lists of predictions and vehicles via RMI using a compact
+ * format instead of regular Java serialization of each object. A server
+ * wraps the list it returns using predictions() or vehicles(). When the list
+ * is serialized all of its elements are written together using an
+ * IpcCompactWriter, which writes each string such as a route name, stop name
+ * or headsign just once per response, writes numbers as varints, and writes
+ * times as small differences. When deserialized the client gets a regular
+ * ArrayList of the usual IPC objects so the interfaces and the clients do
+ * not change.
+ * <p>
+ * Both the server and the clients need to have this class. For deployments
+ * where clients are running older software the compact format can be turned
+ * off via transitime.rmi.compactSerialization.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcCompactSerialization {
+
+	private static BooleanConfigValue compactSerialization =
+			new BooleanConfigValue("transitime.rmi.compactSerialization",
+					true,
+					"If true then lists of predictions and vehicles are "
+					+ "returned by the RMI servers using a compact format "
+					+ "that is much smaller than regular Java serialization. "
+					+ "Should be set to false if the clients are running "
+					+ "older software that does not support the compact "
+					+ "format.");
+
+	// The kinds of lists that can be written
+	private static final byte PREDICTIONS = 0;
+	private static final byte VEHICLES = 2;
+
+	// The types of vehicles in a VEHICLES list
+	private static final byte VEHICLE = 0;
+	private static final byte VEHICLE_GTFS_REALTIME = 1;
+	private static final byte VEHICLE_COMPLETE = 2;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return true if the servers should use the compact format
+	 */
+	public static boolean isEnabled() {
+		return compactSerialization.getValue();
+	}
+
+	/**
+	 * Returns a list of predictions that is serialized using the compact
+	 * format. If the compact format is disabled the predictions are returned
+	 * as is.
+	 *
+	 * @param predictions
+	 * @return the list to be returned by the server
+	 */
+	public static List<IpcPredictionsForRouteStopDest> predictions(
+			List<IpcPredictionsForRouteStopDest> predictions) {
+		if (!isEnabled() || predictions == null)
+			return predictions;
+
+		return new CompactList<IpcPredictionsForRouteStopDest>(PREDICTIONS,
+				predictions);
+	}
+
+	/**
+	 * Returns a serializable collection of vehicles. If the compact format is
+	 * enabled it is serialized using the compact format. Otherwise it is a
+	 * regular ArrayList.
+	 *
+	 * @param vehicles
+	 *            IpcVehicle objects or subclasses of IpcVehicle. Can be null.
+	 * @return the collection to be returned by the server
+	 */
+	public static <V extends IpcVehicle> Collection<V> vehicles(
+			Collection<? extends V> vehicles) {
+		if (vehicles == null)
+			return new ArrayList<V>();
+
+		if (!isEnabled())
+			return new ArrayList<V>(vehicles);
+
+		return new CompactList<V>(VEHICLES, vehicles);
+	}
+
+	/**
+	 * A list that is written using the compact format. On the server side it
+	 * acts as a regular ArrayList. When serialized a CompactForm is written
+	 * instead, which is read by the client as a regular ArrayList.
+	 */
+	private static class CompactList<E> extends ArrayList<E> {
+		private final byte kind;
+
+		private static final long serialVersionUID = -3541380315622946112L;
+
+		private CompactList(byte kind, Collection<? extends E> elements) {
+			super(elements);
+			this.kind = kind;
+		}
+
+		/*
+		 * When serialized write the compact form instead
+		 */
+		private Object writeReplace() {
+			return new CompactForm(kind, this);
+		}
+
+		/*
+		 * Should only be deserialized via CompactForm
+		 */
+		private void readObject(ObjectInputStream stream)
+				throws InvalidObjectException {
+			throw new InvalidObjectException("Must use proxy instead");
+		}
+	}
+
+	/**
+	 * What is actually serialized for a CompactList. Written with a version
+	 * ID, the same as a SerializationProxy, so that clients and servers can
+	 * have different versions of code.
+	 */
+	private static class CompactForm implements Serializable {
+		private transient byte kind;
+		private transient List<?> elements;
+
+		private static final short currentSerializationVersion = 0;
+		private static final long serialVersionUID = 8190377329432766510L;
+
+		private CompactForm(byte kind, List<?> elements) {
+			this.kind = kind;
+			this.elements = elements;
+		}
+
+		/*
+		 * Writes all of the elements with a single IpcCompactWriter so that
+		 * they share the string dictionary and time deltas.
+		 */
+		private void writeObject(java.io.ObjectOutputStream stream)
+				throws IOException {
+			stream.writeShort(currentSerializationVersion);
+			stream.writeByte(kind);
+
+			IpcCompactWriter writer = new IpcCompactWriter(stream);
+			writer.writeVarInt(elements.size());
+			for (Object element : elements) {
+				switch (kind) {
+				case PREDICTIONS:
+					((IpcPredictionsForRouteStopDest) element)
+							.writeCompact(writer);
+					break;
+				case VEHICLES:
+					writeVehicle(writer, (IpcVehicle) element);
+					break;
+				default:
+					throw new IOException("Unknown compact list kind "
+							+ kind);
+				}
+			}
+		}
+
+		/*
+		 * Custom method of deserializing a CompactForm object.
+		 */
+		private void readObject(java.io.ObjectInputStream stream)
+				throws IOException, ClassNotFoundException {
+			// If reading from a newer version of protocol then don't
+			// know how to handle it so throw exception
+			short readVersion = stream.readShort();
+			if (currentSerializationVersion < readVersion) {
+				throw new IOException("Serialization error when reading "
+						+ getClass().getSimpleName()
+						+ " object. Read version=" + readVersion
+						+ " but currently using software version="
+						+ currentSerializationVersion);
+			}
+
+			kind = stream.readByte();
+			IpcCompactReader reader = new IpcCompactReader(stream);
+			int size = reader.readVarInt();
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; ++i) {
+				switch (kind) {
+				case PREDICTIONS:
+					list.add(IpcPredictionsForRouteStopDest.readCompact(reader));
+					break;
+				case VEHICLES:
+					list.add(readVehicle(reader));
+					break;
+				default:
+					throw new StreamCorruptedException(
+							"Unknown compact list kind " + kind);
+				}
+			}
+			elements = list;
+		}
+
+		/*
+		 * The client gets a regular ArrayList
+		 */
+		private Object readResolve() {
+			return elements;
+		}
+	}
+
+	/**
+	 * Writes the type of vehicle followed by the vehicle
+	 */
+	private static void writeVehicle(IpcCompactWriter writer,
+			IpcVehicle vehicle) throws IOException {
+		if (vehicle instanceof IpcVehicleComplete)
+			writer.writeByte(VEHICLE_COMPLETE);
+		else if (vehicle instanceof IpcVehicleGtfsRealtime)
+			writer.writeByte(VEHICLE_GTFS_REALTIME);
+		else
+			writer.writeByte(VEHICLE);
+		vehicle.writeCompact(writer);
+	}
+
+	/**
+	 * Reads a vehicle written by writeVehicle()
+	 */
+	private static IpcVehicle readVehicle(IpcCompactReader reader)
+			throws IOException {
+		int type = reader.readByte();
+		switch (type) {
+		case VEHICLE:
+			return IpcVehicle.readCompact(reader);
+		case VEHICLE_GTFS_REALTIME:
+			return IpcVehicleGtfsRealtime.readCompact(reader);
+		case VEHICLE_COMPLETE:
+			return IpcVehicleComplete.readCompact(reader);
+		default:
+			throw new StreamCorruptedException("Unknown vehicle type " + type);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * For writing IPC objects in the compact format used by
+ * IpcCompactSerialization. Strings are written once and then referred to by
+ * their index in a dictionary, integers are written as zigzag varints, and
+ * times are written as the difference from the previous time written. Since
+ * the times in a response are all close together, and predictions for a
+ * stop are in time order, the differences are usually small and take only a
+ * few bytes.
+ * <p>
+ * A writer is for a single response and must be read by a single
+ * IpcCompactReader in the same order.
+ *
+ * @author SkiBu Smith
+ *
+ */
+class IpcCompactWriter {
+
+	private final DataOutput out;
+
+	// The dictionary of strings already written. Value is the index.
+	private final Map<String, Integer> stringDictionary =
+			new HashMap<String, Integer>();
+
+	// For delta coding times
+	private long previousTime = 0;
+
+	/********************** Member Functions **************************/
+
+	IpcCompactWriter(DataOutput out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes unsigned varint, 7 bits per byte with the high bit indicating
+	 * that more bytes follow.
+	 */
+	void writeUnsignedVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Writes a signed value as a zigzag varint so that small negative values
+	 * are also small.
+	 */
+	void writeVarLong(long value) throws IOException {
+		writeUnsignedVarLong((value << 1) ^ (value >> 63));
+	}
+
+	void writeVarInt(int value) throws IOException {
+		writeVarLong(value);
+	}
+
+	/**
+	 * Writes a nullable Integer
+	 */
+	void writeInteger(Integer value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			writeVarInt(value);
+	}
+
+	/**
+	 * Writes an epoch time as the difference from the previously written
+	 * time. A time of 0, which is used to indicate no time, is written as a
+	 * single byte.
+	 */
+	void writeTime(long time) throws IOException {
+		if (time == 0) {
+			writeUnsignedVarLong(0);
+			return;
+		}
+
+		long delta = time - previousTime;
+		writeUnsignedVarLong(((delta << 1) ^ (delta >> 63)) + 1);
+		previousTime = time;
+	}
+
+	/**
+	 * Writes an epoch time as the difference from a related time that has
+	 * already been written, such as the AVL time of a prediction being
+	 * written relative to the prediction time. Does not affect the time that
+	 * writeTime() uses for its differences. A time of 0 is written as a
+	 * single byte.
+	 */
+	void writeTimeRelativeTo(long time, long baseTime) throws IOException {
+		if (time == 0) {
+			writeUnsignedVarLong(0);
+			return;
+		}
+
+		long delta = time - baseTime;
+		writeUnsignedVarLong(((delta << 1) ^ (delta >> 63)) + 1);
+	}
+
+	/**
+	 * Writes a string. The first time a string is written it is written in
+	 * full and added to the dictionary. After that only its index is written.
+	 */
+	void writeString(String s) throws IOException {
+		// 0 indicates null
+		if (s == null) {
+			writeUnsignedVarLong(0);
+			return;
+		}
+
+		// 1 indicates a new string, otherwise index + 2
+		Integer index = stringDictionary.get(s);
+		if (index != null) {
+			writeUnsignedVarLong(index + 2);
+		} else {
+			writeUnsignedVarLong(1);
+			out.writeUTF(s);
+			stringDictionary.put(s, stringDictionary.size());
+		}
+	}
+
+	/**
+	 * Writes a nullable enum using its name
+	 */
+	void writeEnum(Enum<?> e) throws IOException {
+		writeString(e != null ? e.name() : null);
+	}
+
+	void writeBoolean(boolean b) throws IOException {
+		out.writeBoolean(b);
+	}
+
+	void writeByte(int b) throws IOException {
+		out.writeByte(b);
+	}
+
+	void writeFloat(float f) throws IOException {
+		out.writeFloat(f);
+	}
+
+	void writeDouble(double d) throws IOException {
+		out.writeDouble(d);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * For transmitting via Interprocess Communication an encoded GTFS-realtime
+ * feed that only contains the entities that changed since a sequence number
+ * supplied by the client. The client should then use the sequence number of
+ * this object the next time it requests changes. If the changes since the
+ * requested sequence number are no longer available then the feed is the
+ * full dataset instead.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcGtfsRtFeedDelta implements Serializable {
+
+	// The sequence number of the published feed that the delta brings the
+	// client up to
+	private final long sequence;
+
+	// True if the feed contains the full dataset instead of just the changes
+	private final boolean fullDataset;
+
+	// The encoded GTFS-realtime FeedMessage
+	private final byte[] bytes;
+
+	private static final long serialVersionUID = -6012371539736170458L;
+
+	/********************** Member Functions **************************/
+
+	public IpcGtfsRtFeedDelta(long sequence, boolean fullDataset,
+			byte[] bytes) {
+		this.sequence = sequence;
+		this.fullDataset = fullDataset;
+		this.bytes = bytes;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isFullDataset() {
+		return fullDataset;
+	}
+
+	/**
+	 * @return The encoded FeedMessage. Should not be modified.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcGtfsRtFeedDelta ["
+				+ "sequence=" + sequence
+				+ ", fullDataset=" + fullDataset
+				+ ", bytes.length=" + bytes.length
+				+ "]";
+	}
+}
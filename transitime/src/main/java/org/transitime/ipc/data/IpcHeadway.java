@@ -0,0 +1,99 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A vehicle passing a stop, either one that already happened or one that is
+ * predicted, along with the headway from the vehicle that passed the stop
+ * before it.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcHeadway implements Serializable {
+
+	private final String vehicleId;
+
+	// Epoch time of the departure, or of the arrival for the last stop of
+	// a trip. For predicted passages it is the prediction time.
+	private final long time;
+
+	// Time since the previous vehicle passed the stop. -1 if the previous
+	// passage is not known.
+	private final long headwayMsec;
+
+	private final boolean predicted;
+
+	private static final long serialVersionUID = -6049238761577702305L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param vehicleId
+	 * @param time
+	 * @param headwayMsec
+	 *            -1 if not known
+	 * @param predicted
+	 *            true if the vehicle hasn't yet passed the stop
+	 */
+	public IpcHeadway(String vehicleId, long time, long headwayMsec,
+			boolean predicted) {
+		this.vehicleId = vehicleId;
+		this.time = time;
+		this.headwayMsec = headwayMsec;
+		this.predicted = predicted;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcHeadway ["
+				+ "vehicleId=" + vehicleId
+				+ ", time=" + new Date(time)
+				+ ", headwayMsec=" + headwayMsec
+				+ ", predicted=" + predicted
+				+ "]";
+	}
+
+	public String getVehicleId() {
+		return vehicleId;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return Time since the previous vehicle passed the stop, or -1 if not
+	 *         known
+	 */
+	public long getHeadwayMsec() {
+		return headwayMsec;
+	}
+
+	/**
+	 * @return true if vehicle hasn't passed the stop yet and the time is a
+	 *         prediction
+	 */
+	public boolean isPredicted() {
+		return predicted;
+	}
+
+}
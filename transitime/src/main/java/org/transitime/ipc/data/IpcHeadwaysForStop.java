@@ -0,0 +1,103 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The headways for a route/direction/stop. Contains the most recent vehicles
+ * that passed the stop, oldest first, followed by the vehicles predicted to
+ * arrive at the stop, earliest first. Each has the headway from the vehicle
+ * before it so the current headway and the predicted headways can simply be
+ * read.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcHeadwaysForStop implements Serializable {
+
+	private final String routeShortName;
+	private final String directionId;
+	private final String stopId;
+	private final List<IpcHeadway> headways;
+
+	private static final long serialVersionUID = 2295117318283532069L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param routeShortName
+	 * @param directionId
+	 * @param stopId
+	 * @param headways
+	 *            The past passages, oldest first, followed by the predicted
+	 *            ones, earliest first
+	 */
+	public IpcHeadwaysForStop(String routeShortName, String directionId,
+			String stopId, List<IpcHeadway> headways) {
+		this.routeShortName = routeShortName;
+		this.directionId = directionId;
+		this.stopId = stopId;
+		this.headways = headways;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcHeadwaysForStop ["
+				+ "routeShortName=" + routeShortName
+				+ ", directionId=" + directionId
+				+ ", stopId=" + stopId
+				+ ", headways=" + headways
+				+ "]";
+	}
+
+	public String getRouteShortName() {
+		return routeShortName;
+	}
+
+	public String getDirectionId() {
+		return directionId;
+	}
+
+	public String getStopId() {
+		return stopId;
+	}
+
+	/**
+	 * @return The past passages, oldest first, followed by the predicted ones,
+	 *         earliest first
+	 */
+	public List<IpcHeadway> getHeadways() {
+		return headways;
+	}
+
+	/**
+	 * @return The headway between the two most recent vehicles to pass the
+	 *         stop, or -1 if fewer than two have passed it
+	 */
+	public long getCurrentHeadwayMsec() {
+		for (int i = headways.size() - 1; i >= 0; --i) {
+			IpcHeadway headway = headways.get(i);
+			if (!headway.isPredicted())
+				return headway.getHeadwayMsec();
+		}
+		return -1;
+	}
+
+}
@@ -21,6 +21,7 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.List;
 
 import org.transitime.applications.Core;
 import org.transitime.db.structs.AvlReport;
@@ -353,6 +354,88 @@ public class IpcPrediction implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	// Bits of the flags byte used when writing compactly
+	private static final int AT_END_OF_TRIP_FLAG = 0x01;
+	private static final int SCHED_BASED_PRED_FLAG = 0x02;
+	private static final int AFFECTED_BY_WAIT_STOP_FLAG = 0x04;
+	private static final int IS_DELAYED_FLAG = 0x08;
+	private static final int LATE_AND_SUBSEQUENT_TRIP_FLAG = 0x10;
+	private static final int IS_ARRIVAL_FLAG = 0x20;
+
+	/**
+	 * Writes the prediction using the compact format of
+	 * IpcCompactSerialization. The prediction time is delta coded against
+	 * the previous time written, which for a list of predictions for a stop
+	 * is the previous prediction. The other times are written relative to
+	 * the prediction time since they are usually close to it.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		writer.writeString(vehicleId);
+		writer.writeString(routeId);
+		writer.writeString(stopId);
+		writer.writeVarInt(gtfsStopSeq);
+		writer.writeString(tripId);
+		writer.writeString(tripPatternId);
+		writer.writeString(blockId);
+		writer.writeTime(predictionTime);
+		writer.writeTimeRelativeTo(avlTime, predictionTime);
+		writer.writeTimeRelativeTo(creationTime, avlTime);
+		writer.writeTimeRelativeTo(tripStartEpochTime, predictionTime);
+		writer.writeString(driverId);
+		writer.writeVarInt(passengerCount);
+		writer.writeFloat(passengerFullness);
+		
+		int flags = 0;
+		if (atEndOfTrip) flags |= AT_END_OF_TRIP_FLAG;
+		if (schedBasedPred) flags |= SCHED_BASED_PRED_FLAG;
+		if (affectedByWaitStop) flags |= AFFECTED_BY_WAIT_STOP_FLAG;
+		if (isDelayed) flags |= IS_DELAYED_FLAG;
+		if (lateAndSubsequentTripSoMarkAsUncertain) 
+			flags |= LATE_AND_SUBSEQUENT_TRIP_FLAG;
+		if (isArrival) flags |= IS_ARRIVAL_FLAG;
+		writer.writeByte(flags);
+	}
+
+	/**
+	 * Reads a prediction written by writeCompact(). As with the
+	 * SerializationProxy the actualPredictionTime is not transmitted.
+	 * 
+	 * @param reader
+	 * @return the prediction
+	 * @throws IOException
+	 */
+	static IpcPrediction readCompact(IpcCompactReader reader)
+			throws IOException {
+		String vehicleId = reader.readString();
+		String routeId = reader.readString();
+		String stopId = reader.readString();
+		int gtfsStopSeq = reader.readVarInt();
+		String tripId = reader.readString();
+		String tripPatternId = reader.readString();
+		String blockId = reader.readString();
+		long predictionTime = reader.readTime();
+		long avlTime = reader.readTimeRelativeTo(predictionTime);
+		long creationTime = reader.readTimeRelativeTo(avlTime);
+		long tripStartEpochTime = reader.readTimeRelativeTo(predictionTime);
+		String driverId = reader.readString();
+		short passengerCount = (short) reader.readVarInt();
+		float passengerFullness = reader.readFloat();
+		int flags = reader.readByte();
+		
+		return new IpcPrediction(vehicleId, routeId, stopId, gtfsStopSeq,
+				tripId, tripPatternId, blockId, predictionTime, 0,
+				(flags & AT_END_OF_TRIP_FLAG) != 0,
+				(flags & SCHED_BASED_PRED_FLAG) != 0, avlTime, creationTime,
+				tripStartEpochTime, (flags & AFFECTED_BY_WAIT_STOP_FLAG) != 0,
+				driverId, passengerCount, passengerFullness,
+				(flags & IS_DELAYED_FLAG) != 0,
+				(flags & LATE_AND_SUBSEQUENT_TRIP_FLAG) != 0,
+				(flags & IS_ARRIVAL_FLAG) != 0);
+	}
+
 	@Override
 	public String toString() {
 		return "IpcPrediction [" 
@@ -496,6 +579,54 @@ public class IpcPrediction implements Serializable {
 		return isArrival;
 	}
 	
+	/**
+	 * Returns true if the other prediction is for the same vehicle, trip,
+	 * stop and time, and is flagged the same way. This is the case when the
+	 * prediction generator carries a prediction over to a new AVL report,
+	 * where only the AVL and creation times are updated.
+	 * 
+	 * @param other
+	 *            Can be null
+	 * @return true if the same prediction
+	 */
+	public boolean isSamePredictionAs(IpcPrediction other) {
+		return other != null
+				&& predictionTime == other.predictionTime
+				&& actualPredictionTime == other.actualPredictionTime
+				&& gtfsStopSeq == other.gtfsStopSeq
+				&& isArrival == other.isArrival
+				&& atEndOfTrip == other.atEndOfTrip
+				&& schedBasedPred == other.schedBasedPred
+				&& affectedByWaitStop == other.affectedByWaitStop
+				&& isDelayed == other.isDelayed
+				&& lateAndSubsequentTripSoMarkAsUncertain == 
+					other.lateAndSubsequentTripSoMarkAsUncertain
+				&& vehicleId.equals(other.vehicleId)
+				&& tripId.equals(other.tripId)
+				&& stopId.equals(other.stopId);
+	}
+	
+	/**
+	 * Returns true if both lists contain the same predictions in the same
+	 * order, as determined by isSamePredictionAs().
+	 * 
+	 * @param preds1
+	 * @param preds2
+	 *            Can be null
+	 * @return true if same predictions
+	 */
+	public static boolean samePredictions(List<IpcPrediction> preds1,
+			List<IpcPrediction> preds2) {
+		if (preds2 == null || preds1.size() != preds2.size())
+			return false;
+		
+		for (int i = 0; i < preds1.size(); ++i) {
+			if (!preds1.get(i).isSamePredictionAs(preds2.get(i)))
+				return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Returns the trip associated with the prediction. Only valid on server
 	 * side since trip is not passed to client.
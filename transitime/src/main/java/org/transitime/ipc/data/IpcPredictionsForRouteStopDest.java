@@ -22,6 +22,7 @@ import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -177,8 +178,8 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 	
 	/**
-	 * Constructor used for when deserializing a proxy object. Declared private
-	 * because only used internally by the proxy class.
+	 * Constructor used for when deserializing a proxy object and for creating
+	 * snapshots. Declared private because only used internally.
 	 * 
 	 * @param routeId
 	 * @param routeShortName
@@ -279,7 +280,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 			this.headsign = p.headsign;
 			this.directionId = p.directionId;
 			this.distanceToStop = p.distanceToStop;
-			this.predictionsForRouteStop = p.predictionsForRouteStopDest;
+			// Views of snapshots use a sublist, which is not serializable,
+			// so copy the predictions into a regular list
+			this.predictionsForRouteStop = 
+					new ArrayList<IpcPrediction>(p.predictionsForRouteStopDest);
 		}
 
 		/*
@@ -371,6 +375,73 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes this object and its predictions using the compact format of
+	 * IpcCompactSerialization. Route and stop names, headsigns, etc, are
+	 * common to many objects in a response so the string dictionary means
+	 * they are only written once.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		writer.writeString(routeId);
+		writer.writeString(routeShortName);
+		writer.writeString(routeName);
+		writer.writeVarInt(routeOrder);
+		writer.writeString(stopId);
+		writer.writeString(stopName);
+		writer.writeInteger(stopCode);
+		writer.writeString(headsign);
+		writer.writeString(directionId);
+		
+		// distanceToStop is usually NaN so only write it if it is set
+		boolean hasDistance = !Double.isNaN(distanceToStop);
+		writer.writeBoolean(hasDistance);
+		if (hasDistance)
+			writer.writeDouble(distanceToStop);
+		
+		// Copy the predictions, the same as SerializationProxy, so that 
+		// they are coherent
+		List<IpcPrediction> predictions = 
+				new ArrayList<IpcPrediction>(predictionsForRouteStopDest);
+		writer.writeVarInt(predictions.size());
+		for (IpcPrediction prediction : predictions)
+			prediction.writeCompact(writer);
+	}
+	
+	/**
+	 * Reads an object written by writeCompact()
+	 * 
+	 * @param reader
+	 * @return the IpcPredictionsForRouteStopDest
+	 * @throws IOException
+	 */
+	static IpcPredictionsForRouteStopDest readCompact(IpcCompactReader reader)
+			throws IOException {
+		String routeId = reader.readString();
+		String routeShortName = reader.readString();
+		String routeName = reader.readString();
+		int routeOrder = reader.readVarInt();
+		String stopId = reader.readString();
+		String stopName = reader.readString();
+		Integer stopCode = reader.readInteger();
+		String headsign = reader.readString();
+		String directionId = reader.readString();
+		double distanceToStop = 
+				reader.readBoolean() ? reader.readDouble() : Double.NaN;
+		
+		int numPredictions = reader.readVarInt();
+		List<IpcPrediction> predictions = 
+				new ArrayList<IpcPrediction>(numPredictions);
+		for (int i = 0; i < numPredictions; ++i)
+			predictions.add(IpcPrediction.readCompact(reader));
+		
+		return new IpcPredictionsForRouteStopDest(routeId, routeShortName,
+				routeName, routeOrder, stopId, stopName, stopCode, headsign,
+				directionId, distanceToStop, predictions);
+	}
+
 	/**
 	 * Gets a copy of this object. This is done with the object being
 	 * copied synchronized so that the predictions remain coherent. Limits
@@ -414,7 +485,82 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	}
 	
 	/**
-	 * Removes a prediction.
+	 * Returns an immutable snapshot of this object that does not include
+	 * predictions that have already expired. The snapshot can be read by any
+	 * number of threads without synchronization or copying, which is how
+	 * PredictionDataCache publishes predictions to readers. The predictions
+	 * of a snapshot cannot be modified.
+	 *
+	 * @param currentTime
+	 *            Predictions before this time are not included
+	 * @return the immutable snapshot
+	 */
+	public synchronized IpcPredictionsForRouteStopDest getSnapshot(
+			long currentTime) {
+		List<IpcPrediction> predictions =
+				new ArrayList<IpcPrediction>(predictionsForRouteStopDest.size());
+		for (IpcPrediction prediction : predictionsForRouteStopDest) {
+			if (prediction.getPredictionTime() >= currentTime)
+				predictions.add(prediction);
+		}
+
+		return new IpcPredictionsForRouteStopDest(routeId, routeShortName,
+				routeName, routeOrder, stopId, stopName, stopCode, headsign,
+				directionId, distanceToStop,
+				Collections.unmodifiableList(predictions));
+	}
+
+	/**
+	 * For a snapshot created by getSnapshot(), returns a view limited to the
+	 * specified number of predictions and time range. The predictions are not
+	 * copied. If nothing needs to be limited then the snapshot itself is
+	 * returned, so in the normal case no objects are created at all.
+	 * <p>
+	 * Only to be called on a snapshot since no synchronization is done.
+	 *
+	 * @param maxPredictionsPerStop
+	 *            Max number of predictions to include in the view
+	 * @param currentTime
+	 *            Predictions that have expired since the snapshot was created,
+	 *            those before this time, are not included
+	 * @param maxSystemTimeForPrediction
+	 *            Max point in future want predictions for
+	 * @param distanceToStop
+	 *            For when getting predictions by location. Otherwise
+	 *            Double.NaN.
+	 * @return the snapshot or a view of it
+	 */
+	public IpcPredictionsForRouteStopDest getView(int maxPredictionsPerStop,
+			long currentTime, long maxSystemTimeForPrediction,
+			double distanceToStop) {
+		// Predictions are ordered by time so determine the first one that
+		// hasn't expired and the last one that is within the limits
+		int size = predictionsForRouteStopDest.size();
+		int first = 0;
+		while (first < size && predictionsForRouteStopDest.get(first)
+				.getPredictionTime() < currentTime)
+			++first;
+		int last = first + Math.min(size - first, maxPredictionsPerStop);
+		while (last > first && predictionsForRouteStopDest.get(last - 1)
+				.getPredictionTime() > maxSystemTimeForPrediction)
+			--last;
+
+		// If nothing to limit then simply use this snapshot
+		if (first == 0 && last == size
+				&& Double.compare(distanceToStop, this.distanceToStop) == 0)
+			return this;
+
+		return new IpcPredictionsForRouteStopDest(routeId, routeShortName,
+				routeName, routeOrder, stopId, stopName, stopCode, headsign,
+				directionId, distanceToStop,
+				predictionsForRouteStopDest.subList(first, last));
+	}
+
+	/**
+	 * Removes a prediction. The prediction in the list might not be the very
+	 * same object since when the predictions for a vehicle don't change the
+	 * previous objects are kept. Therefore the first prediction that is the
+	 * same, as determined by IpcPrediction.isSamePredictionAs(), is removed.
 	 * <p>
 	 * Not sure if really need to synchronize removal of predictions
 	 * from list since it is only a single operation. But synching
@@ -423,7 +569,15 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 	 * @param oldPrediction
 	 */
 	public synchronized void removePrediction(IpcPrediction oldPrediction) {
-		predictionsForRouteStopDest.remove(oldPrediction);
+		Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
+		while (iterator.hasNext()) {
+			IpcPrediction prediction = iterator.next();
+			if (prediction == oldPrediction 
+					|| prediction.isSamePredictionAs(oldPrediction)) {
+				iterator.remove();
+				return;
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,68 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * For transmitting via Interprocess Communication an already encoded
+ * GTFS-realtime feed that was published by the core, along with its HTTP
+ * entity tag. The entity tag is determined once when the feed is published
+ * so that the API doesn't need to determine it for every request.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcSerializedGtfsRtFeed implements Serializable {
+
+	// The encoded GTFS-realtime FeedMessage, possibly gzipped
+	private final byte[] bytes;
+
+	// The quoted HTTP entity tag for the bytes
+	private final String etag;
+
+	private static final long serialVersionUID = 3260906411718394102L;
+
+	/********************** Member Functions **************************/
+
+	public IpcSerializedGtfsRtFeed(byte[] bytes, String etag) {
+		this.bytes = bytes;
+		this.etag = etag;
+	}
+
+	/**
+	 * @return The encoded FeedMessage. Should not be modified.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The quoted HTTP entity tag for the encoded feed
+	 */
+	public String getEtag() {
+		return etag;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcSerializedGtfsRtFeed ["
+				+ "etag=" + etag
+				+ ", bytes.length=" + bytes.length
+				+ "]";
+	}
+}
@@ -257,6 +257,76 @@ public class IpcVehicle implements Serializable {
 			this.vehicleType = v.vehicleType;
 		}
 
+		/*
+		 * For when reading in compact format via readCompact()
+		 */
+		protected SerializationProxy() {
+		}
+
+		/*
+		 * Writes the fields using the compact format of
+		 * IpcCompactSerialization. Subclasses write their additional fields
+		 * after calling this method.
+		 */
+		protected void writeCompact(IpcCompactWriter writer)
+				throws IOException {
+			writer.writeString(blockId);
+			writer.writeEnum(blockAssignmentMethod);
+			writer.writeBoolean(avl != null);
+			if (avl != null)
+				avl.writeCompact(writer);
+			writer.writeFloat(heading);
+			writer.writeString(routeId);
+			writer.writeString(routeShortName);
+			writer.writeString(routeName);
+			writer.writeString(tripId);
+			writer.writeString(tripPatternId);
+			writer.writeString(directionId);
+			writer.writeString(headsign);
+			writer.writeBoolean(predictable);
+			writer.writeBoolean(schedBasedPred);
+			writer.writeInteger(realTimeSchdAdh != null ? 
+					realTimeSchdAdh.getTemporalDifference() : null);
+			writer.writeBoolean(isDelayed);
+			writer.writeBoolean(isLayover);
+			writer.writeTimeRelativeTo(layoverDepartureTime, 
+					avl != null ? avl.getTime() : 0);
+			writer.writeString(nextStopId);
+			writer.writeString(nextStopName);
+			writer.writeString(vehicleType);
+		}
+
+		/*
+		 * Reads fields written by writeCompact()
+		 */
+		protected void readCompact(IpcCompactReader reader) 
+				throws IOException {
+			blockId = reader.readString();
+			blockAssignmentMethod = 
+					reader.readEnum(BlockAssignmentMethod.class);
+			avl = reader.readBoolean() ? IpcAvl.readCompact(reader) : null;
+			heading = reader.readFloat();
+			routeId = reader.readString();
+			routeShortName = reader.readString();
+			routeName = reader.readString();
+			tripId = reader.readString();
+			tripPatternId = reader.readString();
+			directionId = reader.readString();
+			headsign = reader.readString();
+			predictable = reader.readBoolean();
+			schedBasedPred = reader.readBoolean();
+			Integer schedAdhMsec = reader.readInteger();
+			realTimeSchdAdh = schedAdhMsec != null ? 
+					new TemporalDifference(schedAdhMsec) : null;
+			isDelayed = reader.readBoolean();
+			isLayover = reader.readBoolean();
+			layoverDepartureTime = reader.readTimeRelativeTo(
+					avl != null ? avl.getTime() : 0);
+			nextStopId = reader.readString();
+			nextStopName = reader.readString();
+			vehicleType = reader.readString();
+		}
+
 		/*
 		 * When object is serialized writeReplace() causes this
 		 * SerializationProxy object to be written. Write it in a custom way
@@ -361,6 +431,31 @@ public class IpcVehicle implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the vehicle using the compact format of IpcCompactSerialization.
+	 * Overridden by subclasses so that their additional fields are written.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		new SerializationProxy(this).writeCompact(writer);
+	}
+
+	/**
+	 * Reads an IpcVehicle written by writeCompact()
+	 * 
+	 * @param reader
+	 * @return the vehicle
+	 * @throws IOException
+	 */
+	static IpcVehicle readCompact(IpcCompactReader reader) 
+			throws IOException {
+		SerializationProxy proxy = new SerializationProxy();
+		proxy.readCompact(reader);
+		return (IpcVehicle) proxy.readResolve();
+	}
+
 	public String getId() {
 		return avl.getVehicleId();
 	}
@@ -181,6 +181,43 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 			this.distanceAlongTrip = v.distanceAlongTrip;
 		}
 		
+		/*
+		 * For when reading in compact format via readCompact()
+		 */
+		private CompleteVehicleSerializationProxy() {
+		}
+		
+		/*
+		 * Writes the fields of the super classes and then of this class
+		 * using the compact format of IpcCompactSerialization.
+		 */
+		@Override
+		protected void writeCompact(IpcCompactWriter writer)
+				throws IOException {
+			super.writeCompact(writer);
+			
+			writer.writeString(originStopId);
+			writer.writeString(destinationId);
+			writer.writeDouble(distanceToNextStop);
+			writer.writeDouble(distanceOfNextStopFromTripStart);
+			writer.writeDouble(distanceAlongTrip);
+		}
+
+		/*
+		 * Reads fields written by writeCompact()
+		 */
+		@Override
+		protected void readCompact(IpcCompactReader reader)
+				throws IOException {
+			super.readCompact(reader);
+			
+			originStopId = reader.readString();
+			destinationId = reader.readString();
+			distanceToNextStop = reader.readDouble();
+			distanceOfNextStopFromTripStart = reader.readDouble();
+			distanceAlongTrip = reader.readDouble();
+		}
+		
 		/*
 		 * When object is serialized writeReplace() causes this
 		 * SerializationProxy object to be written. Write it in a custom way
@@ -257,6 +294,32 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 		return new CompleteVehicleSerializationProxy(this);
 	}
 
+	/**
+	 * Writes the vehicle using the compact format of IpcCompactSerialization.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	@Override
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		new CompleteVehicleSerializationProxy(this).writeCompact(writer);
+	}
+
+	/**
+	 * Reads an IpcVehicleComplete written by writeCompact()
+	 * 
+	 * @param reader
+	 * @return the vehicle
+	 * @throws IOException
+	 */
+	static IpcVehicleComplete readCompact(IpcCompactReader reader)
+			throws IOException {
+		CompleteVehicleSerializationProxy proxy = 
+				new CompleteVehicleSerializationProxy();
+		proxy.readCompact(reader);
+		return (IpcVehicleComplete) proxy.readResolve();
+	}
+
 	/*
 	 * Needed as part of using a SerializationProxy. Makes sure that Vehicle
 	 * object cannot be deserialized without using proxy, thereby eliminating
@@ -168,6 +168,43 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 			this.tripStartEpochTime = v.tripStartEpochTime;
 		}
 		
+		/*
+		 * For when reading in compact format via readCompact()
+		 */
+		protected GtfsRealtimeVehicleSerializationProxy() {
+		}
+		
+		/*
+		 * Writes the fields of the super class and then of this class using
+		 * the compact format of IpcCompactSerialization.
+		 */
+		@Override
+		protected void writeCompact(IpcCompactWriter writer)
+				throws IOException {
+			super.writeCompact(writer);
+			
+			writer.writeBoolean(atStop);
+			writer.writeString(atOrNextStopId);
+			writer.writeInteger(atOrNextGtfsStopSeq);
+			writer.writeTimeRelativeTo(tripStartEpochTime, 
+					avl != null ? avl.getTime() : 0);
+		}
+
+		/*
+		 * Reads fields written by writeCompact()
+		 */
+		@Override
+		protected void readCompact(IpcCompactReader reader)
+				throws IOException {
+			super.readCompact(reader);
+			
+			atStop = reader.readBoolean();
+			atOrNextStopId = reader.readString();
+			atOrNextGtfsStopSeq = reader.readInteger();
+			tripStartEpochTime = reader.readTimeRelativeTo(
+					avl != null ? avl.getTime() : 0);
+		}
+		
 		/*
 		 * When object is serialized writeReplace() causes this
 		 * SerializationProxy object to be written. Write it in a custom way
@@ -231,6 +268,32 @@ public class IpcVehicleGtfsRealtime extends IpcVehicle {
 		}
 
 	} // End of class GtfsRealtimeVehicleSerializationProxy
+
+	/**
+	 * Writes the vehicle using the compact format of IpcCompactSerialization.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	@Override
+	void writeCompact(IpcCompactWriter writer) throws IOException {
+		new GtfsRealtimeVehicleSerializationProxy(this).writeCompact(writer);
+	}
+
+	/**
+	 * Reads an IpcVehicleGtfsRealtime written by writeCompact()
+	 * 
+	 * @param reader
+	 * @return the vehicle
+	 * @throws IOException
+	 */
+	static IpcVehicleGtfsRealtime readCompact(IpcCompactReader reader)
+			throws IOException {
+		GtfsRealtimeVehicleSerializationProxy proxy = 
+				new GtfsRealtimeVehicleSerializationProxy();
+		proxy.readCompact(reader);
+		return (IpcVehicleGtfsRealtime) proxy.readResolve();
+	}
 	
 	public long getTripStartEpochTime() {
 		return tripStartEpochTime;
@@ -22,7 +22,11 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import org.transitime.db.structs.Location;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcHeadwaysForStop;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
+import org.transitime.ipc.rmi.LongPoll;
 
 /**
  * Defines the RMI interface used for obtaining predictions. 
@@ -125,4 +129,62 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+	
+	/**
+	 * Returns the GTFS-realtime TripUpdates feed that was most recently
+	 * published by the core, already encoded. Much more efficient than
+	 * getting all predictions via getAllPredictions() and creating the
+	 * feed for every request.
+	 * 
+	 * @param gzipped
+	 *            If true then the gzipped version of the feed is returned
+	 * @return The encoded feed along with its HTTP entity tag, or null if
+	 *         feed is not being published by the core because the
+	 *         GtfsRtFeedPublisherModule is not running
+	 * @throws RemoteException
+	 */
+	public IpcSerializedGtfsRtFeed getSerializedGtfsRtTripUpdates(
+			boolean gzipped) throws RemoteException;
+	
+	/**
+	 * Returns the changes to the GTFS-realtime TripUpdates feed since the
+	 * specified sequence number as a DIFFERENTIAL feed. If there have not
+	 * been any changes published since the sequence number then waits up
+	 * to maxWaitMsec for the next ones so that clients can use this method
+	 * to stream the changes. If the changes since the sequence number are
+	 * no longer available, such as when 0 is specified, then the full
+	 * dataset is returned.
+	 * 
+	 * @param sinceSequence
+	 *            Sequence number of the last feed received by the client, or
+	 *            0 if full dataset is wanted
+	 * @param maxWaitMsec
+	 *            How long to wait for changes if there haven't been any
+	 *            since sinceSequence. Limited by the server.
+	 * @return The encoded feed along with its sequence number, or null if
+	 *         feed is not being published by the core because the
+	 *         GtfsRtFeedPublisherModule is not running
+	 * @throws RemoteException
+	 */
+	@LongPoll
+	public IpcGtfsRtFeedDelta getGtfsRtTripUpdatesDelta(long sinceSequence,
+			long maxWaitMsec) throws RemoteException;
+	
+	/**
+	 * Returns the current and predicted headways for the route. For each
+	 * route/direction/stop contains the vehicles that most recently passed
+	 * the stop and the vehicles predicted to arrive at it, each with the
+	 * headway from the vehicle before it.
+	 * 
+	 * @param routeIdOrShortName
+	 *            Route ID or route short name
+	 * @param stopIdOrCode
+	 *            Stop ID or stop code. If null then the headways for all stops
+	 *            of the route are returned.
+	 * @return List of IpcHeadwaysForStop, one per direction for each stop.
+	 *         Can be empty.
+	 * @throws RemoteException
+	 */
+	public List<IpcHeadwaysForStop> getHeadways(String routeIdOrShortName,
+			String stopIdOrCode) throws RemoteException;
 }
@@ -22,10 +22,13 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitime.ipc.data.IpcActiveBlock;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
 import org.transitime.ipc.data.IpcVehicleConfig;
+import org.transitime.ipc.rmi.LongPoll;
 
 /**
  * Defines the RMI interface used for obtaining vehicle information.
@@ -178,4 +181,44 @@ public interface VehiclesInterface extends Remote {
 	public Collection<IpcActiveBlock> getActiveBlocks(
 			Collection<String> routeIds, int allowableBeforeTimeSecs) 
 					throws RemoteException;
+	
+	/**
+	 * Returns the GTFS-realtime VehiclePositions feed that was most recently
+	 * published by the core, already encoded. Much more efficient than
+	 * getting all vehicles via getGtfsRealtime() and creating the feed for
+	 * every request.
+	 * 
+	 * @param gzipped
+	 *            If true then the gzipped version of the feed is returned
+	 * @return The encoded feed along with its HTTP entity tag, or null if
+	 *         feed is not being published by the core because the
+	 *         GtfsRtFeedPublisherModule is not running
+	 * @throws RemoteException
+	 */
+	public IpcSerializedGtfsRtFeed getSerializedGtfsRtVehiclePositions(
+			boolean gzipped) throws RemoteException;
+	
+	/**
+	 * Returns the changes to the GTFS-realtime VehiclePositions feed since the
+	 * specified sequence number as a DIFFERENTIAL feed. If there have not
+	 * been any changes published since the sequence number then waits up
+	 * to maxWaitMsec for the next ones so that clients can use this method
+	 * to stream the changes. If the changes since the sequence number are
+	 * no longer available, such as when 0 is specified, then the full
+	 * dataset is returned.
+	 * 
+	 * @param sinceSequence
+	 *            Sequence number of the last feed received by the client, or
+	 *            0 if full dataset is wanted
+	 * @param maxWaitMsec
+	 *            How long to wait for changes if there haven't been any
+	 *            since sinceSequence. Limited by the server.
+	 * @return The encoded feed along with its sequence number, or null if
+	 *         feed is not being published by the core because the
+	 *         GtfsRtFeedPublisherModule is not running
+	 * @throws RemoteException
+	 */
+	@LongPoll
+	public IpcGtfsRtFeedDelta getGtfsRtVehiclePositionsDelta(long sinceSequence,
+			long maxWaitMsec) throws RemoteException;
 }
@@ -163,6 +163,18 @@ public class ClientFactory<T extends Remote> {
 		return rmiStub;
 	}
 
+	/**
+	 * Returns how long a call to a LongPoll method should ask the server to
+	 * wait. Since the client socket has a read timeout of
+	 * transitime.rmi.timeoutSec the wait needs to be well below it or the
+	 * call would fail.
+	 * 
+	 * @return max wait time in msec
+	 */
+	public static long getMaxLongPollWaitMsec() {
+		return timeoutSec.getValue() * Time.MS_PER_SEC / 2;
+	}
+
 	/**
 	 * Sets the RMI timeout if haven't done so yet. This way RMI calls will not
 	 * just hang if can't connect.
@@ -0,0 +1,44 @@
+/* 
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * For marking remote methods that intentionally block on the server while
+ * waiting for new data, such as for streaming changes to clients. Such calls
+ * are expected to take a long time and there will usually be one outstanding
+ * per client at all times. Therefore RmiCallInvocationHandler does not count
+ * them against the limit on the number of concurrent calls per agency, which
+ * is meant to protect a server that has fallen behind.
+ * <p>
+ * Clients need to keep the wait time below the RMI socket timeout, see
+ * ClientFactory.getMaxLongPollWaitMsec().
+ *
+ * @author SkiBu Smith
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface LongPoll {
+}
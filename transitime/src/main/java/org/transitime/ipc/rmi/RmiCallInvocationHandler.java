@@ -304,6 +304,11 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 		// collecting, denial of service attack, etc) don't want to
 		// burden the project even more with additional calls. 
 		// Therefore when behind want to return as quickly as possible.
+		// Calls that intentionally wait on the server for new data are
+		// not limited since they are expected to be outstanding.
+		if (method.isAnnotationPresent(LongPoll.class))
+			return lowLevelInvoke(method, args);
+		
 		Counts accessCounter = getAccessCounter(info.getAgencyId());
 		accessCounter.total++;
 		if (accessCounter.current >= getMaxConcurrentCallsPerProject()) {
@@ -25,11 +25,18 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.core.dataCache.HeadwayDataCache;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Location;
+import org.transitime.feed.gtfsRt.GtfsRtFeedPublisherModule;
+import org.transitime.feed.gtfsRt.GtfsRtFeedPublisherModule.SerializedFeed;
 import org.transitime.gtfs.StopsByLoc;
 import org.transitime.gtfs.StopsByLoc.StopInfo;
+import org.transitime.ipc.data.IpcCompactSerialization;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcHeadwaysForStop;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
 import org.transitime.ipc.interfaces.PredictionsInterface;
 import org.transitime.ipc.rmi.AbstractServer;
 import org.transitime.utils.IntervalTimer;
@@ -103,8 +110,9 @@ public class PredictionsServer
 	@Override
 	public List<IpcPredictionsForRouteStopDest> get(String routeIdOrShortName,
 			String stopId, int predictionsPerStop) throws RemoteException {
-		return predictionDataCache.getPredictions(routeIdOrShortName, null,
-				stopId, predictionsPerStop);
+		return IpcCompactSerialization.predictions(
+				predictionDataCache.getPredictions(routeIdOrShortName, null,
+						stopId, predictionsPerStop));
 	}
 
 	/* (non-Javadoc)
@@ -113,7 +121,19 @@ public class PredictionsServer
 	@Override
 	public List<IpcPredictionsForRouteStopDest> get(List<RouteStop> routeStops,
 			int predictionsPerStop) throws RemoteException {
-		return predictionDataCache.getPredictions(routeStops, predictionsPerStop);
+		return IpcCompactSerialization.predictions(
+				predictionDataCache.getPredictions(routeStops,
+						predictionsPerStop));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getHeadways(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public List<IpcHeadwaysForStop> getHeadways(String routeIdOrShortName,
+			String stopIdOrCode) throws RemoteException {
+		return HeadwayDataCache.getInstance().getHeadways(routeIdOrShortName,
+				stopIdOrCode);
 	}
 
 	/* (non-Javadoc)
@@ -126,8 +146,31 @@ public class PredictionsServer
 		long maxSystemTimeForPrediction = Core.getInstance().getSystemTime() + 
 				predictionMaxFutureSecs*Time.MS_PER_SEC;
 
-		return predictionDataCache.getAllPredictions(Integer.MAX_VALUE, 
-				maxSystemTimeForPrediction);
+		return IpcCompactSerialization.predictions(
+				predictionDataCache.getAllPredictions(Integer.MAX_VALUE,
+						maxSystemTimeForPrediction));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getSerializedGtfsRtTripUpdates(boolean)
+	 */
+	@Override
+	public IpcSerializedGtfsRtFeed getSerializedGtfsRtTripUpdates(
+			boolean gzipped) {
+		SerializedFeed feed = GtfsRtFeedPublisherModule.getTripUpdatesFeed();
+		if (feed == null)
+			return null;
+		return gzipped ? feed.getGzippedFeed() : feed.getFeed();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getGtfsRtTripUpdatesDelta(long, long)
+	 */
+	@Override
+	public IpcGtfsRtFeedDelta getGtfsRtTripUpdatesDelta(long sinceSequence,
+			long maxWaitMsec) {
+		return GtfsRtFeedPublisherModule.getTripUpdatesDelta(sinceSequence,
+				maxWaitMsec);
 	}
 
 	// If stops are relatively close then should order routes based on route
@@ -222,7 +265,7 @@ public class PredictionsServer
 				loc, timer.elapsedMsec());
 		
 		// Return all of the predictions
-		return results;
+		return IpcCompactSerialization.predictions(results);
 	}
 	
 }
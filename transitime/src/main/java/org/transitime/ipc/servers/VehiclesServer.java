@@ -31,7 +31,12 @@ import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VehicleConfig;
+import org.transitime.feed.gtfsRt.GtfsRtFeedPublisherModule;
+import org.transitime.feed.gtfsRt.GtfsRtFeedPublisherModule.SerializedFeed;
 import org.transitime.ipc.data.IpcBlock;
+import org.transitime.ipc.data.IpcCompactSerialization;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -215,7 +220,7 @@ public class VehiclesServer extends AbstractServer
 		if (vehicles == null)
 			return new ArrayList<IpcVehicle>();
 		
-		return new ArrayList<IpcVehicle>(vehicles);
+		return IpcCompactSerialization.<IpcVehicle> vehicles(vehicles);
 	}
 
 	/**
@@ -236,7 +241,8 @@ public class VehiclesServer extends AbstractServer
 		if (vehicles == null)
 			return new ArrayList<IpcVehicleGtfsRealtime>();
 		
-		return new ArrayList<IpcVehicleGtfsRealtime>(vehicles);
+		return IpcCompactSerialization.<IpcVehicleGtfsRealtime> vehicles(
+				vehicles);
 	}
 
 	/**
@@ -257,6 +263,9 @@ public class VehiclesServer extends AbstractServer
 		if (vehicles == null)
 			return new ArrayList<IpcVehicleComplete>();
 		
+		if (IpcCompactSerialization.isEnabled())
+			return IpcCompactSerialization.vehicles(vehicles);
+		
 		if (vehicles instanceof Serializable) { 
 			return vehicles;
 		} else {
@@ -327,4 +336,27 @@ public class VehiclesServer extends AbstractServer
 		return result;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getSerializedGtfsRtVehiclePositions(boolean)
+	 */
+	@Override
+	public IpcSerializedGtfsRtFeed getSerializedGtfsRtVehiclePositions(
+			boolean gzipped) throws RemoteException {
+		SerializedFeed feed = 
+				GtfsRtFeedPublisherModule.getVehiclePositionsFeed();
+		if (feed == null)
+			return null;
+		return gzipped ? feed.getGzippedFeed() : feed.getFeed();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getGtfsRtVehiclePositionsDelta(long, long)
+	 */
+	@Override
+	public IpcGtfsRtFeedDelta getGtfsRtVehiclePositionsDelta(
+			long sinceSequence, long maxWaitMsec) throws RemoteException {
+		return GtfsRtFeedPublisherModule.getVehiclePositionsDelta(
+				sinceSequence, maxWaitMsec);
+	}
+
 }
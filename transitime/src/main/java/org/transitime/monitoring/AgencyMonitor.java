@@ -73,6 +73,7 @@ public class AgencyMonitor {
 		monitors.add(new DatabaseMonitor(emailSender, agencyId));
 		monitors.add(new DatabaseQueueMonitor(emailSender,
 				agencyId));
+		monitors.add(new AvlQueueMonitor(emailSender, agencyId));
 	}
 	
 	/**
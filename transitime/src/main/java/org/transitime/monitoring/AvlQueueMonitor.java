@@ -0,0 +1,119 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.monitoring;
+
+import org.transitime.avl.AvlAdmissionController;
+import org.transitime.avl.AvlExecutor;
+import org.transitime.avl.AvlQueue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AvlConfig;
+import org.transitime.utils.EmailSender;
+
+/**
+ * For monitoring the queues of the AvlExecutor, either the single work queue
+ * or the queue of each lane if transitime.avl.useShardedLanes is set. Reports
+ * the depth, latency, and the coalesced/dropped/processed counts of each queue
+ * and is triggered if reports are waiting too long in any of the queues, which
+ * indicates that AVL processing is falling behind. Also reports how many AVL
+ * reports the AvlAdmissionController had fully processed, only cached, and
+ * dropped. Not applicable when using JMS for AVL reports.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class AvlQueueMonitor extends MonitorBase {
+
+	private static IntegerConfigValue maxAvlQueueLatencyMsec =
+			new IntegerConfigValue(
+					"transitime.monitoring.maxAvlQueueLatencyMsec",
+					30000,
+					"If the most recently processed AVL report in any of the "
+					+ "AvlExecutor queues that still have reports waiting "
+					+ "waited longer than this number of msec then AVL queue "
+					+ "monitoring is triggered.");
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor
+	 *
+	 * @param emailSender
+	 * @param agencyId
+	 */
+	public AvlQueueMonitor(EmailSender emailSender, String agencyId) {
+		super(emailSender, agencyId);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.monitoring.MonitorBase#triggered()
+	 */
+	@Override
+	protected boolean triggered() {
+		// Only applicable if using AvlExecutor
+		if (AvlConfig.shouldUseJms()) {
+			setMessage("Using JMS instead of AvlExecutor queues.");
+			return false;
+		}
+
+		// Don't create the AvlExecutor just to monitor it
+		AvlExecutor avlExecutor = AvlExecutor.getExistingInstance();
+		if (avlExecutor == null) {
+			setMessage("AvlExecutor not yet created.");
+			return false;
+		}
+		
+		long worstLatencyMsec = 0;
+		int totalDepth = 0;
+		StringBuilder sb = new StringBuilder();
+		int queueNumber = 0;
+		for (AvlQueue queue : avlExecutor.getQueues()) {
+			// Latency is of the last report taken from the queue. Once the
+			// queue has drained it is no longer relevant, so only use it
+			// for queues that still have reports waiting.
+			int size = queue.size();
+			if (size > 0)
+				worstLatencyMsec = Math.max(worstLatencyMsec,
+						queue.getLastQueueLatencyMsec());
+			totalDepth += size;
+			sb.append(" queue ").append(queueNumber++)
+				.append(": depth=").append(size)
+				.append(" latencyMsec=").append(queue.getLastQueueLatencyMsec())
+				.append(" processed=").append(queue.getProcessedCount())
+				.append(" coalesced=").append(queue.getCoalescedCount())
+				.append(" dropped=").append(queue.getDroppedCount())
+				.append(";");
+		}
+
+		setMessage("Worst AVL queue latency=" + worstLatencyMsec
+				+ " msec while max allowed latency="
+				+ maxAvlQueueLatencyMsec.getValue()
+				+ " msec, and total reports in queues=" + totalDepth + "."
+				+ sb.toString() + " " + AvlAdmissionController.getInstance(),
+				worstLatencyMsec);
+
+		return worstLatencyMsec > maxAvlQueueLatencyMsec.getValue();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.monitoring.MonitorBase#type()
+	 */
+	@Override
+	protected String type() {
+		return "AVL Queue";
+	}
+}
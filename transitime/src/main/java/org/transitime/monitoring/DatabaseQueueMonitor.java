@@ -75,7 +75,10 @@ public class DatabaseQueueMonitor extends MonitorBase {
 				+ StringUtils.twoDigitFormat(dbLogger.queueLevel())
 				+ " while max allowed fraction=" 
 				+ StringUtils.twoDigitFormat(maxQueueFraction.getValue()) 
-				+ ", and items in queue=" + dbLogger.queueSize()
+				+ ", items in queue=" + dbLogger.queueSize()
+				+ ", items in journal=" + dbLogger.journalSize()
+				+ ", and rows written per sec=" 
+				+ StringUtils.oneDigitFormat(dbLogger.rowsPerSec())
 				+ ".",
 				dbLogger.queueLevel());
 		
@@ -158,11 +158,32 @@ public class Geo {
 	 * @return
 	 */
 	public static double distance(Location l1, Location l2) {
-		double lat1 = Math.toRadians(l1.getLat());
-		double lon1 = Math.toRadians(l1.getLon());
-		double lat2 = Math.toRadians(l2.getLat());
-		double lon2 = Math.toRadians(l2.getLon());
+		return distanceRadians(Math.toRadians(l1.getLat()),
+				Math.toRadians(l1.getLon()), 
+				Math.toRadians(l2.getLat()),
+				Math.toRadians(l2.getLon()));
+	}
 
+	/**
+	 * Same as distance(Location, Location) but for when the latitudes and
+	 * longitudes have already been converted to radians. Useful for when
+	 * coordinates are kept in primitive arrays, such as for spatial matching,
+	 * so that no Location objects are needed and the conversion to radians
+	 * only needs to be done once. Returns exactly the same value as
+	 * distance(Location, Location).
+	 * 
+	 * @param lat1
+	 *            in radians
+	 * @param lon1
+	 *            in radians
+	 * @param lat2
+	 *            in radians
+	 * @param lon2
+	 *            in radians
+	 * @return distance in meters
+	 */
+	public static double distanceRadians(double lat1, double lon1, 
+			double lat2, double lon2) {
 		double x = (lon2-lon1) * Math.cos((lat1+lat2)/2);
 		double y = (lat2-lat1);
 		double d = Math.sqrt(x*x + y*y) * RADIUS_OF_EARTH_IN_METERS;
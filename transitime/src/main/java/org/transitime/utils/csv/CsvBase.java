@@ -57,6 +57,22 @@ public class CsvBase {
 		this.fileName = fileName;
 	}
 		
+	/**
+	 * Constructor for when creating CSV object from the current record of a
+	 * MappedCsvTokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param supplementalFile
+	 * @param fileName
+	 *            for logging errors
+	 */
+	protected CsvBase(MappedCsvTokenizer tokenizer, boolean supplementalFile,
+			String fileName) {
+		this.lineNumber = (int) tokenizer.getRecordNumber();
+		this.supplementalFileSoSomeRequiredItemsCanBeMissing = supplementalFile;
+		this.fileName = fileName;
+	}
+		
 	/**
 	 * For when creating a new object by combining in supplemental object with a
 	 * regular object or when generating additional information that is to be
@@ -275,4 +291,139 @@ public class CsvBase {
 		}
 	}
 
+	/**
+	 * Like getValue() but for the current record of a MappedCsvTokenizer.
+	 * Instead of the value returns the index of the column so that the
+	 * value can be parsed directly by the tokenizer, such as with
+	 * MappedCsvTokenizer.getInt(), without creating a String. The same
+	 * errors are logged as for getValue().
+	 * 
+	 * @param tokenizer
+	 *            Positioned at the row in the CSV file
+	 * @param name
+	 *            The name of the column in the CSV file
+	 * @param required
+	 *            Whether this value is required. If required and the value is
+	 *            not set then an error is logged and -1 is returned.
+	 * @return The index of the column, or -1 if the value was not defined
+	 */
+	private int getColumn(MappedCsvTokenizer tokenizer, String name,
+			boolean required) {
+		int column = tokenizer.getColumn(name);
+		if (!tokenizer.isSet(column)) {
+			if (required) {
+				logger.error("Column {} not defined in file \"{}\" yet it is required", 
+						name, getFileName());	
+			} 
+			return -1;
+		}
+		
+		if (tokenizer.isEmpty(column)) {
+			if (required) {
+				logger.error("For file \"{}\" line number {} for column {} value was not set " + 
+						"yet it is required", 
+						getFileName(), lineNumber, name);
+			}
+			return -1;
+		}
+		
+		return column;
+	}
+	
+	/**
+	 * For a column that is required even if reading in a supplemental file.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The index of the column, or -1 if the value was not defined
+	 */
+	protected int getRequiredColumn(MappedCsvTokenizer tokenizer, 
+			String name) {
+		return getColumn(tokenizer, name, true);
+	}
+	
+	/**
+	 * For a column that is required, but is not needed if reading in a
+	 * supplemental file.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The index of the column, or -1 if the value was not defined
+	 */
+	protected int getRequiredUnlessSupplementalColumn(
+			MappedCsvTokenizer tokenizer, String name) {
+		return getColumn(tokenizer, name, 
+				!supplementalFileSoSomeRequiredItemsCanBeMissing);
+	}
+	
+	/**
+	 * For a column that is not required.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The index of the column, or -1 if the value was not defined
+	 */
+	protected int getOptionalColumn(MappedCsvTokenizer tokenizer, 
+			String name) {
+		return getColumn(tokenizer, name, false);
+	}
+	
+	/**
+	 * Same as getRequiredValue() but for a MappedCsvTokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The interned value, or null if it was not defined
+	 */
+	protected String getRequiredValue(MappedCsvTokenizer tokenizer, 
+			String name) {
+		int column = getRequiredColumn(tokenizer, name);
+		return column >= 0 ? tokenizer.getString(column) : null;
+	}
+	
+	/**
+	 * Same as getRequiredUnlessSupplementalValue() but for a
+	 * MappedCsvTokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The interned value, or null if it was not defined
+	 */
+	protected String getRequiredUnlessSupplementalValue(
+			MappedCsvTokenizer tokenizer, String name) {
+		int column = getRequiredUnlessSupplementalColumn(tokenizer, name);
+		return column >= 0 ? tokenizer.getString(column) : null;
+	}
+	
+	/**
+	 * Same as getOptionalValue() but for a MappedCsvTokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return The interned value, or null if it was not defined
+	 */
+	protected String getOptionalValue(MappedCsvTokenizer tokenizer, 
+			String name) {
+		int column = getOptionalColumn(tokenizer, name);
+		return column >= 0 ? tokenizer.getString(column) : null;
+	}
+	
+	/**
+	 * Same as getOptionalBooleanValue() but for a MappedCsvTokenizer.
+	 * 
+	 * @param tokenizer
+	 * @param name
+	 * @return true or false if column set in CSV file. Otherwise null.
+	 */
+	protected Boolean getOptionalBooleanValue(MappedCsvTokenizer tokenizer, 
+			String name) {
+		String booleanStr = getOptionalValue(tokenizer, name);
+		if (booleanStr == null)
+			return null;
+		
+		return booleanStr.equals("1") 
+				|| booleanStr.equals("t") 
+				|| booleanStr.equals("true");
+	}
+
 }
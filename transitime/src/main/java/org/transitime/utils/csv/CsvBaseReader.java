@@ -31,6 +31,7 @@ import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
 
@@ -59,6 +60,19 @@ public abstract class CsvBaseReader<T> {
 	
 	// The CSV objects read from the file
 	protected List<T> gtfsObjects;
+	
+	// Whether to use the MappedCsvTokenizer if the subclass supports it
+	private boolean useMappedTokenizer = useMappedCsvTokenizer.getValue();
+	
+	private static BooleanConfigValue useMappedCsvTokenizer =
+			new BooleanConfigValue("transitime.csv.useMappedTokenizer", 
+					true,
+					"If true then CSV files for readers that support it, "
+					+ "such as for the GTFS stop_times.txt and shapes.txt "
+					+ "files, are read using a memory mapped tokenizer that "
+					+ "parses values directly from the bytes of the file "
+					+ "instead of creating a String for every field. Much "
+					+ "faster for large files.");
 
 	protected static final Logger logger = 
 			LoggerFactory.getLogger(CsvBaseReader.class);
@@ -102,12 +116,165 @@ public abstract class CsvBaseReader<T> {
 	abstract protected T handleRecord(CSVRecord record, boolean supplemental)
 		throws ParseException, NumberFormatException;
 	
+	/**
+	 * For creating the CSV objects when the file is read using a
+	 * MappedCsvTokenizer instead of with commons-csv.
+	 */
+	protected interface MappedRecordHandler<T> {
+		/**
+		 * Called for every record in file. The values in the tokenizer are
+		 * only valid during the call.
+		 * 
+		 * @param tokenizer
+		 *            positioned at the record to be handled
+		 * @param supplemental
+		 * @return The created GTFS object, or null if object filtered out
+		 */
+		T handleRecord(MappedCsvTokenizer tokenizer, boolean supplemental)
+				throws ParseException, NumberFormatException;
+	}
+	
+	/**
+	 * For subclasses to provide a handler so that the file is read using the
+	 * faster MappedCsvTokenizer. Worthwhile for large files.
+	 * 
+	 * @return The handler, or null if the file is to be read using
+	 *         commons-csv and handleRecord(CSVRecord, boolean)
+	 */
+	protected MappedRecordHandler<T> getMappedRecordHandler() {
+		return null;
+	}
+	
+	/**
+	 * For specifying whether the MappedCsvTokenizer should be used if the
+	 * subclass supports it. Overrides the transitime.csv.useMappedTokenizer
+	 * parameter. Useful for benchmarking.
+	 * 
+	 * @param useMappedTokenizer
+	 */
+	public void setUseMappedTokenizer(boolean useMappedTokenizer) {
+		this.useMappedTokenizer = useMappedTokenizer;
+	}
+	
+	/**
+	 * Calls handleRecord() for the record. If there is a problem with the
+	 * record then the error is logged and null is returned so that
+	 * processing can continue and all errors are logged at once.
+	 * 
+	 * @param record
+	 * @return The created CSV object, or null if filtered out or there was
+	 *         an error
+	 */
+	private T handleRecordLoggingErrors(CSVRecord record) {
+		try {
+			return handleRecord(record, supplemental);
+		} catch (ParseException e) {
+			logger.error("ParseException occurred for record {} "
+					+ "(comment lines not included when determing record #) for "
+					+ "filename {} . {}",  
+					record.getRecordNumber(), fileName, e.getMessage());
+			return null;
+		} catch (NumberFormatException e) {
+			logger.error("NumberFormatException occurred for record {} "
+					+ "(comment lines not included when determing record #) "
+					+ "for filename {} . {}", 
+					record.getRecordNumber(), fileName, e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Parses the CSV file using the MappedCsvTokenizer. Calls the handler for
+	 * each record and adds each resulting CSV object to the gtfsObjects
+	 * array. Since the tokenizer only creates Strings for the fields that
+	 * need them this is fast enough that doesn't need to use multiple
+	 * threads, which couldn't share the tokenizer anyways.
+	 * 
+	 * @param handler
+	 */
+	private void parseUsingMappedTokenizer(MappedRecordHandler<T> handler) {
+		MappedCsvTokenizer tokenizer = null;
+		try {
+			IntervalTimer timer = new IntervalTimer();
+			IntervalTimer loggingTimer = new IntervalTimer();
+			long recordNumberWhenLogged = 0;
+			
+			logger.debug("Parsing CSV file {} using MappedCsvTokenizer ...", 
+					fileName);
+
+			// Allow lines to be comments if they start with "-", same as
+			// when using the CSVFormat in parse()
+			tokenizer = new MappedCsvTokenizer(fileName, '-');
+			while (tokenizer.next()) {
+				// Process the record using appropriate handler
+				// and create the corresponding CSV object
+				try {
+					T gtfsObject = handler.handleRecord(tokenizer, supplemental);
+					if (gtfsObject != null)
+						gtfsObjects.add(gtfsObject);
+				} catch (ParseException e) {
+					logger.error("ParseException occurred for record {} "
+							+ "(comment lines not included when determing record #) for "
+							+ "filename {} . {}",  
+							tokenizer.getRecordNumber(), fileName, e.getMessage());
+				} catch (NumberFormatException e) {
+					logger.error("NumberFormatException occurred for record {} "
+							+ "(comment lines not included when determing record #) "
+							+ "for filename {} . {}", 
+							tokenizer.getRecordNumber(), fileName, e.getMessage());
+				}
+
+				// Log info if it has been a while. Only look at the timer
+				// every 20,000 records so not doing a system call for every
+				// record.
+				if (tokenizer.getRecordNumber() >= 
+						recordNumberWhenLogged + 20000) {
+					recordNumberWhenLogged = tokenizer.getRecordNumber();
+					if (loggingTimer.elapsedMsec() > 5*Time.MS_PER_SEC) {
+						logger.info("  Processed {} lines. Took {} msec...", 
+								recordNumberWhenLogged, timer.elapsedMsec());
+						loggingTimer = new IntervalTimer();
+					}
+				}
+			}
+			
+			logger.info("Finished parsing {} records from file {} . Took {} msec.", 
+					tokenizer.getRecordNumber(), fileName, timer.elapsedMsec());
+		} catch (FileNotFoundException e) {
+			if (required)
+				logger.error("Required CSV file {} not found.", fileName);
+			else 
+				logger.info("CSV file {} not found but OK because this file "
+						+ "not required.", fileName);
+		} catch (IOException e) {
+			logger.error("IOException occurred when reading in filename {}.", 
+					fileName, e);
+		} finally {
+			if (tokenizer != null) {
+				try {
+					tokenizer.close();
+				} catch (IOException e) {
+					logger.error("IOException occurred when closing filename "
+							+ "{}.", fileName, e);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Parse the CSV file. Reads in the header info and then each line. Calls
 	 * the abstract handleRecord() method for each record. Adds each resulting
 	 * CSV object to the gtfsObjecgts array.
 	 */
 	private void parse() {
+		// Use the faster tokenizer if possible
+		MappedRecordHandler<T> mappedHandler = 
+				useMappedTokenizer ? getMappedRecordHandler() : null;
+		if (mappedHandler != null) {
+			parseUsingMappedTokenizer(mappedHandler);
+			return;
+		}
+		
 		CSVRecord record = null;
 		try {
 			IntervalTimer timer = new IntervalTimer();
@@ -167,28 +334,7 @@ public abstract class CsvBaseReader<T> {
 				
 				// Process the record using appropriate handler
 				// and create the corresponding CSV object
-				T gtfsObject;
-				try {
-					gtfsObject = handleRecord(record, supplemental);
-				} catch (ParseException e) {
-					logger.error("ParseException occurred for record {} "
-							+ "(comment lines not included when determing record #) for "
-							+ "filename {} . {}",  
-							record.getRecordNumber(), fileName, e.getMessage());
-
-					// Continue even though there was an error so that all errors 
-					// logged at once.					
-					continue;
-				} catch (NumberFormatException e) {
-					logger.error("NumberFormatException occurred for record {} "
-							+ "(comment lines not included when determing record #) "
-							+ "for filename {} . {}", 
-							record.getRecordNumber(), fileName, e.getMessage());
-
-					// Continue even though there was an error so that all errors 
-					// logged at once.					
-					continue;
-				}
+				T gtfsObject = handleRecordLoggingErrors(record);
 				
 				// Add the newly created CSV object to the object list
 				if (gtfsObject != null)
@@ -0,0 +1,781 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A CSV tokenizer that works directly on the bytes of a memory mapped UTF-8
+ * file instead of going through a Reader and creating a CSVRecord with a
+ * String for every field like Commons CSV does. The fields of the current
+ * record are simply ranges of bytes in the mapped file. They can be accessed
+ * as a reusable CharSequence or parsed directly from the bytes into ints,
+ * doubles, and times of day. Strings are only created when getString() is
+ * called, and even then the String for the previous record is reused if the
+ * value of the column didn't change, which is very common for columns such
+ * as trip_id in stop_times.txt or shape_id in shapes.txt.
+ * <p>
+ * Handles the same format as the CSVFormat.DEFAULT.withHeader() used by
+ * CsvBaseReader: comma delimited, fields optionally surrounded by double
+ * quotes with quotes within them escaped by doubling them, a header line
+ * with the column names, blank lines ignored, and lines starting with the
+ * comment marker ignored. An optional UTF-8 byte order mark is skipped. The
+ * record numbers are the same as CSVRecord.getRecordNumber(), which means
+ * the header is counted as the first record but blank lines and comment
+ * lines are not counted.
+ * <p>
+ * Large files are mapped in windows of up to 2GB. When a record crosses the
+ * end of a window the next window is mapped starting at the beginning of
+ * that record.
+ * <p>
+ * Not thread safe. The values returned by getChars() are only valid until
+ * next() is called.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class MappedCsvTokenizer implements Closeable {
+
+	private final String fileName;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final long windowSize;
+	private final byte commentMarker;
+
+	// The currently mapped part of the file. windowStart is the offset in
+	// the file of the beginning of the buffer.
+	private MappedByteBuffer buffer;
+	private long windowStart;
+	private int windowLimit;
+
+	// Index into the buffer of where to start parsing the next record
+	private int pos;
+
+	// Column indices keyed on the column names from the header
+	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+
+	// The fields of the current record. The start and end are indices into
+	// the buffer and exclude any surrounding quotes. fieldEscaped indicates
+	// that the field contains doubled quotes that need to be unescaped.
+	private int numberFields;
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+	private boolean[] fieldEscaped = new boolean[16];
+	private long recordNumber;
+
+	// Reused for each column so that don't need to create objects for every
+	// field. Created as needed.
+	private FieldChars[] fieldChars = new FieldChars[16];
+	private String[] previousStrings = new String[16];
+
+	// For the rare fields that are not plain ASCII
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// Results of tryParseRecord()
+	private static final int RECORD = 0;
+	private static final int SKIPPED_LINE = 1;
+	private static final int END_OF_FILE = 2;
+	private static final int END_OF_WINDOW = 3;
+
+	private static final byte DELIMITER = ',';
+	private static final byte QUOTE = '"';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	// For the fast path of getDouble(). Powers of ten that can be exactly
+	// represented as a double.
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+	}
+
+	// Largest mantissa for which the conversion in the fast path of
+	// getDouble() is exact
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Opens and maps the file and reads in the header.
+	 *
+	 * @param fileName
+	 * @param commentMarker
+	 *            Lines starting with this character are ignored
+	 * @throws java.io.FileNotFoundException
+	 *             if the file doesn't exist
+	 * @throws IOException
+	 */
+	public MappedCsvTokenizer(String fileName, char commentMarker)
+			throws IOException {
+		this(fileName, commentMarker, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Opens and maps the file and reads in the header. The window size can
+	 * be specified so that the handling of records that cross windows can
+	 * be tested without a huge file.
+	 *
+	 * @param fileName
+	 * @param commentMarker
+	 * @param windowSize
+	 *            Max number of bytes to map at once
+	 * @throws IOException
+	 */
+	MappedCsvTokenizer(String fileName, char commentMarker, long windowSize)
+			throws IOException {
+		this.fileName = fileName;
+		this.commentMarker = (byte) commentMarker;
+		this.windowSize = windowSize;
+		this.file = new RandomAccessFile(fileName, "r");
+		this.channel = file.getChannel();
+		this.fileSize = channel.size();
+
+		try {
+			mapWindow(0);
+
+			// Skip the optional UTF-8 BOM (Byte Order Mark)
+			if (windowLimit >= 3
+					&& buffer.get(0) == (byte) 0xEF
+					&& buffer.get(1) == (byte) 0xBB
+					&& buffer.get(2) == (byte) 0xBF)
+				pos = 3;
+
+			// Read in the header. Like with Commons CSV the header counts as
+			// a record, so the first data record is record 2.
+			if (parseRecord()) {
+				for (int i = 0; i < numberFields; ++i)
+					columns.put(getChars(i).toString(), i);
+			}
+			numberFields = 0;
+			Arrays.fill(previousStrings, null);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps the part of the file starting at the specified offset
+	 *
+	 * @param start
+	 *            offset into the file
+	 * @throws IOException
+	 */
+	private void mapWindow(long start) throws IOException {
+		long size = Math.min(windowSize, fileSize - start);
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+		windowLimit = (int) size;
+	}
+
+	/**
+	 * Makes sure the arrays for the fields can handle the specified number
+	 * of fields
+	 *
+	 * @param size
+	 */
+	private void ensureCapacity(int size) {
+		if (size <= fieldStarts.length)
+			return;
+
+		int newSize = Math.max(size, 2 * fieldStarts.length);
+		fieldStarts = Arrays.copyOf(fieldStarts, newSize);
+		fieldEnds = Arrays.copyOf(fieldEnds, newSize);
+		fieldEscaped = Arrays.copyOf(fieldEscaped, newSize);
+		fieldChars = Arrays.copyOf(fieldChars, newSize);
+		previousStrings = Arrays.copyOf(previousStrings, newSize);
+	}
+
+	/**
+	 * Returns the index just past the end of line at p. For a CR LF end of
+	 * line where the LF is in the next window the LF is simply handled as a
+	 * blank line when parsing the next record.
+	 *
+	 * @param p
+	 *            index of the CR or LF
+	 * @return index of the beginning of the next line
+	 */
+	private int skipEndOfLine(int p) {
+		if (buffer.get(p) == CR && p + 1 < windowLimit
+				&& buffer.get(p + 1) == LF)
+			return p + 2;
+		return p + 1;
+	}
+
+	/**
+	 * Parses the record starting at pos. If successful the fields are stored
+	 * and pos is moved to the beginning of the following line.
+	 *
+	 * @return RECORD if a record was parsed, SKIPPED_LINE if the line was a
+	 *         blank or comment line, END_OF_FILE if there are no more
+	 *         records, or END_OF_WINDOW if the record extends past the end
+	 *         of the mapped window
+	 * @throws IOException
+	 *             if there is no closing quote for a quoted field
+	 */
+	private int tryParseRecord() throws IOException {
+		final int limit = windowLimit;
+		final boolean lastWindow = windowStart + limit >= fileSize;
+		int p = pos;
+		if (p >= limit)
+			return lastWindow ? END_OF_FILE : END_OF_WINDOW;
+
+		// Handle blank and comment lines
+		byte b = buffer.get(p);
+		if (b == LF || b == CR) {
+			pos = skipEndOfLine(p);
+			return SKIPPED_LINE;
+		}
+		if (b == commentMarker) {
+			while (p < limit && (b = buffer.get(p)) != LF && b != CR)
+				++p;
+			if (p >= limit) {
+				if (!lastWindow)
+					return END_OF_WINDOW;
+				pos = p;
+			} else {
+				pos = skipEndOfLine(p);
+			}
+			return SKIPPED_LINE;
+		}
+
+		// Handle the fields of the record
+		int field = 0;
+		while (true) {
+			ensureCapacity(field + 1);
+			if (p < limit && buffer.get(p) == QUOTE) {
+				// Quoted field. Can contain delimiters, line ends, and
+				// doubled quotes.
+				int start = ++p;
+				boolean escaped = false;
+				while (true) {
+					if (p >= limit) {
+						if (!lastWindow)
+							return END_OF_WINDOW;
+						throw new IOException("End of file reached before "
+								+ "closing quote for record "
+								+ (recordNumber + 1) + " in file " + fileName);
+					}
+					if (buffer.get(p) == QUOTE) {
+						if (p + 1 >= limit && !lastWindow)
+							return END_OF_WINDOW;
+						if (p + 1 < limit && buffer.get(p + 1) == QUOTE) {
+							escaped = true;
+							p += 2;
+							continue;
+						}
+						break;
+					}
+					++p;
+				}
+				fieldStarts[field] = start;
+				fieldEnds[field] = p;
+				fieldEscaped[field] = escaped;
+
+				// Skip the closing quote and anything after it up to the
+				// delimiter, which should only be whitespace
+				++p;
+				while (p < limit && (b = buffer.get(p)) != DELIMITER
+						&& b != LF && b != CR)
+					++p;
+			} else {
+				// Regular field
+				int start = p;
+				while (p < limit && (b = buffer.get(p)) != DELIMITER
+						&& b != LF && b != CR)
+					++p;
+				fieldStarts[field] = start;
+				fieldEnds[field] = p;
+				fieldEscaped[field] = false;
+			}
+			++field;
+
+			// Determine if there are more fields
+			if (p >= limit) {
+				if (!lastWindow)
+					return END_OF_WINDOW;
+				break;
+			}
+			if (buffer.get(p) == DELIMITER) {
+				++p;
+			} else {
+				p = skipEndOfLine(p);
+				break;
+			}
+		}
+
+		numberFields = field;
+		pos = p;
+		++recordNumber;
+		return RECORD;
+	}
+
+	/**
+	 * Parses the next record, skipping blank and comment lines and mapping
+	 * the next window of the file as needed.
+	 *
+	 * @return true if there was another record
+	 * @throws IOException
+	 */
+	private boolean parseRecord() throws IOException {
+		while (true) {
+			int recordStart = pos;
+			switch (tryParseRecord()) {
+			case RECORD:
+				return true;
+			case END_OF_FILE:
+				numberFields = 0;
+				return false;
+			case SKIPPED_LINE:
+				break;
+			default:
+				// END_OF_WINDOW so map the file starting at the beginning of
+				// the record and try again
+				if (recordStart == 0)
+					throw new IOException("Record " + (recordNumber + 1)
+							+ " in file " + fileName + " is longer than "
+							+ windowSize + " bytes");
+				mapWindow(windowStart + recordStart);
+				pos = 0;
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next record
+	 *
+	 * @return true if there is another record, false if at end of file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		return parseRecord();
+	}
+
+	/**
+	 * @return Number of the current record, counting the header but not
+	 *         blank lines and comment lines. Same as
+	 *         CSVRecord.getRecordNumber().
+	 */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * @return Number of fields in the current record
+	 */
+	public int size() {
+		return numberFields;
+	}
+
+	/**
+	 * @return name of the file being tokenized
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @param name
+	 *            Name of the column as specified in the header
+	 * @return index of the column, or -1 if there is no such column
+	 */
+	public int getColumn(String name) {
+		Integer column = columns.get(name);
+		return column != null ? column : -1;
+	}
+
+	/**
+	 * Same as CSVRecord.isSet(). The column needs to be in the header and the
+	 * current record needs to have a field for it.
+	 *
+	 * @param column
+	 * @return true if the current record has a value for the column
+	 */
+	public boolean isSet(int column) {
+		return column >= 0 && column < numberFields;
+	}
+
+	/**
+	 * @param column
+	 * @return index of the first byte of the field after any whitespace
+	 */
+	private int trimmedStart(int column) {
+		int start = fieldStarts[column];
+		int end = fieldEnds[column];
+		while (start < end && (buffer.get(start) & 0xFF) <= ' ')
+			++start;
+		return start;
+	}
+
+	/**
+	 * @param column
+	 * @param start
+	 *            as returned by trimmedStart()
+	 * @return index just past the last byte of the field that isn't
+	 *         whitespace
+	 */
+	private int trimmedEnd(int column, int start) {
+		int end = fieldEnds[column];
+		while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ')
+			--end;
+		return end;
+	}
+
+	/**
+	 * @param column
+	 * @return true if the field is empty or only whitespace
+	 */
+	public boolean isEmpty(int column) {
+		int start = trimmedStart(column);
+		return trimmedEnd(column, start) == start;
+	}
+
+	/**
+	 * Returns the value of the field with whitespace trimmed, like
+	 * String.trim() does. The returned CharSequence is reused for the
+	 * column so it is only valid until next() is called. For plain ASCII
+	 * fields it simply reads the bytes of the file.
+	 *
+	 * @param column
+	 * @return the trimmed value of the field
+	 */
+	public CharSequence getChars(int column) {
+		FieldChars chars = fieldChars[column];
+		if (chars == null) {
+			chars = new FieldChars();
+			fieldChars[column] = chars;
+		}
+		int start = trimmedStart(column);
+		chars.set(start, trimmedEnd(column, start), fieldEscaped[column]);
+		return chars;
+	}
+
+	/**
+	 * Returns the trimmed value of the field as an interned String. If the
+	 * value is the same as for the previous call for the column then the
+	 * same String is returned without creating a new one.
+	 *
+	 * @param column
+	 * @return the trimmed value of the field. Empty string if field is empty.
+	 */
+	public String getString(int column) {
+		int start = trimmedStart(column);
+		int end = trimmedEnd(column, start);
+		if (start == end)
+			return "";
+
+		String previous = previousStrings[column];
+		if (previous != null && !fieldEscaped[column]
+				&& sameAscii(previous, start, end))
+			return previous;
+
+		FieldChars chars = (FieldChars) getChars(column);
+		String value = chars.toString().intern();
+		previousStrings[column] = value;
+		return value;
+	}
+
+	/**
+	 * @param str
+	 * @param start
+	 * @param end
+	 * @return true if the bytes are the same as the characters of the String
+	 */
+	private boolean sameAscii(String str, int start, int end) {
+		if (str.length() != end - start)
+			return false;
+		for (int i = start; i < end; ++i) {
+			if (buffer.get(i) != str.charAt(i - start))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param column
+	 * @return NumberFormatException for the value of the column
+	 */
+	private NumberFormatException numberFormatException(int column) {
+		return new NumberFormatException("For input string: \""
+				+ getChars(column) + "\"");
+	}
+
+	/**
+	 * Parses the field as an int directly from the bytes. Same as
+	 * Integer.parseInt() on the trimmed value.
+	 *
+	 * @param column
+	 * @return the int value
+	 * @throws NumberFormatException
+	 *             if the field is not a valid int
+	 */
+	public int getInt(int column) throws NumberFormatException {
+		int p = trimmedStart(column);
+		int end = trimmedEnd(column, p);
+		if (p == end)
+			throw numberFormatException(column);
+
+		boolean negative = false;
+		byte b = buffer.get(p);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			if (++p == end)
+				throw numberFormatException(column);
+		}
+
+		long value = 0;
+		for (; p < end; ++p) {
+			int digit = buffer.get(p) - '0';
+			if (digit < 0 || digit > 9)
+				throw numberFormatException(column);
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1)
+				throw numberFormatException(column);
+		}
+		if (negative)
+			value = -value;
+		if (value > Integer.MAX_VALUE)
+			throw numberFormatException(column);
+		return (int) value;
+	}
+
+	/**
+	 * Parses the field as a double. Plain decimal numbers such as lats, lons
+	 * and distances are parsed directly from the bytes. The result is
+	 * exactly the same as Double.parseDouble() since the mantissa and the
+	 * power of ten are both exactly representable, and therefore the single
+	 * division is correctly rounded. Other values, such as ones with an
+	 * exponent or with many digits, are handled using Double.parseDouble().
+	 *
+	 * @param column
+	 * @return the double value
+	 * @throws NumberFormatException
+	 *             if the field is not a valid double
+	 */
+	public double getDouble(int column) throws NumberFormatException {
+		int p = trimmedStart(column);
+		int end = trimmedEnd(column, p);
+		if (p == end)
+			throw numberFormatException(column);
+
+		boolean negative = false;
+		byte b = buffer.get(p);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			++p;
+		}
+
+		long mantissa = 0;
+		int numberDigits = 0;
+		int fractionDigits = -1;
+		for (; p < end; ++p) {
+			b = buffer.get(p);
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				++numberDigits;
+				if (fractionDigits >= 0)
+					++fractionDigits;
+				if (mantissa > MAX_EXACT_MANTISSA)
+					break;
+			} else if (b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				break;
+			}
+		}
+		if (p < end || numberDigits == 0
+				|| fractionDigits >= POWERS_OF_TEN.length) {
+			// Not a plain decimal number so use the standard method
+			return Double.parseDouble(getChars(column).toString());
+		}
+
+		double value = fractionDigits > 0 ?
+				mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a time such as HH:MM:SS or HH:MM into seconds into the day
+	 * directly from the bytes. Same as Time.parseTimeOfDay() but throws a
+	 * NumberFormatException if the time is not valid.
+	 *
+	 * @param column
+	 * @return seconds into the day. Can be negative or greater than a day.
+	 * @throws NumberFormatException
+	 *             if the field is not a valid time
+	 */
+	public int getTimeOfDaySecs(int column) throws NumberFormatException {
+		int p = trimmedStart(column);
+		int end = trimmedEnd(column, p);
+		if (p == end)
+			throw numberFormatException(column);
+
+		boolean negative = buffer.get(p) == '-';
+		if (negative)
+			++p;
+
+		// Parse up to three numbers separated by colons
+		int result = 0;
+		int numbers = 0;
+		int value = 0;
+		int digits = 0;
+		for (; p <= end; ++p) {
+			byte b = p < end ? buffer.get(p) : (byte) ':';
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+				if (++digits > 6)
+					throw numberFormatException(column);
+			} else if (b == ':' && digits > 0 && numbers < 3) {
+				result = result * 60 + value;
+				++numbers;
+				value = 0;
+				digits = 0;
+			} else {
+				throw numberFormatException(column);
+			}
+		}
+
+		// Hours and minutes are required. If seconds not specified then
+		// they are 0.
+		if (numbers == 2)
+			result *= 60;
+		else if (numbers != 3)
+			throw numberFormatException(column);
+
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Closes the file. The mapped memory is freed once it is garbage
+	 * collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		buffer = null;
+		file.close();
+	}
+
+	/**
+	 * A reusable CharSequence for the value of a field. For plain ASCII
+	 * fields, which are by far the most common, the characters are read
+	 * directly from the mapped bytes. Otherwise the field is decoded as
+	 * UTF-8 into a char array, with doubled quotes unescaped.
+	 */
+	private final class FieldChars implements CharSequence {
+		private int start;
+		private int length;
+
+		// Only used if field is not plain ASCII
+		private char[] chars;
+		private boolean decoded;
+
+		/**
+		 * Sets the field that the CharSequence is for
+		 *
+		 * @param start
+		 * @param end
+		 * @param escaped
+		 *            whether field contains doubled quotes
+		 */
+		private void set(int start, int end, boolean escaped) {
+			this.start = start;
+			this.length = end - start;
+			this.decoded = false;
+
+			boolean ascii = !escaped;
+			for (int i = start; ascii && i < end; ++i)
+				ascii = buffer.get(i) >= 0;
+			if (!ascii)
+				decode(start, end, escaped);
+		}
+
+		/**
+		 * Decodes the UTF-8 bytes into the chars array
+		 */
+		private void decode(int start, int end, boolean escaped) {
+			if (chars == null || chars.length < end - start)
+				chars = new char[Math.max(end - start, 32)];
+
+			ByteBuffer in = buffer.duplicate();
+			in.limit(end);
+			in.position(start);
+			CharBuffer out = CharBuffer.wrap(chars);
+			decoder.reset();
+			decoder.decode(in, out, true);
+			decoder.flush(out);
+			length = out.position();
+
+			// Replace doubled quotes with a single quote
+			if (escaped) {
+				int newLength = 0;
+				for (int i = 0; i < length; ++i) {
+					chars[newLength++] = chars[i];
+					if (chars[i] == '"' && i + 1 < length
+							&& chars[i + 1] == '"')
+						++i;
+				}
+				length = newLength;
+			}
+			decoded = true;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException("index=" + index);
+			return decoded ? chars[index] : (char) buffer.get(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int startIndex, int endIndex) {
+			return toString().subSequence(startIndex, endIndex);
+		}
+
+		@Override
+		public String toString() {
+			if (decoded)
+				return new String(chars, 0, length);
+
+			char[] copy = new char[length];
+			for (int i = 0; i < length; ++i)
+				copy[i] = (char) buffer.get(start + i);
+			return new String(copy);
+		}
+	}
+}
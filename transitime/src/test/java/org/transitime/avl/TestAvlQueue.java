@@ -0,0 +1,145 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.avl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.AvlReport;
+
+/**
+ * Tests the coalescing and drop behavior of AvlQueue.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestAvlQueue extends TestCase {
+
+	private static AvlClient client(String vehicleId, long time) {
+		return new AvlClient(new AvlReport(vehicleId, time, 37.77, -122.42,
+				"test"));
+	}
+
+	private static long time(Runnable runnable) {
+		return ((AvlClient) runnable).getAvlReport().getTime();
+	}
+
+	private static String vehicleId(Runnable runnable) {
+		return ((AvlClient) runnable).getAvlReport().getVehicleId();
+	}
+
+	public void testNewerReportReplacesPendingOne() {
+		AvlQueue queue = new AvlQueue(10);
+		assertTrue(queue.offer(client("v1", 1000)));
+		assertTrue(queue.offer(client("v2", 1000)));
+		assertTrue(queue.offer(client("v1", 2000)));
+
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getCoalescedCount());
+
+		// v1 keeps its original position in the FIFO but has newer report
+		Runnable first = queue.poll();
+		assertEquals("v1", vehicleId(first));
+		assertEquals(2000, time(first));
+		assertEquals("v2", vehicleId(queue.poll()));
+		assertNull(queue.poll());
+		assertEquals(2, queue.getProcessedCount());
+	}
+
+	public void testOfferWhenFullIsDropped() {
+		AvlQueue queue = new AvlQueue(1);
+		assertTrue(queue.offer(client("v1", 1000)));
+		assertFalse(queue.offer(client("v2", 1000)));
+		assertEquals(1, queue.getDroppedCount());
+
+		// A full queue still accepts a newer report for a queued vehicle
+		assertTrue(queue.offer(client("v1", 2000)));
+		assertEquals(2000, time(queue.poll()));
+
+		// The dropped vehicle must not have left a pending slot behind
+		assertFalse(queue.iterator().hasNext());
+	}
+
+	public void testIteratorRemoveSkipsVehicle() {
+		AvlQueue queue = new AvlQueue(10);
+		queue.offer(client("v1", 1000));
+		queue.offer(client("v2", 1000));
+		assertTrue(queue.remove(queue.peek()));
+
+		assertEquals("v2", vehicleId(queue.poll()));
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Many producers race to add reports for the same vehicle while the queue
+	 * is full. Every pending slot that is left over must still be reachable
+	 * through the FIFO, otherwise the vehicle would never be processed again.
+	 */
+	public void testConcurrentOffersWhenFullLeaveNoOrphans()
+			throws InterruptedException {
+		for (int round = 0; round < 200; ++round) {
+			final AvlQueue queue = new AvlQueue(1);
+			queue.offer(client("blocker", 0));
+
+			final int numThreads = 4;
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(numThreads + 1);
+			for (int t = 0; t < numThreads; ++t) {
+				final long base = t * 1000;
+				new Thread() {
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < 100; ++i)
+								queue.offer(client("v1", base + i));
+						} catch (InterruptedException e) {
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			// Consumer frees up space now and then so that some offers for v1
+			// succeed while others fail
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < 20; ++i) {
+							Runnable r = queue.poll(1, TimeUnit.MILLISECONDS);
+							if (r == null)
+								Thread.yield();
+						}
+					} catch (InterruptedException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+
+			start.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+
+			while (queue.poll() != null)
+				;
+			assertFalse("Pending slot without an entry in the FIFO",
+					queue.iterator().hasNext());
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.transitime.applications.Core;
+import org.transitime.core.SpatialMatcher.MatchingType;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.utils.Geo;
+
+/**
+ * For comparing spatial matching using the original way of examining the
+ * segments, which creates Indices and SpatialMatch objects for every segment,
+ * with the kernel that works on the flat arrays of SegmentCoordinates. Uses
+ * the configuration of the agency, so the usual transitime.core.agencyId and
+ * database properties need to be set. Synthetic AVL reports are created
+ * slightly off of the segments of the longest trips and each one is matched
+ * to its trip.
+ * <p>
+ * Reports the time and the number of bytes allocated per AVL report for each
+ * of the two approaches. Allocation is measured using
+ * com.sun.management.ThreadMXBean and therefore is only available on HotSpot
+ * based JVMs. Also verifies that both approaches return the same matches.
+ * <p>
+ * Command line args are: numberOfTrips iterations
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class SpatialMatcherBenchmark {
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates AVL reports 10m off of the middle of every segment of the trips
+	 * with the heading of the segment.
+	 *
+	 * @param trips
+	 * @param tripsForReports
+	 *            the trip of each AVL report is added to this list
+	 * @return the AVL reports
+	 */
+	private static List<AvlReport> createAvlReports(List<Trip> trips,
+			List<Trip> tripsForReports) {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		long time = System.currentTimeMillis();
+		for (Trip trip : trips) {
+			for (StopPath stopPath : trip.getStopPaths()) {
+				for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+					Location middle = new Location(
+							(segment.getL1().getLat() + segment.getL2().getLat()) / 2,
+							(segment.getL1().getLon() + segment.getL2().getLon()) / 2);
+					Location loc = Geo.offset(middle, 10.0, 0.0);
+					avlReports.add(new AvlReport("benchmark", time,
+							loc.getLat(), loc.getLon(), 10.0f,
+							segment.getHeading(), "benchmark"));
+					tripsForReports.add(trip);
+				}
+			}
+		}
+		return avlReports;
+	}
+
+	/**
+	 * Returns number of bytes allocated by the current thread, or 0 if that
+	 * is not supported by the JVM.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Matches every AVL report to its trip for the specified number of
+	 * iterations and outputs the time and allocation per AVL report.
+	 *
+	 * @return the matches from the last iteration, for verification
+	 */
+	private static List<List<SpatialMatch>> run(List<AvlReport> avlReports,
+			List<Trip> tripsForReports, int iterations, boolean useKernel) {
+		List<List<SpatialMatch>> results = null;
+		long bytesAtStart = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i) {
+			results = new ArrayList<List<SpatialMatch>>(avlReports.size());
+			for (int j = 0; j < avlReports.size(); ++j) {
+				results.add(SpatialMatcher.getSpatialMatchesForTrip(
+						avlReports.get(j), tripsForReports.get(j),
+						MatchingType.STANDARD_MATCHING, useKernel));
+			}
+		}
+		long elapsedNanos = System.nanoTime() - start;
+		long bytesAllocated = allocatedBytes() - bytesAtStart;
+
+		long numberOfMatches = (long) iterations * avlReports.size();
+		System.out.println(String.format(
+				"%-10s %,12.0f nsec per report  %,10d bytes allocated per report",
+				useKernel ? "Kernel:" : "Original:",
+				(double) elapsedNanos / numberOfMatches,
+				bytesAllocated / numberOfMatches));
+		return results;
+	}
+
+	/**
+	 * Returns true if the two lists of spatial matches are for the same
+	 * segments with the same distances.
+	 */
+	private static boolean sameMatches(List<SpatialMatch> matches1,
+			List<SpatialMatch> matches2) {
+		if (matches1.size() != matches2.size())
+			return false;
+		for (int i = 0; i < matches1.size(); ++i) {
+			SpatialMatch m1 = matches1.get(i);
+			SpatialMatch m2 = matches2.get(i);
+			if (m1.getTripIndex() != m2.getTripIndex()
+					|| m1.getStopPathIndex() != m2.getStopPathIndex()
+					|| m1.getSegmentIndex() != m2.getSegmentIndex()
+					|| Double.compare(m1.getDistanceToSegment(),
+							m2.getDistanceToSegment()) != 0
+					|| Double.compare(m1.getDistanceAlongSegment(),
+							m2.getDistanceAlongSegment()) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param args
+	 *            numberOfTrips iterations
+	 */
+	public static void main(String[] args) {
+		int numberOfTrips = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		// Use the trips with the most stop paths
+		List<Trip> trips = new ArrayList<Trip>(
+				Core.getInstance().getDbConfig().getTrips().values());
+		Collections.sort(trips, new Comparator<Trip>() {
+			@Override
+			public int compare(Trip t1, Trip t2) {
+				return t2.getNumberStopPaths() - t1.getNumberStopPaths();
+			}
+		});
+		if (trips.size() > numberOfTrips)
+			trips = trips.subList(0, numberOfTrips);
+
+		List<Trip> tripsForReports = new ArrayList<Trip>();
+		List<AvlReport> avlReports = createAvlReports(trips, tripsForReports);
+		System.out.println("Using " + trips.size() + " trips with "
+				+ avlReports.size() + " AVL reports and " + iterations
+				+ " iterations");
+
+		// Warm up each approach and then measure it
+		List<List<SpatialMatch>> originalResults = null;
+		List<List<SpatialMatch>> kernelResults = null;
+		for (int pass = 0; pass < 2; ++pass) {
+			System.out.println(pass == 0 ? "Warm up:" : "Results:");
+			originalResults =
+					run(avlReports, tripsForReports, iterations, false);
+			kernelResults = run(avlReports, tripsForReports, iterations, true);
+		}
+
+		int differences = 0;
+		for (int i = 0; i < avlReports.size(); ++i) {
+			if (!sameMatches(originalResults.get(i), kernelResults.get(i))) {
+				if (differences++ < 10)
+					System.out.println("ERROR: matches differ for "
+							+ avlReports.get(i) + " original="
+							+ originalResults.get(i) + " kernel="
+							+ kernelResults.get(i));
+			}
+		}
+		if (differences > 0)
+			System.out.println("ERROR: matches differ for " + differences
+					+ " of " + avlReports.size() + " AVL reports");
+
+		System.exit(0);
+	}
+}
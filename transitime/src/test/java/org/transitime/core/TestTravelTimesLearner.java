@@ -0,0 +1,303 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.transitime.core.TravelTimesLearner.DecayedStats;
+import org.transitime.core.TravelTimesLearner.LearnedTripTimes;
+import org.transitime.core.TravelTimesLearner.PatternStats;
+import org.transitime.core.TravelTimesLearner.PublishedStats;
+
+/**
+ * Tests the statistics of the TravelTimesLearner: the decay and blending,
+ * rejecting outliers, the time of day buckets, that the published times are
+ * consistent, and that the snapshot file can be read back in.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestTravelTimesLearner extends TestCase {
+
+	private static final double HALF_LIFE_MINS = 60.0;
+
+	// The default number of time of day buckets, one per hour
+	private static final int NUMBER_BUCKETS = 24;
+
+	// Arbitrary time, in epoch minutes
+	private static final long NOW_MINS = 24000000;
+
+	private static final int NUMBER_STOP_PATHS = 6;
+
+	private static final int[] HISTORIC_TRAVEL_TIMES_MSEC =
+		{0, 120000, 90000, 180000, 60000, 240000};
+	private static final int[] HISTORIC_STOP_TIMES_MSEC =
+		{0, 20000, 0, 30000, 10000, 0};
+
+	private File directory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = Files.createTempDirectory("travelTimesLearner").toFile();
+	}
+
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Adds travel and stop time samples for some of the stop paths of the
+	 * trip pattern in the specified bucket.
+	 */
+	private static void addSamples(PatternStats stats, int bucket) {
+		stats.addTravelTime(1, bucket, 150000, NOW_MINS - 120,
+				HALF_LIFE_MINS);
+		stats.addTravelTime(1, bucket, 160000, NOW_MINS - 60,
+				HALF_LIFE_MINS);
+		stats.addTravelTime(3, bucket, 200000, NOW_MINS, HALF_LIFE_MINS);
+		stats.addStopTime(3, bucket, 45000, NOW_MINS - 30, HALF_LIFE_MINS);
+		stats.addTravelTime(5, bucket, 200000, NOW_MINS - 10,
+				HALF_LIFE_MINS);
+	}
+
+	private static LearnedTripTimes learnedTripTimes(PatternStats stats,
+			int bucket, double priorWeight) {
+		return new LearnedTripTimes(null, HISTORIC_TRAVEL_TIMES_MSEC,
+				HISTORIC_STOP_TIMES_MSEC, stats.getPublished(), bucket,
+				priorWeight);
+	}
+
+	public void testWeightHalvesEachHalfLife() {
+		DecayedStats stats = new DecayedStats(1);
+		assertEquals(0.0, stats.getWeight(0, NOW_MINS, HALF_LIFE_MINS));
+
+		stats.add(0, 1000, NOW_MINS, HALF_LIFE_MINS);
+		assertEquals(1.0, stats.getWeight(0, NOW_MINS, HALF_LIFE_MINS), 1e-6);
+		assertEquals(0.5, stats.getWeight(0, NOW_MINS + 60, HALF_LIFE_MINS),
+				1e-6);
+		assertEquals(0.25, stats.getWeight(0, NOW_MINS + 120,
+				HALF_LIFE_MINS), 1e-6);
+	}
+
+	/**
+	 * The mean should be weighted by how much each sample has decayed.
+	 */
+	public void testDecayedMean() {
+		DecayedStats stats = new DecayedStats(1);
+		stats.add(0, 1000, NOW_MINS, HALF_LIFE_MINS);
+		stats.add(0, 2000, NOW_MINS + 60, HALF_LIFE_MINS);
+
+		// First sample has weight 0.5 and second one weight 1.0
+		assertEquals(1.5, stats.getWeight(0, NOW_MINS + 60, HALF_LIFE_MINS),
+				1e-6);
+		double expectedMean = (1000 * 0.5 + 2000 * 1.0) / 1.5;
+		assertEquals((int) Math.round(expectedMean),
+				stats.blend(0, 0, 0.0));
+	}
+
+	public void testBlendWithHistoric() {
+		DecayedStats stats = new DecayedStats(2);
+		stats.add(0, 2000, NOW_MINS, HALF_LIFE_MINS);
+
+		// Historic value counts as 3 samples
+		assertEquals(1250, stats.blend(0, 1000, 3.0));
+
+		// Without any samples the historic value is used
+		assertEquals(1000, stats.blend(1, 1000, 3.0));
+	}
+
+	public void testOutlierRejection() {
+		// Default factor is 3 with a minimum limit of a minute
+		assertFalse(TravelTimesLearner.reasonable(-1, 100000));
+		assertTrue(TravelTimesLearner.reasonable(300000, 100000));
+		assertFalse(TravelTimesLearner.reasonable(300001, 100000));
+		assertTrue(TravelTimesLearner.reasonable(0, 100000));
+
+		assertTrue(TravelTimesLearner.reasonable(140000, 600000));
+		assertFalse(TravelTimesLearner.reasonable(139999, 600000));
+
+		// Expected stop times are often 0 so then limit is a minute
+		assertTrue(TravelTimesLearner.reasonable(60000, 0));
+		assertFalse(TravelTimesLearner.reasonable(60001, 0));
+	}
+
+	public void testBucketSelection() {
+		assertEquals(0, TravelTimesLearner.getBucket(null, NUMBER_BUCKETS));
+		assertEquals(0, TravelTimesLearner.getBucket(0, NUMBER_BUCKETS));
+		assertEquals(0, TravelTimesLearner.getBucket(3599, NUMBER_BUCKETS));
+		assertEquals(1, TravelTimesLearner.getBucket(3600, NUMBER_BUCKETS));
+		assertEquals(23, TravelTimesLearner.getBucket(86399, NUMBER_BUCKETS));
+
+		// Trips that start after midnight use the time of day
+		assertEquals(2, TravelTimesLearner.getBucket(86400 + 7200,
+				NUMBER_BUCKETS));
+		assertEquals(23, TravelTimesLearner.getBucket(-3600,
+				NUMBER_BUCKETS));
+
+		// Limited to the number of buckets
+		assertEquals(4, TravelTimesLearner.getBucket(86399, 5));
+	}
+
+	/**
+	 * The published times for a range of stop paths, which are determined
+	 * from the cumulative times, need to be the same as summing the blended
+	 * times of each of the stop paths.
+	 */
+	public void testPublishedTimesConsistentWithPerPathSums() {
+		TravelTimesLearner learner = new TravelTimesLearner();
+		PatternStats stats =
+				learner.getStats("pattern", NUMBER_STOP_PATHS, true);
+		int bucket = 7;
+		addSamples(stats, bucket);
+		assertNull(stats.getPublished());
+		learner.publish(NOW_MINS);
+
+		double priorWeight = 5.0;
+		LearnedTripTimes learned = learnedTripTimes(stats, bucket,
+				priorWeight);
+
+		// Stop path 3 has a single travel time sample of the current time
+		assertEquals((int) Math.round((200000 + 180000 * priorWeight)
+				/ (1.0 + priorWeight)), learned.getTravelTimeMsec(3));
+		// Stop path 2 doesn't have any samples
+		assertEquals(HISTORIC_TRAVEL_TIMES_MSEC[2],
+				learned.getTravelTimeMsec(2));
+		assertEquals(HISTORIC_STOP_TIMES_MSEC[4], learned.getStopTimeMsec(4));
+		assertTrue(learned.getStopTimeMsec(3) > HISTORIC_STOP_TIMES_MSEC[3]);
+
+		for (int from = 0; from <= NUMBER_STOP_PATHS; ++from) {
+			for (int to = from; to <= NUMBER_STOP_PATHS; ++to) {
+				int sum = 0;
+				for (int i = from; i < to; ++i)
+					sum += learned.getTravelTimeMsec(i)
+							+ learned.getStopTimeMsec(i);
+				assertEquals("from=" + from + " to=" + to, sum,
+						learned.getTravelAndStopTimesMsec(from, to));
+			}
+		}
+
+		// Other time of day buckets just use the historic times
+		LearnedTripTimes otherBucket = learnedTripTimes(stats, bucket + 1,
+				priorWeight);
+		for (int i = 0; i < NUMBER_STOP_PATHS; ++i) {
+			assertEquals(HISTORIC_TRAVEL_TIMES_MSEC[i],
+					otherBucket.getTravelTimeMsec(i));
+			assertEquals(HISTORIC_STOP_TIMES_MSEC[i],
+					otherBucket.getStopTimeMsec(i));
+		}
+	}
+
+	/**
+	 * Trip patterns without new samples should only be published again once
+	 * the published copy is old.
+	 */
+	public void testPublishSkipsUnchangedPatterns() {
+		TravelTimesLearner learner = new TravelTimesLearner();
+		PatternStats stats =
+				learner.getStats("pattern", NUMBER_STOP_PATHS, true);
+		learner.publish(NOW_MINS);
+		PublishedStats published = stats.getPublished();
+		assertNotNull(published);
+
+		learner.publish(NOW_MINS + 1);
+		assertSame(published, stats.getPublished());
+
+		stats.addTravelTime(1, 0, 100000, NOW_MINS + 2, HALF_LIFE_MINS);
+		learner.publish(NOW_MINS + 2);
+		assertNotSame(published, stats.getPublished());
+		published = stats.getPublished();
+
+		learner.publish(NOW_MINS + 3);
+		assertSame(published, stats.getPublished());
+		learner.publish(NOW_MINS + 2 + 60);
+		assertNotSame(published, stats.getPublished());
+	}
+
+	public void testSnapshotRoundTrip() {
+		TravelTimesLearner learner = new TravelTimesLearner();
+		int bucket = 17;
+		addSamples(learner.getStats("a", NUMBER_STOP_PATHS, true), bucket);
+		addSamples(learner.getStats("b", NUMBER_STOP_PATHS, true), bucket);
+		File file = new File(directory, "snapshot.bin");
+		learner.writeSnapshot(file);
+		assertTrue(file.exists());
+
+		TravelTimesLearner recovered = new TravelTimesLearner();
+		recovered.readSnapshot(file);
+		PatternStats stats = learner.getStats("a", NUMBER_STOP_PATHS, false);
+		PatternStats recoveredStats =
+				recovered.getStats("a", NUMBER_STOP_PATHS, false);
+		assertNotNull(recoveredStats);
+
+		learner.publish(NOW_MINS);
+		recovered.publish(NOW_MINS);
+		LearnedTripTimes learned = learnedTripTimes(stats, bucket, 5.0);
+		LearnedTripTimes recoveredLearned =
+				learnedTripTimes(recoveredStats, bucket, 5.0);
+		for (int i = 0; i < NUMBER_STOP_PATHS; ++i) {
+			assertEquals(learned.getTravelTimeMsec(i),
+					recoveredLearned.getTravelTimeMsec(i));
+			assertEquals(learned.getStopTimeMsec(i),
+					recoveredLearned.getStopTimeMsec(i));
+		}
+		assertEquals(learned.getTravelAndStopTimesMsec(0, NUMBER_STOP_PATHS),
+				recoveredLearned.getTravelAndStopTimesMsec(0,
+						NUMBER_STOP_PATHS));
+	}
+
+	/**
+	 * If the trip pattern now has a different number of stop paths than
+	 * when the snapshot was written then the statistics for it are not used.
+	 */
+	public void testSnapshotStopCountMismatch() {
+		TravelTimesLearner learner = new TravelTimesLearner();
+		addSamples(learner.getStats("b", NUMBER_STOP_PATHS, true), 3);
+		File file = new File(directory, "snapshot.bin");
+		learner.writeSnapshot(file);
+
+		TravelTimesLearner recovered = new TravelTimesLearner();
+		recovered.readSnapshot(file);
+		assertNull(recovered.getStats("b", NUMBER_STOP_PATHS + 1, false));
+
+		// Creating them replaces the old ones with empty statistics
+		PatternStats stats =
+				recovered.getStats("b", NUMBER_STOP_PATHS + 1, true);
+		assertNotNull(stats);
+		assertSame(stats,
+				recovered.getStats("b", NUMBER_STOP_PATHS + 1, false));
+		assertNull(recovered.getStats("b", NUMBER_STOP_PATHS, false));
+		recovered.publish(NOW_MINS);
+		LearnedTripTimes learned = learnedTripTimes(stats, 3, 5.0);
+		for (int i = 0; i < NUMBER_STOP_PATHS; ++i)
+			assertEquals(HISTORIC_TRAVEL_TIMES_MSEC[i],
+					learned.getTravelTimeMsec(i));
+	}
+
+	public void testMissingSnapshotIsIgnored() {
+		TravelTimesLearner learner = new TravelTimesLearner();
+		learner.readSnapshot(new File(directory, "doesNotExist.bin"));
+		assertNull(learner.getStats("a", NUMBER_STOP_PATHS, false));
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.transitime.applications.Core;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+
+/**
+ * For comparing TravelTimes.expectedTravelTimeBetweenMatches(), which uses
+ * the cumulative travel times of the trip for the stop paths between the
+ * matches, with iterating over those stop paths one at a time. Uses the configuration of the agency,
+ * so the usual transitime.core.agencyId and database properties need to be
+ * set. The longest trips are used and, like
+ * TemporalMatcher.determineHowFarOffScheduledTime() does, the travel time is
+ * determined from the beginning of the trip to each of its stop paths.
+ * <p>
+ * Also verifies that both ways return the same travel times.
+ * <p>
+ * Command line args are: numberOfTrips iterations
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TravelTimesBenchmark {
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Determines the travel time between the matches by iterating over the
+	 * stop paths between them, which is what
+	 * TravelTimes.expectedTravelTimeBetweenMatches() did before it used the
+	 * cumulative travel times. Only handles match2 being on a later stop
+	 * path of the same trip as match1, which is all that the benchmark uses.
+	 *
+	 * @param timeOfDaySecs
+	 * @param match1
+	 * @param match2
+	 * @return travel time in msec between matches
+	 */
+	private static int iteratingTravelTimeBetweenMatches(int timeOfDaySecs,
+			SpatialMatch match1, SpatialMatch match2) {
+		TravelTimes travelTimes = TravelTimes.getInstance();
+		Indices indices = match1.getIndices();
+		Indices endIndices = match2.getIndices();
+
+		// The first partial stop path plus its stop time
+		int travelTimeMsec =
+				travelTimes.expectedTravelTimeFromMatchToEndOfStopPath(match1);
+		travelTimeMsec += indices.getStopTimeForPath();
+		if (indices.isWaitStop())
+			travelTimeMsec = TravelTimes.adjustTravelTimeForWaitStop(
+					timeOfDaySecs, travelTimeMsec, indices);
+
+		// The intermediate stop paths
+		indices.incrementStopPath(timeOfDaySecs);
+		while (indices.isEarlierStopPathThan(endIndices)) {
+			travelTimeMsec += travelTimes.expectedTravelTimeForStopPath(indices);
+			travelTimeMsec += indices.getStopTimeForPath();
+			if (indices.isWaitStop())
+				travelTimeMsec = TravelTimes.adjustTravelTimeForWaitStop(
+						timeOfDaySecs, travelTimeMsec, indices);
+			indices.incrementStopPath(timeOfDaySecs);
+		}
+
+		// The last partial stop path
+		travelTimeMsec += travelTimes
+				.expectedTravelTimeFromBeginningOfStopPathToMatch(match2);
+		return travelTimeMsec;
+	}
+
+	/**
+	 * Determines the travel time from the beginning of each trip to every
+	 * stop path of the trip.
+	 *
+	 * @param trips
+	 * @param useCumulativeTimes
+	 *            If true then TravelTimes.expectedTravelTimeBetweenMatches()
+	 *            is used. Otherwise the stop paths are iterated over.
+	 * @return sum of all the travel times, for verification
+	 */
+	private static long travelTimesFromBeginningOfTrips(List<Trip> trips,
+			boolean useCumulativeTimes) {
+		TravelTimes travelTimes = TravelTimes.getInstance();
+		long sum = 0;
+		for (Trip trip : trips) {
+			Block block = trip.getBlock();
+			int tripIndex = trip.getIndexInBlock();
+			int tripStartTimeSecs = trip.getStartTime();
+			SpatialMatch beginningOfTrip =
+					new SpatialMatch(0, block, tripIndex, 0, 0, 0.0, 0.0);
+			for (int stopPathIndex = 1;
+					stopPathIndex < trip.getNumberStopPaths();
+					++stopPathIndex) {
+				SpatialMatch match = new SpatialMatch(0, block, tripIndex,
+						stopPathIndex, 0, 0.0, 0.0);
+				if (useCumulativeTimes)
+					sum += travelTimes.expectedTravelTimeBetweenMatches(
+							"benchmark", tripStartTimeSecs, beginningOfTrip,
+							match);
+				else
+					sum += iteratingTravelTimeBetweenMatches(
+							tripStartTimeSecs, beginningOfTrip, match);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Runs the specified number of iterations and outputs the time per call
+	 *
+	 * @return sum of the travel times, for verification
+	 */
+	private static long run(List<Trip> trips, int iterations,
+			boolean useCumulativeTimes, int callsPerIteration) {
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; ++i)
+			sum = travelTimesFromBeginningOfTrips(trips, useCumulativeTimes);
+		long elapsedNanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%-22s %8.3f usec per call",
+				useCumulativeTimes ? "Cumulative times:" : "Iterating:",
+				elapsedNanos / 1000.0 / iterations / callsPerIteration));
+		return sum;
+	}
+
+	/**
+	 * @param args
+	 *            numberOfTrips iterations
+	 */
+	public static void main(String[] args) {
+		int numberOfTrips = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		// Use the trips with the most stop paths
+		List<Trip> trips = new ArrayList<Trip>();
+		for (Trip trip : Core.getInstance().getDbConfig().getTrips().values()) {
+			if (!trip.isNoSchedule() && trip.getTravelTimes() != null)
+				trips.add(trip);
+		}
+		Collections.sort(trips, new Comparator<Trip>() {
+			@Override
+			public int compare(Trip t1, Trip t2) {
+				return t2.getNumberStopPaths() - t1.getNumberStopPaths();
+			}
+		});
+		if (trips.size() > numberOfTrips)
+			trips = trips.subList(0, numberOfTrips);
+
+		int callsPerIteration = 0;
+		for (Trip trip : trips)
+			callsPerIteration += trip.getNumberStopPaths() - 1;
+		System.out.println("Using " + trips.size() + " trips with "
+				+ callsPerIteration + " stop paths and " + iterations
+				+ " iterations");
+
+		// Warm up each approach and then measure it
+		long iteratingSum = 0;
+		long cumulativeSum = 0;
+		for (int pass = 0; pass < 2; ++pass) {
+			System.out.println(pass == 0 ? "Warm up:" : "Results:");
+			iteratingSum = run(trips, iterations, false, callsPerIteration);
+			cumulativeSum = run(trips, iterations, true, callsPerIteration);
+		}
+
+		if (iteratingSum != cumulativeSum)
+			System.out.println("ERROR: travel times differ. Iterating sum="
+					+ iteratingSum + " but cumulative sum=" + cumulativeSum);
+
+		System.exit(0);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.autoAssigner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.transitime.utils.Time;
+
+/**
+ * Tests the checks that AvlProcessor.applyAutoAssignment() does before
+ * applying an assignment from a batch pass: that an exclusive block is
+ * still unassigned and that the vehicle isn't being auto assigned too
+ * frequently.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestAutoBlockAssigner extends TestCase {
+
+	// Arbitrary GPS time
+	private static final long GPS_TIME = 1400000000000L;
+
+	/**
+	 * The default transitime.autoBlockAssigner.minTimeBetweenAutoAssigningSecs
+	 * is 30 seconds.
+	 */
+	public void testTooRecent() {
+		String vehicleId = "tooRecentVehicle";
+		assertFalse("First time for vehicle is never too recent",
+				AutoBlockAssigner.tooRecent(vehicleId, GPS_TIME));
+		assertTrue(AutoBlockAssigner.tooRecent(vehicleId,
+				GPS_TIME + 10 * Time.MS_PER_SEC));
+		assertTrue(AutoBlockAssigner.tooRecent(vehicleId,
+				GPS_TIME + 29 * Time.MS_PER_SEC));
+		assertFalse(AutoBlockAssigner.tooRecent(vehicleId,
+				GPS_TIME + 30 * Time.MS_PER_SEC));
+
+		// The time when not too recent is what the next call is compared to
+		assertTrue(AutoBlockAssigner.tooRecent(vehicleId,
+				GPS_TIME + 40 * Time.MS_PER_SEC));
+		assertFalse(AutoBlockAssigner.tooRecent(vehicleId,
+				GPS_TIME + 60 * Time.MS_PER_SEC));
+	}
+
+	public void testTooRecentIsPerVehicle() {
+		assertFalse(AutoBlockAssigner.tooRecent("perVehicle1", GPS_TIME));
+		assertFalse(AutoBlockAssigner.tooRecent("perVehicle2",
+				GPS_TIME + Time.MS_PER_SEC));
+		assertTrue(AutoBlockAssigner.tooRecent("perVehicle1",
+				GPS_TIME + 2 * Time.MS_PER_SEC));
+	}
+
+	public void testBlockWithoutVehiclesIsUnassigned() {
+		assertTrue(AutoBlockAssigner.isBlockUnassigned(
+				Collections.<String> emptyList(), "vehicle1"));
+		assertTrue(AutoBlockAssigner.isBlockUnassigned(
+				Collections.<String> emptyList(), null));
+	}
+
+	/**
+	 * When applying an assignment the vehicle being assigned doesn't count
+	 * but any other regular vehicle means the block was assigned in the
+	 * meantime.
+	 */
+	public void testOtherVehicleMeansBlockIsAssigned() {
+		assertTrue(AutoBlockAssigner.isBlockUnassigned(
+				Arrays.asList("vehicle1"), "vehicle1"));
+		assertFalse(AutoBlockAssigner.isBlockUnassigned(
+				Arrays.asList("vehicle2"), "vehicle1"));
+		assertFalse(AutoBlockAssigner.isBlockUnassigned(
+				Arrays.asList("vehicle1", "vehicle2"), "vehicle1"));
+		assertFalse(AutoBlockAssigner.isBlockUnassigned(
+				Arrays.asList("vehicle1"), null));
+	}
+}
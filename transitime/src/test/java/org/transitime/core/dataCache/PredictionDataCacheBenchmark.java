@@ -0,0 +1,354 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.transitime.applications.Core;
+import org.transitime.core.PredictionGeneratorDefaultImpl;
+import org.transitime.db.structs.AvlReport;
+import org.transitime.db.structs.Trip;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPrediction.ArrivalOrDeparture;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.utils.MapKey;
+import org.transitime.utils.Time;
+
+/**
+ * For comparing reading predictions from the immutable snapshots of
+ * PredictionDataCache with the previous way of cloning the predictions on
+ * every read. Uses the configuration of the agency, so the usual
+ * transitime.core.agencyId and database properties need to be set. Synthetic
+ * predictions are generated for the trips of the agency and are continually
+ * updated by a writer thread while reader threads request predictions for
+ * random route/stops.
+ * <p>
+ * Reports the read throughput and the number of bytes allocated per read for
+ * each of the two approaches. Allocation is measured using
+ * com.sun.management.ThreadMXBean and therefore is only available on
+ * HotSpot based JVMs.
+ * <p>
+ * Command line args are: numberOfVehicles numberOfReaderThreads secondsPerRun
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class PredictionDataCacheBenchmark {
+
+	private final int numberOfVehicles;
+	private final int numberOfReaderThreads;
+	private final int secondsPerRun;
+
+	// The synthetic trip for each vehicle
+	private final List<Trip> tripsForVehicles = new ArrayList<Trip>();
+
+	// The route/stops that predictions are read for. Each element is
+	// routeShortName and stopId.
+	private final List<String[]> routeStops = new ArrayList<String[]>();
+
+	// The most recent predictions for each vehicle
+	private final Map<String, List<IpcPrediction>> predictionsByVehicle =
+			new HashMap<String, List<IpcPrediction>>();
+
+	// For the clone on read approach. The mutable predictions for each
+	// route/stop, one IpcPredictionsForRouteStopDest per destination.
+	// This is how PredictionDataCache used to store them.
+	private final Map<MapKey, List<IpcPredictionsForRouteStopDest>>
+		clonedPredictionsMap =
+			new HashMap<MapKey, List<IpcPredictionsForRouteStopDest>>();
+
+	private volatile boolean stopWriter = false;
+
+	/********************** Member Functions **************************/
+
+	private PredictionDataCacheBenchmark(int numberOfVehicles,
+			int numberOfReaderThreads, int secondsPerRun) {
+		this.numberOfVehicles = numberOfVehicles;
+		this.numberOfReaderThreads = numberOfReaderThreads;
+		this.secondsPerRun = secondsPerRun;
+	}
+
+	/**
+	 * Picks the trips for the vehicles and the route/stops to read.
+	 */
+	private void setup() {
+		Iterator<Trip> tripIterator =
+				Core.getInstance().getDbConfig().getTrips().values().iterator();
+		while (tripsForVehicles.size() < numberOfVehicles
+				&& tripIterator.hasNext()) {
+			Trip trip = tripIterator.next();
+			tripsForVehicles.add(trip);
+			for (String stopId : trip.getTripPattern().getStopIds())
+				routeStops.add(new String[] {trip.getRouteShortName(), stopId});
+		}
+
+		System.out.println("Using " + tripsForVehicles.size() + " vehicles and "
+				+ routeStops.size() + " route/stops");
+	}
+
+	/**
+	 * Generates new predictions for the vehicle and writes them to both the
+	 * PredictionDataCache and to the map used for the clone on read approach.
+	 *
+	 * @param vehicleIndex
+	 * @param currentTime
+	 */
+	private void writePredictions(int vehicleIndex, long currentTime) {
+		String vehicleId = "v" + vehicleIndex;
+		Trip trip = tripsForVehicles.get(vehicleIndex);
+		AvlReport avlReport =
+				new AvlReport(vehicleId, currentTime, 0.0, 0.0, "Benchmark");
+		avlReport.setTimeProcessed();
+
+		// Predictions a minute apart for each stop of the trip
+		List<String> stopIds = trip.getTripPattern().getStopIds();
+		List<IpcPrediction> newPredictions = new ArrayList<IpcPrediction>();
+		for (int i = 0; i < stopIds.size(); ++i) {
+			long predictionTime = currentTime + (i + 1) * Time.MS_PER_MIN
+					+ vehicleIndex * Time.MS_PER_SEC;
+			newPredictions.add(new IpcPrediction(avlReport, stopIds.get(i), i,
+					trip, predictionTime, predictionTime,
+					i == stopIds.size() - 1, false, false, false,
+					ArrivalOrDeparture.DEPARTURE));
+		}
+
+		List<IpcPrediction> oldPredictions =
+				predictionsByVehicle.put(vehicleId, newPredictions);
+		PredictionDataCache.getInstance().updatePredictions(oldPredictions,
+				newPredictions);
+
+		// Update predictions for the clone on read approach
+		for (IpcPrediction prediction : newPredictions) {
+			List<IpcPrediction> predsForRouteStopDest =
+					new ArrayList<IpcPrediction>(1);
+			predsForRouteStopDest.add(prediction);
+			getPredictionsForRouteStopDest(prediction)
+					.updatePredictionsForVehicle(predsForRouteStopDest,
+							currentTime);
+		}
+	}
+
+	/**
+	 * For the clone on read approach. Returns the mutable predictions for the
+	 * route/stop/destination of the prediction.
+	 */
+	private IpcPredictionsForRouteStopDest getPredictionsForRouteStopDest(
+			IpcPrediction prediction) {
+		MapKey key = MapKey.create(prediction.getRouteShortName(),
+				prediction.getStopId());
+		synchronized (clonedPredictionsMap) {
+			List<IpcPredictionsForRouteStopDest> predsForRouteStop =
+					clonedPredictionsMap.get(key);
+			if (predsForRouteStop == null) {
+				predsForRouteStop = new ArrayList<IpcPredictionsForRouteStopDest>();
+				clonedPredictionsMap.put(key, predsForRouteStop);
+			}
+			for (IpcPredictionsForRouteStopDest preds : predsForRouteStop) {
+				String headsign = prediction.getTrip().getHeadsign();
+				if (preds.getHeadsign() == null 
+						|| preds.getHeadsign().equals(headsign))
+					return preds;
+			}
+			IpcPredictionsForRouteStopDest preds =
+					new IpcPredictionsForRouteStopDest(prediction.getTrip(),
+							prediction.getStopId(), Double.NaN);
+			predsForRouteStop.add(preds);
+			return preds;
+		}
+	}
+
+	/**
+	 * The clone on read approach that PredictionDataCache.getPredictions()
+	 * used to use. Expired predictions are removed from the mutable
+	 * predictions and then each destination is cloned and filtered.
+	 */
+	private List<IpcPredictionsForRouteStopDest> getPredictionsByCloning(
+			String routeShortName, String stopId, int maxPredictionsPerStop) {
+		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop;
+		synchronized (clonedPredictionsMap) {
+			predictionsForRouteStop = clonedPredictionsMap.get(
+					MapKey.create(routeShortName, stopId));
+		}
+		if (predictionsForRouteStop == null)
+			return new ArrayList<IpcPredictionsForRouteStopDest>();
+
+		long currentTime = Core.getInstance().getSystemTime();
+		for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
+			preds.removeExpiredPredictions(currentTime);
+		}
+		long maxPredictionEpochTime = currentTime
+				+ PredictionGeneratorDefaultImpl.getMaxPredictionsTimeSecs()
+				* Time.SEC_IN_MSECS;
+
+		boolean endOfTripPredFound = false;
+		boolean nonEndOfTripPredFound = false;
+		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
+			for (IpcPrediction preds : predictions.getPredictionsForRouteStop()) {
+				if (preds.isAtEndOfTrip())
+					endOfTripPredFound = true;
+				else
+					nonEndOfTripPredFound = true;
+			}
+		}
+		boolean shouldFilterOutEndOfTripPreds =
+				endOfTripPredFound && nonEndOfTripPredFound;
+
+		List<IpcPredictionsForRouteStopDest> clonedPredictions =
+				new ArrayList<IpcPredictionsForRouteStopDest>(
+						predictionsForRouteStop.size());
+		for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
+			if (shouldFilterOutEndOfTripPreds) {
+				boolean allPredsForEndOfTrip = true;
+				for (IpcPrediction preds : predictions
+						.getPredictionsForRouteStop()) {
+					if (!preds.isAtEndOfTrip())
+						allPredsForEndOfTrip = false;
+				}
+				if (allPredsForEndOfTrip)
+					continue;
+			}
+			IpcPredictionsForRouteStopDest clone = predictions.getClone(
+					maxPredictionsPerStop, maxPredictionEpochTime, Double.NaN);
+			if (!clone.getPredictionsForRouteStop().isEmpty())
+				clonedPredictions.add(clone);
+		}
+		return clonedPredictions;
+	}
+
+	/**
+	 * Continually updates the predictions for all the vehicles so that the
+	 * readers are contending with a writer, as they would be in the core.
+	 */
+	private void startWriter() {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!stopWriter) {
+					long currentTime = Core.getInstance().getSystemTime();
+					for (int i = 0; i < tripsForVehicles.size(); ++i)
+						writePredictions(i, currentTime);
+					Time.sleep(100);
+				}
+			}
+		}, "benchmarkWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Runs the reader threads for secondsPerRun and outputs the results.
+	 *
+	 * @param useSnapshots
+	 *            If true then read from PredictionDataCache. If false then use
+	 *            the clone on read approach.
+	 */
+	private void run(final boolean useSnapshots) throws InterruptedException {
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong bytesAllocated = new AtomicLong();
+		final long endTime =
+				System.currentTimeMillis() + secondsPerRun * Time.MS_PER_SEC;
+
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int t = 0; t < numberOfReaderThreads; ++t) {
+			final Random random = new Random(t);
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long startBytes = allocatedBytes();
+					long count = 0;
+					while (System.currentTimeMillis() < endTime) {
+						String[] routeStop =
+								routeStops.get(random.nextInt(routeStops.size()));
+						if (useSnapshots)
+							PredictionDataCache.getInstance().getPredictions(
+									routeStop[0], null, routeStop[1], 3);
+						else
+							getPredictionsByCloning(routeStop[0], routeStop[1],
+									3);
+						++count;
+					}
+					reads.addAndGet(count);
+					bytesAllocated.addAndGet(allocatedBytes() - startBytes);
+				}
+			}, "benchmarkReader" + t);
+			readers.add(reader);
+			reader.start();
+		}
+		for (Thread reader : readers)
+			reader.join();
+
+		System.out.println((useSnapshots ? "snapshots:      " : "clone on read:  ")
+				+ String.format("%,12d reads/sec  %,8d bytes allocated/read",
+						reads.get() / secondsPerRun,
+						bytesAllocated.get() / Math.max(reads.get(), 1)));
+	}
+
+	/**
+	 * Returns number of bytes allocated by the current thread, or 0 if that
+	 * is not supported by the JVM.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args
+	 *            numberOfVehicles numberOfReaderThreads secondsPerRun
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int numberOfVehicles = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int numberOfReaderThreads =
+				args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int secondsPerRun = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		PredictionDataCacheBenchmark benchmark =
+				new PredictionDataCacheBenchmark(numberOfVehicles,
+						numberOfReaderThreads, secondsPerRun);
+		benchmark.setup();
+
+		// Initial predictions so that there is something to read
+		long currentTime = Core.getInstance().getSystemTime();
+		for (int i = 0; i < benchmark.tripsForVehicles.size(); ++i)
+			benchmark.writePredictions(i, currentTime);
+		benchmark.startWriter();
+
+		// Warm up each approach and then measure it
+		for (int pass = 0; pass < 2; ++pass) {
+			System.out.println(pass == 0 ? "Warm up:" : "Results:");
+			benchmark.run(false);
+			benchmark.run(true);
+		}
+
+		benchmark.stopWriter = true;
+		System.exit(0);
+	}
+}
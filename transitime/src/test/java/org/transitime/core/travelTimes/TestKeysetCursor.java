@@ -0,0 +1,143 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.travelTimes;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that KeysetCursor returns every row exactly once, including when
+ * rows have the same time as the last row of a page.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestKeysetCursor extends TestCase {
+
+	/**
+	 * A cursor over rows that are simply their time. The rows are read from
+	 * a sorted list, like the database would with ORDER BY time.
+	 */
+	private static class ListCursor extends KeysetCursor<Long> {
+		private final List<Long> rows;
+		private int numberReads = 0;
+		
+		private ListCursor(List<Long> rows, long beginTime, long endTime,
+				int batchSize) {
+			super(new Date(beginTime), new Date(endTime), batchSize, "rows");
+			this.rows = rows;
+		}
+
+		@Override
+		protected List<Long> readBatch(Date beginTime, Date endTime,
+				int maxResults) {
+			++numberReads;
+			List<Long> results = new ArrayList<Long>();
+			for (Long row : rows) {
+				if (row >= beginTime.getTime() && row < endTime.getTime()
+						&& results.size() < maxResults)
+					results.add(row);
+			}
+			return results;
+		}
+
+		@Override
+		protected long getTime(Long row) {
+			return row;
+		}
+		
+		private List<Long> readAll() {
+			List<Long> results = new ArrayList<Long>();
+			Long row;
+			while ((row = next()) != null)
+				results.add(row);
+			return results;
+		}
+	}
+	
+	private static List<Long> rows(long... times) {
+		List<Long> rows = new ArrayList<Long>();
+		for (long time : times)
+			rows.add(time);
+		return rows;
+	}
+	
+	public void testDistinctTimes() {
+		List<Long> rows = rows(1, 2, 3, 4, 5, 6, 7);
+		assertEquals(rows, new ListCursor(rows, 0, 100, 3).readAll());
+	}
+	
+	public void testTiesAcrossPageBoundary() {
+		// The page of 3 ends in the middle of the rows with time 3
+		List<Long> rows = rows(1, 2, 3, 3, 3, 4, 5, 5, 6);
+		assertEquals(rows, new ListCursor(rows, 0, 100, 3).readAll());
+	}
+
+	public void testWholePageWithSameTime() {
+		// More rows with time 2 than fit into a page. All of them need to be
+		// returned, and the rows after them as well.
+		List<Long> rows = rows(1, 2, 2, 2, 2, 2, 2, 2, 3, 4);
+		assertEquals(rows, new ListCursor(rows, 0, 100, 3).readAll());
+	}
+	
+	public void testAllRowsWithSameTime() {
+		List<Long> rows = rows(5, 5, 5, 5, 5);
+		assertEquals(rows, new ListCursor(rows, 0, 100, 2).readAll());
+	}
+	
+	public void testTimeRange() {
+		// Rows outside of the time range are not returned
+		List<Long> rows = rows(1, 2, 3, 4, 5, 6);
+		assertEquals(rows(2, 3, 4, 5), 
+				new ListCursor(rows, 2, 6, 2).readAll());
+	}
+	
+	public void testEmpty() {
+		ListCursor cursor = new ListCursor(new ArrayList<Long>(), 0, 100, 3);
+		assertNull(cursor.peek());
+		assertNull(cursor.next());
+		assertEquals(1, cursor.numberReads);
+	}
+	
+	public void testPeekDoesNotConsume() {
+		ListCursor cursor = new ListCursor(rows(1, 2), 0, 100, 3);
+		assertEquals(Long.valueOf(1), cursor.peek());
+		assertEquals(Long.valueOf(1), cursor.peek());
+		assertEquals(Long.valueOf(1), cursor.next());
+		assertEquals(Long.valueOf(2), cursor.next());
+		assertNull(cursor.next());
+	}
+	
+	public void testReadFailure() {
+		ListCursor cursor = new ListCursor(rows(1), 0, 100, 3) {
+			@Override
+			protected List<Long> readBatch(Date beginTime, Date endTime,
+					int maxResults) {
+				return null;
+			}
+		};
+		try {
+			cursor.next();
+			fail("Expected exception when rows cannot be read");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.db.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the DataDbLogger journal replays records in order and resumes
+ * where it left off after a restart.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestDataDbJournal extends TestCase {
+
+	private static final int SEGMENT_SIZE = 1024;
+	
+	private File directory;
+
+	/**
+	 * For records whose class descriptor gets changed or that fail to be
+	 * read back in.
+	 */
+	private static class JournalRecord implements Serializable {
+		private final int value;
+		private final boolean failOnRead;
+		
+		private static final long serialVersionUID = 7L;
+
+		private JournalRecord(int value, boolean failOnRead) {
+			this.value = value;
+			this.failOnRead = failOnRead;
+		}
+		
+		private void readObject(ObjectInputStream in) 
+				throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			if (failOnRead)
+				throw new IllegalStateException("Failing on purpose");
+		}
+	}
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = Files.createTempDirectory("dataDbJournal").toFile();
+	}
+
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	private DataDbJournal newJournal() {
+		return new DataDbJournal(directory.getPath(), "test", SEGMENT_SIZE, 100);
+	}
+
+	private int numberOfSegmentFiles() {
+		return directory.listFiles().length;
+	}
+	
+	/**
+	 * Changes the stored class descriptor of the first JournalRecord in the
+	 * segment files as if the class had been changed since the record was
+	 * written. The descriptor is the class name followed by the 8 byte
+	 * serialVersionUID and the 4 byte field layout hash.
+	 * 
+	 * @param offsetAfterName
+	 *            0 to change the serialVersionUID, 8 to change the layout hash
+	 */
+	private void changeStoredDescriptor(int offsetAfterName) 
+			throws IOException {
+		byte[] name = JournalRecord.class.getName()
+				.getBytes(StandardCharsets.UTF_8);
+		for (File file : directory.listFiles()) {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			for (int i = 0; i + name.length < bytes.length; ++i) {
+				boolean found = true;
+				for (int j = 0; j < name.length && found; ++j)
+					found = bytes[i + j] == name[j];
+				if (found) {
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						int position = i + name.length + offsetAfterName;
+						raf.seek(position);
+						raf.write(bytes[position] ^ 0x01);
+					} finally {
+						raf.close();
+					}
+					return;
+				}
+			}
+		}
+		fail("Did not find the class name in the journal");
+	}
+	
+	/**
+	 * Appends a JournalRecord between two other records, changes its stored
+	 * descriptor, and makes sure that after a restart only it is skipped.
+	 */
+	private void checkChangedDescriptorIsSkipped(int offsetAfterName) 
+			throws IOException {
+		DataDbJournal journal = newJournal();
+		journal.append("before");
+		journal.append(new JournalRecord(1, false));
+		journal.append("after");
+		journal.flush();
+		
+		changeStoredDescriptor(offsetAfterName);
+		
+		DataDbJournal recovered = newJournal();
+		List<Object> objects = recovered.read(100);
+		assertEquals(2, objects.size());
+		assertEquals("before", objects.get(0));
+		assertEquals("after", objects.get(1));
+		assertTrue(recovered.isEmpty());
+	}
+	
+	public void testReadsInOrderAcrossSegments() {
+		DataDbJournal journal = newJournal();
+		for (int i = 0; i < 200; ++i)
+			assertTrue(journal.append("record" + i));
+		assertEquals(200, journal.size());
+		assertTrue("Should have rolled over to several segments", 
+				numberOfSegmentFiles() > 1);
+		
+		List<Object> objects = journal.read(1000);
+		assertEquals(200, objects.size());
+		for (int i = 0; i < 200; ++i)
+			assertEquals("record" + i, objects.get(i));
+		assertTrue(journal.isEmpty());
+		assertEquals("Read segments should be deleted", 0, 
+				numberOfSegmentFiles());
+	}
+
+	public void testRecoveryReplaysUnreadRecords() {
+		DataDbJournal journal = newJournal();
+		for (int i = 0; i < 10; ++i)
+			journal.append(Integer.valueOf(i));
+		journal.flush();
+
+		// Restart without reading anything
+		DataDbJournal recovered = newJournal();
+		assertEquals(10, recovered.size());
+		List<Object> objects = recovered.read(100);
+		assertEquals(10, objects.size());
+		for (int i = 0; i < 10; ++i)
+			assertEquals(Integer.valueOf(i), objects.get(i));
+	}
+
+	/**
+	 * Records that were read before a restart were already handed to the
+	 * writer threads, so they must not be replayed again.
+	 */
+	public void testRecoveryResumesAtReadPosition() {
+		DataDbJournal journal = newJournal();
+		for (int i = 0; i < 10; ++i)
+			journal.append(Integer.valueOf(i));
+		List<Object> firstRead = journal.read(4);
+		assertEquals(4, firstRead.size());
+
+		DataDbJournal recovered = newJournal();
+		assertEquals(6, recovered.size());
+		List<Object> objects = recovered.read(100);
+		assertEquals(6, objects.size());
+		assertEquals(Integer.valueOf(4), objects.get(0));
+		assertEquals(Integer.valueOf(9), objects.get(5));
+		assertTrue(recovered.isEmpty());
+	}
+
+	public void testAppendAfterRecoveryGoesToNewSegment() {
+		DataDbJournal journal = newJournal();
+		journal.append("a");
+		journal.append("b");
+		journal.read(1);
+
+		DataDbJournal recovered = newJournal();
+		recovered.append("c");
+		assertEquals(2, recovered.size());
+		List<Object> objects = recovered.read(100);
+		assertEquals(2, objects.size());
+		assertEquals("b", objects.get(0));
+		assertEquals("c", objects.get(1));
+	}
+
+	public void testRecordReplaysWithUnchangedDescriptor() {
+		DataDbJournal journal = newJournal();
+		journal.append(new JournalRecord(42, false));
+		journal.flush();
+		
+		List<Object> objects = newJournal().read(100);
+		assertEquals(1, objects.size());
+		assertEquals(42, ((JournalRecord) objects.get(0)).value);
+	}
+	
+	public void testChangedSerialVersionUIDIsSkipped() throws IOException {
+		checkChangedDescriptorIsSkipped(0);
+	}
+
+	public void testChangedFieldLayoutIsSkipped() throws IOException {
+		checkChangedDescriptorIsSkipped(8);
+	}
+	
+	/**
+	 * A RuntimeException from reading a record must not stop the records
+	 * after it from being replayed.
+	 */
+	public void testRuntimeExceptionWhileReadingIsSkipped() {
+		DataDbJournal journal = newJournal();
+		journal.append(new JournalRecord(1, true));
+		journal.append(new JournalRecord(2, false));
+		
+		List<Object> objects = journal.read(100);
+		assertEquals(1, objects.size());
+		assertEquals(2, ((JournalRecord) objects.get(0)).value);
+		assertTrue(journal.isEmpty());
+	}
+	
+	public void testUnserializableObjectIsRejected() {
+		DataDbJournal journal = newJournal();
+		assertFalse(journal.append(new Object()));
+		assertTrue(journal.isEmpty());
+	}
+
+	public void testTooLargeObjectIsRejected() {
+		DataDbJournal journal = newJournal();
+		assertFalse(journal.append(new byte[SEGMENT_SIZE]));
+		assertTrue(journal.isEmpty());
+	}
+}
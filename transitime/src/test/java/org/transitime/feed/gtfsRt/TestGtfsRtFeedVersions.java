@@ -0,0 +1,166 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.feed.gtfsRt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Tests the DIFFERENTIAL feeds created by GtfsRtFeedVersions.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestGtfsRtFeedVersions extends TestCase {
+
+	private static final int MAX_HISTORY = 3;
+	
+	/********************** Member Functions **************************/
+
+	private static FeedEntity entity(String id) {
+		return FeedEntity.newBuilder().setId(id).build();
+	}
+	
+	private static FeedMessage message(FeedEntity... entities) {
+		FeedMessage.Builder message = FeedMessage.newBuilder()
+				.setHeader(FeedHeader.newBuilder()
+						.setGtfsRealtimeVersion("1.0"));
+		for (FeedEntity entity : entities)
+			message.addEntity(entity);
+		return message.build();
+	}
+	
+	/**
+	 * Decodes the delta and returns its entities keyed by ID
+	 */
+	private static Map<String, FeedEntity> entities(IpcGtfsRtFeedDelta delta)
+			throws InvalidProtocolBufferException {
+		Map<String, FeedEntity> entities = new HashMap<String, FeedEntity>();
+		for (FeedEntity entity : 
+				FeedMessage.parseFrom(delta.getBytes()).getEntityList())
+			entities.put(entity.getId(), entity);
+		return entities;
+	}
+	
+	private static Incrementality incrementality(IpcGtfsRtFeedDelta delta)
+			throws InvalidProtocolBufferException {
+		return FeedMessage.parseFrom(delta.getBytes()).getHeader()
+				.getIncrementality();
+	}
+	
+	public void testFirstPassIsFullDataset() throws Exception {
+		GtfsRtFeedVersions versions = GtfsRtFeedVersions.next(null,
+				message(entity("a"), entity("b")), MAX_HISTORY);
+
+		IpcGtfsRtFeedDelta delta = versions.getDelta(0);
+		assertTrue(delta.isFullDataset());
+		assertEquals(Incrementality.FULL_DATASET, incrementality(delta));
+		assertEquals(versions.getSequence(), delta.getSequence());
+		assertEquals(2, entities(delta).size());
+	}
+	
+	public void testOnlyChangedAndDeletedEntities() throws Exception {
+		FeedEntity a = entity("a");
+		FeedEntity b = entity("b");
+		FeedEntity c = entity("c");
+		GtfsRtFeedVersions first = 
+				GtfsRtFeedVersions.next(null, message(a, b, c), MAX_HISTORY);
+		
+		// a is unchanged, b is a new object so changed, c is deleted and
+		// d is new
+		GtfsRtFeedVersions second = GtfsRtFeedVersions.next(first,
+				message(a, entity("b"), entity("d")), MAX_HISTORY);
+		assertEquals(first.getSequence() + 1, second.getSequence());
+
+		IpcGtfsRtFeedDelta delta = second.getDelta(first.getSequence());
+		assertFalse(delta.isFullDataset());
+		assertEquals(Incrementality.DIFFERENTIAL, incrementality(delta));
+		assertEquals(second.getSequence(), delta.getSequence());
+		
+		Map<String, FeedEntity> entities = entities(delta);
+		assertEquals(3, entities.size());
+		assertFalse(entities.containsKey("a"));
+		assertFalse(entities.get("b").getIsDeleted());
+		assertTrue(entities.get("c").getIsDeleted());
+		assertFalse(entities.get("d").getIsDeleted());
+		
+		// Nothing has changed since the current sequence
+		assertTrue(entities(second.getDelta(second.getSequence())).isEmpty());
+	}
+	
+	public void testReaddedEntityIsNotDeleted() throws Exception {
+		FeedEntity a = entity("a");
+		GtfsRtFeedVersions first = 
+				GtfsRtFeedVersions.next(null, message(a), MAX_HISTORY);
+		GtfsRtFeedVersions second = 
+				GtfsRtFeedVersions.next(first, message(), MAX_HISTORY);
+		GtfsRtFeedVersions third = 
+				GtfsRtFeedVersions.next(second, message(a), MAX_HISTORY);
+
+		Map<String, FeedEntity> entities = 
+				entities(third.getDelta(first.getSequence()));
+		assertEquals(1, entities.size());
+		assertFalse(entities.get("a").getIsDeleted());
+	}
+	
+	public void testOldSequenceGetsFullDataset() throws Exception {
+		FeedEntity a = entity("a");
+		GtfsRtFeedVersions first = 
+				GtfsRtFeedVersions.next(null, message(a, entity("b")), 
+						MAX_HISTORY);
+		GtfsRtFeedVersions versions = first;
+		for (int i = 0; i < MAX_HISTORY + 1; ++i)
+			versions = GtfsRtFeedVersions.next(versions, message(a), 
+					MAX_HISTORY);
+
+		// The deletion of b has been purged so changes since the first
+		// pass are no longer available
+		IpcGtfsRtFeedDelta delta = versions.getDelta(first.getSequence());
+		assertTrue(delta.isFullDataset());
+		Map<String, FeedEntity> entities = entities(delta);
+		assertEquals(1, entities.size());
+		assertTrue(entities.containsKey("a"));
+
+		// A sequence from the future, such as from before a restart, also
+		// gets the full dataset
+		assertTrue(versions.getDelta(versions.getSequence() + 1)
+				.isFullDataset());
+	}
+	
+	public void testDeltasAreCached() {
+		GtfsRtFeedVersions first = GtfsRtFeedVersions.next(null,
+				message(entity("a")), MAX_HISTORY);
+		GtfsRtFeedVersions second = GtfsRtFeedVersions.next(first,
+				message(entity("a")), MAX_HISTORY);
+		
+		assertSame(second.getDelta(first.getSequence()),
+				second.getDelta(first.getSequence()));
+		// All requests for the full dataset share the same delta
+		assertSame(second.getDelta(0), second.getDelta(-5));
+	}
+	
+}
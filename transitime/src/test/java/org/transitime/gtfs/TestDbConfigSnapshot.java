@@ -0,0 +1,121 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Calendar;
+import org.transitime.db.structs.CalendarDate;
+import org.transitime.db.structs.FareAttribute;
+import org.transitime.db.structs.FareRule;
+import org.transitime.db.structs.Frequency;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.Stop;
+import org.transitime.db.structs.Transfer;
+import org.transitime.db.structs.Trip;
+import org.transitime.db.structs.TripPattern;
+
+/**
+ * Tests that a config snapshot is only used for the configRev and
+ * travelTimesRev that it was written for.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestDbConfigSnapshot extends TestCase {
+
+	private static final String AGENCY_ID = "test";
+	
+	private File directory;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = Files.createTempDirectory("configSnapshot").toFile();
+	}
+
+	protected void tearDown() throws Exception {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+		super.tearDown();
+	}
+
+	private static DbConfigSnapshot emptySnapshot() {
+		return new DbConfigSnapshot(new ArrayList<Block>(),
+				new ArrayList<Route>(), new ArrayList<TripPattern>(),
+				new ArrayList<Trip>(), new ArrayList<Stop>(),
+				new ArrayList<Agency>(), new ArrayList<Calendar>(),
+				new ArrayList<CalendarDate>(), new ArrayList<FareAttribute>(),
+				new ArrayList<FareRule>(), new ArrayList<Frequency>(),
+				new ArrayList<Transfer>());
+	}
+
+	public void testReadForSameRevisions() {
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 7);
+		DbConfigSnapshot snapshot = 
+				DbConfigSnapshot.read(directory.getPath(), AGENCY_ID, 3, 7);
+		assertNotNull(snapshot);
+		assertTrue(snapshot.getBlocks().isEmpty());
+	}
+
+	public void testNotReadForDifferentConfigRev() {
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 7);
+		assertNull(DbConfigSnapshot.read(directory.getPath(), AGENCY_ID, 4, 7));
+	}
+
+	/**
+	 * UpdateTravelTimes changes the travel times of the trips without
+	 * changing the configRev, so a new travelTimesRev must invalidate the
+	 * snapshot.
+	 */
+	public void testNotReadForDifferentTravelTimesRev() {
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 7);
+		assertNull(DbConfigSnapshot.read(directory.getPath(), AGENCY_ID, 3, 8));
+	}
+
+	/**
+	 * Even if a file has the expected name the header must match
+	 */
+	public void testHeaderMismatchIsRejected() throws Exception {
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 7);
+		File written = DbConfigSnapshot.getFile(directory.getPath(),
+				AGENCY_ID, 3, 7);
+		File renamed = DbConfigSnapshot.getFile(directory.getPath(), 
+				AGENCY_ID, 3, 8);
+		assertTrue(written.renameTo(renamed));
+		
+		assertNull(DbConfigSnapshot.read(directory.getPath(), AGENCY_ID, 3, 8));
+	}
+
+	public void testWritingNewRevisionDeletesOldSnapshot() {
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 7);
+		emptySnapshot().write(directory.getPath(), AGENCY_ID, 3, 8);
+		
+		assertFalse(DbConfigSnapshot.getFile(directory.getPath(), AGENCY_ID,
+				3, 7).exists());
+		assertNotNull(
+				DbConfigSnapshot.read(directory.getPath(), AGENCY_ID, 3, 8));
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.gtfs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.gtfs.StopPathSegmentIndex.NearbySegments;
+import org.transitime.gtfs.StopPathSegmentIndex.TripPatternSegments;
+
+/**
+ * Tests that querying the StopPathSegmentIndex returns the same segments as
+ * a brute force scan of all of the segments of all of the trip patterns.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestStopPathSegmentIndex extends TestCase {
+
+	// About a meter, in degrees of latitude
+	private static final double METER_IN_DEGREES = 1.0 / 111195.0;
+
+	private static final double[] DISTANCES = {5.0, 20.0, 100.0, 500.0};
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates a StopPath with the segments between the specified locations.
+	 *
+	 * @param stopPathId
+	 * @param layoverStop
+	 * @param locations
+	 * @return the StopPath, with its segment vectors set
+	 */
+	private static StopPath createStopPath(String stopPathId,
+			boolean layoverStop, List<Location> locations) {
+		StopPath stopPath = new StopPath(1, stopPathId, stopPathId, 1, false,
+				"route", layoverStop, false, false, null);
+		stopPath.setLocations(new ArrayList<Location>(locations));
+		// onLoad() is what creates the segment vectors from the locations
+		stopPath.onLoad(null, null);
+		return stopPath;
+	}
+
+	/**
+	 * Creates trip patterns that wander randomly around an area of a few
+	 * kilometers so that segments of different trip patterns overlap.
+	 *
+	 * @param random
+	 * @param numberTripPatterns
+	 * @return The stop paths keyed by trip pattern ID
+	 */
+	private static Map<String, List<StopPath>> createTripPatterns(
+			Random random, int numberTripPatterns) {
+		Map<String, List<StopPath>> stopPathsByTripPatternId =
+				new LinkedHashMap<String, List<StopPath>>();
+		for (int p = 0; p < numberTripPatterns; ++p) {
+			double lat = 37.8 + random.nextDouble() * 0.05;
+			double lon = -122.3 + random.nextDouble() * 0.05;
+			Location previous = new Location(lat, lon);
+
+			List<StopPath> stopPaths = new ArrayList<StopPath>();
+			int numberStopPaths = 2 + random.nextInt(8);
+			for (int s = 0; s < numberStopPaths; ++s) {
+				List<Location> locations = new ArrayList<Location>();
+				locations.add(previous);
+				int numberSegments = 1 + random.nextInt(6);
+				for (int i = 0; i < numberSegments; ++i) {
+					lat += (random.nextDouble() - 0.5) * 0.004;
+					lon += (random.nextDouble() - 0.5) * 0.004;
+					previous = new Location(lat, lon);
+					locations.add(previous);
+				}
+				boolean layover = s == 0 || random.nextInt(10) == 0;
+				stopPaths.add(createStopPath("sp" + p + "_" + s, layover,
+						locations));
+			}
+			stopPathsByTripPatternId.put("tp" + p, stopPaths);
+		}
+		return stopPathsByTripPatternId;
+	}
+
+	/**
+	 * Determines the segments of the trip pattern to examine by going
+	 * through every segment.
+	 *
+	 * @param stopPaths
+	 * @param loc
+	 * @param distance
+	 * @return ordinals of the segments closer than distance plus the last
+	 *         segment of each layover stop path
+	 */
+	private static BitSet bruteForce(List<StopPath> stopPaths, Location loc,
+			double distance) {
+		BitSet segmentsToExamine = new BitSet();
+		int ordinal = 0;
+		for (StopPath stopPath : stopPaths) {
+			List<VectorWithHeading> segments = stopPath.getSegmentVectors();
+			for (int i = 0; i < segments.size(); ++i) {
+				if (segments.get(i).distance(loc) < distance
+						|| (stopPath.isLayoverStop()
+								&& i == segments.size() - 1))
+					segmentsToExamine.set(ordinal);
+				++ordinal;
+			}
+		}
+		return segmentsToExamine;
+	}
+
+	/**
+	 * @return true if any segment of the trip pattern is closer than distance
+	 */
+	private static boolean bruteForceWithinDistance(List<StopPath> stopPaths,
+			Location loc, double distance) {
+		for (StopPath stopPath : stopPaths) {
+			for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+				if (segment.distance(loc) < distance)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks that the query results for the location match a brute force
+	 * scan, for the query distance and for a smaller distance.
+	 */
+	private static void checkQuery(StopPathSegmentIndex index,
+			Map<String, List<StopPath>> stopPathsByTripPatternId,
+			Location loc, double maxDistance) {
+		NearbySegments nearbySegments = index.query(loc, maxDistance);
+		assertTrue(nearbySegments.covers(loc, maxDistance));
+
+		for (double distance : new double[] {maxDistance, maxDistance / 2}) {
+			for (Map.Entry<String, List<StopPath>> entry :
+					stopPathsByTripPatternId.entrySet()) {
+				String tripPatternId = entry.getKey();
+				assertEquals("Segments for " + tripPatternId + " at " + loc
+						+ " distance=" + distance,
+						bruteForce(entry.getValue(), loc, distance),
+						nearbySegments.getSegmentsToExamine(tripPatternId,
+								distance));
+				assertEquals("Within distance for " + tripPatternId + " at "
+						+ loc + " distance=" + distance,
+						bruteForceWithinDistance(entry.getValue(), loc,
+								distance),
+						nearbySegments.possiblyWithinDistance(tripPatternId,
+								distance));
+			}
+		}
+	}
+
+	/**
+	 * Enough trip patterns that the tree has several levels. Query points
+	 * are both on and near the paths and randomly spread around the area.
+	 */
+	public void testMatchesBruteForce() {
+		Random random = new Random(42);
+		Map<String, List<StopPath>> stopPathsByTripPatternId =
+				createTripPatterns(random, 60);
+		StopPathSegmentIndex index =
+				new StopPathSegmentIndex(stopPathsByTripPatternId);
+		assertEquals(60, index.getNumberTripPatterns());
+
+		int numberSegments = 0;
+		for (List<StopPath> stopPaths : stopPathsByTripPatternId.values())
+			for (StopPath stopPath : stopPaths)
+				numberSegments += stopPath.getNumberSegments();
+		assertEquals(numberSegments, index.size());
+		assertTrue(numberSegments > 16 * 16);
+
+		List<List<StopPath>> allStopPaths =
+				new ArrayList<List<StopPath>>(stopPathsByTripPatternId.values());
+		for (int i = 0; i < 200; ++i) {
+			Location loc;
+			if (i % 2 == 0) {
+				// Near one of the path locations
+				List<StopPath> stopPaths =
+						allStopPaths.get(random.nextInt(allStopPaths.size()));
+				StopPath stopPath =
+						stopPaths.get(random.nextInt(stopPaths.size()));
+				Location pathLoc = stopPath.getLocation(
+						random.nextInt(stopPath.getLocations().size()));
+				loc = new Location(
+						pathLoc.getLat() + (random.nextDouble() - 0.5) * 0.001,
+						pathLoc.getLon() + (random.nextDouble() - 0.5) * 0.001);
+			} else {
+				loc = new Location(37.79 + random.nextDouble() * 0.08,
+						-122.31 + random.nextDouble() * 0.08);
+			}
+			double maxDistance = DISTANCES[random.nextInt(DISTANCES.length)];
+			checkQuery(index, stopPathsByTripPatternId, loc, maxDistance);
+		}
+	}
+
+	/**
+	 * Query points just inside and just outside of the query distance, in
+	 * all directions from a segment. The query box is made bigger than the
+	 * distance by QUERY_BOX_MARGIN so these make sure that the margin is
+	 * enough, including at high latitudes where a degree of longitude is
+	 * short.
+	 */
+	public void testPointsNearQueryBoxEdge() {
+		for (double lat : new double[] {0.0, 37.8, 60.0, -70.0}) {
+			Location l1 = new Location(lat, 10.0);
+			Location l2 = new Location(lat + 0.0005, 10.002);
+			Map<String, List<StopPath>> stopPathsByTripPatternId =
+					new LinkedHashMap<String, List<StopPath>>();
+			List<StopPath> stopPaths = new ArrayList<StopPath>();
+			stopPaths.add(createStopPath("sp", false, locations(l1, l2)));
+			stopPathsByTripPatternId.put("tp", stopPaths);
+			StopPathSegmentIndex index =
+					new StopPathSegmentIndex(stopPathsByTripPatternId);
+			VectorWithHeading segment =
+					stopPaths.get(0).getSegmentVector(0);
+
+			double cosLat = Math.cos(Math.toRadians(lat));
+			for (Location end : new Location[] {l1, l2}) {
+				for (int degrees = 0; degrees < 360; degrees += 15) {
+					double radians = Math.toRadians(degrees);
+					double meters = 100.0;
+					Location loc = new Location(
+							end.getLat() + Math.sin(radians) * meters
+									* METER_IN_DEGREES,
+							end.getLon() + Math.cos(radians) * meters
+									* METER_IN_DEGREES / cosLat);
+					double distance = segment.distance(loc);
+
+					// Just outside of the query distance so not found
+					NearbySegments justOutside =
+							index.query(loc, distance - 0.01);
+					assertFalse(justOutside.possiblyWithinDistance("tp",
+							distance - 0.01));
+					assertTrue(justOutside.getSegmentsToExamine("tp",
+							distance - 0.01).isEmpty());
+
+					// Just inside of the query distance so found
+					NearbySegments justInside =
+							index.query(loc, distance + 0.01);
+					assertTrue("Not found at lat=" + lat + " degrees="
+							+ degrees, justInside.possiblyWithinDistance("tp",
+									distance + 0.01));
+					assertTrue(justInside.getSegmentsToExamine("tp",
+							distance + 0.01).get(0));
+
+					checkQuery(index, stopPathsByTripPatternId, loc,
+							distance + 0.01);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The last segment of a layover stop path always needs to be examined,
+	 * even when it is far away. The ordinals need to map back to the
+	 * correct stop path and segment indices.
+	 */
+	public void testLayoverSegmentsAndOrdinals() {
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		// 2 segments, layover, so ordinal 1 always examined
+		stopPaths.add(createStopPath("sp0", true, locations(
+				new Location(37.80, -122.30), new Location(37.80, -122.29),
+				new Location(37.80, -122.28))));
+		// 3 segments, not a layover, ordinals 2 through 4
+		stopPaths.add(createStopPath("sp1", false, locations(
+				new Location(37.80, -122.28), new Location(37.81, -122.28),
+				new Location(37.82, -122.28), new Location(37.83, -122.28))));
+		// 1 segment, layover, so ordinal 5 always examined
+		stopPaths.add(createStopPath("sp2", true, locations(
+				new Location(37.83, -122.28), new Location(37.83, -122.27))));
+		Map<String, List<StopPath>> stopPathsByTripPatternId =
+				new LinkedHashMap<String, List<StopPath>>();
+		stopPathsByTripPatternId.put("tp", stopPaths);
+		StopPathSegmentIndex index =
+				new StopPathSegmentIndex(stopPathsByTripPatternId);
+
+		TripPatternSegments tripPatternSegments =
+				index.getTripPatternSegments("tp");
+		assertEquals("tp", tripPatternSegments.getTripPatternId());
+		assertEquals(6, tripPatternSegments.getNumberSegments());
+		int[] expectedStopPathIndices = {0, 0, 1, 1, 1, 2};
+		int[] expectedSegmentIndices = {0, 1, 0, 1, 2, 0};
+		for (int ordinal = 0; ordinal < 6; ++ordinal) {
+			assertEquals(expectedStopPathIndices[ordinal],
+					tripPatternSegments.getStopPathIndex(ordinal));
+			assertEquals(expectedSegmentIndices[ordinal],
+					tripPatternSegments.getSegmentIndex(ordinal));
+		}
+
+		// Far away so only the layover segments
+		NearbySegments far = index.query(new Location(38.5, -121.0), 100.0);
+		BitSet expected = new BitSet();
+		expected.set(1);
+		expected.set(5);
+		assertEquals(expected, far.getSegmentsToExamine("tp", 100.0));
+		assertFalse(far.possiblyWithinDistance("tp", 100.0));
+
+		// On the middle of the second stop path so its middle segment plus
+		// the layover segments
+		Location onPath = new Location(37.815, -122.28);
+		NearbySegments near = index.query(onPath, 20.0);
+		expected.set(2, 5, false);
+		expected.set(3);
+		assertEquals(expected, near.getSegmentsToExamine("tp", 20.0));
+		assertTrue(near.possiblyWithinDistance("tp", 20.0));
+		checkQuery(index, stopPathsByTripPatternId, onPath, 20.0);
+	}
+
+	/**
+	 * An empty index and queries that are not near anything.
+	 */
+	public void testEmptyResults() {
+		StopPathSegmentIndex empty = new StopPathSegmentIndex(
+				new LinkedHashMap<String, List<StopPath>>());
+		assertEquals(0, empty.size());
+		assertEquals(0, empty.getNumberTripPatterns());
+		Location loc = new Location(37.8, -122.3);
+		NearbySegments nearbySegments = empty.query(loc, 1000.0);
+		assertSame(loc, nearbySegments.getLocation());
+		assertEquals(1000.0, nearbySegments.getMaxDistance());
+		// Trip pattern not indexed so can't rule it out
+		assertNull(nearbySegments.getTripPatternSegments("tp"));
+		assertNull(nearbySegments.getSegmentsToExamine("tp", 1000.0));
+		assertTrue(nearbySegments.possiblyWithinDistance("tp", 1000.0));
+
+		Map<String, List<StopPath>> stopPathsByTripPatternId =
+				new LinkedHashMap<String, List<StopPath>>();
+		List<StopPath> stopPaths = new ArrayList<StopPath>();
+		stopPaths.add(createStopPath("sp", false, locations(
+				new Location(37.8, -122.3), new Location(37.81, -122.3))));
+		stopPathsByTripPatternId.put("tp", stopPaths);
+		StopPathSegmentIndex index =
+				new StopPathSegmentIndex(stopPathsByTripPatternId);
+		for (Location far : new Location[] {new Location(37.9, -122.3),
+				new Location(37.805, -122.2), new Location(-37.8, 57.7)}) {
+			NearbySegments farSegments = index.query(far, 500.0);
+			assertTrue(farSegments.getSegmentsToExamine("tp", 500.0)
+					.isEmpty());
+			assertFalse(farSegments.possiblyWithinDistance("tp", 500.0));
+			assertNull(farSegments.getSegmentsToExamine("other", 500.0));
+			assertTrue(farSegments.possiblyWithinDistance("other", 500.0));
+		}
+	}
+
+	private static List<Location> locations(Location... locs) {
+		List<Location> list = new ArrayList<Location>();
+		for (Location loc : locs)
+			list.add(loc);
+		return list;
+	}
+}
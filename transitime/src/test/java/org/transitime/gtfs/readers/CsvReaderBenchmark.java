@@ -0,0 +1,278 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.gtfs.readers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.transitime.gtfs.gtfsStructs.GtfsShape;
+import org.transitime.gtfs.gtfsStructs.GtfsStopTime;
+import org.transitime.utils.csv.CsvBaseReader;
+import org.transitime.utils.csv.MappedCsvTokenizer;
+
+/**
+ * For comparing the throughput of reading the large GTFS files using Commons
+ * CSV, which is how CsvBaseReader originally read all files, with the
+ * MappedCsvTokenizer. Reads stop_times.txt and shapes.txt from the specified
+ * GTFS directory. For each file first just tokenizes the file, looking at
+ * every field, and then reads in the file using the GTFS reader, which also
+ * parses the values and creates the GtfsStopTime or GtfsShape objects. The
+ * reader is run with Commons CSV and with the MappedCsvTokenizer.
+ * <p>
+ * Reports the throughput in MB/s and the number of bytes allocated per
+ * record. Allocation is measured using
+ * com.sun.management.ThreadMXBean and therefore is only available on HotSpot
+ * based JVMs. Also verifies that the readers create the same objects.
+ * <p>
+ * Command line args are: gtfsDirectory iterations
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class CsvReaderBenchmark {
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns number of bytes allocated by the current thread, or 0 if that
+	 * is not supported by the JVM.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Outputs the throughput and allocation for a run
+	 *
+	 * @param name
+	 * @param fileSize
+	 * @param records
+	 * @param elapsedNanos
+	 * @param bytesAllocated
+	 */
+	private static void output(String name, long fileSize, long records,
+			long elapsedNanos, long bytesAllocated) {
+		double mbPerSec = (fileSize / (1024.0 * 1024.0))
+				/ (elapsedNanos / 1.0E9);
+		String allocation = records > 0 ?
+				String.format("%,10d bytes allocated per record",
+						bytesAllocated / records) : "";
+		System.out.println(String.format("  %-32s %,9.1f MB/s  %,12.0f msec  %s",
+				name, mbPerSec, elapsedNanos / 1.0E6, allocation));
+	}
+
+	/**
+	 * Tokenizes the file using Commons CSV, configured the same way as
+	 * CsvBaseReader, looking at every field
+	 *
+	 * @return number of records
+	 */
+	private static long tokenizeUsingCommonsCsv(String fileName)
+			throws IOException {
+		Reader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), "UTF-8"));
+		long records = 0;
+		long totalLength = 0;
+		try {
+			CSVFormat formatter =
+					CSVFormat.DEFAULT.withHeader().withCommentMarker('-');
+			for (CSVRecord record : formatter.parse(in)) {
+				for (int i = 0; i < record.size(); ++i)
+					totalLength += record.get(i).trim().length();
+				++records;
+			}
+		} finally {
+			in.close();
+		}
+		if (totalLength < 0)
+			System.out.println("Can't happen, but keeps JIT from eliminating work");
+		return records;
+	}
+
+	/**
+	 * Tokenizes the file using the MappedCsvTokenizer, looking at every field
+	 *
+	 * @return number of records
+	 */
+	private static long tokenizeUsingMappedTokenizer(String fileName)
+			throws IOException {
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(fileName, '-');
+		long totalLength = 0;
+		try {
+			while (tokenizer.next()) {
+				for (int i = 0; i < tokenizer.size(); ++i)
+					totalLength += tokenizer.getChars(i).length();
+			}
+		} finally {
+			tokenizer.close();
+		}
+		if (totalLength < 0)
+			System.out.println("Can't happen, but keeps JIT from eliminating work");
+		return tokenizer.getRecordNumber();
+	}
+
+	/**
+	 * Creates the reader for the file
+	 */
+	private static CsvBaseReader<?> createReader(String gtfsDirectory,
+			String fileName) {
+		if (fileName.equals("stop_times.txt"))
+			return new GtfsStopTimesReader(gtfsDirectory);
+		else
+			return new GtfsShapesReader(gtfsDirectory);
+	}
+
+	/**
+	 * Reads the file using the GTFS reader and outputs the results
+	 *
+	 * @return the objects read in, for verification
+	 */
+	private static List<?> read(String name, String gtfsDirectory,
+			String fileName, long fileSize, boolean useMappedTokenizer) {
+		CsvBaseReader<?> reader = createReader(gtfsDirectory, fileName);
+		reader.setUseMappedTokenizer(useMappedTokenizer);
+
+		long bytesAtStart = allocatedBytes();
+		long start = System.nanoTime();
+		List<?> objects = reader.get(100000);
+		long elapsedNanos = System.nanoTime() - start;
+		long bytesAllocated = allocatedBytes() - bytesAtStart;
+
+		output(name, fileSize, objects.size(), elapsedNanos, bytesAllocated);
+		return objects;
+	}
+
+	/**
+	 * Returns true if the two objects read from the file have the same values
+	 */
+	private static boolean same(Object o1, Object o2) {
+		if (o1 instanceof GtfsStopTime) {
+			GtfsStopTime s1 = (GtfsStopTime) o1;
+			GtfsStopTime s2 = (GtfsStopTime) o2;
+			return s1.getLineNumber() == s2.getLineNumber()
+					&& s1.getTripId().equals(s2.getTripId())
+					&& s1.getStopId().equals(s2.getStopId())
+					&& equal(s1.getArrivalTimeSecs(), s2.getArrivalTimeSecs())
+					&& equal(s1.getDepartureTimeSecs(),
+							s2.getDepartureTimeSecs())
+					&& equal(s1.getStopSequence(), s2.getStopSequence())
+					&& equal(s1.getShapeDistTraveled(),
+							s2.getShapeDistTraveled());
+		} else {
+			GtfsShape s1 = (GtfsShape) o1;
+			GtfsShape s2 = (GtfsShape) o2;
+			return s1.getLineNumber() == s2.getLineNumber()
+					&& s1.getShapeId().equals(s2.getShapeId())
+					&& Double.compare(s1.getShapePtLat(), s2.getShapePtLat()) == 0
+					&& Double.compare(s1.getShapePtLon(), s2.getShapePtLon()) == 0
+					&& s1.getShapePtSequence() == s2.getShapePtSequence()
+					&& equal(s1.getShapeDistTraveled(),
+							s2.getShapeDistTraveled());
+		}
+	}
+
+	private static boolean equal(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	/**
+	 * Runs all of the benchmarks for the file
+	 */
+	private static void benchmark(String gtfsDirectory, String fileName,
+			int iterations) throws IOException {
+		String fullFileName = gtfsDirectory + "/" + fileName;
+		long fileSize = new File(fullFileName).length();
+		System.out.println(String.format("%s: %,d bytes", fileName, fileSize));
+
+		List<?> commonsObjects = null;
+		List<?> mappedObjects = null;
+		for (int i = 0; i < iterations; ++i) {
+			System.out.println(i == 0 ? " Warm up:" : " Results:");
+
+			long bytesAtStart = allocatedBytes();
+			long start = System.nanoTime();
+			long records = tokenizeUsingCommonsCsv(fullFileName);
+			output("Tokenize, Commons CSV", fileSize, records,
+					System.nanoTime() - start, allocatedBytes() - bytesAtStart);
+
+			bytesAtStart = allocatedBytes();
+			start = System.nanoTime();
+			records = tokenizeUsingMappedTokenizer(fullFileName);
+			output("Tokenize, MappedCsvTokenizer", fileSize, records,
+					System.nanoTime() - start, allocatedBytes() - bytesAtStart);
+
+			commonsObjects = read("Read, Commons CSV", gtfsDirectory,
+					fileName, fileSize, false);
+			mappedObjects = read("Read, MappedCsvTokenizer", gtfsDirectory,
+					fileName, fileSize, true);
+		}
+
+		// Make sure the results are the same
+		int differences = 0;
+		if (commonsObjects.size() != mappedObjects.size()) {
+			System.out.println("ERROR: Commons CSV read "
+					+ commonsObjects.size() + " objects but "
+					+ "MappedCsvTokenizer read " + mappedObjects.size());
+		} else {
+			for (int i = 0; i < commonsObjects.size(); ++i) {
+				if (!same(commonsObjects.get(i), mappedObjects.get(i))
+						&& differences++ < 10)
+					System.out.println("ERROR: objects differ. Commons CSV="
+							+ commonsObjects.get(i) + " MappedCsvTokenizer="
+							+ mappedObjects.get(i));
+			}
+			if (differences > 0)
+				System.out.println("ERROR: " + differences + " of "
+						+ commonsObjects.size() + " objects differ");
+		}
+	}
+
+	/**
+	 * @param args
+	 *            gtfsDirectory iterations
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: CsvReaderBenchmark gtfsDirectory "
+					+ "[iterations]");
+			System.exit(-1);
+		}
+		String gtfsDirectory = args[0];
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		for (String fileName : new String[] {"stop_times.txt", "shapes.txt"}) {
+			if (new File(gtfsDirectory + "/" + fileName).exists())
+				benchmark(gtfsDirectory, fileName, Math.max(iterations, 2));
+		}
+
+		System.exit(0);
+	}
+}
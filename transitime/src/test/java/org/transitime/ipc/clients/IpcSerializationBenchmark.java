@@ -0,0 +1,158 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.clients;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.transitime.ipc.data.IpcCompactSerialization;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcVehicleComplete;
+import org.transitime.ipc.interfaces.PredictionsInterface;
+import org.transitime.ipc.interfaces.VehiclesInterface;
+
+/**
+ * For comparing the size and the encode/decode time of regular Java
+ * serialization with the compact format of IpcCompactSerialization. Gets
+ * all of the current predictions and vehicles from a running core so that
+ * the data is realistic, and then serializes and deserializes them locally
+ * both ways.
+ * <p>
+ * The RMI host is configured the usual way, such as via
+ * -Dtransitime.core.rmiHost.
+ * <p>
+ * Usage: IpcSerializationBenchmark agencyId [iterations]
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class IpcSerializationBenchmark {
+
+	/********************** Member Functions **************************/
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream in =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+		Object object = in.readObject();
+		in.close();
+		return object;
+	}
+
+	/**
+	 * Serializes and deserializes the object the specified number of times
+	 * and outputs the size and average times.
+	 *
+	 * @param name
+	 *            For output
+	 * @param object
+	 *            What to serialize
+	 * @param numberOfItems
+	 *            For determining bytes per item
+	 * @param itemName
+	 *            For output
+	 * @param iterations
+	 */
+	private static void measure(String name, Object object,
+			int numberOfItems, String itemName, int iterations)
+			throws IOException, ClassNotFoundException {
+		// Warm up
+		byte[] bytes = null;
+		for (int i = 0; i < iterations; ++i)
+			deserialize(bytes = serialize(object));
+
+		long encodeNanos = 0;
+		long decodeNanos = 0;
+		for (int i = 0; i < iterations; ++i) {
+			long start = System.nanoTime();
+			bytes = serialize(object);
+			long middle = System.nanoTime();
+			deserialize(bytes);
+			long end = System.nanoTime();
+			encodeNanos += middle - start;
+			decodeNanos += end - middle;
+		}
+
+		System.out.println(String.format("%-22s %8d bytes  %6.1f bytes/%s  "
+				+ "encode %7.3f msec  decode %7.3f msec",
+				name, bytes.length,
+				numberOfItems > 0 ? (double) bytes.length / numberOfItems : 0.0,
+				itemName,
+				encodeNanos / 1000000.0 / iterations,
+				decodeNanos / 1000000.0 / iterations));
+	}
+
+	/**
+	 * @param args
+	 *            agencyId [iterations]
+	 */
+	public static void main(String[] args) throws Exception {
+		String agencyId = args[0];
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		// Get realistic data from the core
+		PredictionsInterface predictionsInterface =
+				PredictionsInterfaceFactory.get(agencyId);
+		List<IpcPredictionsForRouteStopDest> predictions =
+				new ArrayList<IpcPredictionsForRouteStopDest>(
+						predictionsInterface.getAllPredictions(60 * 60));
+		int numberOfPredictions = 0;
+		for (IpcPredictionsForRouteStopDest preds : predictions)
+			numberOfPredictions += preds.getPredictionsForRouteStop().size();
+
+		VehiclesInterface vehiclesInterface =
+				VehiclesInterfaceFactory.get(agencyId);
+		List<IpcVehicleComplete> vehicles =
+				new ArrayList<IpcVehicleComplete>(
+						vehiclesInterface.getComplete());
+
+		System.out.println("Using " + predictions.size()
+				+ " route/stop/destinations with " + numberOfPredictions
+				+ " predictions, and " + vehicles.size() + " vehicles. "
+				+ iterations + " iterations.");
+
+		measure("Predictions default", predictions, numberOfPredictions,
+				"pred", iterations);
+		measure("Predictions compact",
+				IpcCompactSerialization.predictions(predictions),
+				numberOfPredictions, "pred", iterations);
+
+		Collection<IpcVehicleComplete> compactVehicles =
+				IpcCompactSerialization.vehicles(vehicles);
+		measure("Vehicles default", vehicles, vehicles.size(), "vehicle",
+				iterations);
+		measure("Vehicles compact", compactVehicles, vehicles.size(),
+				"vehicle", iterations);
+
+		System.exit(0);
+	}
+}
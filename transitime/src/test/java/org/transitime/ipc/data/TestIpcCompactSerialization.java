@@ -0,0 +1,323 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the compact format of IpcCompactSerialization, and the
+ * IpcCompactWriter and IpcCompactReader it is built on, round-trip the
+ * data exactly and give the same result as regular Java serialization.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestIpcCompactSerialization extends TestCase {
+
+	private static final long BASE_TIME = 1420070400000L;
+	
+	/********************** Member Functions **************************/
+
+	private static byte[] serialize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		ObjectInputStream in =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+		Object object = in.readObject();
+		in.close();
+		return object;
+	}
+
+	private static IpcCompactReader reader(ByteArrayOutputStream bytes) {
+		return new IpcCompactReader(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())));
+	}
+	
+	public void testNumbersRoundTrip() throws IOException {
+		long[] values = { 0, 1, -1, 63, -64, 64, 127, 128, 300, -300,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, 
+				Long.MAX_VALUE, Long.MIN_VALUE };
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCompactWriter writer = 
+				new IpcCompactWriter(new DataOutputStream(bytes));
+		for (long value : values)
+			writer.writeVarLong(value);
+		writer.writeVarInt(Integer.MIN_VALUE);
+		writer.writeInteger(null);
+		writer.writeInteger(-5);
+		writer.writeFloat(Float.NaN);
+		writer.writeFloat(0.75f);
+		writer.writeDouble(-12.5);
+		writer.writeBoolean(true);
+		writer.writeByte(0x3F);
+
+		IpcCompactReader reader = reader(bytes);
+		for (long value : values)
+			assertEquals(value, reader.readVarLong());
+		assertEquals(Integer.MIN_VALUE, reader.readVarInt());
+		assertNull(reader.readInteger());
+		assertEquals(Integer.valueOf(-5), reader.readInteger());
+		assertTrue(Float.isNaN(reader.readFloat()));
+		assertEquals(0.75f, reader.readFloat());
+		assertEquals(-12.5, reader.readDouble());
+		assertTrue(reader.readBoolean());
+		assertEquals(0x3F, reader.readByte());
+	}
+	
+	public void testSmallNumbersAreOneByte() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCompactWriter writer = 
+				new IpcCompactWriter(new DataOutputStream(bytes));
+		writer.writeVarInt(-64);
+		writer.writeVarInt(63);
+		assertEquals(2, bytes.size());
+	}
+	
+	public void testTimesRoundTrip() throws IOException {
+		long[] times = { BASE_TIME, BASE_TIME + 90000, 0, 
+				BASE_TIME + 30000, BASE_TIME - TimeUnit.DAYS.toMillis(400),
+				BASE_TIME + 30000 };
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCompactWriter writer = 
+				new IpcCompactWriter(new DataOutputStream(bytes));
+		for (long time : times) {
+			writer.writeTime(time);
+			writer.writeTimeRelativeTo(time - 1500, time);
+			writer.writeTimeRelativeTo(0, time);
+		}
+		
+		IpcCompactReader reader = reader(bytes);
+		for (long time : times) {
+			assertEquals(time, reader.readTime());
+			assertEquals(time - 1500, reader.readTimeRelativeTo(time));
+			assertEquals(0, reader.readTimeRelativeTo(time));
+		}
+	}
+	
+	public void testStringDictionary() throws IOException {
+		String[] strings = { "stop", null, "", "stop", "Caf\u00e9 \u4e2d",
+				"", "Caf\u00e9 \u4e2d", null };
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCompactWriter writer = 
+				new IpcCompactWriter(new DataOutputStream(bytes));
+		for (String s : strings)
+			writer.writeString(s);
+		writer.writeEnum(TimeUnit.SECONDS);
+		writer.writeEnum(null);
+		
+		IpcCompactReader reader = reader(bytes);
+		for (String s : strings)
+			assertEquals(s, reader.readString());
+		assertEquals(TimeUnit.SECONDS, reader.readEnum(TimeUnit.class));
+		assertNull(reader.readEnum(TimeUnit.class));
+		
+		// A repeated string only takes the single byte of its index
+		ByteArrayOutputStream repeated = new ByteArrayOutputStream();
+		writer = new IpcCompactWriter(new DataOutputStream(repeated));
+		writer.writeString("a long route name");
+		int sizeAfterFirst = repeated.size();
+		writer.writeString("a long route name");
+		assertEquals(sizeAfterFirst + 1, repeated.size());
+	}
+	
+	/**
+	 * Writes a prediction in the compact format. Used to create predictions
+	 * since the regular constructors need the core to be running.
+	 */
+	private static void writePrediction(IpcCompactWriter writer,
+			String vehicleId, String stopId, long predictionTime,
+			String blockId, String driverId, int flags) throws IOException {
+		writer.writeString(vehicleId);
+		writer.writeString("route1");
+		writer.writeString(stopId);
+		writer.writeVarInt(7);
+		writer.writeString("trip_" + vehicleId);
+		writer.writeString("pattern1");
+		writer.writeString(blockId);
+		writer.writeTime(predictionTime);
+		writer.writeTimeRelativeTo(BASE_TIME - 2000, predictionTime);
+		writer.writeTimeRelativeTo(BASE_TIME - 1500, BASE_TIME - 2000);
+		writer.writeTimeRelativeTo(BASE_TIME - 600000, predictionTime);
+		writer.writeString(driverId);
+		writer.writeVarInt(flags == 0 ? -1 : 42);
+		writer.writeFloat(flags == 0 ? Float.NaN : 0.5f);
+		writer.writeByte(flags);
+	}
+	
+	/**
+	 * Writes the predictions for a route/stop/destination in the compact
+	 * format
+	 */
+	private static void writePredictions(IpcCompactWriter writer,
+			String stopId, Integer stopCode, double distanceToStop,
+			int numPredictions) throws IOException {
+		writer.writeString("route1");
+		writer.writeString("1");
+		writer.writeString("Route One");
+		writer.writeVarInt(3);
+		writer.writeString(stopId);
+		writer.writeString("Stop " + stopId);
+		writer.writeInteger(stopCode);
+		writer.writeString("Downtown");
+		writer.writeString("0");
+		writer.writeBoolean(!Double.isNaN(distanceToStop));
+		if (!Double.isNaN(distanceToStop))
+			writer.writeDouble(distanceToStop);
+		writer.writeVarInt(numPredictions);
+		for (int i = 0; i < numPredictions; ++i) {
+			// Predictions not in time order and with a mix of flags and 
+			// missing values
+			writePrediction(writer, "v" + i, stopId, 
+					BASE_TIME + (i % 2 == 0 ? i : -i) * 60000L, 
+					i % 3 == 0 ? null : "block" + i, 
+					i % 2 == 0 ? null : "driver" + i, 
+					i == 0 ? 0 : 0x3F);
+		}
+	}
+	
+	private static List<IpcPredictionsForRouteStopDest> createPredictions()
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCompactWriter writer = 
+				new IpcCompactWriter(new DataOutputStream(bytes));
+		writePredictions(writer, "stop1", 1234, Double.NaN, 4);
+		writePredictions(writer, "stop2", null, 250.5, 3);
+		writePredictions(writer, "stop3", 99, Double.NaN, 0);
+		
+		IpcCompactReader reader = reader(bytes);
+		List<IpcPredictionsForRouteStopDest> predictions = 
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		for (int i = 0; i < 3; ++i)
+			predictions.add(IpcPredictionsForRouteStopDest.readCompact(reader));
+		return predictions;
+	}
+	
+	private static void assertSamePrediction(IpcPrediction expected,
+			IpcPrediction actual) {
+		assertEquals(expected.getVehicleId(), actual.getVehicleId());
+		assertEquals(expected.getRouteId(), actual.getRouteId());
+		assertEquals(expected.getStopId(), actual.getStopId());
+		assertEquals(expected.getGtfsStopSeq(), actual.getGtfsStopSeq());
+		assertEquals(expected.getTripId(), actual.getTripId());
+		assertEquals(expected.getTripPatternId(), actual.getTripPatternId());
+		assertEquals(expected.getBlockId(), actual.getBlockId());
+		assertEquals(expected.getPredictionTime(), 
+				actual.getPredictionTime());
+		assertEquals(expected.getAvlTime(), actual.getAvlTime());
+		assertEquals(expected.getCreationTime(), actual.getCreationTime());
+		assertEquals(expected.getTripStartEpochTime(),
+				actual.getTripStartEpochTime());
+		assertEquals(expected.getDriverId(), actual.getDriverId());
+		assertEquals(expected.getPassengerCount(), 
+				actual.getPassengerCount());
+		assertEquals(expected.isPassengerCountValid(),
+				actual.isPassengerCountValid());
+		assertEquals(expected.isAtEndOfTrip(), actual.isAtEndOfTrip());
+		assertEquals(expected.isSchedBasedPred(), actual.isSchedBasedPred());
+		assertEquals(expected.isAffectedByWaitStop(),
+				actual.isAffectedByWaitStop());
+		assertEquals(expected.isDelayed(), actual.isDelayed());
+		assertEquals(expected.isLateAndSubsequentTripSoMarkAsUncertain(),
+				actual.isLateAndSubsequentTripSoMarkAsUncertain());
+		assertEquals(expected.isArrival(), actual.isArrival());
+	}
+	
+	private static void assertSamePredictions(
+			List<IpcPredictionsForRouteStopDest> expected,
+			List<IpcPredictionsForRouteStopDest> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			IpcPredictionsForRouteStopDest e = expected.get(i);
+			IpcPredictionsForRouteStopDest a = actual.get(i);
+			assertEquals(e.getRouteId(), a.getRouteId());
+			assertEquals(e.getRouteShortName(), a.getRouteShortName());
+			assertEquals(e.getRouteName(), a.getRouteName());
+			assertEquals(e.getRouteOrder(), a.getRouteOrder());
+			assertEquals(e.getStopId(), a.getStopId());
+			assertEquals(e.getStopName(), a.getStopName());
+			assertEquals(e.getStopCode(), a.getStopCode());
+			assertEquals(e.getHeadsign(), a.getHeadsign());
+			assertEquals(e.getDirectionId(), a.getDirectionId());
+			assertEquals(Double.doubleToLongBits(e.getDistanceToStop()),
+					Double.doubleToLongBits(a.getDistanceToStop()));
+			
+			List<IpcPrediction> ePreds = e.getPredictionsForRouteStop();
+			List<IpcPrediction> aPreds = a.getPredictionsForRouteStop();
+			assertEquals(ePreds.size(), aPreds.size());
+			for (int j = 0; j < ePreds.size(); ++j)
+				assertSamePrediction(ePreds.get(j), aPreds.get(j));
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public void testPredictionsRoundTrip() throws Exception {
+		List<IpcPredictionsForRouteStopDest> predictions = createPredictions();
+		
+		byte[] compactBytes = 
+				serialize(IpcCompactSerialization.predictions(predictions));
+		List<IpcPredictionsForRouteStopDest> compact = 
+				(List<IpcPredictionsForRouteStopDest>) 
+				deserialize(compactBytes);
+		
+		// The client gets a regular list
+		assertEquals(ArrayList.class, compact.getClass());
+		assertSamePredictions(predictions, compact);
+		
+		// Same as regular Java serialization, but smaller
+		byte[] regularBytes = 
+				serialize(new ArrayList<IpcPredictionsForRouteStopDest>(
+						predictions));
+		List<IpcPredictionsForRouteStopDest> regular = 
+				(List<IpcPredictionsForRouteStopDest>) 
+				deserialize(regularBytes);
+		assertSamePredictions(regular, compact);
+		assertTrue(compactBytes.length < regularBytes.length);
+	}
+	
+	public void testEmptyAndNullPredictions() throws Exception {
+		assertNull(IpcCompactSerialization.predictions(null));
+		
+		Object empty = deserialize(serialize(IpcCompactSerialization
+				.predictions(new ArrayList<IpcPredictionsForRouteStopDest>())));
+		assertTrue(((List<?>) empty).isEmpty());
+		
+		Object vehicles = deserialize(serialize(
+				IpcCompactSerialization.vehicles(null)));
+		assertTrue(((List<?>) vehicles).isEmpty());
+	}
+	
+}
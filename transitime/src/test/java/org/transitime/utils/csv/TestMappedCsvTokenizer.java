@@ -0,0 +1,376 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils.csv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that MappedCsvTokenizer handles the same format as the commons-csv
+ * parser used by CsvBaseReader, including quoted fields, blank and comment
+ * lines, a BOM, and records that cross the windows of the mapped file.
+ *
+ * @author SkiBu Smith
+ *
+ */
+public class TestMappedCsvTokenizer extends TestCase {
+
+	private static final String HEADER = 
+			"trip_id,arrival_time,stop_sequence,shape_dist_traveled,"
+			+ "stop_headsign\n";
+
+	// Has quoted fields with delimiters, doubled quotes and line ends, blank
+	// and comment lines, whitespace around values, non-ASCII characters,
+	// numbers that aren't plain decimals, and a last line without a line end
+	private static final String RECORDS =
+			"-- comment line\n"
+			+ "t1,08:00:00,1,0.0,Downtown\n"
+			+ "t1, 08:05:30 ,2,123.45,\"Main St, North\"\n"
+			+ "\n"
+			+ "t1,25:10:00,3,-1.5e2,\"Say \"\"hi\"\"\"\n"
+			+ "\"t2\",8:00,10,0.1,\"Two\nlines\"\n"
+			+ "--,,,,\n"
+			+ "t2,08:01:02,+11,1234567.891234,Café\n"
+			+ "t2,-00:10:00,-2147483648,-0.000001,\n"
+			+ "t3,00:00:00,2147483647,.5,\"\"";
+	
+	private final List<File> files = new ArrayList<File>();
+
+	/********************** Member Functions **************************/
+
+	@Override
+	protected void tearDown() {
+		for (File file : files)
+			file.delete();
+	}
+	
+	/**
+	 * Writes the contents to a temporary file using UTF-8
+	 * 
+	 * @param contents
+	 * @param bom
+	 *            whether the file should start with a BOM
+	 * @return name of the file
+	 */
+	private String writeFile(String contents, boolean bom) throws IOException {
+		File file = File.createTempFile("TestMappedCsvTokenizer", ".txt");
+		files.add(file);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			if (bom)
+				out.write(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file.getPath();
+	}
+	
+	/**
+	 * Reads in the file the same way that CsvBaseReader does when not using
+	 * the MappedCsvTokenizer
+	 * 
+	 * @param fileName
+	 * @return the non-blank records
+	 */
+	private static List<CSVRecord> readUsingCommonsCsv(String fileName) 
+			throws IOException {
+		Reader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), "UTF-8"));
+		try {
+			in.mark(1);
+			if (in.read() != 0xFEFF)
+				in.reset();
+			
+			List<CSVRecord> records = new ArrayList<CSVRecord>();
+			for (CSVRecord record : 
+					CSVFormat.DEFAULT.withHeader().withCommentMarker('-')
+							.parse(in)) {
+				if (record.size() != 0)
+					records.add(record);
+			}
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Makes sure that the tokenizer returns the same records and values as
+	 * commons-csv for the file
+	 * 
+	 * @param fileName
+	 * @param windowSize
+	 */
+	private static void assertSameAsCommonsCsv(String fileName, 
+			long windowSize) throws IOException {
+		List<CSVRecord> records = readUsingCommonsCsv(fileName);
+		MappedCsvTokenizer tokenizer = 
+				new MappedCsvTokenizer(fileName, '-', windowSize);
+		try {
+			String message = "windowSize=" + windowSize;
+			for (CSVRecord record : records) {
+				assertTrue(message, tokenizer.next());
+				assertEquals(message, record.getRecordNumber(), 
+						tokenizer.getRecordNumber());
+				assertEquals(message, record.size(), tokenizer.size());
+				for (int i = 0; i < record.size(); ++i) {
+					String value = record.get(i).trim();
+					assertEquals(message, value, 
+							tokenizer.getChars(i).toString());
+					assertEquals(message, value, tokenizer.getString(i));
+					assertEquals(message, value.isEmpty(), 
+							tokenizer.isEmpty(i));
+				}
+				
+				int column = tokenizer.getColumn("arrival_time");
+				assertEquals(message, 
+						Time.parseTimeOfDay(record.get("arrival_time").trim()), 
+						tokenizer.getTimeOfDaySecs(column));
+				column = tokenizer.getColumn("stop_sequence");
+				assertEquals(message, 
+						Integer.parseInt(record.get("stop_sequence").trim()),
+						tokenizer.getInt(column));
+				column = tokenizer.getColumn("shape_dist_traveled");
+				assertEquals(message, 0, Double.compare(
+						Double.parseDouble(
+								record.get("shape_dist_traveled").trim()),
+						tokenizer.getDouble(column)));
+			}
+			assertFalse(message, tokenizer.next());
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	public void testSameAsCommonsCsv() throws IOException {
+		assertSameAsCommonsCsv(writeFile(HEADER + RECORDS, false), 
+				Integer.MAX_VALUE);
+	}
+	
+	public void testCrLfSameAsCommonsCsv() throws IOException {
+		assertSameAsCommonsCsv(
+				writeFile((HEADER + RECORDS).replace("\n", "\r\n"), false), 
+				Integer.MAX_VALUE);
+	}
+	
+	public void testBomSameAsCommonsCsv() throws IOException {
+		assertSameAsCommonsCsv(writeFile(HEADER + RECORDS, true), 
+				Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Uses every window size from the smallest one that holds the header
+	 * and the longest record up to the size of the file, so that every
+	 * record, quoted field, doubled quote and CR LF crosses the end of a
+	 * window at every possible place.
+	 */
+	public void testWindowBoundariesSameAsCommonsCsv() throws IOException {
+		String contents = HEADER + RECORDS;
+		String crLfContents = contents.replace("\n", "\r\n");
+		String fileName = writeFile(contents, true);
+		String crLfFileName = writeFile(crLfContents, false);
+		for (long windowSize = crLfContents.length() / 3; 
+				windowSize <= crLfContents.length() + 4; 
+				++windowSize) {
+			assertSameAsCommonsCsv(fileName, windowSize);
+			assertSameAsCommonsCsv(crLfFileName, windowSize);
+		}
+	}
+	
+	public void testQuotedFields() throws IOException {
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(
+				writeFile(HEADER + RECORDS, true), '-');
+		try {
+			assertEquals(0, tokenizer.getColumn("trip_id"));
+			assertEquals(4, tokenizer.getColumn("stop_headsign"));
+			assertEquals(-1, tokenizer.getColumn("stop_id"));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(2, tokenizer.getRecordNumber());
+			assertEquals("Downtown", tokenizer.getString(4));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(3, tokenizer.getRecordNumber());
+			assertEquals(5, tokenizer.size());
+			assertEquals("08:05:30", tokenizer.getString(1));
+			assertEquals(8*60*60 + 5*60 + 30, tokenizer.getTimeOfDaySecs(1));
+			assertEquals("Main St, North", tokenizer.getString(4));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(4, tokenizer.getRecordNumber());
+			assertEquals("Say \"hi\"", tokenizer.getString(4));
+			assertEquals(-150.0, tokenizer.getDouble(3));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(5, tokenizer.getRecordNumber());
+			assertEquals("t2", tokenizer.getString(0));
+			assertEquals(8*60*60, tokenizer.getTimeOfDaySecs(1));
+			assertEquals("Two\nlines", tokenizer.getString(4));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(6, tokenizer.getRecordNumber());
+			assertEquals("Café", tokenizer.getString(4));
+			assertEquals(11, tokenizer.getInt(2));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(7, tokenizer.getRecordNumber());
+			assertEquals(-10*60, tokenizer.getTimeOfDaySecs(1));
+			assertEquals(Integer.MIN_VALUE, tokenizer.getInt(2));
+			assertTrue(tokenizer.isSet(4));
+			assertTrue(tokenizer.isEmpty(4));
+			assertEquals("", tokenizer.getString(4));
+			
+			assertTrue(tokenizer.next());
+			assertEquals(8, tokenizer.getRecordNumber());
+			assertEquals(Integer.MAX_VALUE, tokenizer.getInt(2));
+			assertEquals(0.5, tokenizer.getDouble(3));
+			assertEquals("", tokenizer.getString(4));
+			assertFalse(tokenizer.isSet(5));
+			
+			assertFalse(tokenizer.next());
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	/**
+	 * The String for a column is reused if the value is the same as for the
+	 * previous record
+	 */
+	public void testStringsReused() throws IOException {
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(
+				writeFile(HEADER + "t1,1:00,1,1,a\nt1,1:00,2,2,b\n", false), 
+				'-');
+		try {
+			assertTrue(tokenizer.next());
+			String tripId = tokenizer.getString(0);
+			assertTrue(tokenizer.next());
+			assertSame(tripId, tokenizer.getString(0));
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	/**
+	 * Invalid values result in a NumberFormatException, same as for
+	 * Integer.parseInt() and Double.parseDouble()
+	 */
+	public void testInvalidNumbers() throws IOException {
+		String[] invalidInts = {"", "-", "1.0", "1a", "2147483648", 
+				"-2147483649", "99999999999999999999"};
+		String[] invalidDoubles = {"", "-", ".", "1.2.3", "1a", "1e"};
+		String[] invalidTimes = {"", "8", "8:", ":30", "8:00:00:00", "8:a0",
+				"1234567:00"};
+		// The first column is so that negative values aren't at the
+		// beginning of a line, which would make it a comment line
+		StringBuilder contents = new StringBuilder("id,int,double,time\n");
+		int records = Math.max(invalidInts.length, 
+				Math.max(invalidDoubles.length, invalidTimes.length));
+		for (int i = 0; i < records; ++i) {
+			contents.append("x,")
+					.append(i < invalidInts.length ? invalidInts[i] : "0")
+					.append(',')
+					.append(i < invalidDoubles.length ? invalidDoubles[i] : "0")
+					.append(',')
+					.append(i < invalidTimes.length ? invalidTimes[i] : "0:00")
+					.append('\n');
+		}
+		
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(
+				writeFile(contents.toString(), false), '-');
+		try {
+			for (int i = 0; i < records; ++i) {
+				assertTrue(tokenizer.next());
+				if (i < invalidInts.length) {
+					try {
+						tokenizer.getInt(1);
+						fail("getInt() accepted \"" + invalidInts[i] + "\"");
+					} catch (NumberFormatException e) {
+					}
+				}
+				if (i < invalidDoubles.length) {
+					try {
+						tokenizer.getDouble(2);
+						fail("getDouble() accepted \"" + invalidDoubles[i] 
+								+ "\"");
+					} catch (NumberFormatException e) {
+					}
+				}
+				if (i < invalidTimes.length) {
+					try {
+						tokenizer.getTimeOfDaySecs(3);
+						fail("getTimeOfDaySecs() accepted \"" + invalidTimes[i]
+								+ "\"");
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	public void testMissingClosingQuote() throws IOException {
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(
+				writeFile(HEADER + "t1,8:00,1,0,\"Downtown\n", false), '-');
+		try {
+			tokenizer.next();
+			fail("Missing closing quote not detected");
+		} catch (IOException e) {
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	public void testRecordLongerThanWindow() throws IOException {
+		MappedCsvTokenizer tokenizer = new MappedCsvTokenizer(
+				writeFile("id,headsign\n1,\"A very long headsign\"\n", false), 
+				'-', 20);
+		try {
+			tokenizer.next();
+			fail("Record longer than window not detected");
+		} catch (IOException e) {
+		} finally {
+			tokenizer.close();
+		}
+	}
+	
+	public void testEmptyFile() throws IOException {
+		MappedCsvTokenizer tokenizer = 
+				new MappedCsvTokenizer(writeFile("", true), '-');
+		try {
+			assertEquals(-1, tokenizer.getColumn("trip_id"));
+			assertFalse(tokenizer.next());
+		} finally {
+			tokenizer.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.data;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.transitime.ipc.data.IpcHeadway;
+import org.transitime.utils.Time;
+
+/**
+ * A vehicle that passed or is predicted to arrive at a stop, along with the
+ * headway from the vehicle before it.
+ *
+ * @author SkiBu Smith
+ *
+ */
+@XmlRootElement
+public class ApiHeadway {
+
+	@XmlAttribute(name = "vehicle")
+	private String vehicleId;
+
+	// Epoch time in seconds (not msec, so shorter)
+	@XmlAttribute(name = "time")
+	private long time;
+
+	// Only output if the previous vehicle is known
+	@XmlAttribute(name = "headwaySecs")
+	private Integer headwaySecs;
+
+	// Only output if true
+	@XmlAttribute(name = "predicted")
+	private Boolean predicted;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Need a no-arg constructor for Jersey. Otherwise get really obtuse
+	 * "MessageBodyWriter not found for media type=application/json" exception.
+	 */
+	protected ApiHeadway() {
+	}
+
+	public ApiHeadway(IpcHeadway headway) {
+		vehicleId = headway.getVehicleId();
+		time = headway.getTime() / Time.MS_PER_SEC;
+		if (headway.getHeadwayMsec() >= 0)
+			headwaySecs = (int) (headway.getHeadwayMsec() / Time.MS_PER_SEC);
+		if (headway.isPredicted())
+			predicted = true;
+	}
+
+}
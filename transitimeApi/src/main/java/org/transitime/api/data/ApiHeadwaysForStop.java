@@ -0,0 +1,80 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.transitime.ipc.data.IpcHeadway;
+import org.transitime.ipc.data.IpcHeadwaysForStop;
+import org.transitime.utils.Time;
+
+/**
+ * The headways for a route/direction/stop. The vehicles that recently passed
+ * the stop are listed first, oldest first, followed by the predicted ones.
+ *
+ * @author SkiBu Smith
+ *
+ */
+@XmlRootElement
+public class ApiHeadwaysForStop {
+
+	@XmlAttribute
+	private String routeShortName;
+
+	@XmlAttribute
+	private String directionId;
+
+	@XmlAttribute
+	private String stopId;
+
+	// Only output if at least two vehicles have passed the stop
+	@XmlAttribute
+	private Integer currentHeadwaySecs;
+
+	@XmlElement(name = "headway")
+	private List<ApiHeadway> headways;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Need a no-arg constructor for Jersey. Otherwise get really obtuse
+	 * "MessageBodyWriter not found for media type=application/json" exception.
+	 */
+	protected ApiHeadwaysForStop() {
+	}
+
+	public ApiHeadwaysForStop(IpcHeadwaysForStop headwaysForStop) {
+		routeShortName = headwaysForStop.getRouteShortName();
+		directionId = headwaysForStop.getDirectionId();
+		stopId = headwaysForStop.getStopId();
+
+		long currentHeadwayMsec = headwaysForStop.getCurrentHeadwayMsec();
+		if (currentHeadwayMsec >= 0)
+			currentHeadwaySecs = (int) (currentHeadwayMsec / Time.MS_PER_SEC);
+
+		headways = new ArrayList<ApiHeadway>();
+		for (IpcHeadway headway : headwaysForStop.getHeadways())
+			headways.add(new ApiHeadway(headway));
+	}
+
+}
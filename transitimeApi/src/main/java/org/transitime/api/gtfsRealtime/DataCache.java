@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -17,10 +17,22 @@
 
 package org.transitime.api.gtfsRealtime;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -28,37 +40,390 @@ import com.google.transit.realtime.GtfsRealtime.FeedMessage;
  * For caching GTFS-realtime messages. Useful because the messages are huge and
  * take a lot of resources so if get multiple requests not too far apart then it
  * makes sense to return a cached version.
+ * <p>
+ * Only a single feed is ever being built for an agency at a time. When the
+ * cached feed becomes stale the first request starts a rebuild in the
+ * background and it and all other requests are served the previous version
+ * until the rebuild finishes. Only if there is no feed yet, or the feed is
+ * far too old because rebuilds are failing, do requests wait for the build.
+ * While the feed for an agency is being requested it is also refreshed in
+ * the background at its refresh interval so that requests usually get a
+ * fresh feed without waiting.
+ * <p>
+ * The refresh interval for an agency is the cache time specified by the
+ * first request for the agency but can be overridden via the Java system
+ * property transitime.api.gtfsRtCacheSecs.&lt;agencyId&gt;.
+ * <p>
+ * Each feed has an ETag so that the API can respond with 304 Not Modified
+ * if the client already has it. Hit, miss and build time metrics are kept
+ * and logged.
  *
  * @author SkiBu Smith
  *
  */
 public class DataCache {
 
-    private Map<String, CacheEntry> cacheMap = new HashMap<String, CacheEntry>();
-
-    /********************** Member Functions **************************/
-
-    private static class CacheEntry {
-	private long timeCreated;
-	private FeedMessage cachedFeedMessage;
-    }
-
-    public FeedMessage get(String agencyId, int maxCacheSeconds) {
-	CacheEntry cacheEntry = cacheMap.get(agencyId);
-	if (cacheEntry == null)
-	    return null;
-	if (cacheEntry.timeCreated < System.currentTimeMillis() - maxCacheSeconds * Time.MS_PER_SEC) {
-	    cacheMap.remove(agencyId);
-	    return null;
-	}
-	return cacheEntry.cachedFeedMessage;
-    }
-    
-    public void put(String agencyId, FeedMessage feedMessage) {
-	CacheEntry cacheEntry = new CacheEntry();
-	cacheEntry.timeCreated = System.currentTimeMillis();
-	cacheEntry.cachedFeedMessage = feedMessage;
-	cacheMap.put(agencyId, cacheEntry);
-    }
-}
+	// For logging and naming the threads
+	private final String name;
+
+	// For creating the FeedCreator for an agency
+	private final FeedCreatorFactory feedCreatorFactory;
+
+	// Keyed by agencyId
+	private final ConcurrentHashMap<String, AgencyCache> agencyCaches =
+			new ConcurrentHashMap<String, AgencyCache>();
+
+	// For building the feeds in the background and for scheduling the
+	// background refreshes. Only a single build is ever done at once for
+	// an agency so only need a few threads.
+	private final ScheduledThreadPoolExecutor executor;
+
+	// Metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong staleHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong builds = new AtomicLong();
+	private final AtomicLong buildFailures = new AtomicLong();
+	private final AtomicLong totalBuildMsec = new AtomicLong();
+	private final AtomicLong maxBuildMsec = new AtomicLong();
+
+	// A stale feed is served while it is being rebuilt as long as it is not
+	// older than this multiple of the cache time
+	private static final int MAX_STALE_FACTOR = 4;
+
+	// How long a request waits for a feed to be built when there is no
+	// usable feed in the cache
+	private static final long MAX_BUILD_WAIT_MSEC = 30 * Time.MS_PER_SEC;
+
+	// The background refresh for an agency stops if there has not been a
+	// request within this multiple of the cache time
+	private static final int IDLE_FACTOR = 4;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(DataCache.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * For creating the GTFS-realtime message for an agency. A FeedCreator is
+	 * only used by one thread at a time so it can keep state between builds,
+	 * such as GtfsRtTripFeedBuilder reusing unchanged entities.
+	 */
+	public interface FeedCreator {
+		public FeedMessage createMessage();
+	}
+
+	/**
+	 * For creating the FeedCreator for an agency.
+	 */
+	public interface FeedCreatorFactory {
+		public FeedCreator create(String agencyId);
+	}
+
+	/**
+	 * A cached feed. Immutable. The feed is encoded once when it is created
+	 * so that the encoding is not done for every request.
+	 */
+	public static class CachedFeed {
+		private final FeedMessage message;
+		private final byte[] bytes;
+		private final long timeCreated;
+		private final String etag;
+
+		private CachedFeed(FeedMessage message) {
+			this.message = message;
+			this.bytes = message.toByteArray();
+			this.timeCreated = System.currentTimeMillis();
+			this.etag = createEtag(bytes);
+		}
+
+		public FeedMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return The encoded message. Should not be modified.
+		 */
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public long getTimeCreated() {
+			return timeCreated;
+		}
+
+		/**
+		 * @return The quoted entity tag for the feed
+		 */
+		public String getEtag() {
+			return etag;
+		}
+	}
+
+	/**
+	 * The cache for a single agency.
+	 */
+	private class AgencyCache implements Callable<CachedFeed> {
+		private final String agencyId;
+		private final long refreshMsec;
+		private final FeedCreator feedCreator;
+
+		// The current feed. Null until first one has been built.
+		private volatile CachedFeed feed;
+
+		// When the feed was last requested. For determining whether to
+		// keep refreshing it in the background.
+		private volatile long lastRequestTime;
+
+		// The build that is currently in progress, if any. Guarded by this.
+		private FutureTask<CachedFeed> buildInProgress;
+
+		// The next background refresh, if any. Guarded by this.
+		private ScheduledFuture<?> scheduledRefresh;
+
+		private AgencyCache(String agencyId, int cacheSecs) {
+			this.agencyId = agencyId;
+			this.refreshMsec = Integer.getInteger(
+					"transitime.api.gtfsRtCacheSecs." + agencyId, cacheSecs)
+					* Time.MS_PER_SEC;
+			this.feedCreator = feedCreatorFactory.create(agencyId);
+		}
+
+		/**
+		 * Starts building the feed in the background unless a build is
+		 * already in progress.
+		 *
+		 * @return The build in progress
+		 */
+		private synchronized Future<CachedFeed> startBuild() {
+			if (buildInProgress == null) {
+				buildInProgress = new FutureTask<CachedFeed>(this);
+				executor.execute(buildInProgress);
+			}
+			return buildInProgress;
+		}
+
+		/**
+		 * Builds the feed. Called via startBuild() so only one build is done
+		 * at a time for the agency.
+		 */
+		@Override
+		public CachedFeed call() throws Exception {
+			long startTime = System.currentTimeMillis();
+			try {
+				CachedFeed newFeed =
+						new CachedFeed(feedCreator.createMessage());
+				feed = newFeed;
+
+				long buildMsec = System.currentTimeMillis() - startTime;
+				builds.incrementAndGet();
+				totalBuildMsec.addAndGet(buildMsec);
+				long max;
+				while (buildMsec > (max = maxBuildMsec.get())
+						&& !maxBuildMsec.compareAndSet(max, buildMsec));
+				logger.debug("Built {} feed for agencyId={} in {} msec. {}",
+						name, agencyId, buildMsec, getMetrics());
+
+				return newFeed;
+			} catch (Exception e) {
+				buildFailures.incrementAndGet();
+				logger.error("Exception building {} feed for agencyId={}",
+						name, agencyId, e);
+				throw e;
+			} finally {
+				synchronized (this) {
+					buildInProgress = null;
+				}
+				scheduleRefresh();
+			}
+		}
+
+		/**
+		 * Schedules the next background refresh, but only if the feed has
+		 * been requested recently.
+		 */
+		private synchronized void scheduleRefresh() {
+			if (System.currentTimeMillis() - lastRequestTime
+					> IDLE_FACTOR * refreshMsec)
+				return;
+
+			// Builds started by requests also get here so make sure there
+			// is only ever one refresh scheduled
+			if (scheduledRefresh != null && !scheduledRefresh.isDone())
+				return;
 
+			scheduledRefresh = executor.schedule(new Runnable() {
+				public void run() {
+					startBuild();
+				}
+			}, refreshMsec, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Returns the feed, starting a rebuild if it is stale. Only waits for
+		 * the build if there is no feed or it is far too old.
+		 *
+		 * @return The feed, or null if could not be built
+		 */
+		private CachedFeed get() {
+			long now = System.currentTimeMillis();
+			lastRequestTime = now;
+
+			CachedFeed currentFeed = feed;
+			long age = currentFeed != null ?
+					now - currentFeed.timeCreated : Long.MAX_VALUE;
+			if (age <= refreshMsec) {
+				hits.incrementAndGet();
+				return currentFeed;
+			}
+
+			Future<CachedFeed> build = startBuild();
+			if (age <= MAX_STALE_FACTOR * refreshMsec) {
+				staleHits.incrementAndGet();
+				return currentFeed;
+			}
+
+			misses.incrementAndGet();
+			try {
+				return build.get(MAX_BUILD_WAIT_MSEC, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				// Already logged when the build failed
+				return currentFeed;
+			} catch (TimeoutException e) {
+				logger.error("Timed out after {} msec waiting for {} feed "
+						+ "for agencyId={} to be built",
+						MAX_BUILD_WAIT_MSEC, name, agencyId);
+				return currentFeed;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return currentFeed;
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            For logging and naming the threads
+	 * @param feedCreatorFactory
+	 *            For creating the feed for an agency
+	 */
+	public DataCache(String name, FeedCreatorFactory feedCreatorFactory) {
+		this.name = name;
+		this.feedCreatorFactory = feedCreatorFactory;
+
+		this.executor = new ScheduledThreadPoolExecutor(2,
+				new NamedThreadFactory(name + "DataCache"));
+		// Refreshes are not canceled but make sure they don't keep the
+		// threads around when idle
+		this.executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the cached feed for the agency. If the feed is stale then a
+	 * rebuild is started and the stale feed is returned. Only if there is no
+	 * usable feed does this wait for the feed to be built.
+	 *
+	 * @param agencyId
+	 * @param maxCacheSeconds
+	 *            How long a feed can be cached for before it needs to be
+	 *            rebuilt. Only used by the first request for the agency.
+	 * @return The feed, or null if it could not be built
+	 */
+	public CachedFeed get(String agencyId, int maxCacheSeconds) {
+		AgencyCache agencyCache = agencyCaches.get(agencyId);
+		if (agencyCache == null) {
+			agencyCache = new AgencyCache(agencyId, maxCacheSeconds);
+			AgencyCache existing =
+					agencyCaches.putIfAbsent(agencyId, agencyCache);
+			if (existing != null)
+				agencyCache = existing;
+		}
+
+		return agencyCache.get();
+	}
+
+	/**
+	 * Creates a strong entity tag for the encoded feed based on its content.
+	 *
+	 * @param bytes
+	 *            The encoded feed
+	 * @return The quoted entity tag
+	 */
+	public static String createEtag(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return "\"" + Integer.toHexString(bytes.length) + "-"
+				+ Long.toHexString(crc.getValue()) + "\"";
+	}
+
+	/**
+	 * Returns true if the If-None-Match header of a request matches the
+	 * entity tag, meaning that the client already has the feed and 304 Not
+	 * Modified can be returned.
+	 *
+	 * @param ifNoneMatch
+	 *            The If-None-Match header. Can be null.
+	 * @param etag
+	 *            The quoted entity tag of the feed
+	 * @return true if the tag matches
+	 */
+	public static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Summary of the hit, miss, and build time metrics
+	 */
+	public String getMetrics() {
+		long numBuilds = builds.get();
+		return "hits=" + hits.get()
+				+ " staleHits=" + staleHits.get()
+				+ " misses=" + misses.get()
+				+ " builds=" + numBuilds
+				+ " buildFailures=" + buildFailures.get()
+				+ " avgBuildMsec="
+					+ (numBuilds > 0 ? totalBuildMsec.get() / numBuilds : 0)
+				+ " maxBuildMsec=" + maxBuildMsec.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getBuilds() {
+		return builds.get();
+	}
+
+	public long getBuildFailures() {
+		return buildFailures.get();
+	}
+
+	public long getTotalBuildMsec() {
+		return totalBuildMsec.get();
+	}
+
+	public long getMaxBuildMsec() {
+		return maxBuildMsec.get();
+	}
+}
@@ -18,74 +18,43 @@
 package org.transitime.api.gtfsRealtime;
 
 import java.rmi.RemoteException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
+import org.transitime.feed.gtfsRt.GtfsRtTripFeedBuilder;
 import org.transitime.ipc.clients.PredictionsInterfaceFactory;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
 import org.transitime.utils.IntervalTimer;
-import org.transitime.utils.Time;
 
-import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
-import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
  
 /**
  * For creating GTFS-realtime trip feed. The data is obtained from the server
- * via RMI.
- * <p>
- * Note: for the trip feed predictions that are schedule based instead of GPS
- * based the StopTimeEvent uncertainty is set to
- * SCHED_BASED_PRED_UNCERTAINTY_VALUE so that the client can treat the
- * prediction differently. If a vehicle is delayed and not moving then
- * uncertainty is set to DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and
- * the prediction is for a subsequent trip then uncertainty is set to
- * LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+ * via RMI. If the core is running the GtfsRtFeedPublisherModule then the
+ * already encoded feed can simply be obtained via getPreSerializedMessage().
+ * Otherwise all of the predictions are obtained and the feed is created
+ * using GtfsRtTripFeedBuilder.
  * 
  * @author SkiBu Smith
  *
  */
-public class GtfsRtTripFeed {
+public class GtfsRtTripFeed implements DataCache.FeedCreator {
 
 	private final String agencyId;
 	
-	// For outputting date in GTFS-realtime format
-	private SimpleDateFormat gtfsRealtimeDateFormatter = 
-			new SimpleDateFormat("yyyyMMdd");
+	// For creating the feed from the predictions
+	private final GtfsRtTripFeedBuilder builder;
 	
 	// 25 minutes
 	private static final int PREDICTION_MAX_FUTURE_SECS = 25 * 60; 
 	
-	// For when creating StopTimeEvent for schedule based prediction  
-	// 5 minutes (300 seconds)
-	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60; 
-	
-	// For when creating StopTimeEvent and the vehicle is delayed
-	private static final int DELAYED_UNCERTAINTY_VALUE = 
-			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
-	
-	// If vehicle is late and prediction is for a subsequent trip then
-	// the predictions are not as certain because it is reasonably likely
-	// that another vehicle will take over the subsequent trip. Takes
-	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
-	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE = 
-			DELAYED_UNCERTAINTY_VALUE + 1;
-	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(GtfsRtTripFeed.class);
 
@@ -94,116 +63,8 @@ public class GtfsRtTripFeed {
 	public GtfsRtTripFeed(String agencyId) {
 		this.agencyId = agencyId;	
 		
-		this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache
-				.get(agencyId));
-	}
-
-	/**
-	 * Create TripUpdate for the trip.
-	 * 
-	 * @param predsForTrip
-	 * @return
-	 */
-	private TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
-		// Create the parent TripUpdate object that is returned.
-		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
-
-		// Add the trip descriptor information
-		IpcPrediction firstPred = predsForTrip.get(0);
-		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
-		if (firstPred.getRouteId() != null)
-			tripDescriptor.setRouteId(firstPred.getRouteId());
-		if (firstPred.getTripId() != null) {
-			tripDescriptor.setTripId(firstPred.getTripId());
-
-			long tripStartEpochTime = firstPred.getTripStartEpochTime();
-			String tripStartDateStr =
-					gtfsRealtimeDateFormatter.format(new Date(
-							tripStartEpochTime));
-			tripDescriptor.setStartDate(tripStartDateStr);
-		}
-		tripUpdate.setTrip(tripDescriptor);
-
-		// Add the VehicleDescriptor information
-		VehicleDescriptor.Builder vehicleDescriptor =
-				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
-		tripUpdate.setVehicle(vehicleDescriptor);
-
-		// Add the StopTimeUpdate information for each prediction
-		for (IpcPrediction pred : predsForTrip) {
-			StopTimeUpdate.Builder stopTimeUpdate =	StopTimeUpdate.newBuilder()
-					.setStopSequence(pred.getGtfsStopSeq())
-					.setStopId(pred.getStopId());
-			
-			StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
-			stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
-			
-			// If schedule based prediction then set the uncertainty to special
-			// value so that client can tell
-			if (pred.isSchedBasedPred())
-				stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
-			
-			// If vehicle is late and prediction is for a subsequent trip then
-			// the predictions are not as certain because it is reasonably likely
-			// that another vehicle will take over the subsequent trip. Takes
-			// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
-			if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
-				stopTimeEvent.setUncertainty(LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
-			
-			// If vehicle not making forward progress then set uncertainty to
-			// special value so that client can tell. Takes precedence over 
-			// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
-			if (pred.isDelayed())
-				stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
-			
-			if (pred.isArrival())
-				stopTimeUpdate.setArrival(stopTimeEvent);
-			else
-				stopTimeUpdate.setDeparture(stopTimeEvent);
-			
-			stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
-			tripUpdate.addStopTimeUpdate(stopTimeUpdate);
-		}
-		
-		// Add timestamp
-		tripUpdate.setTimestamp(firstPred.getAvlTime() / Time.MS_PER_SEC);
-		
-		// Return the results
-		return tripUpdate.build();
-	}
-	
-	/**
-	 * Creates a GTFS-realtime message for the predictions by trip passed in.
-	 * 
-	 * @param predsByTripMap
-	 *            the data to be put into the GTFS-realtime message
-	 * @return the GTFS-realtime FeedMessage
-	 */
-	private FeedMessage createMessage(Map<String, List<IpcPrediction>> predsByTripMap) {
-		FeedMessage.Builder message = FeedMessage.newBuilder();
-		
-		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
-				.setGtfsRealtimeVersion("1.0")
-				.setIncrementality(Incrementality.FULL_DATASET)
-				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
-		message.setHeader(feedheader);
-		  
-		// For each trip...
-		for (List<IpcPrediction> predsForTrip : predsByTripMap.values()) {				
-			// Create feed entity for each trip
-			FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
-					.setId(predsForTrip.get(0).getTripId());
-			try {				
-				TripUpdate tripUpdate = createTripUpdate(predsForTrip);
-				feedEntity.setTripUpdate(tripUpdate);		
-	    		message.addEntity(feedEntity);
-			} catch (Exception e) {
-				logger.error("Error parsing trip update data. {}",
-						predsForTrip, e);
-			}
-		}		
-		
-		return message.build();
+		this.builder = 
+				new GtfsRtTripFeedBuilder(AgencyTimezoneCache.get(agencyId));
 	}
 
 	/**
@@ -226,26 +87,7 @@ public class GtfsRtTripFeed {
 		}
 		
 		// Group the predictions by trip instead of by vehicle
-		Map<String, List<IpcPrediction>> predictionsByTrip = 
-				new HashMap<String, List<IpcPrediction>>();
-		for (IpcPredictionsForRouteStopDest predictionsForStop : 
-				allPredictionsByStop) {
-			for (IpcPrediction prediction : 
-					predictionsForStop.getPredictionsForRouteStop()) {
-				String tripId = prediction.getTripId();
-				List<IpcPrediction> predsForTrip = predictionsByTrip.get(tripId);
-				if (predsForTrip == null) {
-					// A new trip so need to use a new trip list
-					predsForTrip = new ArrayList<IpcPrediction>();
-					predictionsByTrip.put(tripId, predsForTrip);					
-				}
-				
-				predsForTrip.add(prediction);
-			}
-		}
-		
-		// Return results
-		return predictionsByTrip;
+		return GtfsRtTripFeedBuilder.getPredictionsPerTrip(allPredictionsByStop);
 	}
 
 	/**
@@ -254,6 +96,7 @@ public class GtfsRtTripFeed {
 	 * 
 	 * @return GTFS-RT FeedMessage for vehicle positions
 	 */
+	@Override
 	public FeedMessage createMessage() {
 		// Get prediction data from server
 		IntervalTimer timer = new IntervalTimer();
@@ -263,28 +106,82 @@ public class GtfsRtTripFeed {
 				timer.elapsedMsec());
 		
 		// Use prediction data to create GTFS-RT message and return it.
-		return createMessage(predsByTrip);
+		return builder.createMessage(predsByTrip);
 	}
 
-	// For getPossiblyCachedMessage()
-	private static final DataCache tripFeedDataCache = new DataCache();
+	// For getPossiblyCachedFeed(). A single GtfsRtTripFeed is used per
+	// agency so that unchanged entities are reused between builds.
+	private static final DataCache tripFeedDataCache = new DataCache(
+			"tripUpdates", new DataCache.FeedCreatorFactory() {
+				@Override
+				public DataCache.FeedCreator create(String agencyId) {
+					return new GtfsRtTripFeed(agencyId);
+				}
+			});
 	
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * For caching Trip Updates feed messages. Only one request at a time
+	 * causes the feed to be built and other requests are served the
+	 * previous version in the meantime.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
-	 * @return
+	 * @return The cached feed, or null if it could not be created
+	 */
+	public static DataCache.CachedFeed getPossiblyCachedFeed(String agencyId,
+			int cacheTime) {
+		return tripFeedDataCache.get(agencyId, cacheTime);
+	}
+
+	/**
+	 * Returns the already encoded trip feed that is published by the core
+	 * via the GtfsRtFeedPublisherModule. This way the feed doesn't need to
+	 * be created for the request.
+	 * 
+	 * @param agencyId
+	 * @param gzipped
+	 *            If true then returns the gzipped version of the feed
+	 * @return The encoded feed along with its entity tag, or null if it is
+	 *         not available because the core is not running
+	 *         GtfsRtFeedPublisherModule or the RMI call failed
+	 */
+	public static IpcSerializedGtfsRtFeed getPreSerializedMessage(
+			String agencyId, boolean gzipped) {
+		try {
+			return PredictionsInterfaceFactory.get(agencyId)
+					.getSerializedGtfsRtTripUpdates(gzipped);
+		} catch (RemoteException e) {
+			logger.error("Exception when getting serialized trip feed "
+					+ "via RMI", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the trip updates that changed since the specified sequence number, as
+	 * published by the core via the GtfsRtFeedPublisherModule. If nothing
+	 * has changed since the sequence number then the core waits up to
+	 * maxWaitMsec for the next changes.
+	 * 
+	 * @param agencyId
+	 * @param sinceSequence
+	 *            Sequence number of the last feed received by the client. If
+	 *            0 or too old then the full dataset is returned.
+	 * @param maxWaitMsec
+	 *            How long to wait for changes
+	 * @return The encoded feed along with its sequence number, or null if it
+	 *         is not available because the core is not running
+	 *         GtfsRtFeedPublisherModule or the RMI call failed
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId, int cacheTime) {
-	    FeedMessage feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    if (feedMessage != null)
-	    	return feedMessage;
-	    
-	    GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-	    feedMessage = feed.createMessage();
-	    tripFeedDataCache.put(agencyId, feedMessage);
-	    return feedMessage;
+	public static IpcGtfsRtFeedDelta getDelta(String agencyId,
+			long sinceSequence, long maxWaitMsec) {
+		try {
+			return PredictionsInterfaceFactory.get(agencyId)
+					.getGtfsRtTripUpdatesDelta(sinceSequence, maxWaitMsec);
+		} catch (RemoteException e) {
+			logger.error("Exception when getting trip feed delta via RMI", e);
+			return null;
+		}
 	}
 
 }
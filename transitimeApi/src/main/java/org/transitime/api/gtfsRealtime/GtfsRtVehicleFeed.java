@@ -18,42 +18,36 @@
 package org.transitime.api.gtfsRealtime;
 
 import java.rmi.RemoteException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Collection;
-import java.util.Date;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
+import org.transitime.feed.gtfsRt.GtfsRtVehicleFeedBuilder;
 import org.transitime.ipc.clients.VehiclesInterfaceFactory;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.interfaces.VehiclesInterface;
-import org.transitime.utils.Time;
 
-import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-import com.google.transit.realtime.GtfsRealtime.Position;
-import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
-import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
-import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
-import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
 
 /**
- * For creating GTFS-realtime Vehicle feed. The data is obtained via RMI.
+ * For creating GTFS-realtime Vehicle feed. The data is obtained via RMI. If
+ * the core is running the GtfsRtFeedPublisherModule then the already encoded
+ * feed can simply be obtained via getPreSerializedMessage(). Otherwise all of
+ * the vehicles are obtained and the feed is created using
+ * GtfsRtVehicleFeedBuilder.
  *
  * @author SkiBu Smith
  *
  */
-public class GtfsRtVehicleFeed {
+public class GtfsRtVehicleFeed implements DataCache.FeedCreator {
 
 	private final String agencyId;
 
-	// For outputting date in GTFS-realtime format
-	private SimpleDateFormat gtfsRealtimeDateFormatter = 
-			new SimpleDateFormat("yyyyMMdd");
+	// For creating the feed from the vehicles
+	private final GtfsRtVehicleFeedBuilder builder;
 	
 	private static final Logger logger = LoggerFactory
 			.getLogger(GtfsRtVehicleFeed.class);
@@ -63,122 +57,8 @@ public class GtfsRtVehicleFeed {
 	public GtfsRtVehicleFeed(String agencyId) {
 		this.agencyId = agencyId;
 		
-		this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache
-				.get(agencyId));
-	}
-
-	/**
-	 * Takes in IpcGtfsRealtimeVehicle and puts it into a GTFS-realtime
-	 * VehiclePosition object.
-	 * 
-	 * @param vehicleData
-	 * @return the resulting VehiclePosition
-	 * @throws ParseException
-	 */
-	private VehiclePosition createVehiclePosition(
-			IpcVehicleGtfsRealtime vehicleData) throws ParseException {
-		// Create the parent VehiclePosition object that is returned.
-		VehiclePosition.Builder vehiclePosition = VehiclePosition.newBuilder();
-
-		// If there is route information then add it via the TripDescriptor
-		if (vehicleData.getRouteId() != null
-				&& vehicleData.getRouteId().length() > 0) {
-			String tripStartDateStr =
-					gtfsRealtimeDateFormatter.format(new Date(vehicleData
-							.getTripStartEpochTime()));
-			TripDescriptor.Builder tripDescriptor =					
-					TripDescriptor.newBuilder()
-							.setRouteId(vehicleData.getRouteId())
-							.setTripId(vehicleData.getTripId())
-							.setStartDate(tripStartDateStr);
-			vehiclePosition.setTrip(tripDescriptor);
-		}
-
-		// Add the VehicleDescriptor information
-		VehicleDescriptor.Builder vehicleDescriptor =
-				VehicleDescriptor.newBuilder().setId(vehicleData.getId());
-		// License plate information is optional so only add it if not null
-		if (vehicleData.getLicensePlate() != null)
-			vehicleDescriptor.setLicensePlate(vehicleData.getLicensePlate());
-		vehiclePosition.setVehicle(vehicleDescriptor);
-
-		// Add the Position information
-		Position.Builder position =
-				Position.newBuilder().setLatitude(vehicleData.getLatitude())
-						.setLongitude(vehicleData.getLongitude());
-		// Heading and speed are optional so only add them if actually a
-		// valid number.
-		if (!Float.isNaN(vehicleData.getHeading())) {
-			position.setBearing(vehicleData.getHeading());
-		}
-		if (!Float.isNaN(vehicleData.getSpeed())) {
-			position.setSpeed(vehicleData.getSpeed());
-		}
-		vehiclePosition.setPosition(position);
-
-		// Convert the GPS timestamp information to an epoch time as
-		// number of milliseconds since 1970.
-		long gpsTime = vehicleData.getGpsTime();
-		vehiclePosition.setTimestamp(gpsTime / Time.MS_PER_SEC);
-
-		// Set the stop_id if at a stop or going to a stop
-		String stopId = vehicleData.getAtOrNextStopId();
-		if (stopId != null)
-			vehiclePosition.setStopId(stopId);
-
-		// Set current_status part of vehiclePosition if vehicle is actually
-		// predictable. If not predictable then the vehicle stop status will
-		// not be included in feed since it is not stopped nor in transit to.
-		if (vehicleData.isPredictable()) {
-			VehicleStopStatus currentStatus =
-					vehicleData.isAtStop() ? VehicleStopStatus.STOPPED_AT
-							: VehicleStopStatus.IN_TRANSIT_TO;
-			vehiclePosition.setCurrentStatus(currentStatus);
-			
-			if (vehicleData.getAtOrNextGtfsStopSeq() != null)
-				vehiclePosition.setCurrentStopSequence(vehicleData.getAtOrNextGtfsStopSeq());
-		}
-
-		// Return the results
-		return vehiclePosition.build();
-	}
-
-	/**
-	 * Creates a GTFS-realtime message for the list of ApiVehicle passed in.
-	 * 
-	 * @param vehicles
-	 *            the data to be put into the GTFS-realtime message
-	 * @return the GTFS-realtime FeedMessage
-	 */
-	private FeedMessage createMessage(
-			Collection<IpcVehicleGtfsRealtime> vehicles) {
-		FeedMessage.Builder message = FeedMessage.newBuilder();
-
-		FeedHeader.Builder feedheader =
-				FeedHeader
-						.newBuilder()
-						.setGtfsRealtimeVersion("1.0")
-						.setIncrementality(Incrementality.FULL_DATASET)
-						.setTimestamp(
-								System.currentTimeMillis() / Time.MS_PER_SEC);
-		message.setHeader(feedheader);
-
-		for (IpcVehicleGtfsRealtime vehicle : vehicles) {
-			FeedEntity.Builder vehiclePositionEntity =
-					FeedEntity.newBuilder().setId(vehicle.getId());
-
-			try {
-				VehiclePosition vehiclePosition =
-						createVehiclePosition(vehicle);
-				vehiclePositionEntity.setVehicle(vehiclePosition);
-				message.addEntity(vehiclePositionEntity);
-			} catch (Exception e) {
-				logger.error("Error parsing vehicle data for vehicle={}",
-						vehicle, e);
-			}
-		}
-
-		return message.build();
+		this.builder = 
+				new GtfsRtVehicleFeedBuilder(AgencyTimezoneCache.get(agencyId));
 	}
 
 	/**
@@ -205,30 +85,84 @@ public class GtfsRtVehicleFeed {
 	 * 
 	 * @return GTFS-RT FeedMessage for vehicle positions
 	 */
+	@Override
 	public FeedMessage createMessage() {
 		Collection<IpcVehicleGtfsRealtime> vehicles = getVehicles();
-		return createMessage(vehicles);
+		return builder.createMessage(vehicles);
 	}
 
-	// For getPossiblyCachedMessage()
-	private static final DataCache vehicleFeedDataCache = new DataCache();
+	// For getPossiblyCachedFeed(). A single GtfsRtVehicleFeed is used per
+	// agency so that unchanged entities are reused between builds.
+	private static final DataCache vehicleFeedDataCache = new DataCache(
+			"vehiclePositions", new DataCache.FeedCreatorFactory() {
+				@Override
+				public DataCache.FeedCreator create(String agencyId) {
+					return new GtfsRtVehicleFeed(agencyId);
+				}
+			});
 
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * For caching Vehicle Positions feed messages. Only one request at a
+	 * time causes the feed to be built and other requests are served the
+	 * previous version in the meantime.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
-	 * @return
+	 * @return The cached feed, or null if it could not be created
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId,
+	public static DataCache.CachedFeed getPossiblyCachedFeed(String agencyId,
 			int cacheTime) {
-		FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-		if (feedMessage != null)
-			return feedMessage;
+		return vehicleFeedDataCache.get(agencyId, cacheTime);
+	}
 
-		GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-		feedMessage = feed.createMessage();
-		vehicleFeedDataCache.put(agencyId, feedMessage);
-		return feedMessage;
+	/**
+	 * Returns the already encoded vehicle feed that is published by the core
+	 * via the GtfsRtFeedPublisherModule. This way the feed doesn't need to
+	 * be created for the request.
+	 * 
+	 * @param agencyId
+	 * @param gzipped
+	 *            If true then returns the gzipped version of the feed
+	 * @return The encoded feed along with its entity tag, or null if it is
+	 *         not available because the core is not running
+	 *         GtfsRtFeedPublisherModule or the RMI call failed
+	 */
+	public static IpcSerializedGtfsRtFeed getPreSerializedMessage(
+			String agencyId, boolean gzipped) {
+		try {
+			return VehiclesInterfaceFactory.get(agencyId)
+					.getSerializedGtfsRtVehiclePositions(gzipped);
+		} catch (RemoteException e) {
+			logger.error("Exception when getting serialized vehicle feed "
+					+ "via RMI", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the vehicle positions that changed since the specified sequence number, as
+	 * published by the core via the GtfsRtFeedPublisherModule. If nothing
+	 * has changed since the sequence number then the core waits up to
+	 * maxWaitMsec for the next changes.
+	 * 
+	 * @param agencyId
+	 * @param sinceSequence
+	 *            Sequence number of the last feed received by the client. If
+	 *            0 or too old then the full dataset is returned.
+	 * @param maxWaitMsec
+	 *            How long to wait for changes
+	 * @return The encoded feed along with its sequence number, or null if it
+	 *         is not available because the core is not running
+	 *         GtfsRtFeedPublisherModule or the RMI call failed
+	 */
+	public static IpcGtfsRtFeedDelta getDelta(String agencyId,
+			long sinceSequence, long maxWaitMsec) {
+		try {
+			return VehiclesInterfaceFactory.get(agencyId)
+					.getGtfsRtVehiclePositionsDelta(sinceSequence, maxWaitMsec);
+		} catch (RemoteException e) {
+			logger.error("Exception when getting vehicle feed delta via RMI", e);
+			return null;
+		}
 	}
 }
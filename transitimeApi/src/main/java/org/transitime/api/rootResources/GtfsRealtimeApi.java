@@ -19,22 +19,30 @@ package org.transitime.api.rootResources;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.transitime.api.utils.StandardParameters;
+import org.transitime.api.gtfsRealtime.DataCache;
 import org.transitime.api.gtfsRealtime.GtfsRtTripFeed;
 import org.transitime.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitime.feed.gtfsRt.OctalDecoder;
+import org.transitime.ipc.data.IpcGtfsRtFeedDelta;
+import org.transitime.ipc.data.IpcSerializedGtfsRtFeed;
+import org.transitime.ipc.rmi.ClientFactory;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
 /**
@@ -48,8 +56,253 @@ public class GtfsRealtimeApi {
 
 	private final int MAX_GTFS_RT_CACHE_SECS = 15;
 
+	// For streaming endpoints, how long to wait for changes before sending
+	// an empty DIFFERENTIAL message. The empty message lets the client know
+	// the connection is still alive and detects clients that have gone away.
+	// Limited by the RMI socket timeout.
+	private static final long STREAM_MAX_WAIT_MSEC = 
+			ClientFactory.getMaxLongPollWaitMsec();
+
+	// Each stream keeps a LongPoll RMI call outstanding to the core. Those
+	// calls are not counted against the RmiCallInvocationHandler limit on
+	// concurrent calls, since otherwise a handful of streams would block
+	// all regular requests, so the number of streams is limited here.
+	private static final int MAX_CONCURRENT_STREAMS = 10;
+	private static final AtomicInteger activeStreams = new AtomicInteger();
+
+	// Response header containing the sequence number that the client should
+	// use as the "since" parameter for the next request. GTFS-realtime 1.0
+	// has no field for this so it is passed as a header.
+	private static final String SEQUENCE_HEADER = "X-GTFS-RT-Sequence";
+
 	/********************** Member Functions **************************/
 
+	/**
+	 * Returns true if the Accept-Encoding header of the request indicates
+	 * that the client accepts gzip encoded responses.
+	 * 
+	 * @param acceptEncoding
+	 *            The Accept-Encoding header. Can be null.
+	 * @return true if gzip is accepted
+	 */
+	private static boolean acceptsGzip(String acceptEncoding) {
+		return acceptEncoding != null 
+				&& acceptEncoding.toLowerCase().contains("gzip");
+	}
+	
+	/**
+	 * Creates a Response for an already encoded GTFS-realtime feed that was
+	 * published by the core. The bytes are simply streamed. The entity tag
+	 * was already determined by the core when the feed was published.
+	 * 
+	 * @param feed
+	 *            The encoded feed along with its entity tag
+	 * @param gzipped
+	 *            Whether the bytes are gzipped and therefore need
+	 *            Content-Encoding header
+	 * @param ifNoneMatch
+	 *            The If-None-Match header of the request. Can be null.
+	 * @return the Response
+	 */
+	private static Response createPreSerializedResponse(
+			IpcSerializedGtfsRtFeed feed, boolean gzipped, String ifNoneMatch) {
+		String etag = feed.getEtag();
+		if (DataCache.etagMatches(ifNoneMatch, etag))
+			return Response.status(Response.Status.NOT_MODIFIED)
+					.header(HttpHeaders.ETAG, etag)
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+					.build();
+		
+		Response.ResponseBuilder response = 
+				Response.ok(feed.getBytes())
+						.type(MediaType.APPLICATION_OCTET_STREAM)
+						.header(HttpHeaders.ETAG, etag)
+						.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (gzipped)
+			response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		return response.build();
+	}
+
+	/**
+	 * Creates a Response for a feed from the API's DataCache. If the client
+	 * already has the feed, as indicated by the If-None-Match header, then
+	 * 304 Not Modified is returned instead.
+	 * 
+	 * @param feed
+	 *            The cached feed. If null then 503 Service Unavailable is
+	 *            returned.
+	 * @param humanFormatOutput
+	 *            If true then outputs the message in human readable format
+	 * @param ifNoneMatch
+	 *            The If-None-Match header of the request. Can be null.
+	 * @return the Response
+	 */
+	private static Response createCachedFeedResponse(DataCache.CachedFeed feed,
+			boolean humanFormatOutput, String ifNoneMatch) {
+		if (feed == null)
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+					.type(MediaType.TEXT_PLAIN)
+					.entity("GTFS-realtime feed could not be created").build();
+		
+		// Output data in human readable format. First, convert the octal
+		// escaped message to regular UTF encoding. For plain text best to
+		// use MediaType.TEXT_PLAIN so that output is formatted properly in
+		// web browser instead of newlines being removed.
+		if (humanFormatOutput) {
+			String decodedMessage = OctalDecoder
+					.convertOctalEscapedString(feed.getMessage().toString());
+			return Response.ok(decodedMessage.getBytes())
+					.type(MediaType.TEXT_PLAIN).build();
+		}
+		
+		// Standard binary output, unless client already has it
+		if (DataCache.etagMatches(ifNoneMatch, feed.getEtag()))
+			return Response.status(Response.Status.NOT_MODIFIED)
+					.header(HttpHeaders.ETAG, feed.getEtag()).build();
+		return Response.ok(feed.getBytes())
+				.type(MediaType.APPLICATION_OCTET_STREAM)
+				.header(HttpHeaders.ETAG, feed.getEtag()).build();
+	}
+
+	/**
+	 * Gets the changes to the feed since the specified sequence number.
+	 * 
+	 * @param agencyId
+	 * @param tripUpdates
+	 *            true for the trip updates feed, false for vehicle positions
+	 * @param sinceSequence
+	 * @param maxWaitMsec
+	 *            how long to wait for changes if there are none yet
+	 * @return the delta, or null if the core is not publishing the feed
+	 */
+	private static IpcGtfsRtFeedDelta getDelta(String agencyId,
+			boolean tripUpdates, long sinceSequence, long maxWaitMsec) {
+		return tripUpdates ? 
+				GtfsRtTripFeed.getDelta(agencyId, sinceSequence, maxWaitMsec)
+				: GtfsRtVehicleFeed.getDelta(agencyId, sinceSequence,
+						maxWaitMsec);
+	}
+
+	/**
+	 * Creates a Response containing the entities that changed since the
+	 * sequence number specified by the client. The sequence number to use
+	 * for the next request is returned in the X-GTFS-RT-Sequence header.
+	 * 
+	 * @param delta
+	 *            The changes as published by the core
+	 * @param humanFormatOutput
+	 *            If true then outputs the message in human readable format
+	 * @return the Response
+	 * @throws WebApplicationException
+	 */
+	private static Response createDeltaResponse(IpcGtfsRtFeedDelta delta,
+			boolean humanFormatOutput) throws WebApplicationException {
+		Response.ResponseBuilder response;
+		if (humanFormatOutput) {
+			try {
+				String decodedMessage =
+						OctalDecoder.convertOctalEscapedString(FeedMessage
+								.parseFrom(delta.getBytes()).toString());
+				response = Response.ok(decodedMessage.getBytes()).type(
+						MediaType.TEXT_PLAIN);
+			} catch (IOException e) {
+				throw new WebApplicationException(e);
+			}
+		} else {
+			response = Response.ok(delta.getBytes()).type(
+					MediaType.APPLICATION_OCTET_STREAM);
+		}
+		return response.header(SEQUENCE_HEADER, delta.getSequence()).build();
+	}
+
+	/**
+	 * Creates a Response that streams the changes to a feed for as long as
+	 * the client stays connected. The first message is the full dataset,
+	 * unless a sequence number that is still available is specified, and
+	 * each following message is a DIFFERENTIAL one containing the entities
+	 * that changed since the previous message. Each message is preceded by
+	 * its length encoded as a varint so that the client can use
+	 * FeedMessage.parseDelimitedFrom() to read them from the chunked
+	 * response.
+	 * <p>
+	 * A stream only counts against MAX_CONCURRENT_STREAMS while it is
+	 * actually being written. The slot is taken and released within
+	 * StreamingOutput.write() since the container might never call it, such
+	 * as when the client disconnects before the response is sent.
+	 * 
+	 * @param agencyId
+	 * @param tripUpdates
+	 *            true for the trip updates feed, false for vehicle positions
+	 * @param since
+	 *            sequence number to start from. Can be null.
+	 * @return the Response
+	 */
+	private static Response createStreamResponse(final String agencyId,
+			final boolean tripUpdates, Long since) {
+		// Don't tie up the core with too many outstanding calls
+		if (activeStreams.get() >= MAX_CONCURRENT_STREAMS)
+			return tooManyStreamsResponse();
+		
+		// Make sure the core is publishing the feed before starting the
+		// stream so that can return an appropriate status if it is not
+		final IpcGtfsRtFeedDelta firstDelta =
+				getDelta(agencyId, tripUpdates, since != null ? since : 0, 0);
+		if (firstDelta == null) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+					.type(MediaType.TEXT_PLAIN)
+					.entity("GTFS-realtime feed is not being published by "
+							+ "the core").build();
+		}
+
+		StreamingOutput stream = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				// Other streams might have started since the check above.
+				// Nothing has been written yet so can still respond with
+				// an error status.
+				if (activeStreams.incrementAndGet() > MAX_CONCURRENT_STREAMS) {
+					activeStreams.decrementAndGet();
+					throw new WebApplicationException(tooManyStreamsResponse());
+				}
+				
+				CodedOutputStream codedOutput =
+						CodedOutputStream.newInstance(outputStream);
+				IpcGtfsRtFeedDelta delta = firstDelta;
+				try {
+					// Keep writing until the client disconnects, which
+					// causes an IOException, or until the core stops
+					// publishing
+					while (delta != null) {
+						codedOutput.writeRawVarint32(delta.getBytes().length);
+						codedOutput.writeRawBytes(delta.getBytes());
+						codedOutput.flush();
+						outputStream.flush();
+
+						delta = getDelta(agencyId, tripUpdates,
+								delta.getSequence(), STREAM_MAX_WAIT_MSEC);
+					}
+				} finally {
+					activeStreams.decrementAndGet();
+				}
+			}
+		};
+
+		return Response.ok(stream).type(MediaType.APPLICATION_OCTET_STREAM)
+				.header(SEQUENCE_HEADER, firstDelta.getSequence()).build();
+	}
+
+	/**
+	 * @return the Response for when already streaming the maximum number of
+	 *         streams
+	 */
+	private static Response tooManyStreamsResponse() {
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.type(MediaType.TEXT_PLAIN)
+				.entity("Already streaming the maximum of "
+						+ MAX_CONCURRENT_STREAMS + " GTFS-realtime "
+						+ "streams").build();
+	}
+
 	/**
 	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
 	 * 
@@ -57,6 +310,11 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param since
+	 *            optional sequence number from the X-GTFS-RT-Sequence header
+	 *            of a previous response. If set then a DIFFERENTIAL feed
+	 *            containing only the vehicles that changed since then is
+	 *            returned.
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -65,7 +323,10 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeVehiclePositionsFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@QueryParam(value = "since") Long since,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -75,45 +336,32 @@ public class GtfsRealtimeApi {
 		// standard binary GTFS-realtime format.
 		final boolean humanFormatOutput = "human".equals(format);
 
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
+		// If client wants just the changes since a previous response and the
+		// core is publishing the feed then return the DIFFERENTIAL feed
+		if (since != null) {
+			IpcGtfsRtFeedDelta delta = getDelta(stdParameters.getAgencyId(),
+					false, since, 0);
+			if (delta != null)
+				return createDeltaResponse(delta, humanFormatOutput);
+		}
 
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtVehicleFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									MAX_GTFS_RT_CACHE_SECS);
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
-			}
-		};
+		// If binary output and the core is publishing the already encoded
+		// feed then simply stream those bytes
+		if (!humanFormatOutput) {
+			boolean gzipped = acceptsGzip(acceptEncoding);
+			IpcSerializedGtfsRtFeed serializedFeed = 
+					GtfsRtVehicleFeed.getPreSerializedMessage(
+							stdParameters.getAgencyId(), gzipped);
+			if (serializedFeed != null)
+				return createPreSerializedResponse(serializedFeed, gzipped,
+						ifNoneMatch);
+		}
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+		// Get the feed from the cache. Only one request at a time causes
+		// the feed to be built and the others get the previous version.
+		DataCache.CachedFeed feed = GtfsRtVehicleFeed.getPossiblyCachedFeed(
+				stdParameters.getAgencyId(), MAX_GTFS_RT_CACHE_SECS);
+		return createCachedFeedResponse(feed, humanFormatOutput, ifNoneMatch);
 	}
 
 	/**
@@ -123,6 +371,11 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param since
+	 *            optional sequence number from the X-GTFS-RT-Sequence header
+	 *            of a previous response. If set then a DIFFERENTIAL feed
+	 *            containing only the trips that changed since then is
+	 *            returned.
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -131,7 +384,10 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@QueryParam(value = "since") Long since,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -141,45 +397,82 @@ public class GtfsRealtimeApi {
 		// standard binary GTFS-realtime format.
 		final boolean humanFormatOutput = "human".equals(format);
 
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
+		// If client wants just the changes since a previous response and the
+		// core is publishing the feed then return the DIFFERENTIAL feed
+		if (since != null) {
+			IpcGtfsRtFeedDelta delta = getDelta(stdParameters.getAgencyId(),
+					true, since, 0);
+			if (delta != null)
+				return createDeltaResponse(delta, humanFormatOutput);
+		}
 
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtTripFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									MAX_GTFS_RT_CACHE_SECS);
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
-			}
-		};
+		// If binary output and the core is publishing the already encoded
+		// feed then simply stream those bytes
+		if (!humanFormatOutput) {
+			boolean gzipped = acceptsGzip(acceptEncoding);
+			IpcSerializedGtfsRtFeed serializedFeed = 
+					GtfsRtTripFeed.getPreSerializedMessage(
+							stdParameters.getAgencyId(), gzipped);
+			if (serializedFeed != null)
+				return createPreSerializedResponse(serializedFeed, gzipped,
+						ifNoneMatch);
+		}
+
+		// Get the feed from the cache. Only one request at a time causes
+		// the feed to be built and the others get the previous version.
+		DataCache.CachedFeed feed = GtfsRtTripFeed.getPossiblyCachedFeed(
+				stdParameters.getAgencyId(), MAX_GTFS_RT_CACHE_SECS);
+		return createCachedFeedResponse(feed, humanFormatOutput, ifNoneMatch);
+	}
+
+	/**
+	 * For streaming the changes to the GTFS-realtime Vehicle Positions feed.
+	 * The response is kept open and a length delimited FeedMessage is
+	 * written each time the core publishes the feed. Requires that the core
+	 * is running the GtfsRtFeedPublisherModule.
+	 * 
+	 * @param stdParameters
+	 * @param since
+	 *            optional sequence number to start from
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/gtfs-rt/vehiclePositions/stream")
+	@GET
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	public Response getGtfsRealtimeVehiclePositionsStream(
+			final @BeanParam StandardParameters stdParameters,
+			@QueryParam(value = "since") Long since)
+			throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		return createStreamResponse(stdParameters.getAgencyId(), false, since);
+	}
+
+	/**
+	 * For streaming the changes to the GTFS-realtime Trip Updates feed. The
+	 * response is kept open and a length delimited FeedMessage is written
+	 * each time the core publishes the feed. Requires that the core is
+	 * running the GtfsRtFeedPublisherModule.
+	 * 
+	 * @param stdParameters
+	 * @param since
+	 *            optional sequence number to start from
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/gtfs-rt/tripUpdates/stream")
+	@GET
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	public Response getGtfsRealtimeTripStream(
+			final @BeanParam StandardParameters stdParameters,
+			@QueryParam(value = "since") Long since)
+			throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
 
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+		return createStreamResponse(stdParameters.getAgencyId(), true, since);
 	}
 
 }
@@ -42,6 +42,7 @@ import org.transitime.api.data.ApiBlocks;
 import org.transitime.api.data.ApiBlocksTerse;
 import org.transitime.api.data.ApiCalendars;
 import org.transitime.api.data.ApiDirections;
+import org.transitime.api.data.ApiHeadways;
 import org.transitime.api.data.ApiIds;
 import org.transitime.api.data.ApiPredictions;
 import org.transitime.api.data.ApiRmiServerStatus;
@@ -64,6 +65,7 @@ import org.transitime.db.structs.Location;
 import org.transitime.ipc.data.IpcActiveBlock;
 import org.transitime.ipc.data.IpcBlock;
 import org.transitime.ipc.data.IpcCalendar;
+import org.transitime.ipc.data.IpcHeadwaysForStop;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.ipc.data.IpcRoute;
@@ -585,6 +587,53 @@ public class TransitimeApi {
 		}
 	}
 
+	/**
+	 * Handles the "headways" command. Returns the current and predicted
+	 * headways for a route. For each direction of each stop provides the
+	 * vehicles that most recently passed the stop and the vehicles predicted
+	 * to arrive there, each with the headway from the vehicle before it.
+	 * 
+	 * @param stdParameters
+	 *            StdParametersBean that gets the standard parameters from the
+	 *            URI, query string, and headers.
+	 * @param routeIdOrShortName
+	 *            The route ID or the route short name
+	 * @param stopIdOrCode
+	 *            Optional stop ID or stop code. If not set then headways for
+	 *            all stops of the route are returned.
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/headways")
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response getHeadways(@BeanParam StandardParameters stdParameters,
+			@QueryParam(value = "r") String routeIdOrShortName,
+			@QueryParam(value = "s") String stopIdOrCode)
+			throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		if (routeIdOrShortName == null)
+			throw WebUtils.badRequestException("Must specify route using "
+					+ "the \"r\" query string parameter");
+
+		try {
+			// Get headway data from server
+			PredictionsInterface inter =
+					stdParameters.getPredictionsInterface();
+			List<IpcHeadwaysForStop> headways =
+					inter.getHeadways(routeIdOrShortName, stopIdOrCode);
+
+			// return ApiHeadways response
+			ApiHeadways headwaysData = new ApiHeadways(headways);
+			return stdParameters.createResponse(headwaysData);
+		} catch (Exception e) {
+			// If problem getting data then return a Bad Request
+			throw WebUtils.badRequestException(e.getMessage());
+		}
+	}
+
 	/**
 	 * Handles the "routes" command. Returns summary data describing all of the
 	 * routes. Useful for creating a route selector as part of a UI.